@@ -80,6 +80,7 @@ public final class R {
         public static final int online_label=0x7f050008;
         public static final int online_now=0x7f05000c;
         public static final int playlists_label=0x7f050006;
+        public static final int timeout_error_msg=0x7f050015;
         public static final int tracks_label=0x7f050005;
         public static final int url_label=0x7f050004;
         public static final int username_label=0x7f050001;
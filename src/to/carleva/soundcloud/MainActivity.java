@@ -128,7 +128,9 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
                     favoritesFragment.setVisible(true);
                     return favoritesFragment;          
                 case 1:
-                    return new AccountFragment();
+                    AccountFragment accountFragment = new AccountFragment();
+                    accountFragment.setVisible(false);
+                    return accountFragment;
                 default:
                     return null;
             }
@@ -0,0 +1,292 @@
+package to.carleva.soundcloud.analytics;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import to.carleva.soundcloud.archive.ArchivePolicy;
+import to.carleva.soundcloud.archive.ArchiveRestoreException;
+import to.carleva.soundcloud.archive.ArchiveSaveException;
+import to.carleva.soundcloud.archive.Archiver;
+import to.carleva.soundcloud.types.Favorite;
+import to.carleva.soundcloud.types.FavoritesChanges;
+
+/**
+ * Aggregates over the favorites of a user (totals, likes and playbacks by genre, likes by author and
+ * by release year), maintained incrementally as favorites are added, changed or removed, so that they
+ * are never recomputed by scanning the favorites list.
+ *
+ * The contribution of each favorite to the aggregates is kept by id: an update retracts the previous
+ * contribution of the favorites it changes, and adds the new one, so that applying the same changes
+ * twice (e.g. activities replayed from an older cursor) leaves the aggregates as they are. Counters are
+ * read in O(1), and top k lists are built in O(k). The aggregates are archived as a whole, see save().
+ *
+ * The class is thread safe.
+ *
+ * @author Andrea Carlevato
+ */
+public class FavoritesAnalytics {
+
+    /**
+     * The values of a favorite the aggregates are built from.
+     */
+    private static class Contribution implements Serializable {
+
+        private static final long serialVersionUID = 7265103947215603312L;
+
+        private final String mGenre;
+        private final String mAuthor;
+        private final int mReleaseYear;
+        private final long mPlaybacks;
+        private final long mFavoritings;
+
+        Contribution(final Favorite favorite) {
+            mGenre = favorite.getGenre();
+            mAuthor = favorite.getAuthorUserName();
+            mReleaseYear = favorite.getReleaseYear();
+            // counts are -1 when not available
+            mPlaybacks = Math.max(0, favorite.getPlaybackCount());
+            mFavoritings = Math.max(0, favorite.getFavoritingsCount());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Contribution)) {
+                return false;
+            }
+            Contribution rhs = (Contribution) obj;
+            return mGenre.equals(rhs.mGenre) && mAuthor.equals(rhs.mAuthor) && mReleaseYear == rhs.mReleaseYear
+                    && mPlaybacks == rhs.mPlaybacks && mFavoritings == rhs.mFavoritings;
+        }
+
+        @Override
+        public int hashCode() {
+            return mGenre.hashCode() * 31 + mAuthor.hashCode() * 17 + mReleaseYear + (int) mPlaybacks;
+        }
+    }
+
+    /**
+     * The aggregates, and the contributions they are made of, archived as a whole.
+     */
+    private static class State implements Serializable {
+
+        private static final long serialVersionUID = 1948203750164433871L;
+
+        private final Map<Integer, Contribution> mById = new HashMap<Integer, Contribution>();
+        private final Ranking<String> mLikesByGenre = new Ranking<String>();
+        private final Ranking<String> mPlaybacksByGenre = new Ranking<String>();
+        private final Ranking<String> mLikesByAuthor = new Ranking<String>();
+        private final Ranking<Integer> mLikesByYear = new Ranking<Integer>();
+        private long mPlaybacks;
+        private long mFavoritings;
+    }
+
+    private State mState = new State();
+    private long mUpdateCount;
+
+    /**
+     * Apply the given changes of the activity feed.
+     *
+     * @param changes the changes
+     */
+    synchronized public void apply(final FavoritesChanges changes) {
+        for (Favorite favorite : changes.getChanged()) {
+            put(favorite.getId(), new Contribution(favorite));
+        }
+        for (int id : changes.getRemovedIds()) {
+            remove(id);
+        }
+    }
+
+    /**
+     * Bring the aggregates in line with the given full favorites list: only the favorites added,
+     * changed or removed since the aggregates were last updated are accounted for.
+     *
+     * @param favorites the favorites list
+     */
+    synchronized public void sync(final List<Favorite> favorites) {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (Favorite favorite : favorites) {
+            ids.add(favorite.getId());
+            put(favorite.getId(), new Contribution(favorite));
+        }
+        if (mState.mById.size() > ids.size()) {
+            for (int id : new ArrayList<Integer>(mState.mById.keySet())) {
+                if (!ids.contains(id)) {
+                    remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop all the aggregates.
+     */
+    synchronized public void clear() {
+        mState = new State();
+    }
+
+    /**
+     * Save the aggregates to disk, to a file identified by the given tag.
+     *
+     * @param tag the tag for the aggregates
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the compression and size budget policy to apply
+     * @throws ArchiveSaveException if the archiving operation failed
+     */
+    synchronized public void save(final String tag, final File localFilesDir, final ArchivePolicy policy)
+            throws ArchiveSaveException {
+        Archiver.saveObject(mState, tag, localFilesDir, policy);
+    }
+
+    /**
+     * Replace the aggregates with the ones saved to disk, identified by the given tag.
+     *
+     * @param tag the tag for the aggregates
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the policy the aggregates were saved with
+     * @return true if saved aggregates were restored, false if none exist
+     * @throws ArchiveRestoreException if the saved aggregates could not be restored
+     */
+    synchronized public boolean restore(final String tag, final File localFilesDir, final ArchivePolicy policy)
+            throws ArchiveRestoreException {
+        State state = Archiver.restoreObject(tag, localFilesDir, policy);
+        if (state == null) {
+            return false;
+        }
+        mState = state;
+        return true;
+    }
+
+    /**
+     * @return the number of favorites
+     */
+    synchronized public int getCount() {
+        return mState.mById.size();
+    }
+
+    /**
+     * @return the playbacks of all the favorites
+     */
+    synchronized public long getTotalPlaybacks() {
+        return mState.mPlaybacks;
+    }
+
+    /**
+     * @return the likes of all the favorites, by all users
+     */
+    synchronized public long getTotalFavoritings() {
+        return mState.mFavoritings;
+    }
+
+    /**
+     * @return the number of favorites of the given genre
+     */
+    synchronized public long getLikesByGenre(final String genre) {
+        return mState.mLikesByGenre.get(genre);
+    }
+
+    /**
+     * @return the playbacks of the favorites of the given genre
+     */
+    synchronized public long getPlaybacksByGenre(final String genre) {
+        return mState.mPlaybacksByGenre.get(genre);
+    }
+
+    /**
+     * @return the number of favorites of the given author
+     */
+    synchronized public long getLikesByAuthor(final String author) {
+        return mState.mLikesByAuthor.get(author);
+    }
+
+    /**
+     * @return the number of favorites released the given year, -1 for an unknown year
+     */
+    synchronized public long getLikesByYear(int year) {
+        return mState.mLikesByYear.get(year);
+    }
+
+    /**
+     * @param k the maximum number of genres
+     * @return the genres with the most favorites, and their number of favorites, most liked first
+     */
+    synchronized public List<Map.Entry<String, Long>> getTopGenresByLikes(int k) {
+        return mState.mLikesByGenre.top(k);
+    }
+
+    /**
+     * @param k the maximum number of genres
+     * @return the genres with the most playbacks, and their playbacks, most played first
+     */
+    synchronized public List<Map.Entry<String, Long>> getTopGenresByPlaybacks(int k) {
+        return mState.mPlaybacksByGenre.top(k);
+    }
+
+    /**
+     * @param k the maximum number of authors
+     * @return the authors with the most favorites, and their number of favorites, most liked first
+     */
+    synchronized public List<Map.Entry<String, Long>> getTopAuthors(int k) {
+        return mState.mLikesByAuthor.top(k);
+    }
+
+    /**
+     * @return the number of favorites by release year, -1 for an unknown year, in year order
+     */
+    synchronized public SortedMap<Integer, Long> getLikesByYear() {
+        return mState.mLikesByYear.toSortedMap();
+    }
+
+    /**
+     * @return the number of favorites added, changed or removed so far
+     */
+    synchronized public long getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    @Override
+    synchronized public String toString() {
+        return "favorites=" + mState.mById.size() + " genres=" + mState.mLikesByGenre.size() + " authors="
+                + mState.mLikesByAuthor.size() + " years=" + mState.mLikesByYear.size() + " updates="
+                + mUpdateCount;
+    }
+
+    private void put(int id, final Contribution contribution) {
+        Contribution previous = mState.mById.put(id, contribution);
+        if (contribution.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            account(previous, -1);
+        }
+        account(contribution, 1);
+        mUpdateCount++;
+    }
+
+    private void remove(int id) {
+        Contribution previous = mState.mById.remove(id);
+        if (previous != null) {
+            account(previous, -1);
+            mUpdateCount++;
+        }
+    }
+
+    /**
+     * Add the given contribution to the aggregates, or retract it, with a sign of -1.
+     */
+    private void account(final Contribution contribution, int sign) {
+        mState.mLikesByGenre.add(contribution.mGenre, sign);
+        mState.mPlaybacksByGenre.add(contribution.mGenre, sign * contribution.mPlaybacks);
+        mState.mLikesByAuthor.add(contribution.mAuthor, sign);
+        mState.mLikesByYear.add(contribution.mReleaseYear, sign);
+        mState.mPlaybacks += sign * contribution.mPlaybacks;
+        mState.mFavoritings += sign * contribution.mFavoritings;
+    }
+}
@@ -0,0 +1,103 @@
+package to.carleva.soundcloud.analytics;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A set of counters by key, kept ranked by count: a counter is read in O(1), updated in O(log n), and
+ * the top k keys are listed in O(k). Keys whose count drops to 0 are dropped.
+ *
+ * The ranking is rebuilt from the counters when deserialized. The class is not thread safe.
+ *
+ * @author Andrea Carlevato
+ */
+class Ranking<K extends Comparable<K>> implements Serializable {
+
+    private static final long serialVersionUID = 3810672948113742017L;
+
+    private final Map<K, Long> mCounts = new HashMap<K, Long>();
+    // highest counts first, then by key, so that the order is total
+    private transient TreeSet<K> mOrder = newOrder();
+
+    /**
+     * Add the given delta to the counter of the given key.
+     */
+    void add(final K key, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        // the key is taken out of the ranking while its count changes
+        Long count = mCounts.get(key);
+        if (count != null) {
+            mOrder.remove(key);
+        }
+        long updated = (count != null ? count : 0) + delta;
+        if (updated == 0) {
+            mCounts.remove(key);
+        } else {
+            mCounts.put(key, updated);
+            mOrder.add(key);
+        }
+    }
+
+    /**
+     * @return the counter of the given key, 0 if none
+     */
+    long get(final K key) {
+        Long count = mCounts.get(key);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * @return the number of keys with a counter
+     */
+    int size() {
+        return mCounts.size();
+    }
+
+    /**
+     * @return the given number of keys with the highest counters, and their counters, highest first
+     */
+    List<Map.Entry<K, Long>> top(int k) {
+        List<Map.Entry<K, Long>> top = new ArrayList<Map.Entry<K, Long>>(Math.min(k, mCounts.size()));
+        for (Iterator<K> it = mOrder.iterator(); it.hasNext() && top.size() < k;) {
+            K key = it.next();
+            top.add(new AbstractMap.SimpleImmutableEntry<K, Long>(key, mCounts.get(key)));
+        }
+        return top;
+    }
+
+    /**
+     * @return a copy of the counters, by key order
+     */
+    SortedMap<K, Long> toSortedMap() {
+        return new TreeMap<K, Long>(mCounts);
+    }
+
+    private TreeSet<K> newOrder() {
+        return new TreeSet<K>(new Comparator<K>() {
+            @Override
+            public int compare(final K lhs, final K rhs) {
+                int byCount = mCounts.get(rhs).compareTo(mCounts.get(lhs));
+                return byCount != 0 ? byCount : lhs.compareTo(rhs);
+            }
+        });
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        mOrder = newOrder();
+        mOrder.addAll(mCounts.keySet());
+    }
+}
@@ -0,0 +1,128 @@
+package to.carleva.soundcloud.archive;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The storage policy Archiver applies to the archives of a client: compression, and a total size
+ * budget across all the tags of a directory, enforced by evicting the least recently used tags.
+ *
+ * A policy also keeps the last access time of each archive, restores included, and collects the
+ * compression and eviction counters, so that disk usage can be traded for CPU deliberately. The same
+ * instance must be used for all the archives sharing a budget. The class is thread safe.
+ *
+ * @author Andrea Carlevato
+ */
+public class ArchivePolicy {
+
+    private boolean mCompressionEnabled;
+    private long mSizeBudgetBytes;
+    private final Map<String, Long> mLastAccess = new HashMap<String, Long>();
+    private long mRawBytes;
+    private long mStoredBytes;
+    private long mEvictionCount;
+    private long mEvictedBytes;
+
+    /**
+     * @return true if archives are compressed
+     */
+    synchronized public boolean getCompressionEnabled() {
+        return mCompressionEnabled;
+    }
+
+    /**
+     * Sets if archives are compressed, with deflate at its fastest level. Archives written with a
+     * different setting are still restored. Default is false.
+     *
+     * @param enabled true if archives will be compressed
+     */
+    synchronized public ArchivePolicy setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * @return the maximum total size of the archives of a directory, in bytes, 0 if unlimited
+     */
+    synchronized public long getSizeBudgetBytes() {
+        return mSizeBudgetBytes;
+    }
+
+    /**
+     * Sets the maximum total size of the archives of a directory, previous generations included. When
+     * a write exceeds it, the least recently saved or restored tags are deleted, never the one being
+     * written. Default is 0, unlimited.
+     *
+     * @param bytes the budget, in bytes
+     */
+    synchronized public ArchivePolicy setSizeBudgetBytes(long bytes) {
+        mSizeBudgetBytes = bytes;
+        return this;
+    }
+
+    /**
+     * @return the number of payload bytes written, before compression
+     */
+    synchronized public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    /**
+     * @return the number of payload bytes written, after compression
+     */
+    synchronized public long getStoredBytes() {
+        return mStoredBytes;
+    }
+
+    /**
+     * @return the ratio of raw to stored payload bytes written so far, 1 if nothing was written
+     */
+    synchronized public double getCompressionRatio() {
+        return mStoredBytes == 0 ? 1 : (double) mRawBytes / mStoredBytes;
+    }
+
+    /**
+     * @return the number of tags evicted to fit the size budget
+     */
+    synchronized public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return the number of bytes freed by evictions
+     */
+    synchronized public long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    @Override
+    synchronized public String toString() {
+        return "compression=" + mCompressionEnabled + " ratio=" + String.format("%.2f", getCompressionRatio())
+                + " raw=" + mRawBytes + "B stored=" + mStoredBytes + "B budget=" + mSizeBudgetBytes
+                + "B evictions=" + mEvictionCount + " evicted=" + mEvictedBytes + "B";
+    }
+
+    synchronized void recordAccess(final String key) {
+        mLastAccess.put(key, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the last access time of the given archive, or the given default if it was not accessed
+     * through this policy
+     */
+    synchronized long getLastAccess(final String key, long defaultMillis) {
+        Long lastAccess = mLastAccess.get(key);
+        return lastAccess != null ? lastAccess : defaultMillis;
+    }
+
+    synchronized void recordWrite(long rawBytes, long storedBytes) {
+        mRawBytes += rawBytes;
+        mStoredBytes += storedBytes;
+    }
+
+    synchronized void recordEviction(final String key, long bytes) {
+        mLastAccess.remove(key);
+        mEvictionCount++;
+        mEvictedBytes += bytes;
+    }
+}
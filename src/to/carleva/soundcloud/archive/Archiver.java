@@ -1,30 +1,538 @@
 package to.carleva.soundcloud.archive;
 
-import java.io.EOFException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.FilterOutputStream;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import android.util.Log;
+import to.carleva.soundcloud.remote.Deadline;
 
 /**
  * An utility class that allow clients to archive and un-archive objects and lists 
  * of objects, using regular files as backend storage.
  * 
+ * Archives are crash safe: each archive is written to a temporary file, synced, and then renamed over 
+ * the current one, which is kept as the previous generation. Each archive starts with a header holding
+ * the record count, the payload length and a CRC32 of the payload, so that truncated or corrupted 
+ * archives are detected (cheaply, see isValid()) and restore falls back to the previous generation.
+ * 
+ * Compression and a total size budget are applied as set by the given ArchivePolicy. The payload is 
+ * compressed as a whole, the checksum covers the stored (compressed) bytes, so that archives are 
+ * validated without being inflated.
+ * 
+ * Large lists can be archived in shards, see saveObjectListSharded(): each generation of shards is 
+ * referenced by a small index archive, which is the one rotated atomically, and shards are decoded in 
+ * parallel on restore, or one at a time on demand, see openSharded(). A shard whose records did not 
+ * change since the current generation is not written again, the new index references it.
+ * 
+ * Raw bytes (e.g. a response body) can be archived as they are produced, see openRaw(), and restored 
+ * as they were written, see restoreRaw(), with no serialization pass.
+ * 
  * @author Andrea Carlevato
  */
 public class Archiver {
 	
 	private static final String TAG = "Archiver";
+    private static final String CURRENT_SUFFIX = ".cache";
+    private static final String PREVIOUS_SUFFIX = ".cache.prev";
+    private static final String TEMP_SUFFIX = ".cache.tmp";
+    // header: magic, version, flags, record count, stored payload length, raw payload length, 
+    // stored payload CRC32
+    private static final int MAGIC = 0x53434152;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8 + 8;
+    private static final int FLAG_DEFLATE = 1;
+    private static final int FLAG_SHARD_INDEX = 2;
+    private static final int FLAG_RAW = 4;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // shards are archived as "<tag>.shard<generation>-<index>", so that each generation has its own files
+    private static final String SHARD_INFIX = ".shard";
+    private static final AtomicLong SHARD_GENERATIONS = new AtomicLong(System.currentTimeMillis());
+    // raw archives are written to "<tag>.cache.tmp<n>", so that concurrent writers of a tag never collide
+    private static final AtomicLong RAW_WRITERS = new AtomicLong();
+    // pins of the shard generations still read, see Shards.retain(), by "<directory>/<tag>.shard<generation>-"
+    private static final Map<String, Integer> PINNED_SHARDS = new HashMap<String, Integer>();
     
     /**
-     * Save to disk a given object, to a file identified by given tag
+     * The index of a sharded list: its generation, and the number of records of each shard, the 
+     * generation that wrote it, and the CRC32 and length of its serialized records, which the next save
+     * compares its shards with.
+     */
+    private static class ShardIndex implements Serializable {
+        
+        private static final long serialVersionUID = 5126472291122776131L;
+        
+        private final long mGeneration;
+        private final int[] mCounts;
+        // null in indexes saved before shards were reused: all their shards are of the index generation
+        private final long[] mShardGenerations;
+        private final long[] mChecksums;
+        private final long[] mLengths;
+        
+        ShardIndex(long generation, int[] counts, long[] shardGenerations, long[] checksums, long[] lengths) {
+            mGeneration = generation;
+            mCounts = counts;
+            mShardGenerations = shardGenerations;
+            mChecksums = checksums;
+            mLengths = lengths;
+        }
+        
+        long getShardGeneration(int shard) {
+            return mShardGenerations != null ? mShardGenerations[shard] : mGeneration;
+        }
+        
+        /**
+         * @return the generations of the shards referenced by the index
+         */
+        Set<Long> getShardGenerations() {
+            Set<Long> generations = new HashSet<Long>();
+            for (int i = 0; i < mCounts.length; i++) {
+                generations.add(getShardGeneration(i));
+            }
+            return generations;
+        }
+        
+        /**
+         * @return the tags of the shards referenced by the index, see shardTag()
+         */
+        Set<String> getShardTags(final String tag) {
+            Set<String> tags = new HashSet<String>();
+            for (int i = 0; i < mCounts.length; i++) {
+                tags.add(shardTag(tag, getShardGeneration(i), i));
+            }
+            return tags;
+        }
+        
+        /**
+         * @return true if the given shard holds the given serialized records
+         */
+        boolean holds(int shard, int count, long checksum, long length) {
+            return mChecksums != null && shard < mCounts.length && mCounts[shard] == count 
+                    && mChecksums[shard] == checksum && mLengths[shard] == length;
+        }
+    }
+    
+    /**
+     * An archive header.
+     */
+    private static class Header {
+        
+        private final int mFlags;
+        private final int mRecordCount;
+        private final long mPayloadLength;
+        private final long mChecksum;
+        
+        Header(int flags, int recordCount, long payloadLength, long checksum) {
+            mFlags = flags;
+            mRecordCount = recordCount;
+            mPayloadLength = payloadLength;
+            mChecksum = checksum;
+        }
+    }
+    
+    /**
+     * A temporary archive file being written: its payload is checksummed, and compressed as set by the
+     * policy, then the header is filled in and the file becomes the current generation, see commit().
+     */
+    private static class PayloadFile {
+        
+        private final File mTemp;
+        private final FileOutputStream mFile;
+        private final CheckedOutputStream mChecked;
+        private final Deflater mDeflater;
+        private final DeflaterOutputStream mDeflated;
+        private final CountingOutputStream mRaw;
+        private final int mFlags;
+        
+        PayloadFile(final File temp, final ArchivePolicy policy, int flags) throws IOException {
+            mTemp = temp;
+            mFlags = policy.getCompressionEnabled() ? flags | FLAG_DEFLATE : flags;
+            mFile = new FileOutputStream(temp);
+            try {
+                // room for the header, filled in by commit()
+                mFile.write(new byte[HEADER_SIZE]);
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+            mChecked = new CheckedOutputStream(new BufferedOutputStream(mFile, BUFFER_SIZE), new CRC32());
+            if ((mFlags & FLAG_DEFLATE) != 0) {
+                mDeflater = new Deflater(Deflater.BEST_SPEED);
+                mDeflated = new DeflaterOutputStream(mChecked, mDeflater, BUFFER_SIZE);
+                mRaw = new CountingOutputStream(mDeflated);
+            } else {
+                mDeflater = null;
+                mDeflated = null;
+                mRaw = new CountingOutputStream(mChecked);
+            }
+        }
+        
+        /**
+         * @return the stream the payload is written to
+         */
+        OutputStream getPayload() {
+            return mRaw;
+        }
+        
+        /**
+         * Complete the payload, fill in the header, sync the file, and make it the current generation 
+         * of the given tag.
+         */
+        void commit(final String tag, final File localFilesDir, int recordCount, final ArchivePolicy policy) 
+                throws IOException {
+            try {
+                mRaw.flush();
+                if (mDeflated != null) {
+                    mDeflated.finish();
+                }
+                mChecked.flush();
+            } finally {
+                release();
+            }
+            
+            RandomAccessFile raf = new RandomAccessFile(mTemp, "rw");
+            long stored = raf.length() - HEADER_SIZE;
+            try {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(mFlags);
+                raf.writeInt(recordCount);
+                raf.writeLong(stored);
+                raf.writeLong(mRaw.getCount());
+                raf.writeLong(mChecked.getChecksum().getValue());
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+            policy.recordWrite(mRaw.getCount(), stored);
+            
+            // the current generation becomes the previous one, renames are atomic
+            File current = new File(localFilesDir, tag + CURRENT_SUFFIX);
+            File previous = new File(localFilesDir, tag + PREVIOUS_SUFFIX);
+            if (current.exists() && !current.renameTo(previous)) {
+                throw new IOException("Unable to rotate " + current);
+            }
+            if (!mTemp.renameTo(current)) {
+                throw new IOException("Unable to rename " + mTemp);
+            }
+        }
+        
+        /**
+         * Drop the file, which never becomes a generation.
+         */
+        void discard() {
+            try {
+                release();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            if (mTemp.exists() && !mTemp.delete()) {
+                Log.e(TAG, "Error deleting " + mTemp);
+            }
+        }
+        
+        private void release() throws IOException {
+            if (mDeflater != null) {
+                mDeflater.end();
+            }
+            mFile.close();
+        }
+    }
+    
+    /**
+     * A raw archive being written, see openRaw(): the bytes written to it are archived as they are, once
+     * committed. Write errors are not thrown to the producer, so that it is never failed by the archive:
+     * they are reported by commit() instead.
+     */
+    public static class RawWriter extends OutputStream {
+        
+        private final String mTag;
+        private final File mLocalFilesDir;
+        private final ArchivePolicy mPolicy;
+        private final PayloadFile mFile;
+        private boolean mFailed;
+        private boolean mDone;
+        
+        private RawWriter(final String tag, final File localFilesDir, final ArchivePolicy policy, 
+                final PayloadFile file) {
+            mTag = tag;
+            mLocalFilesDir = localFilesDir;
+            mPolicy = policy;
+            mFile = file;
+        }
+        
+        @Override
+        synchronized public void write(int b) {
+            if (mFailed || mDone) {
+                return;
+            }
+            try {
+                mFile.getPayload().write(b);
+            } catch (IOException e) {
+                onWriteError(e);
+            }
+        }
+        
+        @Override
+        synchronized public void write(final byte[] buffer, int offset, int count) {
+            if (mFailed || mDone) {
+                return;
+            }
+            try {
+                mFile.getPayload().write(buffer, offset, count);
+            } catch (IOException e) {
+                onWriteError(e);
+            }
+        }
+        
+        /**
+         * Make the bytes written so far the current generation of the archive.
+         * 
+         * @throws ArchiveSaveException if any write failed, or the archive could not be completed
+         */
+        synchronized public void commit() throws ArchiveSaveException {
+            if (mDone) {
+                throw new IllegalStateException("Raw archive already committed or aborted");
+            }
+            mDone = true;
+            if (mFailed) {
+                mFile.discard();
+                throw new ArchiveSaveException();
+            }
+            try {
+                mFile.commit(mTag, mLocalFilesDir, 1, mPolicy);
+                mPolicy.recordAccess(new File(mLocalFilesDir, mTag + CURRENT_SUFFIX).getPath());
+                enforceBudget(mLocalFilesDir, mTag, mPolicy);
+            } catch (IOException e) {
+                Log.e(TAG, "Error archiving raw bytes: " + e.toString());
+                mFile.discard();
+                throw new ArchiveSaveException();
+            }
+        }
+        
+        /**
+         * Drop the bytes written so far, the current generation of the archive is left as is. This has 
+         * no effect if the archive was already committed or aborted.
+         */
+        synchronized public void abort() {
+            if (!mDone) {
+                mDone = true;
+                mFile.discard();
+            }
+        }
+        
+        private void onWriteError(final IOException e) {
+            Log.e(TAG, "Error writing raw archive " + mTag + ": " + e.toString());
+            mFailed = true;
+        }
+    }
+    
+    /**
+     * A generation of a sharded list, see openSharded(): its shards are decoded one at a time, on demand,
+     * so that the list never needs to be held in memory as a whole. The generation stays readable until
+     * two newer ones are saved, or the tag is deleted, unless it is pinned, see retain().
+     */
+    public static class Shards<T extends Serializable> {
+        
+        private final String mTag;
+        private final File mLocalFilesDir;
+        private final ShardIndex mIndex;
+        private final int[] mOffsets;
+        private final int mSize;
+        
+        private Shards(final String tag, final File localFilesDir, final ShardIndex index) {
+            mTag = tag;
+            mLocalFilesDir = localFilesDir;
+            mIndex = index;
+            mOffsets = new int[index.mCounts.length];
+            int size = 0;
+            for (int i = 0; i < index.mCounts.length; i++) {
+                mOffsets[i] = size;
+                size += index.mCounts[i];
+            }
+            mSize = size;
+        }
+        
+        /**
+         * @return the number of objects of the list
+         */
+        public int size() {
+            return mSize;
+        }
+        
+        /**
+         * @return the number of shards of the list
+         */
+        public int getShardCount() {
+            return mOffsets.length;
+        }
+        
+        /**
+         * @return the position in the list of the first object of the given shard
+         */
+        public int getShardOffset(int shard) {
+            return mOffsets[shard];
+        }
+        
+        /**
+         * Decode the given shard.
+         * 
+         * @param shard the index of the shard
+         * @return the objects of the shard, in the saved order
+         * @throws ArchiveRestoreException if the shard is missing or not valid
+         */
+        @SuppressWarnings("unchecked")
+        public List<T> readShard(int shard) throws ArchiveRestoreException {
+            try {
+                return (List<T>) (List<?>) Archiver.readShard(mTag, mLocalFilesDir, mIndex, shard);
+            } catch (Exception e) {
+                Log.e(TAG, "Error restoring shard " + shard + " of " + mTag + ": " + e.toString());
+                throw new ArchiveRestoreException();
+            }
+        }
+        
+        /**
+         * @return a read-only view of the list, see ShardedList
+         */
+        public ShardedList<T> asList() {
+            return new ShardedList<T>(this);
+        }
+        
+        /**
+         * Pin the shards of this generation, also those it shares with older ones: they are kept on disk 
+         * by newer saves and deletions of the tag, until released. Pins are counted, each retain() must be 
+         * balanced by a release().
+         */
+        public Shards<T> retain() {
+            synchronized (PINNED_SHARDS) {
+                for (String key : getPinKeys()) {
+                    Integer pins = PINNED_SHARDS.get(key);
+                    PINNED_SHARDS.put(key, pins != null ? pins + 1 : 1);
+                }
+            }
+            return this;
+        }
+        
+        /**
+         * Release a pin taken by retain(). No file is deleted here: once not pinned anymore, the shards of
+         * a generation which is not the current nor the previous one are deleted by the next save or 
+         * deletion of the tag.
+         */
+        public void release() {
+            synchronized (PINNED_SHARDS) {
+                for (String key : getPinKeys()) {
+                    Integer pins = PINNED_SHARDS.get(key);
+                    if (pins == null || pins <= 1) {
+                        PINNED_SHARDS.remove(key);
+                    } else {
+                        PINNED_SHARDS.put(key, pins - 1);
+                    }
+                }
+            }
+        }
+        
+        private List<String> getPinKeys() {
+            List<String> keys = new ArrayList<String>();
+            for (Long generation : mIndex.getShardGenerations()) {
+                keys.add(new File(mLocalFilesDir, shardPrefix(mTag, generation)).getPath());
+            }
+            return keys;
+        }
+    }
+    
+    /**
+     * A read-only list backed by the shards of an archived list, see Shards.asList(): only the shard of 
+     * the last accessed element is held in memory, so that the list costs the same whatever its size, 
+     * and iterating it decodes each shard once.
+     * 
+     * get() decodes from disk, it must not be invoked on the main thread. It throws an 
+     * IllegalStateException if the shard could not be decoded, e.g. deleted by newer saves.
+     */
+    public static class ShardedList<T extends Serializable> extends AbstractList<T> {
+        
+        private final Shards<T> mShards;
+        private int mShard = -1;
+        private List<T> mShardItems;
+        
+        private ShardedList(final Shards<T> shards) {
+            mShards = shards;
+        }
+        
+        /**
+         * @return the shards the list is backed by
+         */
+        public Shards<T> getShards() {
+            return mShards;
+        }
+        
+        @Override
+        public int size() {
+            return mShards.size();
+        }
+        
+        @Override
+        synchronized public T get(int location) {
+            if (location < 0 || location >= mShards.size()) {
+                throw new IndexOutOfBoundsException("Invalid location " + location + ", size is " + size());
+            }
+            int shard = mShard;
+            if (shard == -1 || location < mShards.getShardOffset(shard) 
+                    || location >= mShards.getShardOffset(shard) + mShardItems.size()) {
+                // shards are few, a linear search is cheaper than decoding
+                shard = mShards.getShardCount() - 1;
+                while (mShards.getShardOffset(shard) > location) {
+                    shard--;
+                }
+                try {
+                    mShardItems = mShards.readShard(shard);
+                } catch (ArchiveRestoreException e) {
+                    throw new IllegalStateException("Shard " + shard + " of " + mShards.mTag + " not readable");
+                }
+                mShard = shard;
+            }
+            return mShardItems.get(location - mShards.getShardOffset(shard));
+        }
+    }
+    
+    /**
+     * Save to disk a given object, to a file identified by given tag, with no compression and no 
+     * size budget
      *      
      * @param obj a Serializable object that needs to be saved
      * @param tag the tag for this object
@@ -33,12 +541,25 @@ public class Archiver {
      */
     public static void saveObject(final Serializable obj, final String tag, final File localFilesDir) 
             throws ArchiveSaveException {
+        saveObject(obj, tag, localFilesDir, new ArchivePolicy());
+    }
+    
+    /**
+     * Save to disk a given object, to a file identified by given tag
+     *      
+     * @param obj a Serializable object that needs to be saved
+     * @param tag the tag for this object
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the compression and size budget policy to apply
+     * @throws ArchiveSaveException if the operation failed for any reason
+     */
+    public static void saveObject(final Serializable obj, final String tag, final File localFilesDir, 
+            final ArchivePolicy policy) throws ArchiveSaveException {
         
         try {
-            FileOutputStream fos = new FileOutputStream(new File(localFilesDir, tag + ".cache"));
-            ObjectOutputStream os = new ObjectOutputStream(fos);
-            os.writeObject(obj);
-            os.close();
+            write(Collections.singletonList(obj), tag, localFilesDir, policy, 0);
+            policy.recordAccess(new File(localFilesDir, tag + CURRENT_SUFFIX).getPath());
+            enforceBudget(localFilesDir, tag, policy);
         } catch (IOException e) {
         	Log.e(TAG, "Error archiving object: " + e.toString());
             throw new ArchiveSaveException();
@@ -46,7 +567,8 @@ public class Archiver {
     }
     
     /**
-     * Save to disk a given list of objects, to a file identified by given tag
+     * Save to disk a given list of objects, to a file identified by given tag, with no compression and 
+     * no size budget
      *      
      * @param list a List of Serializable objects that needs to be saved
      * @param tag the tag for this object
@@ -55,14 +577,25 @@ public class Archiver {
      */
     public static void saveObjectList(final List<? extends Serializable> list, final String tag, final File localFilesDir) 
         throws ArchiveSaveException   {
+        saveObjectList(list, tag, localFilesDir, new ArchivePolicy());
+    }
+    
+    /**
+     * Save to disk a given list of objects, to a file identified by given tag
+     *      
+     * @param list a List of Serializable objects that needs to be saved
+     * @param tag the tag for this object
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the compression and size budget policy to apply
+     * @throws ArchiveSaveException if the operation failed for any reason
+     */
+    public static void saveObjectList(final List<? extends Serializable> list, final String tag, 
+            final File localFilesDir, final ArchivePolicy policy) throws ArchiveSaveException   {
         
         try {
-            FileOutputStream fos  = new FileOutputStream(new File(localFilesDir, tag + ".cache"));              
-            ObjectOutputStream os = new ObjectOutputStream(fos);
-            for (Object obj : list) {
-                os.writeObject(obj);
-            }
-            os.close();
+            write(list, tag, localFilesDir, policy, 0);
+            policy.recordAccess(new File(localFilesDir, tag + CURRENT_SUFFIX).getPath());
+            enforceBudget(localFilesDir, tag, policy);
         } catch (IOException e) {
         	Log.e(TAG, "Error archiving list of objects: " + e.toString());
             throw new ArchiveSaveException();
@@ -70,75 +603,865 @@ public class Archiver {
     }
     
     /**
-     * Load an object from a file dump, indicated by the given tag
+     * Save to disk a given list of objects, in shards of the given size, to files identified by given 
+     * tag. Shards are written first, then the index referencing them replaces the current one, so that 
+     * a complete generation is always restored. A shard holding the same records as the shard at the 
+     * same position in the current generation, as compared by the CRC32 and length of the serialized 
+     * records, is not written again: the new index references it. Shards referenced by neither the new 
+     * nor the previous index are deleted.
+     *      
+     * @param list a List of Serializable objects that needs to be saved
+     * @param tag the tag for this list of objects
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the compression and size budget policy to apply
+     * @param shardSize the maximum number of objects of each shard
+     * @throws ArchiveSaveException if the operation failed for any reason
+     */
+    public static void saveObjectListSharded(final List<? extends Serializable> list, final String tag, 
+            final File localFilesDir, final ArchivePolicy policy, int shardSize) throws ArchiveSaveException   {
+        
+        try {
+            long generation = SHARD_GENERATIONS.incrementAndGet();
+            ShardIndex current = readCurrentIndex(tag, localFilesDir);
+            int shards = Math.max(1, (list.size() + shardSize - 1) / shardSize);
+            int[] counts = new int[shards];
+            long[] shardGenerations = new long[shards];
+            long[] checksums = new long[shards];
+            long[] lengths = new long[shards];
+            for (int i = 0; i < shards; i++) {
+                List<? extends Serializable> shard = 
+                        list.subList(i * shardSize, Math.min(list.size(), (i + 1) * shardSize));
+                byte[] records = serialize(shard);
+                CRC32 crc = new CRC32();
+                crc.update(records);
+                counts[i] = shard.size();
+                checksums[i] = crc.getValue();
+                lengths[i] = records.length;
+                if (current != null && current.holds(i, counts[i], checksums[i], lengths[i]) 
+                        && isShardComplete(tag, localFilesDir, current, i)) {
+                    // unchanged, no write nor sync
+                    shardGenerations[i] = current.getShardGeneration(i);
+                } else {
+                    write(records, counts[i], shardTag(tag, generation, i), localFilesDir, policy);
+                    shardGenerations[i] = generation;
+                }
+            }
+            ShardIndex index = new ShardIndex(generation, counts, shardGenerations, checksums, lengths);
+            write(Collections.singletonList(index), tag, localFilesDir, policy, FLAG_SHARD_INDEX);
+            
+            // the previous index may still be restored, its shards are kept
+            Set<String> kept = index.getShardTags(tag);
+            File previous = new File(localFilesDir, tag + PREVIOUS_SUFFIX);
+            if (previous.exists()) {
+                try {
+                    kept.addAll(readIndex(previous).getShardTags(tag));
+                } catch (IOException e) {
+                    Log.e(TAG, "Invalid previous index " + previous + ": " + e.toString());
+                }
+            }
+            deleteShards(tag, localFilesDir, kept);
+            policy.recordAccess(new File(localFilesDir, tag + CURRENT_SUFFIX).getPath());
+            enforceBudget(localFilesDir, tag, policy);
+        } catch (IOException e) {
+        	Log.e(TAG, "Error archiving sharded list of objects: " + e.toString());
+            throw new ArchiveSaveException();
+        }
+    }
+    
+    /**
+     * Open a raw archive, identified by given tag: the bytes written to the returned writer are archived 
+     * as they are, with the compression of the given policy, once committed. Until then, the current 
+     * generation is left as is.
+     *      
+     * @param tag the tag for the raw bytes
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the compression and size budget policy to apply
+     * @return the writer, which must be either committed or aborted
+     * @throws ArchiveSaveException if the archive could not be created
+     */
+    public static RawWriter openRaw(final String tag, final File localFilesDir, final ArchivePolicy policy) 
+            throws ArchiveSaveException {
+        
+        File temp = new File(localFilesDir, tag + TEMP_SUFFIX + RAW_WRITERS.incrementAndGet());
+        try {
+            return new RawWriter(tag, localFilesDir, policy, new PayloadFile(temp, policy, FLAG_RAW));
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating raw archive: " + e.toString());
+            throw new ArchiveSaveException();
+        }
+    }
+    
+    /**
+     * Load the bytes archived by a RawWriter, indicated by the given tag, recording the access in the 
+     * given policy. If the current dump is not valid, the previous generation is loaded instead.
+     *       
+     * @param tag the tag for the raw bytes
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the policy the dump was saved with
+     * @return the bytes, as they were written, null if no dump exists
+     * @throws ArchiveRestoreException if no valid dump could be restored
+     */
+    public static byte[] restoreRaw(final String tag, final File localFilesDir, final ArchivePolicy policy) 
+            throws ArchiveRestoreException {
+        
+        List<Object> records = read(tag, localFilesDir, policy);
+        if (records == null) {
+            return null;
+        }
+        if (records.size() != 1 || !(records.get(0) instanceof byte[])) {
+            Log.e(TAG, "Not a raw archive: " + tag);
+            throw new ArchiveRestoreException();
+        }
+        return (byte[]) records.get(0);
+    }
+    
+    /**
+     * Load an object from a file dump, indicated by the given tag. If the current dump is not valid,
+     * the previous generation is loaded instead.
      *       
      * @param tag the tag for this object
      * @param localFilesDir an instance of File pointing to desired output location
-     * @return an instance of T restored from file
-     * @throws ArchiveRestoreException if the operation failed for any reason
+     * @return an instance of T restored from file, null if no dump exists
+     * @throws ArchiveRestoreException if no valid dump could be restored
      */
-    @SuppressWarnings("unchecked")
     public static <T extends Serializable> T restoreObject(final String tag, final File localFilesDir)
         throws ArchiveRestoreException   {
+        return restoreObject(tag, localFilesDir, new ArchivePolicy());
+    }
+    
+    /**
+     * Load an object from a file dump, indicated by the given tag, recording the access in the given 
+     * policy. If the current dump is not valid, the previous generation is loaded instead.
+     *       
+     * @param tag the tag for this object
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the policy the dump was saved with
+     * @return an instance of T restored from file, null if no dump exists
+     * @throws ArchiveRestoreException if no valid dump could be restored
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Serializable> T restoreObject(final String tag, final File localFilesDir, 
+            final ArchivePolicy policy) throws ArchiveRestoreException   {
         
-        T restoredObj = null;
-        try {
-            File cacheFile = new File(localFilesDir, tag + ".cache");
-            if (cacheFile.exists())  {
-                FileInputStream fis = null;
-                ObjectInputStream is = null;
-                
-                // read
-                fis = new FileInputStream(cacheFile);
-                is = new ObjectInputStream(fis);
-                restoredObj = (T)is.readObject();
-                is.close();
-            }
-        } catch (Exception e) {
-        	Log.e(TAG, "Error restoring object: " + e.toString());
+        List<Object> records = read(tag, localFilesDir, policy);
+        if (records == null) {
+            return null;
+        }
+        if (records.size() != 1) {
+            Log.e(TAG, "Error restoring object: " + records.size() + " records found");
             throw new ArchiveRestoreException();
         }
-        
-        return restoredObj;
+        return (T) records.get(0);
     }
     
     /**
-     * Load an list objects from a file dump, indicated by the given tag
+     * Load an list objects from a file dump, indicated by the given tag. If the current dump is not 
+     * valid, the previous generation is loaded instead.
      *       
      * @param tag the tag for this list of objects
      * @param localFilesDir an instance of File pointing to desired output location
-     * @return an instance of List<T> restored from file
-     * @throws ArchiveRestoreException if the operation failed for any reason
+     * @return an instance of List<T> restored from file, null if no dump exists
+     * @throws ArchiveRestoreException if no valid dump could be restored
      */
-    @SuppressWarnings("unchecked")
     public static <T extends Serializable> List<T> restoreObjectList(final String tag, final File localFilesDir)
         throws ArchiveRestoreException   {
+        return restoreObjectList(tag, localFilesDir, new ArchivePolicy());
+    }
+    
+    /**
+     * Load an list objects from a file dump, indicated by the given tag, recording the access in the 
+     * given policy. If the current dump is not valid, the previous generation is loaded instead.
+     *       
+     * @param tag the tag for this list of objects
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the policy the dump was saved with
+     * @return an instance of List<T> restored from file, null if no dump exists
+     * @throws ArchiveRestoreException if no valid dump could be restored
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Serializable> List<T> restoreObjectList(final String tag, 
+            final File localFilesDir, final ArchivePolicy policy) throws ArchiveRestoreException   {
+        
+        return (List<T>) (List<?>) read(tag, localFilesDir, policy);
+    }
+    
+    /**
+     * Load a list of objects saved by saveObjectListSharded(), decoding its shards in parallel, and 
+     * recording the access in the given policy. If the current generation is not valid, the previous 
+     * one is loaded instead. A list saved by saveObjectList() is loaded too. Files of another format are 
+     * discarded, as no dump.
+     *       
+     * @param tag the tag for this list of objects
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the policy the dump was saved with
+     * @return an instance of List<T> restored from files, in the saved order, null if no dump exists
+     * @throws ArchiveRestoreException if no valid dump could be restored, or the calling thread was
+     * interrupted
+     */
+    public static <T extends Serializable> List<T> restoreObjectListSharded(final String tag, 
+            final File localFilesDir, final ArchivePolicy policy) throws ArchiveRestoreException   {
+        return restoreObjectListSharded(tag, localFilesDir, policy, null);
+    }
+    
+    /**
+     * Load a list of objects saved by saveObjectListSharded(), as restoreObjectListSharded() does, 
+     * giving up once the given deadline is reached. An archive whose restore was aborted is left as is.
+     *       
+     * @param tag the tag for this list of objects
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the policy the dump was saved with
+     * @param deadline the deadline of the restore, null for none
+     * @return an instance of List<T> restored from files, in the saved order, null if no dump exists
+     * @throws ArchiveRestoreException if no valid dump could be restored, the deadline was reached, or 
+     * the calling thread was interrupted
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Serializable> List<T> restoreObjectListSharded(final String tag, 
+            final File localFilesDir, final ArchivePolicy policy, final Deadline deadline) 
+            throws ArchiveRestoreException   {
+        
+        boolean found = false;
+        for (String suffix : new String[] { CURRENT_SUFFIX, PREVIOUS_SUFFIX }) {
+            File file = new File(localFilesDir, tag + suffix);
+            if (!file.exists() || discardForeign(file)) {
+                continue;
+            }
+            found = true;
+            try {
+                List<Object> records = readGeneration(file);
+                if (records.size() == 1 && records.get(0) instanceof ShardIndex) {
+                    records = readShards(tag, localFilesDir, (ShardIndex) records.get(0), deadline);
+                }
+                policy.recordAccess(new File(localFilesDir, tag + CURRENT_SUFFIX).getPath());
+                return (List<T>) (List<?>) records;
+            } catch (InterruptedException e) {
+                // not a failure of the archive, which is left as is
+                Thread.currentThread().interrupt();
+                throw new ArchiveRestoreException();
+            } catch (TimeoutException e) {
+                Log.e(TAG, "Deadline exceeded restoring " + file);
+                throw new ArchiveRestoreException();
+            } catch (Exception e) {
+                Log.e(TAG, "Error restoring " + file + ": " + e.toString());
+                if (!file.delete()) {
+                    Log.e(TAG, "Error deleting " + file);
+                }
+            }
+        }
+        if (found) {
+            delete(tag, localFilesDir);
+            throw new ArchiveRestoreException();
+        }
+        return null;
+    }
+    
+    /**
+     * Open a list saved by saveObjectListSharded(), decoding its index only, and recording the access 
+     * in the given policy: shards are decoded on demand, see Shards. The headers of the shards are 
+     * checked against the index, their payloads are verified when decoded. If the current index or its 
+     * shards are not valid, the previous one is opened instead.
+     *       
+     * @param tag the tag for this list of objects
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @param policy the policy the dump was saved with
+     * @return the shards of the list, null if no sharded dump exists
+     */
+    public static <T extends Serializable> Shards<T> openSharded(final String tag, final File localFilesDir, 
+            final ArchivePolicy policy) {
         
-        List<T> restoredObjList = null;
+        for (String suffix : new String[] { CURRENT_SUFFIX, PREVIOUS_SUFFIX }) {
+            File file = new File(localFilesDir, tag + suffix);
+            if (!file.exists()) {
+                continue;
+            }
+            try {
+                if ((verify(file).mFlags & FLAG_SHARD_INDEX) == 0) {
+                    // saved as a whole
+                    return null;
+                }
+                ShardIndex index = readIndex(file);
+                checkShards(tag, localFilesDir, index);
+                Shards<T> shards = new Shards<T>(tag, localFilesDir, index);
+                policy.recordAccess(new File(localFilesDir, tag + CURRENT_SUFFIX).getPath());
+                return shards;
+            } catch (IOException e) {
+                Log.e(TAG, "Error opening " + file + ": " + e.toString());
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Check the current file dump indicated by the given tag: its header, length and checksum are 
+     * verified, without decoding any record. For a sharded list, the shards referenced by the current 
+     * index are verified too.
+     *       
+     * @param tag the tag of the object or list of objects
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @return true if the current dump exists and is valid
+     */
+    public static boolean isValid(final String tag, final File localFilesDir) {
+        File file = new File(localFilesDir, tag + CURRENT_SUFFIX);
+        if (!file.exists()) {
+            return false;
+        }
         try {
-                            
-            File cacheFile = new File(localFilesDir, tag + ".cache");
-            if (cacheFile.exists())  {
-                List<T> list = new ArrayList<T>();
-                FileInputStream fis = new FileInputStream(cacheFile);
-                ObjectInputStream is = new ObjectInputStream(fis);
-                try {
-                    Object nextObject = null; 
-                    while ((nextObject = is.readObject()) != null) {
-                        list.add((T) nextObject);
-                    }
-                } catch (EOFException e) {
-                    // stream was over, catched silently
+            Header header = verify(file);
+            if ((header.mFlags & FLAG_SHARD_INDEX) != 0) {
+                ShardIndex index = readIndex(file);
+                for (int i = 0; i < index.mCounts.length; i++) {
+                    verify(shardFile(tag, localFilesDir, index, i));
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Invalid archive " + file + ": " + e.toString());
+            return false;
+        }
+    }
+    
+    /**
+     * Get the time the file dump indicated by the given tag was saved at: the current generation, or 
+     * the previous one if the current one does not exist (e.g. after an invalid dump was discarded by
+     * a restore).
+     *       
+     * @param tag the tag of the object or list of objects
+     * @param localFilesDir an instance of File pointing to desired output location
+     * @return the save time, in milliseconds since the epoch, 0 if no dump exists
+     */
+    public static long getLastSavedMillis(final String tag, final File localFilesDir) {
+        for (String suffix : new String[] { CURRENT_SUFFIX, PREVIOUS_SUFFIX }) {
+            File file = new File(localFilesDir, tag + suffix);
+            if (file.exists()) {
+                return file.lastModified();
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Delete the file dump indicated by the given tag, if any, with its previous generation, its
+     * shards, and its temporary files
+     *       
+     * @param tag the tag of the object or list of objects
+     * @param localFilesDir an instance of File pointing to desired output location
+     */
+    public static void delete(final String tag, final File localFilesDir) {
+        for (String suffix : new String[] { CURRENT_SUFFIX, PREVIOUS_SUFFIX }) {
+            File cacheFile = new File(localFilesDir, tag + suffix);
+            if (cacheFile.exists() && !cacheFile.delete()) {
+                Log.e(TAG, "Error deleting " + cacheFile);
+            }
+        }
+        File[] files = localFilesDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(tag + TEMP_SUFFIX) && !file.delete()) {
+                    Log.e(TAG, "Error deleting " + file);
+                }
+            }
+        }
+        deleteShards(tag, localFilesDir, Collections.<String>emptySet());
+    }
+    
+    /**
+     * Write the given records to a temporary file, then make it the current generation. The header 
+     * is written last, once the payload length and checksum are known, and the file is synced before 
+     * being renamed, so that the current generation is always complete.
+     */
+    private static void write(final List<?> records, final String tag, final File localFilesDir, 
+            final ArchivePolicy policy, int flags) throws IOException {
+        
+        PayloadFile file = new PayloadFile(new File(localFilesDir, tag + TEMP_SUFFIX), policy, flags);
+        try {
+            ObjectOutputStream os = new ObjectOutputStream(file.getPayload());
+            for (Object obj : records) {
+                os.writeObject(obj);
+            }
+            os.flush();
+            file.commit(tag, localFilesDir, records.size(), policy);
+        } catch (IOException e) {
+            file.discard();
+            throw e;
+        }
+    }
+    
+    /**
+     * Write the given serialized records to a temporary file, then make it the current generation, as 
+     * write() does.
+     */
+    private static void write(final byte[] records, int recordCount, final String tag, final File localFilesDir, 
+            final ArchivePolicy policy) throws IOException {
+        
+        PayloadFile file = new PayloadFile(new File(localFilesDir, tag + TEMP_SUFFIX), policy, 0);
+        try {
+            file.getPayload().write(records);
+            file.commit(tag, localFilesDir, recordCount, policy);
+        } catch (IOException e) {
+            file.discard();
+            throw e;
+        }
+    }
+    
+    /**
+     * @return the given records, serialized as write() does
+     */
+    private static byte[] serialize(final List<?> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(bytes);
+        for (Object obj : records) {
+            os.writeObject(obj);
+        }
+        os.flush();
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Delete the least recently used tags of the given directory, until its archives fit the size 
+     * budget of the given policy, if any. The tag just written is never evicted, and tags are evicted 
+     * whole, shards included.
+     */
+    private static void enforceBudget(final File localFilesDir, final String writtenTag, 
+            final ArchivePolicy policy) {
+        if (policy.getSizeBudgetBytes() <= 0) {
+            return;
+        }
+        File[] files = localFilesDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // size and last access of each tag, all generations included
+        final Map<String, Long> sizes = new HashMap<String, Long>();
+        final Map<String, Long> lastAccess = new HashMap<String, Long>();
+        long total = 0;
+        for (File file : files) {
+            String name = file.getName();
+            String tag;
+            if (name.endsWith(CURRENT_SUFFIX)) {
+                tag = name.substring(0, name.length() - CURRENT_SUFFIX.length());
+            } else if (name.endsWith(PREVIOUS_SUFFIX)) {
+                tag = name.substring(0, name.length() - PREVIOUS_SUFFIX.length());
+            } else {
+                continue;
+            }
+            boolean shard = tag.contains(SHARD_INFIX);
+            if (shard) {
+                tag = tag.substring(0, tag.indexOf(SHARD_INFIX));
+            }
+            Long size = sizes.get(tag);
+            sizes.put(tag, (size != null ? size : 0) + file.length());
+            total += file.length();
+            if (name.endsWith(CURRENT_SUFFIX) && !shard) {
+                // tags not accessed through the policy (e.g. before a restart) age by modification time
+                lastAccess.put(tag, policy.getLastAccess(file.getPath(), file.lastModified()));
+            }
+        }
+        
+        List<String> tags = new ArrayList<String>(sizes.keySet());
+        tags.remove(writtenTag);
+        Collections.sort(tags, new Comparator<String>() {
+            @Override
+            public int compare(final String lhs, final String rhs) {
+                Long lhsAccess = lastAccess.get(lhs);
+                Long rhsAccess = lastAccess.get(rhs);
+                return Long.valueOf(lhsAccess != null ? lhsAccess : 0)
+                        .compareTo(rhsAccess != null ? rhsAccess : 0);
+            }
+        });
+        for (String tag : tags) {
+            if (total <= policy.getSizeBudgetBytes()) {
+                break;
+            }
+            long size = sizes.get(tag);
+            delete(tag, localFilesDir);
+            policy.recordEviction(new File(localFilesDir, tag + CURRENT_SUFFIX).getPath(), size);
+            total -= size;
+            Log.i(TAG, "Evicted " + tag + " (" + size + "B) to fit the archive size budget");
+        }
+    }
+    
+    /**
+     * Read the records of the current generation of the given tag, or of the previous one if the 
+     * current one is not valid. An invalid current generation is deleted, so that it never replaces 
+     * the valid previous one, all generations are deleted if none is valid. Files of another format, 
+     * e.g. written before archives had a header, are deleted and do not count as generations.
+     * 
+     * @return the records, null if no generation exists
+     * @throws ArchiveRestoreException if no generation is valid
+     */
+    private static List<Object> read(final String tag, final File localFilesDir, final ArchivePolicy policy) 
+            throws ArchiveRestoreException {
+        
+        boolean found = false;
+        for (String suffix : new String[] { CURRENT_SUFFIX, PREVIOUS_SUFFIX }) {
+            File file = new File(localFilesDir, tag + suffix);
+            if (!file.exists() || discardForeign(file)) {
+                continue;
+            }
+            found = true;
+            try {
+                List<Object> records = readGeneration(file);
+                policy.recordAccess(new File(localFilesDir, tag + CURRENT_SUFFIX).getPath());
+                return records;
+            } catch (Exception e) {
+                Log.e(TAG, "Error restoring " + file + ": " + e.toString());
+                if (!file.delete()) {
+                    Log.e(TAG, "Error deleting " + file);
                 }
-                
-                is.close();
-                restoredObjList = list;
             }
-        } catch (Exception e) {
-        	Log.e(TAG, "Error restoring list of objects: " + e.toString());
+        }
+        if (found) {
             throw new ArchiveRestoreException();
         }
+        return null;
+    }
+    
+    /**
+     * Delete the given file if it does not start with the magic and version of the archive header, e.g. 
+     * if it was written by a version with no header: such a file is not a corrupted archive, just none.
+     * 
+     * @return true if the file was discarded
+     */
+    private static boolean discardForeign(final File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (file.length() >= 8 && in.readInt() == MAGIC && in.readInt() == VERSION) {
+                return false;
+            }
+        } catch (IOException e) {
+            // not readable, failed as invalid by the restore
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+        Log.i(TAG, "Discarding " + file + ", not in the archive format");
+        if (!file.delete()) {
+            Log.e(TAG, "Error deleting " + file);
+        }
+        return true;
+    }
+    
+    /**
+     * Decode the shards referenced by the given index, in parallel, and reassemble them in order.
+     * 
+     * @throws TimeoutException if the given deadline, if any, was reached first
+     */
+    private static List<Object> readShards(final String tag, final File localFilesDir, final ShardIndex index, 
+            final Deadline deadline) 
+            throws IOException, ClassNotFoundException, InterruptedException, TimeoutException {
+        
+        int shards = index.mCounts.length;
+        int total = 0;
+        for (int count : index.mCounts) {
+            total += count;
+        }
+        List<Object> records = new ArrayList<Object>(total);
+        int threads = Math.min(shards, Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            // nothing to gain from a pool on a single core
+            for (int i = 0; i < shards; i++) {
+                if (deadline != null && deadline.isExpired()) {
+                    throw new TimeoutException();
+                }
+                records.addAll(readShard(tag, localFilesDir, index, i));
+            }
+            return records;
+        }
         
-        return restoredObjList;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<Object>>> results = new ArrayList<Future<List<Object>>>(shards);
+            for (int i = 0; i < shards; i++) {
+                final int shard = i;
+                results.add(executor.submit(new Callable<List<Object>>() {
+                    @Override
+                    public List<Object> call() throws IOException, ClassNotFoundException {
+                        return readShard(tag, localFilesDir, index, shard);
+                    }
+                }));
+            }
+            for (Future<List<Object>> result : results) {
+                records.addAll(deadline != null ? result.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS) 
+                        : result.get());
+            }
+            return records;
+        } catch (ExecutionException e) {
+            // re-throw the cause as original exception
+            try {
+                throw e.getCause();
+            } catch (IOException e2) {
+                throw e2;
+            } catch (ClassNotFoundException e2) {
+                throw e2;
+            } catch (Throwable t) {
+                throw new IOException(t.toString());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static List<Object> readShard(final String tag, final File localFilesDir, final ShardIndex index, 
+            int shard) throws IOException, ClassNotFoundException {
+        List<Object> records = readGeneration(shardFile(tag, localFilesDir, index, shard));
+        if (records.size() != index.mCounts[shard]) {
+            throw new IOException("Shard " + shard + " does not match its index");
+        }
+        return records;
+    }
+    
+    /**
+     * Check the headers of the shards referenced by the given index: each shard must exist, be complete,
+     * and hold the record count of the index. Payloads are not read.
+     */
+    private static void checkShards(final String tag, final File localFilesDir, final ShardIndex index) 
+            throws IOException {
+        for (int i = 0; i < index.mCounts.length; i++) {
+            File file = shardFile(tag, localFilesDir, index, i);
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                if (readHeader(new DataInputStream(in), file.length()).mRecordCount != index.mCounts[i]) {
+                    throw new IOException("Shard " + i + " does not match its index");
+                }
+            } finally {
+                closeQuietly(in);
+            }
+        }
+    }
+    
+    /**
+     * @return true if the given shard of the given index exists, is complete, and holds the record count
+     * of the index, as checked from its header
+     */
+    private static boolean isShardComplete(final String tag, final File localFilesDir, final ShardIndex index, 
+            int shard) {
+        File file = shardFile(tag, localFilesDir, index, shard);
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return readHeader(new DataInputStream(in), file.length()).mRecordCount == index.mCounts[shard];
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+    
+    /**
+     * @return the current index of the given tag, null if none is valid, e.g. the list was saved as a whole
+     */
+    private static ShardIndex readCurrentIndex(final String tag, final File localFilesDir) {
+        File file = new File(localFilesDir, tag + CURRENT_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            if ((readHeader(new DataInputStream(in), file.length()).mFlags & FLAG_SHARD_INDEX) == 0) {
+                // not decoded, a list saved as a whole has no shard to reuse
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        try {
+            return readIndex(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * @return the index of a sharded list, decoded from the given index archive
+     */
+    private static ShardIndex readIndex(final File file) throws IOException {
+        try {
+            List<Object> records = readGeneration(file);
+            if (records.size() != 1 || !(records.get(0) instanceof ShardIndex)) {
+                throw new IOException("Not a shard index");
+            }
+            return (ShardIndex) records.get(0);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e.toString());
+        }
+    }
+    
+    private static File shardFile(final String tag, final File localFilesDir, final ShardIndex index, int shard) {
+        return new File(localFilesDir, shardTag(tag, index.getShardGeneration(shard), shard) + CURRENT_SUFFIX);
+    }
+    
+    private static String shardTag(final String tag, long generation, int shard) {
+        return shardPrefix(tag, generation) + shard;
+    }
+    
+    private static String shardPrefix(final String tag, long generation) {
+        return tag + SHARD_INFIX + Long.toString(generation, 36) + "-";
+    }
+    
+    /**
+     * Delete the shards of the given tag, but the given ones, see shardTag(), and those of the pinned 
+     * generations.
+     */
+    private static void deleteShards(final String tag, final File localFilesDir, final Set<String> keptShards) {
+        File[] files = localFilesDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // pins are checked and files deleted at once, so that a generation is never pinned while deleted
+        synchronized (PINNED_SHARDS) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(tag + SHARD_INFIX)) {
+                    continue;
+                }
+                String prefix = name.substring(0, name.lastIndexOf('-') + 1);
+                int suffix = name.indexOf(CURRENT_SUFFIX, prefix.length());
+                boolean keep = (suffix != -1 && keptShards.contains(name.substring(0, suffix))) 
+                        || PINNED_SHARDS.containsKey(new File(localFilesDir, prefix).getPath());
+                if (!keep && !file.delete()) {
+                    Log.e(TAG, "Error deleting " + file);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Verify the header, length and checksum of the given archive file, without decoding any record.
+     * 
+     * @return the header of the archive
+     */
+    private static Header verify(final File file) throws IOException {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            Header header = readHeader(new DataInputStream(in), file.length());
+            CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+            drain(checked);
+            if (checked.getChecksum().getValue() != header.mChecksum) {
+                throw new IOException("Checksum mismatch");
+            }
+            return header;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+    
+    /**
+     * Decode the records of the given archive file, verifying header, length, record count and 
+     * checksum. The checksum is computed while decoding, the payload is read once.
+     */
+    private static List<Object> readGeneration(final File file) throws IOException, ClassNotFoundException {
+        InputStream in = null;
+        Inflater inflater = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            Header header = readHeader(new DataInputStream(in), file.length());
+            CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+            InputStream payload = checked;
+            if ((header.mFlags & FLAG_DEFLATE) != 0) {
+                inflater = new Inflater();
+                payload = new InflaterInputStream(checked, inflater, BUFFER_SIZE);
+            }
+            List<Object> records = new ArrayList<Object>(header.mRecordCount);
+            if ((header.mFlags & FLAG_RAW) != 0) {
+                // the payload is a single record, the raw bytes
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = payload.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+                records.add(bytes.toByteArray());
+            } else {
+                ObjectInputStream is = new ObjectInputStream(payload);
+                for (int i = 0; i < header.mRecordCount; i++) {
+                    records.add(is.readObject());
+                }
+            }
+            // the checksum covers the whole payload, also what the decoder did not read
+            drain(checked);
+            if (checked.getChecksum().getValue() != header.mChecksum) {
+                throw new IOException("Checksum mismatch");
+            }
+            return records;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+            closeQuietly(in);
+        }
+    }
+    
+    /**
+     * Read and check an archive header: a truncated file is detected here, without reading the payload.
+     */
+    private static Header readHeader(final DataInputStream in, long fileLength) throws IOException {
+        if (fileLength < HEADER_SIZE || in.readInt() != MAGIC) {
+            throw new IOException("Not an archive");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported archive version " + version);
+        }
+        int flags = in.readInt();
+        int recordCount = in.readInt();
+        long payloadLength = in.readLong();
+        // the raw payload length is informational only
+        in.readLong();
+        Header header = new Header(flags, recordCount, payloadLength, in.readLong());
+        if (header.mRecordCount < 0 || header.mPayloadLength != fileLength - HEADER_SIZE) {
+            throw new IOException("Truncated archive");
+        }
+        return header;
+    }
+    
+    private static void drain(final InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (in.read(buffer) != -1) {
+            // read for the checksum only
+        }
+    }
+    
+    /**
+     * An output stream that counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+            mCount += count;
+        }
+    }
+    
+    private static void closeQuietly(final InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
     }
 }
@@ -0,0 +1,785 @@
+package to.carleva.soundcloud.archive;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+import to.carleva.soundcloud.types.Favorite;
+
+/**
+ * A history of the playback and favoritings counts of each favorite, recorded at each update, so that
+ * their growth over time can be queried.
+ *
+ * The history is stored in append-only segment files, one per day (UTC). Each recording appends a
+ * block to the segment of its day: the first block of a segment is a keyframe, holding the counts of
+ * all the favorites, the following ones hold the difference with the previous counts of the favorites
+ * which changed only. Ids and counts are delta encoded, as variable length integers, and each block is
+ * checksummed, so that a block torn by a crash is detected and dropped, with the ones after it.
+ *
+ * Segments older than a few days (see setFullResolutionDays()) are downsampled to a single keyframe
+ * holding the counts at the end of their day, and segments older than the retention (see
+ * setRetentionDays()) are deleted. Queries decode only the segments of the days they cover, one block
+ * at a time, so that the history is never loaded in memory as a whole.
+ *
+ * The class is thread safe.
+ *
+ * @author Andrea Carlevato
+ */
+public class CounterHistory {
+
+    /**
+     * The counts of a favorite at a point in time.
+     */
+    public static class Sample {
+
+        private final long mTimeMillis;
+        private final int mPlaybackCount;
+        private final int mFavoritingsCount;
+
+        /**
+         * @return the time of the sample, in milliseconds since the epoch
+         */
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        /**
+         * @return the playback count, -1 if not available
+         */
+        public int getPlaybackCount() {
+            return mPlaybackCount;
+        }
+
+        /**
+         * @return the favoritings count, -1 if not available
+         */
+        public int getFavoritingsCount() {
+            return mFavoritingsCount;
+        }
+
+        @Override
+        public String toString() {
+            return mTimeMillis + ": plays=" + mPlaybackCount + " likes=" + mFavoritingsCount;
+        }
+
+        Sample(long timeMillis, int playbackCount, int favoritingsCount) {
+            mTimeMillis = timeMillis;
+            mPlaybackCount = playbackCount;
+            mFavoritingsCount = favoritingsCount;
+        }
+    }
+
+    /**
+     * The growth of the counts of a favorite between two points in time.
+     */
+    public static class Growth {
+
+        private final long mFromMillis;
+        private final long mToMillis;
+        private final long mPlaybacks;
+        private final long mFavoritings;
+
+        /**
+         * @return the start of the period, in milliseconds since the epoch
+         */
+        public long getFromMillis() {
+            return mFromMillis;
+        }
+
+        /**
+         * @return the end of the period, in milliseconds since the epoch
+         */
+        public long getToMillis() {
+            return mToMillis;
+        }
+
+        /**
+         * @return the playbacks over the period
+         */
+        public long getPlaybacks() {
+            return mPlaybacks;
+        }
+
+        /**
+         * @return the favoritings over the period
+         */
+        public long getFavoritings() {
+            return mFavoritings;
+        }
+
+        @Override
+        public String toString() {
+            return "plays=+" + mPlaybacks + " likes=+" + mFavoritings;
+        }
+
+        Growth(final Sample from, final Sample to) {
+            mFromMillis = from.mTimeMillis;
+            mToMillis = to.mTimeMillis;
+            mPlaybacks = (long) to.mPlaybackCount - from.mPlaybackCount;
+            mFavoritings = (long) to.mFavoritingsCount - from.mFavoritingsCount;
+        }
+    }
+
+    /**
+     * A decoded block: ids in ascending order, and their counts, absolute for a keyframe, differences
+     * with the previous counts otherwise.
+     */
+    private static class Block {
+
+        private final long mTimeMillis;
+        private final boolean mKeyframe;
+        private final int[] mIds;
+        private final int[] mPlaybacks;
+        private final int[] mFavoritings;
+
+        Block(long timeMillis, boolean keyframe, int[] ids, int[] playbacks, int[] favoritings) {
+            mTimeMillis = timeMillis;
+            mKeyframe = keyframe;
+            mIds = ids;
+            mPlaybacks = playbacks;
+            mFavoritings = favoritings;
+        }
+
+        /**
+         * @return the index of the given id in this block, negative if not found
+         */
+        int indexOf(int id) {
+            return Arrays.binarySearch(mIds, id);
+        }
+    }
+
+    /**
+     * Reads the blocks of a segment, in order, up to the end of the file or the first invalid block.
+     */
+    private static class SegmentReader {
+
+        private final DataInputStream mIn;
+        private final long mDayStartMillis;
+        private final long mFileLength;
+        private long mValidLength;
+
+        SegmentReader(final File file, long day) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            mDayStartMillis = day * DAY_MILLIS;
+            mFileLength = file.length();
+        }
+
+        /**
+         * @return the next block, null if none
+         */
+        Block next() {
+            try {
+                long length = readVarint(mIn);
+                if (length > mFileLength - mValidLength) {
+                    return null;
+                }
+                byte[] payload = new byte[(int) length];
+                mIn.readFully(payload);
+                long checksum = mIn.readInt() & 0xffffffffL;
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != checksum) {
+                    return null;
+                }
+                Block block = decode(payload, mDayStartMillis);
+                mValidLength += varintSize(length) + length + 4;
+                return block;
+            } catch (IOException e) {
+                // end of the segment, or block torn by a crash
+                return null;
+            }
+        }
+
+        /**
+         * @return the length of the blocks read so far
+         */
+        long getValidLength() {
+            return mValidLength;
+        }
+
+        void close() {
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                // nothing to lose
+            }
+        }
+    }
+
+    private static final String TAG = "CounterHistory";
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    // segments are named "history-<day>.seg", "history-<day>.ds" once downsampled
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String DOWNSAMPLED_SUFFIX = ".ds";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int KEYFRAME = 0;
+    private static final int DELTA = 1;
+    private static final int DEFAULT_FULL_RESOLUTION_DAYS = 7;
+    private static final int DEFAULT_RETENTION_DAYS = 365;
+
+    private final File mDirectory;
+    private int mFullResolutionDays = DEFAULT_FULL_RESOLUTION_DAYS;
+    private int mRetentionDays = DEFAULT_RETENTION_DAYS;
+    // the segment appended to, and the counts it ends with by id, null if it is empty
+    private long mDay = -1;
+    private FileOutputStream mOut;
+    private Map<Integer, int[]> mLast;
+
+    /**
+     * @param directory the directory of the segment files, created if needed
+     */
+    public CounterHistory(final File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @return the directory of the segment files
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Sets the number of days whose samples are all kept, older days are downsampled to their last
+     * sample. Default is 7.
+     *
+     * @param days the number of days, at least 1
+     */
+    synchronized public CounterHistory setFullResolutionDays(int days) {
+        mFullResolutionDays = Math.max(1, days);
+        return this;
+    }
+
+    /**
+     * Sets the number of days of history kept. Default is 365.
+     *
+     * @param days the number of days
+     */
+    synchronized public CounterHistory setRetentionDays(int days) {
+        mRetentionDays = Math.max(1, days);
+        return this;
+    }
+
+    /**
+     * Record the counts of the given favorites. Only the counts changed since the previous recording
+     * are written, but for the first recording of a day. Favorites missing from the list keep their
+     * previous counts until the next day.
+     *
+     * @param favorites the favorites
+     * @param timeMillis the time of the counts, in milliseconds since the epoch
+     * @throws ArchiveSaveException if the counts could not be written
+     */
+    synchronized public void record(final List<Favorite> favorites, long timeMillis) throws ArchiveSaveException {
+        long day = timeMillis / DAY_MILLIS;
+        try {
+            if (day != mDay || mOut == null) {
+                openSegment(day);
+            }
+            int[] ids = new int[favorites.size()];
+            Map<Integer, Favorite> byId = new HashMap<Integer, Favorite>();
+            for (int i = 0; i < ids.length; i++) {
+                Favorite favorite = favorites.get(i);
+                ids[i] = favorite.getId();
+                byId.put(ids[i], favorite);
+            }
+            Arrays.sort(ids);
+
+            boolean keyframe = mLast == null;
+            Map<Integer, int[]> last = keyframe ? new HashMap<Integer, int[]>() : mLast;
+            int[] changedIds = new int[ids.length];
+            int[] playbacks = new int[ids.length];
+            int[] favoritings = new int[ids.length];
+            int count = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0 && ids[i] == ids[i - 1]) {
+                    continue;
+                }
+                Favorite favorite = byId.get(ids[i]);
+                int[] previous = last.get(ids[i]);
+                int[] current = new int[] { favorite.getPlaybackCount(), favorite.getFavoritingsCount() };
+                if (!keyframe && previous != null && Arrays.equals(previous, current)) {
+                    continue;
+                }
+                changedIds[count] = ids[i];
+                // ids new to the segment are differences with 0
+                playbacks[count] = keyframe || previous == null ? current[0] : current[0] - previous[0];
+                favoritings[count] = keyframe || previous == null ? current[1] : current[1] - previous[1];
+                count++;
+                last.put(ids[i], current);
+            }
+            if (!keyframe && count == 0) {
+                return;
+            }
+            byte[] payload = encode(timeMillis - day * DAY_MILLIS, keyframe, changedIds, playbacks,
+                    favoritings, count);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 9);
+            writeVarint(frame, payload.length);
+            frame.write(payload);
+            long checksum = crc.getValue();
+            frame.write((int) (checksum >>> 24));
+            frame.write((int) (checksum >>> 16));
+            frame.write((int) (checksum >>> 8));
+            frame.write((int) checksum);
+            mOut.write(frame.toByteArray());
+            mOut.flush();
+            mLast = last;
+        } catch (IOException e) {
+            Log.e(TAG, "Error recording counts: " + e.toString());
+            // the segment is scanned again, and its torn tail dropped, by the next recording
+            closeSegment();
+            throw new ArchiveSaveException();
+        }
+    }
+
+    /**
+     * Get the samples of the given favorite in the given period: the counts recorded for it, when they
+     * changed, and at the first recording of each day. Downsampled days have one sample at most.
+     *
+     * @param id the id of the favorite
+     * @param fromMillis the start of the period, in milliseconds since the epoch
+     * @param toMillis the end of the period, in milliseconds since the epoch
+     * @return the samples, in time order
+     */
+    synchronized public List<Sample> getSamples(int id, long fromMillis, long toMillis) {
+        List<Sample> samples = new ArrayList<Sample>();
+        for (long day = fromMillis / DAY_MILLIS; day <= toMillis / DAY_MILLIS; day++) {
+            SegmentReader reader = openReader(day);
+            if (reader == null) {
+                continue;
+            }
+            try {
+                int[] value = null;
+                Block block;
+                while ((block = reader.next()) != null && block.mTimeMillis <= toMillis) {
+                    int index = block.indexOf(id);
+                    value = apply(value, block, index);
+                    if (index >= 0 && block.mTimeMillis >= fromMillis) {
+                        samples.add(new Sample(block.mTimeMillis, value[0], value[1]));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Get the counts of the given favorite at the given time: the last ones recorded before it.
+     *
+     * @param id the id of the favorite
+     * @param timeMillis the time, in milliseconds since the epoch
+     * @return the counts, null if none were recorded within the retention
+     */
+    synchronized public Sample getSampleAt(int id, long timeMillis) {
+        for (long day = timeMillis / DAY_MILLIS; day > timeMillis / DAY_MILLIS - mRetentionDays; day--) {
+            SegmentReader reader = openReader(day);
+            if (reader == null) {
+                continue;
+            }
+            try {
+                // counts are known once a keyframe was read, if the favorite is not in it they are not
+                boolean known = false;
+                int[] value = null;
+                long time = 0;
+                Block block;
+                while ((block = reader.next()) != null && block.mTimeMillis <= timeMillis) {
+                    int index = block.indexOf(id);
+                    value = apply(value, block, index);
+                    known = true;
+                    if (index >= 0) {
+                        time = block.mTimeMillis;
+                    }
+                }
+                if (known) {
+                    return value != null ? new Sample(time, value[0], value[1]) : null;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the growth of the counts of the given favorite over the given period. If the favorite has
+     * no counts at the start of the period, its first sample in the period is the reference.
+     *
+     * @param id the id of the favorite
+     * @param fromMillis the start of the period, in milliseconds since the epoch
+     * @param toMillis the end of the period, in milliseconds since the epoch
+     * @return the growth, null if the favorite has no counts in the period
+     */
+    synchronized public Growth getGrowth(int id, long fromMillis, long toMillis) {
+        Sample to = getSampleAt(id, toMillis);
+        if (to == null) {
+            return null;
+        }
+        Sample from = getSampleAt(id, fromMillis);
+        if (from == null) {
+            List<Sample> samples = getSamples(id, fromMillis, toMillis);
+            if (samples.isEmpty()) {
+                return null;
+            }
+            from = samples.get(0);
+        }
+        return new Growth(from, to);
+    }
+
+    /**
+     * Get the growth of the counts of all the favorites with counts at both ends of the given period.
+     * Only the segments of the days the period starts and ends in are decoded.
+     *
+     * @param fromMillis the start of the period, in milliseconds since the epoch
+     * @param toMillis the end of the period, in milliseconds since the epoch
+     * @return the growth by favorite id
+     */
+    synchronized public Map<Integer, Growth> getGrowth(long fromMillis, long toMillis) {
+        Map<Integer, Growth> growth = new HashMap<Integer, Growth>();
+        Map<Integer, Sample> from = getSamplesAt(fromMillis);
+        if (from.isEmpty()) {
+            return growth;
+        }
+        for (Map.Entry<Integer, Sample> to : getSamplesAt(toMillis).entrySet()) {
+            Sample start = from.get(to.getKey());
+            if (start != null) {
+                growth.put(to.getKey(), new Growth(start, to.getValue()));
+            }
+        }
+        return growth;
+    }
+
+    /**
+     * Stop appending to the current segment. The next recording reopens it.
+     */
+    synchronized public void close() {
+        closeSegment();
+    }
+
+    /**
+     * @return the counts of all the favorites at the given time, by id
+     */
+    private Map<Integer, Sample> getSamplesAt(long timeMillis) {
+        for (long day = timeMillis / DAY_MILLIS; day > timeMillis / DAY_MILLIS - mRetentionDays; day--) {
+            SegmentReader reader = openReader(day);
+            if (reader == null) {
+                continue;
+            }
+            try {
+                Map<Integer, int[]> values = null;
+                long time = 0;
+                Block block;
+                while ((block = reader.next()) != null && block.mTimeMillis <= timeMillis) {
+                    values = apply(values, block);
+                    time = block.mTimeMillis;
+                }
+                if (values != null) {
+                    Map<Integer, Sample> samples = new HashMap<Integer, Sample>();
+                    for (Map.Entry<Integer, int[]> value : values.entrySet()) {
+                        samples.put(value.getKey(), new Sample(time, value.getValue()[0], value.getValue()[1]));
+                    }
+                    return samples;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return new HashMap<Integer, Sample>();
+    }
+
+    /**
+     * Open the segment of the given day for appending, dropping its torn tail if any, and compact the
+     * older segments.
+     */
+    private void openSegment(long day) throws IOException {
+        closeSegment();
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        File file = segmentFile(day, SEGMENT_SUFFIX);
+        mLast = null;
+        if (file.exists()) {
+            SegmentReader reader = new SegmentReader(file, day);
+            long length;
+            try {
+                Block block;
+                while ((block = reader.next()) != null) {
+                    mLast = apply(mLast, block);
+                }
+                length = reader.getValidLength();
+            } finally {
+                reader.close();
+            }
+            if (length < file.length()) {
+                Log.e(TAG, "Dropping the torn tail of " + file);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(length);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+        mOut = new FileOutputStream(file, true);
+        mDay = day;
+        compact(day);
+    }
+
+    private void closeSegment() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing segment: " + e.toString());
+            }
+        }
+        mOut = null;
+        mDay = -1;
+        mLast = null;
+    }
+
+    /**
+     * Downsample the segments older than the full resolution days, and delete the ones older than the
+     * retention.
+     */
+    private void compact(long today) {
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(TEMP_SUFFIX)) {
+                // left by an interrupted downsampling
+                new File(mDirectory, name).delete();
+                continue;
+            }
+            boolean downsampled = name.endsWith(DOWNSAMPLED_SUFFIX);
+            if (!name.startsWith(SEGMENT_PREFIX) || !(downsampled || name.endsWith(SEGMENT_SUFFIX))) {
+                continue;
+            }
+            long day;
+            try {
+                day = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.lastIndexOf('.')));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            File file = new File(mDirectory, name);
+            if (day <= today - mRetentionDays) {
+                if (!file.delete()) {
+                    Log.e(TAG, "Error deleting " + file);
+                }
+            } else if (!downsampled && day < today - mFullResolutionDays) {
+                downsample(day);
+            }
+        }
+    }
+
+    /**
+     * Replace the segment of the given day with a single keyframe, holding its last counts.
+     */
+    private void downsample(long day) {
+        File file = segmentFile(day, SEGMENT_SUFFIX);
+        File temp = segmentFile(day, DOWNSAMPLED_SUFFIX + TEMP_SUFFIX);
+        try {
+            Map<Integer, int[]> values = null;
+            long time = 0;
+            SegmentReader reader = new SegmentReader(file, day);
+            try {
+                Block block;
+                while ((block = reader.next()) != null) {
+                    values = apply(values, block);
+                    time = block.mTimeMillis;
+                }
+            } finally {
+                reader.close();
+            }
+            if (values != null) {
+                int[] ids = new int[values.size()];
+                int i = 0;
+                for (int id : values.keySet()) {
+                    ids[i++] = id;
+                }
+                Arrays.sort(ids);
+                int[] playbacks = new int[ids.length];
+                int[] favoritings = new int[ids.length];
+                for (i = 0; i < ids.length; i++) {
+                    playbacks[i] = values.get(ids[i])[0];
+                    favoritings[i] = values.get(ids[i])[1];
+                }
+                byte[] payload = encode(time - day * DAY_MILLIS, true, ids, playbacks, favoritings, ids.length);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    ByteArrayOutputStream header = new ByteArrayOutputStream();
+                    writeVarint(header, payload.length);
+                    out.write(header.toByteArray());
+                    out.write(payload);
+                    long checksum = crc.getValue();
+                    out.write(new byte[] { (byte) (checksum >>> 24), (byte) (checksum >>> 16),
+                            (byte) (checksum >>> 8), (byte) checksum });
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(segmentFile(day, DOWNSAMPLED_SUFFIX))) {
+                    throw new IOException("Unable to rename " + temp);
+                }
+            }
+            if (!file.delete()) {
+                Log.e(TAG, "Error deleting " + file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error downsampling " + file + ": " + e.toString());
+            temp.delete();
+        }
+    }
+
+    /**
+     * @return a reader of the segment of the given day, null if there is none
+     */
+    private SegmentReader openReader(long day) {
+        for (String suffix : new String[] { SEGMENT_SUFFIX, DOWNSAMPLED_SUFFIX }) {
+            File file = segmentFile(day, suffix);
+            if (file.exists()) {
+                try {
+                    return new SegmentReader(file, day);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading " + file + ": " + e.toString());
+                }
+            }
+        }
+        return null;
+    }
+
+    private File segmentFile(long day, final String suffix) {
+        return new File(mDirectory, SEGMENT_PREFIX + day + suffix);
+    }
+
+    /**
+     * @return the counts of a favorite after the given block, given the ones before it, and its index
+     * in the block
+     */
+    private static int[] apply(final int[] value, final Block block, int index) {
+        if (index < 0) {
+            // a favorite missing from a keyframe has no counts anymore
+            return block.mKeyframe ? null : value;
+        }
+        if (block.mKeyframe || value == null) {
+            return new int[] { block.mPlaybacks[index], block.mFavoritings[index] };
+        }
+        return new int[] { value[0] + block.mPlaybacks[index], value[1] + block.mFavoritings[index] };
+    }
+
+    /**
+     * @return the counts of all the favorites after the given block, given the ones before it
+     */
+    private static Map<Integer, int[]> apply(final Map<Integer, int[]> values, final Block block) {
+        Map<Integer, int[]> result = block.mKeyframe || values == null ? new HashMap<Integer, int[]>() : values;
+        for (int i = 0; i < block.mIds.length; i++) {
+            result.put(block.mIds[i], apply(result.get(block.mIds[i]), block, i));
+        }
+        return result;
+    }
+
+    /**
+     * Encode a block: type, time of the day, count, then for each entry the difference with the
+     * previous id and the zigzag encoded counts.
+     */
+    private static byte[] encode(long millisOfDay, boolean keyframe, final int[] ids, final int[] playbacks,
+            final int[] favoritings, int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + count * 6);
+        out.write(keyframe ? KEYFRAME : DELTA);
+        writeVarint(out, millisOfDay);
+        writeVarint(out, count);
+        long previousId = 0;
+        for (int i = 0; i < count; i++) {
+            writeVarint(out, zigzag(ids[i] - previousId));
+            writeVarint(out, zigzag(playbacks[i]));
+            writeVarint(out, zigzag(favoritings[i]));
+            previousId = ids[i];
+        }
+        return out.toByteArray();
+    }
+
+    private static Block decode(final byte[] payload, long dayStartMillis) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int type = in.readUnsignedByte();
+        if (type != KEYFRAME && type != DELTA) {
+            throw new IOException("Invalid block type " + type);
+        }
+        long time = dayStartMillis + readVarint(in);
+        int count = (int) readVarint(in);
+        if (count < 0 || count > payload.length) {
+            throw new IOException("Invalid block count " + count);
+        }
+        int[] ids = new int[count];
+        int[] playbacks = new int[count];
+        int[] favoritings = new int[count];
+        long id = 0;
+        for (int i = 0; i < count; i++) {
+            id += unzigzag(readVarint(in));
+            ids[i] = (int) id;
+            playbacks[i] = (int) unzigzag(readVarint(in));
+            favoritings[i] = (int) unzigzag(readVarint(in));
+        }
+        return new Block(time, type == KEYFRAME, ids, playbacks, favoritings);
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(final DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
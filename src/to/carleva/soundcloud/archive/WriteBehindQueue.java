@@ -0,0 +1,189 @@
+package to.carleva.soundcloud.archive;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A write-behind queue, taking archiving off the caller path: writes are queued and performed by a
+ * single background writer thread, in queuing order.
+ *
+ * Writes are keyed: a write queued while another one with the same key is still pending replaces it,
+ * so that only the latest snapshot of each key is archived. The replaced write keeps its position in
+ * the queue, and the time it was first queued, so that the lag reported is the age of the oldest
+ * unsaved snapshot. Writes which must be archived in a given order (e.g. a list, and a cursor applying
+ * to it) must be queued as a single write.
+ *
+ * Note that the data captured by a write must not change after it was queued.
+ *
+ * @author Andrea Carlevato
+ */
+public class WriteBehindQueue {
+
+    /**
+     * A write, performed on the writer thread.
+     */
+    public interface Write {
+        void write() throws ArchiveSaveException;
+    }
+
+    /**
+     * A write holding resources (e.g. a temporary file), released if the write is replaced by a later
+     * one before being performed.
+     */
+    public interface DiscardableWrite extends Write {
+        void discard();
+    }
+
+    /**
+     * The write outcomes listener interface. Note that listeners are invoked on the writer thread.
+     */
+    public interface Listener {
+        void onWritten(final String key, long lagNanos);
+        void onFailed(final String key, final ArchiveSaveException e);
+    }
+
+    /**
+     * A queued write, with the time it was first queued.
+     */
+    private static class Pending {
+
+        private Write mWrite;
+        private final long mQueuedNanos;
+
+        Pending(final Write write, long queuedNanos) {
+            mWrite = write;
+            mQueuedNanos = queuedNanos;
+        }
+    }
+
+    private static final String TAG = "WriteBehindQueue";
+
+    private final Listener mListener;
+    private final Map<String, Pending> mPending = new LinkedHashMap<String, Pending>();
+    private boolean mWriting;
+    private long mCoalescedCount;
+
+    /**
+     * Creates a queue and starts its writer thread.
+     *
+     * @param name the writer thread name
+     * @param listener the listener of the write outcomes
+     */
+    public WriteBehindQueue(final String name, final Listener listener) {
+        mListener = listener;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, name);
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * Queue a write, replacing the pending one with the same key, if any. A replaced DiscardableWrite 
+     * is discarded.
+     *
+     * @param key the key of the archived data
+     * @param write the write
+     */
+    public void submit(final String key, final Write write) {
+        Write replaced;
+        synchronized (this) {
+            Pending pending = mPending.get(key);
+            if (pending == null) {
+                mPending.put(key, new Pending(write, System.nanoTime()));
+                notifyAll();
+                return;
+            }
+            replaced = pending.mWrite;
+            pending.mWrite = write;
+            mCoalescedCount++;
+        }
+        if (replaced instanceof DiscardableWrite) {
+            ((DiscardableWrite) replaced).discard();
+        }
+    }
+
+    /**
+     * Wait for all the writes queued so far to be performed.
+     *
+     * @param timeoutMillis the maximum time to wait
+     * @return true if the queue was flushed, false if the timeout elapsed first
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    synchronized public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left = timeoutMillis;
+        while (!mPending.isEmpty() || mWriting) {
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of writes waiting to be performed
+     */
+    synchronized public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * @return the time the oldest pending write has been waiting for, in nanoseconds, 0 if none
+     */
+    synchronized public long getLagNanos() {
+        if (mPending.isEmpty()) {
+            return 0;
+        }
+        return System.nanoTime() - mPending.values().iterator().next().mQueuedNanos;
+    }
+
+    /**
+     * @return the number of writes replaced by a later one before being performed
+     */
+    synchronized public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            String key;
+            Pending pending;
+            synchronized (this) {
+                mWriting = false;
+                notifyAll();
+                while (mPending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // the writer is never interrupted, writes must not be lost
+                    }
+                }
+                Iterator<Map.Entry<String, Pending>> first = mPending.entrySet().iterator();
+                Map.Entry<String, Pending> entry = first.next();
+                first.remove();
+                key = entry.getKey();
+                pending = entry.getValue();
+                mWriting = true;
+            }
+
+            try {
+                pending.mWrite.write();
+                mListener.onWritten(key, System.nanoTime() - pending.mQueuedNanos);
+            } catch (ArchiveSaveException e) {
+                mListener.onFailed(key, e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unexpected error archiving " + key + ": " + e.toString());
+            }
+        }
+    }
+}
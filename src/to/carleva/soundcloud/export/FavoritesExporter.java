@@ -0,0 +1,206 @@
+package to.carleva.soundcloud.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import to.carleva.soundcloud.archive.ArchiveRestoreException;
+import to.carleva.soundcloud.paging.PageSource;
+import to.carleva.soundcloud.types.Favorite;
+
+/**
+ * Exports favorites to an output stream, as newline delimited JSON or as CSV, one page at a time, so
+ * that memory is bounded by a page and the write buffer, whatever the number of favorites.
+ *
+ * Each favorite is a JSON object, or a CSV row after a header row, with the fields: id, kind, title,
+ * description, genre, release_year, playback_count, favoritings_count, username. Unknown numbers
+ * are -1. Text is encoded in UTF-8; CSV fields are quoted as per RFC 4180 when needed.
+ *
+ * An export runs on the calling thread, which must not be the main thread, and stops with an
+ * InterruptedIOException when the thread is interrupted.
+ *
+ * @author Andrea Carlevato
+ */
+public class FavoritesExporter {
+
+    /**
+     * Enumeration for the export formats.
+     */
+    public enum Format {
+        NDJSON,
+        CSV
+    }
+
+    /**
+     * Interface to be notified about the progress of an export, on the exporting thread.
+     */
+    public interface ProgressListener {
+        /**
+         * @param exported the number of favorites written so far
+         * @param total the number of favorites to export
+         */
+        void onProgress(int exported, int total);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    private static final String[] FIELDS = { "id", "kind", "title", "description", "genre", "release_year",
+            "playback_count", "favoritings_count", "username" };
+
+    private final Format mFormat;
+    private int mBufferSize = DEFAULT_BUFFER_SIZE;
+    private ProgressListener mListener;
+
+    /**
+     * @param format the export format
+     */
+    public FavoritesExporter(final Format format) {
+        mFormat = format;
+    }
+
+    /**
+     * Sets the size of the write buffer, in chars. Default is 16K.
+     */
+    public FavoritesExporter setBufferSize(int chars) {
+        mBufferSize = Math.max(1, chars);
+        return this;
+    }
+
+    /**
+     * Sets the listener notified after each page is written, null for none.
+     */
+    public FavoritesExporter setProgressListener(final ProgressListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Export the favorites of the given source, page by page. The output stream is flushed, not closed.
+     *
+     * @param source the favorites
+     * @param out the output stream
+     * @return the number of favorites exported
+     * @throws IOException if writing failed, or the calling thread was interrupted
+     * @throws ArchiveRestoreException if a page could not be loaded
+     */
+    public int export(final PageSource<Favorite> source, final OutputStream out)
+            throws IOException, ArchiveRestoreException {
+        int total = source.getCount();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), mBufferSize);
+        if (mFormat == Format.CSV) {
+            for (int i = 0; i < FIELDS.length; i++) {
+                writer.write(i > 0 ? "," : "");
+                writer.write(FIELDS[i]);
+            }
+            writer.write("\r\n");
+        }
+        int exported = 0;
+        for (int page = 0; page < source.getPageCount(); page++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Export interrupted after " + exported + " favorites");
+            }
+            List<Favorite> favorites = source.loadPage(page);
+            for (Favorite favorite : favorites) {
+                if (mFormat == Format.CSV) {
+                    writeCsv(writer, favorite);
+                } else {
+                    writeJson(writer, favorite);
+                }
+            }
+            exported += favorites.size();
+            if (mListener != null) {
+                mListener.onProgress(exported, total);
+            }
+        }
+        writer.flush();
+        return exported;
+    }
+
+    private static void writeJson(final Writer writer, final Favorite favorite) throws IOException {
+        writer.write("{\"id\":");
+        writer.write(Integer.toString(favorite.getId()));
+        writeJsonField(writer, FIELDS[1], favorite.getType());
+        writeJsonField(writer, FIELDS[2], favorite.getTitle());
+        writeJsonField(writer, FIELDS[3], favorite.getDescription());
+        writeJsonField(writer, FIELDS[4], favorite.getGenre());
+        writer.write(",\"release_year\":");
+        writer.write(Integer.toString(favorite.getReleaseYear()));
+        writer.write(",\"playback_count\":");
+        writer.write(Integer.toString(favorite.getPlaybackCount()));
+        writer.write(",\"favoritings_count\":");
+        writer.write(Integer.toString(favorite.getFavoritingsCount()));
+        writeJsonField(writer, FIELDS[8], favorite.getAuthorUserName());
+        writer.write("}\n");
+    }
+
+    private static void writeJsonField(final Writer writer, final String name, final String value)
+            throws IOException {
+        writer.write(",\"");
+        writer.write(name);
+        writer.write("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+
+    private static void writeCsv(final Writer writer, final Favorite favorite) throws IOException {
+        writer.write(Integer.toString(favorite.getId()));
+        writeCsvField(writer, favorite.getType());
+        writeCsvField(writer, favorite.getTitle());
+        writeCsvField(writer, favorite.getDescription());
+        writeCsvField(writer, favorite.getGenre());
+        writer.write(',');
+        writer.write(Integer.toString(favorite.getReleaseYear()));
+        writer.write(',');
+        writer.write(Integer.toString(favorite.getPlaybackCount()));
+        writer.write(',');
+        writer.write(Integer.toString(favorite.getFavoritingsCount()));
+        writeCsvField(writer, favorite.getAuthorUserName());
+        writer.write("\r\n");
+    }
+
+    private static void writeCsvField(final Writer writer, final String value) throws IOException {
+        writer.write(',');
+        boolean quoted = false;
+        for (int i = 0; i < value.length() && !quoted; i++) {
+            char c = value.charAt(i);
+            quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quoted) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
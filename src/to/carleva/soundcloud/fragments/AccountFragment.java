@@ -9,6 +9,7 @@ import android.widget.TextView;
 import to.carleva.soundcloud.R;
 import to.carleva.soundcloud.remote.DataProvider;
 import to.carleva.soundcloud.remote.DataProvider.UserUpdateObserver;
+import to.carleva.soundcloud.remote.DataProvider.Stream;
 import to.carleva.soundcloud.types.User;
 
 /**
@@ -40,6 +41,11 @@ public class AccountFragment extends BaseFragment implements UserUpdateObserver
         DataProvider.INSTANCE.unsubscribeToUserUpdates(this);
     }
     
+    @Override
+    protected Stream getStream()    {
+        return Stream.USER;
+    }
+    
     @Override
     public void onUserUpdate(final User user)   {
         
@@ -4,7 +4,10 @@ import android.app.ProgressDialog;
 import android.support.v4.app.Fragment;
 import android.widget.Toast;
 import to.carleva.soundcloud.R;
+import to.carleva.soundcloud.remote.DataProvider;
 import to.carleva.soundcloud.remote.DataProvider.Error;
+import to.carleva.soundcloud.remote.DataProvider.Priority;
+import to.carleva.soundcloud.remote.DataProvider.Stream;
 import to.carleva.soundcloud.remote.DataProvider.UpdateObserver;
 
 /**
@@ -50,14 +53,23 @@ public abstract class BaseFragment extends Fragment implements UpdateObserver
     }
     
     /**
-     * Mark this fragment as visible in the page viewer
+     * Mark this fragment as visible in the page viewer. The DataProvider stream presented by the fragment 
+     * is prioritized accordingly.
      *      
      * @param isVisible boolean indicating if the current fragment is visible or not 
      */
     public void setVisible(final boolean isVisible) {
         mIsVisible = isVisible;
+        DataProvider.INSTANCE.setPriorityHint(getStream(), isVisible ? Priority.FOREGROUND : Priority.BACKGROUND);
     }
     
+    /**
+     * Getter for the DataProvider update stream presented by the fragment.
+     *
+     * @return the update stream of this fragment
+     */
+    protected abstract Stream getStream();
+    
     /**
      * Formats a SoundCloud data item value into a format that is friendly for the app UI.
      *
@@ -101,6 +113,9 @@ public abstract class BaseFragment extends Fragment implements UpdateObserver
             case INTERNAL_ERROR:
                 errorMsgId = R.string.internal_error_msg;
                 break;
+            case UPDATE_TIMEOUT:
+                errorMsgId = R.string.timeout_error_msg;
+                break;
             default:
                 errorMsgId = R.string.connection_error_msg;
                 break;
@@ -1,19 +1,20 @@
 package to.carleva.soundcloud.fragments;
 
-import java.util.List;
-
 import android.content.Context;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 
 import to.carleva.soundcloud.R;
+import to.carleva.soundcloud.paging.PageSource;
+import to.carleva.soundcloud.paging.PagedList;
 import to.carleva.soundcloud.remote.DataProvider;
 import to.carleva.soundcloud.remote.DataProvider.FavoritesUpdateObserver;
+import to.carleva.soundcloud.remote.DataProvider.Stream;
 import to.carleva.soundcloud.types.Favorite;
 
 /**
@@ -24,49 +25,85 @@ import to.carleva.soundcloud.types.Favorite;
 public class FavoritesFragment extends BaseFragment implements FavoritesUpdateObserver  {
     
     /**
-     * Custom ArrayAdapter class to populate the Favorites list
+     * Custom adapter class to populate the Favorites list, from a PagedList: rows of favorites not
+     * loaded yet are presented as loading, and filled in once their page is loaded
      * 
      */
-    public class FavoritesArrayAdapter extends ArrayAdapter<Favorite> {
+    public class FavoritesPagedAdapter extends BaseAdapter implements PagedList.Listener {
         
         private final Context mContext;
-        private final List<Favorite> mValues;
+        private final PagedList<Favorite> mValues;
     
-        public FavoritesArrayAdapter(Context context, List<Favorite> values) {
-            super(context, R.layout.favorite_row, values);
+        public FavoritesPagedAdapter(Context context, PagedList<Favorite> values) {
             mContext = context;
             mValues = values;
+            mValues.setListener(this);
+        }
+        
+        @Override
+        public int getCount() {
+            return mValues.getCount();
+        }
+        
+        @Override
+        public Favorite getItem(int position) {
+            return mValues.get(position);
+        }
+        
+        @Override
+        public long getItemId(int position) {
+            return position;
         }
     
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            LayoutInflater inflater = (LayoutInflater) mContext
-                .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            
-            // fill row items
-            View rowView = inflater.inflate(R.layout.favorite_row, parent, false);
-            // title
+            View rowView = convertView;
+            if (rowView == null) {
+                LayoutInflater inflater = (LayoutInflater) mContext
+                    .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+                rowView = inflater.inflate(R.layout.favorite_row, parent, false);
+            }
             TextView titleLabelView = (TextView) rowView.findViewById(R.id.titleLabel);
-            titleLabelView.setText(formatValueFourUi(mValues.get(position).getTitle()));
-            // author
             TextView authorLabelView = (TextView) rowView.findViewById(R.id.authorLabel);
-            authorLabelView.setText(formatValueFourUi(mValues.get(position).getAuthorUserName()));
-            // genre/s
             TextView genreLabelView = (TextView) rowView.findViewById(R.id.genreLabel);
-            genreLabelView.setText(formatValueFourUi(mValues.get(position).getGenre()));
-            // playback count
             TextView countsLabelView = (TextView) rowView.findViewById(R.id.countsLabel);
+            
+            Favorite favorite = mValues.get(position);
+            if (favorite == null) {
+                // page not loaded yet, the row is filled in by onPageLoaded()
+                titleLabelView.setText(R.string.loading_spinner_title);
+                authorLabelView.setText("");
+                genreLabelView.setText("");
+                countsLabelView.setText("");
+                return rowView;
+            }
+            // fill row items
+            titleLabelView.setText(formatValueFourUi(favorite.getTitle()));
+            authorLabelView.setText(formatValueFourUi(favorite.getAuthorUserName()));
+            genreLabelView.setText(formatValueFourUi(favorite.getGenre()));
             countsLabelView.setText("Views: "
-                    + formatValueFourUi(mValues.get(position).getPlaybackCount())
+                    + formatValueFourUi(favorite.getPlaybackCount())
                     + "     Likes: " 
-                    + formatValueFourUi(mValues.get(position).getFavoritingsCount()));
+                    + formatValueFourUi(favorite.getFavoritingsCount()));
             
             return rowView;
-        } 
+        }
+        
+        @Override
+        public void onPageLoaded(int page) {
+            notifyDataSetChanged();
+        }
+        
+        @Override
+        public void onPageFailed(int page) {
+            // rows stay as loading, until the page is requested again or the list is updated
+        }
     }
     
     public static final int TITLE_STRING_ID = R.string.favorites_section;
     private View mRootView;
+    private PagedList<Favorite> mPagedList;
+    private FavoritesPagedAdapter mAdapter;
     
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -85,13 +122,35 @@ public class FavoritesFragment extends BaseFragment implements FavoritesUpdateOb
     public void onStop()    {
         super.onStop();
         DataProvider.INSTANCE.unsubscribeToFavoritesUpdates(this);
+        closePagedList();
     }
     
     @Override
-    public void onFavoritesUpdate(final List<Favorite> favs)    {  
-        // populate the list
+    protected Stream getStream()    {
+        return Stream.FAVORITES;
+    }
+    
+    @Override
+    public void onFavoritesUpdate(final PageSource<Favorite> source)    {  
+        // populate the list, only a window of pages around the scroll position is held in memory
+        if (mPagedList != null) {
+            // rows keep presenting the previous data until the new pages are loaded, and the scroll 
+            // position is kept
+            mPagedList.setSource(source);
+            mAdapter.notifyDataSetChanged();
+            return;
+        }
+        mPagedList = new PagedList<Favorite>(source);
+        mAdapter = new FavoritesPagedAdapter(getActivity(), mPagedList);
         ListView lv = (ListView) mRootView.findViewById(R.id.favList);
-        FavoritesArrayAdapter arrayAdapter = new FavoritesArrayAdapter(getActivity(), favs );
-        lv.setAdapter(arrayAdapter); 
+        lv.setAdapter(mAdapter);
+    }
+    
+    private void closePagedList()   {
+        if (mPagedList != null) {
+            mPagedList.close();
+            mPagedList = null;
+            mAdapter = null;
+        }
     }
 }
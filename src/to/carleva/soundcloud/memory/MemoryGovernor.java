@@ -0,0 +1,268 @@
+package to.carleva.soundcloud.memory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.util.Log;
+
+/**
+ * Releases in-memory caches under memory pressure, as signalled by the system (see onTrimMemory() and
+ * onLowMemory()) or detected on the heap (see checkHeap()).
+ *
+ * Caches register into tiers, which are released in a defined order, the cheapest to rebuild first:
+ * the more severe the pressure, the more tiers are released. A released cache must rebuild itself
+ * lazily, e.g. from the disk cache, when it is needed again. The bytes freed are estimated by the
+ * caches themselves, and collected in per tier counters.
+ *
+ * The class is thread safe, caches are released outside of its lock.
+ *
+ * @author Andrea Carlevato
+ */
+public class MemoryGovernor implements ComponentCallbacks2 {
+
+    /**
+     * Enumeration for the cache tiers, in release order.
+     */
+    public enum Tier {
+        // reusable I/O buffers, simply allocated again
+        IO_BUFFERS,
+        DECODED_IMAGES,
+        ROW_MODELS,
+        SECONDARY_INDEXES,
+        DECODED_FAVORITES
+    }
+
+    /**
+     * A cache which can be released under memory pressure.
+     */
+    public interface Releasable {
+        /**
+         * Release the cache, which must be rebuilt lazily when needed again.
+         *
+         * @return an estimate of the bytes freed, 0 if the cache was empty
+         */
+        long release();
+    }
+
+    private static final String TAG = "MemoryGovernor";
+    // fraction of the maximum heap above which checkHeap() releases tiers
+    private static final double DEFAULT_HEAP_THRESHOLD = 0.85;
+
+    private final Map<Tier, List<Releasable>> mTiers = new EnumMap<Tier, List<Releasable>>(Tier.class);
+    private final Map<Tier, Long> mReleaseCounts = new EnumMap<Tier, Long>(Tier.class);
+    private final Map<Tier, Long> mFreedBytes = new EnumMap<Tier, Long>(Tier.class);
+    private double mHeapThreshold = DEFAULT_HEAP_THRESHOLD;
+    private long mTrimSignalCount;
+    private long mLowHeapCount;
+
+    public MemoryGovernor() {
+        for (Tier tier : Tier.values()) {
+            mTiers.put(tier, new ArrayList<Releasable>());
+            mReleaseCounts.put(tier, 0L);
+            mFreedBytes.put(tier, 0L);
+        }
+    }
+
+    /**
+     * Register a cache in the given tier.
+     *
+     * @param tier the tier of the cache
+     * @param cache the cache
+     */
+    synchronized public MemoryGovernor register(final Tier tier, final Releasable cache) {
+        mTiers.get(tier).add(cache);
+        return this;
+    }
+
+    /**
+     * Unregister a cache from the given tier.
+     *
+     * @param tier the tier of the cache
+     * @param cache the cache
+     */
+    synchronized public void unregister(final Tier tier, final Releasable cache) {
+        mTiers.get(tier).remove(cache);
+    }
+
+    /**
+     * @return the fraction of the maximum heap above which checkHeap() releases tiers
+     */
+    synchronized public double getHeapThreshold() {
+        return mHeapThreshold;
+    }
+
+    /**
+     * Sets the fraction of the maximum heap above which checkHeap() releases tiers. Default is 0.85.
+     *
+     * @param threshold the threshold, between 0 and 1
+     */
+    synchronized public MemoryGovernor setHeapThreshold(double threshold) {
+        mHeapThreshold = threshold;
+        return this;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        synchronized (this) {
+            mTrimSignalCount++;
+        }
+        releaseUpTo(getTierFor(level));
+    }
+
+    @Override
+    public void onLowMemory() {
+        synchronized (this) {
+            mTrimSignalCount++;
+        }
+        releaseUpTo(Tier.DECODED_FAVORITES);
+    }
+
+    @Override
+    public void onConfigurationChanged(final Configuration newConfig) {
+        // memory pressure only
+    }
+
+    /**
+     * Check the heap usage, releasing tiers in order until it is back below the threshold, or all of
+     * them were released. This is meant to be invoked periodically, off the main thread.
+     *
+     * @return true if the heap was above the threshold
+     */
+    public boolean checkHeap() {
+        if (getHeapUsage() <= getHeapThreshold()) {
+            return false;
+        }
+        synchronized (this) {
+            mLowHeapCount++;
+        }
+        for (Tier tier : Tier.values()) {
+            releaseTier(tier);
+            if (getHeapUsage() <= getHeapThreshold()) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Release the given tier, and all the tiers released before it.
+     *
+     * @param last the last tier to release, null to release none
+     * @return an estimate of the bytes freed
+     */
+    public long releaseUpTo(final Tier last) {
+        long freed = 0;
+        if (last == null) {
+            return freed;
+        }
+        for (Tier tier : Tier.values()) {
+            freed += releaseTier(tier);
+            if (tier == last) {
+                break;
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @return the number of times the caches of the given tier were released while holding data
+     */
+    synchronized public long getReleaseCount(final Tier tier) {
+        return mReleaseCounts.get(tier);
+    }
+
+    /**
+     * @return an estimate of the bytes freed by releasing the caches of the given tier
+     */
+    synchronized public long getFreedBytes(final Tier tier) {
+        return mFreedBytes.get(tier);
+    }
+
+    /**
+     * @return an estimate of the bytes freed by releasing caches, all tiers included
+     */
+    synchronized public long getTotalFreedBytes() {
+        long total = 0;
+        for (long freed : mFreedBytes.values()) {
+            total += freed;
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of trim-memory and low-memory signals received
+     */
+    synchronized public long getTrimSignalCount() {
+        return mTrimSignalCount;
+    }
+
+    /**
+     * @return the number of times checkHeap() found the heap above the threshold
+     */
+    synchronized public long getLowHeapCount() {
+        return mLowHeapCount;
+    }
+
+    @Override
+    synchronized public String toString() {
+        StringBuilder sb = new StringBuilder("signals=" + mTrimSignalCount + " lowHeap=" + mLowHeapCount);
+        for (Tier tier : Tier.values()) {
+            sb.append(' ').append(tier).append("=").append(mReleaseCounts.get(tier))
+                .append('/').append(mFreedBytes.get(tier)).append('B');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the last tier to release for the given trim level, null if none
+     */
+    private static Tier getTierFor(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // the process is among the next ones to be killed, everything goes
+            return Tier.DECODED_FAVORITES;
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            return Tier.SECONDARY_INDEXES;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // nothing is displayed anymore
+            return Tier.ROW_MODELS;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return Tier.SECONDARY_INDEXES;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return Tier.ROW_MODELS;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return Tier.DECODED_IMAGES;
+        }
+        return null;
+    }
+
+    private long releaseTier(final Tier tier) {
+        List<Releasable> caches;
+        synchronized (this) {
+            caches = new ArrayList<Releasable>(mTiers.get(tier));
+        }
+        long freed = 0;
+        for (Releasable cache : caches) {
+            try {
+                freed += cache.release();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error releasing a " + tier + " cache: " + e.toString());
+            }
+        }
+        if (freed > 0) {
+            synchronized (this) {
+                mReleaseCounts.put(tier, mReleaseCounts.get(tier) + 1);
+                mFreedBytes.put(tier, mFreedBytes.get(tier) + freed);
+            }
+        }
+        return freed;
+    }
+
+    private static double getHeapUsage() {
+        Runtime runtime = Runtime.getRuntime();
+        return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+    }
+}
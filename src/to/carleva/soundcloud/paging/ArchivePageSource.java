@@ -0,0 +1,50 @@
+package to.carleva.soundcloud.paging;
+
+import java.io.Serializable;
+import java.util.List;
+
+import to.carleva.soundcloud.archive.ArchiveRestoreException;
+import to.carleva.soundcloud.archive.Archiver;
+
+/**
+ * A PageSource over a list archived in shards, see Archiver.saveObjectListSharded(): each shard is a
+ * page, decoded from disk when loaded.
+ *
+ * @author Andrea Carlevato
+ */
+public class ArchivePageSource<T extends Serializable> implements PageSource<T> {
+
+    private final Archiver.Shards<T> mShards;
+
+    /**
+     * @param shards the shards of the archived list, see Archiver.openSharded()
+     */
+    public ArchivePageSource(final Archiver.Shards<T> shards) {
+        mShards = shards;
+    }
+
+    @Override
+    public int getCount() {
+        return mShards.size();
+    }
+
+    @Override
+    public int getPageCount() {
+        return mShards.getShardCount();
+    }
+
+    @Override
+    public int getPageOffset(int page) {
+        return mShards.getShardOffset(page);
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return false;
+    }
+
+    @Override
+    public List<T> loadPage(int page) throws ArchiveRestoreException {
+        return mShards.readShard(page);
+    }
+}
@@ -0,0 +1,76 @@
+package to.carleva.soundcloud.paging;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+
+import android.util.Log;
+import to.carleva.soundcloud.archive.ArchiveRestoreException;
+import to.carleva.soundcloud.types.Favorite;
+import to.carleva.soundcloud.types.FavoritesDecoder;
+
+/**
+ * A PageSource over a favorites JSON array, e.g. a response cached as received: the array is split
+ * into its elements once, and the elements of a page are decoded when it is loaded.
+ *
+ * @author Andrea Carlevato
+ */
+public class JsonPageSource implements PageSource<Favorite> {
+
+    private static final String TAG = "JsonPageSource";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mJson;
+    private final int[] mBounds;
+    private final int mPageSize;
+
+    /**
+     * @param json the buffer holding the JSON array, encoded in UTF-8, from its first byte
+     * @param length the length of the JSON array, in bytes
+     * @param pageSize the number of favorites of each page
+     * @throws JSONException if the array is not valid
+     */
+    public JsonPageSource(final byte[] json, int length, int pageSize) throws JSONException {
+        mJson = json;
+        mBounds = FavoritesDecoder.split(json, length);
+        mPageSize = pageSize;
+    }
+
+    @Override
+    public int getCount() {
+        return mBounds.length / 2;
+    }
+
+    @Override
+    public int getPageCount() {
+        return (getCount() + mPageSize - 1) / mPageSize;
+    }
+
+    @Override
+    public int getPageOffset(int page) {
+        return page * mPageSize;
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return false;
+    }
+
+    @Override
+    public List<Favorite> loadPage(int page) throws ArchiveRestoreException {
+        int end = Math.min(getCount(), (page + 1) * mPageSize);
+        List<Favorite> favorites = new ArrayList<Favorite>(end - page * mPageSize);
+        for (int i = page * mPageSize; i < end; i++) {
+            int start = mBounds[2 * i];
+            try {
+                favorites.add(Favorite.buildFromJson(new String(mJson, start, mBounds[2 * i + 1] - start, UTF_8)));
+            } catch (JSONException e) {
+                Log.e(TAG, "Invalid favorite at " + start + ": " + e.toString());
+                throw new ArchiveRestoreException();
+            }
+        }
+        return favorites;
+    }
+}
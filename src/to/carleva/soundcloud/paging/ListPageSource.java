@@ -0,0 +1,48 @@
+package to.carleva.soundcloud.paging;
+
+import java.util.List;
+
+/**
+ * A PageSource over a list held in memory, split into pages of a fixed size, served right away.
+ *
+ * @author Andrea Carlevato
+ */
+public class ListPageSource<T> implements PageSource<T> {
+
+    private final List<T> mList;
+    private final int mPageSize;
+
+    /**
+     * @param list the list, which must not be modified anymore
+     * @param pageSize the number of items of each page
+     */
+    public ListPageSource(final List<T> list, int pageSize) {
+        mList = list;
+        mPageSize = pageSize;
+    }
+
+    @Override
+    public int getCount() {
+        return mList.size();
+    }
+
+    @Override
+    public int getPageCount() {
+        return (mList.size() + mPageSize - 1) / mPageSize;
+    }
+
+    @Override
+    public int getPageOffset(int page) {
+        return page * mPageSize;
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return true;
+    }
+
+    @Override
+    public List<T> loadPage(int page) {
+        return mList.subList(page * mPageSize, Math.min(mList.size(), (page + 1) * mPageSize));
+    }
+}
@@ -0,0 +1,42 @@
+package to.carleva.soundcloud.paging;
+
+import java.util.List;
+
+import to.carleva.soundcloud.archive.ArchiveRestoreException;
+
+/**
+ * A list split into pages, loaded one at a time by a PagedList.
+ *
+ * @author Andrea Carlevato
+ */
+public interface PageSource<T> {
+
+    /**
+     * @return the number of items of the list
+     */
+    int getCount();
+
+    /**
+     * @return the number of pages of the list
+     */
+    int getPageCount();
+
+    /**
+     * @return the position in the list of the first item of the given page
+     */
+    int getPageOffset(int page);
+
+    /**
+     * @return true if the pages are held in memory, so that they are loaded right away on any thread
+     */
+    boolean isInMemory();
+
+    /**
+     * Load the given page. This is invoked off the main thread, unless the source is in memory.
+     *
+     * @param page the index of the page
+     * @return the items of the page, in the list order
+     * @throws ArchiveRestoreException if the page could not be loaded
+     */
+    List<T> loadPage(int page) throws ArchiveRestoreException;
+}
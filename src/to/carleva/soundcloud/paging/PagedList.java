@@ -0,0 +1,422 @@
+package to.carleva.soundcloud.paging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import to.carleva.soundcloud.archive.ArchiveRestoreException;
+
+/**
+ * A list presenting a PageSource through a sliding window of pages around the last accessed position,
+ * so that the memory used is bounded by the window, whatever the size of the list.
+ *
+ * Pages are loaded on a background thread, the accessed one first, then a few ahead of it in the
+ * scroll direction (see setPrefetchPages()) and the one behind it. Pages queued for loading and
+ * left behind by the scroll before their turn are skipped. When more pages than the window holds
+ * (see setMaxPages()) are in memory, the farthest from the accessed position are dropped.
+ *
+ * get() never blocks: it returns null for an item whose page is not loaded yet, the listener is
+ * notified on the main thread once it is. Pages of a source held in memory, see PageSource.isInMemory(),
+ * are served right away instead, with no loading nor window.
+ *
+ * The source can be replaced, see setSource(), e.g. by a newer version of the data: the pages of the
+ * previous source keep being served, as stale, until the ones of the new source are loaded, so that the
+ * presented items do not flash as loading. The class is thread safe.
+ *
+ * @author Andrea Carlevato
+ */
+public class PagedList<T> {
+
+    /**
+     * Interface to be notified about page loads, on the main thread.
+     */
+    public interface Listener {
+        void onPageLoaded(int page);
+        void onPageFailed(int page);
+    }
+
+    private static final String TAG = "PagedList";
+    private static final int DEFAULT_MAX_PAGES = 6;
+    private static final int DEFAULT_PREFETCH_PAGES = 2;
+
+    private PageSource<T> mSource;
+    private int mCount;
+    private int[] mOffsets;
+    private final Map<Integer, List<T>> mPages = new HashMap<Integer, List<T>>();
+    // pages of the previous source, served until replaced, and their offsets
+    private final Map<Integer, List<T>> mStalePages = new HashMap<Integer, List<T>>();
+    private int[] mStaleOffsets;
+    private final Set<Integer> mLoading = new HashSet<Integer>();
+    // pages not loaded again until they leave the window, so that a failing page is not retried forever
+    private final Set<Integer> mFailed = new HashSet<Integer>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private ExecutorService mExecutor;
+    private Listener mListener;
+    private int mMaxPages = DEFAULT_MAX_PAGES;
+    private int mPrefetchPages = DEFAULT_PREFETCH_PAGES;
+    private int mCurrentPage = -1;
+    private int mDirection = 1;
+    private boolean mClosed;
+    private long mLoadCount;
+    private long mEvictionCount;
+    private long mFailureCount;
+
+    /**
+     * @param source the source of the pages
+     */
+    public PagedList(final PageSource<T> source) {
+        mSource = source;
+        mCount = source.getCount();
+        mOffsets = getOffsets(source);
+    }
+
+    /**
+     * Sets the listener notified about page loads, null for none.
+     */
+    synchronized public PagedList<T> setListener(final Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of pages kept in memory. It should exceed the prefetched pages by 2, to
+     * hold the accessed page and the one behind it too. Default is 6.
+     *
+     * @param pages the number of pages
+     */
+    synchronized public PagedList<T> setMaxPages(int pages) {
+        mMaxPages = Math.max(1, pages);
+        evict();
+        return this;
+    }
+
+    /**
+     * Sets the number of pages loaded ahead of the accessed one, in the scroll direction. Default is 2.
+     *
+     * @param pages the number of pages
+     */
+    synchronized public PagedList<T> setPrefetchPages(int pages) {
+        mPrefetchPages = Math.max(0, pages);
+        return this;
+    }
+
+    /**
+     * Replace the source of the pages. The position and the scroll direction are kept, and the pages in
+     * memory are served as stale until the ones of the new source replace them. The pages of a source 
+     * held in memory are copied from the window around the position, so that the source itself is not
+     * held anymore.
+     *
+     * @param source the new source of the pages
+     */
+    synchronized public PagedList<T> setSource(final PageSource<T> source) {
+        mStalePages.clear();
+        if (!source.isInMemory()) {
+            if (mSource.isInMemory()) {
+                snapshotWindow();
+            } else {
+                mStalePages.putAll(mPages);
+            }
+            mStaleOffsets = mOffsets;
+        }
+        mPages.clear();
+        // loads in flight belong to the previous source, they are dropped once done
+        mLoading.clear();
+        mFailed.clear();
+        mSource = source;
+        mCount = source.getCount();
+        mOffsets = getOffsets(source);
+        return this;
+    }
+
+    /**
+     * @return the number of items of the list
+     */
+    synchronized public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Get the item at the given position, moving the window to its page.
+     *
+     * @param position the position of the item
+     * @return the item, null if its page is not loaded yet
+     */
+    synchronized public T get(int position) {
+        if (position < 0 || position >= mCount) {
+            throw new IndexOutOfBoundsException("Invalid position " + position + ", size is " + mCount);
+        }
+        int page = getPageOf(mOffsets, position);
+        if (mSource.isInMemory()) {
+            // the window is tracked all the same, for the pages kept when the source is replaced
+            track(page);
+            try {
+                return mSource.loadPage(page).get(position - mOffsets[page]);
+            } catch (ArchiveRestoreException e) {
+                throw new IllegalStateException("Page " + page + " not loaded from memory");
+            }
+        }
+        moveTo(page);
+        List<T> items = mPages.get(page);
+        if (items != null) {
+            return items.get(position - mOffsets[page]);
+        }
+        if (mStalePages.isEmpty()) {
+            return null;
+        }
+        int stalePage = getPageOf(mStaleOffsets, position);
+        items = mStalePages.get(stalePage);
+        int index = position - mStaleOffsets[stalePage];
+        return items == null || index >= items.size() ? null : items.get(index);
+    }
+
+    /**
+     * Stop loading pages, and drop the ones in memory. The list must not be used anymore.
+     */
+    synchronized public void close() {
+        mClosed = true;
+        mPages.clear();
+        mStalePages.clear();
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * @return the number of items held in memory
+     */
+    synchronized public int getResidentCount() {
+        int count = 0;
+        for (List<T> items : mPages.values()) {
+            count += items.size();
+        }
+        for (List<T> items : mStalePages.values()) {
+            count += items.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of pages loaded so far
+     */
+    synchronized public long getLoadCount() {
+        return mLoadCount;
+    }
+
+    /**
+     * @return the number of pages dropped from memory so far
+     */
+    synchronized public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return the number of page loads failed so far
+     */
+    synchronized public long getFailureCount() {
+        return mFailureCount;
+    }
+
+    @Override
+    synchronized public String toString() {
+        return "count=" + mCount + " pages=" + mPages.size() + "/" + mOffsets.length + " stale="
+                + mStalePages.size() + " loading=" + mLoading.size() + " loaded=" + mLoadCount + " evicted=" + mEvictionCount + " failed="
+                + mFailureCount;
+    }
+
+    /**
+     * @return the offsets of the pages of the given source
+     */
+    private static int[] getOffsets(final PageSource<?> source) {
+        int[] offsets = new int[source.getPageCount()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = source.getPageOffset(i);
+        }
+        return offsets;
+    }
+
+    /**
+     * @return the page holding the given position, given the offsets of the pages
+     */
+    private static int getPageOf(final int[] offsets, int position) {
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Move the window to the given page, and request the loads of its missing pages.
+     */
+    private void moveTo(int page) {
+        if (track(page)) {
+            for (Iterator<Integer> it = mFailed.iterator(); it.hasNext();) {
+                if (!isWanted(it.next())) {
+                    it.remove();
+                }
+            }
+            evict();
+        }
+        request(page);
+        for (int i = 1; i <= mPrefetchPages; i++) {
+            request(page + i * mDirection);
+        }
+        request(page - mDirection);
+    }
+
+    /**
+     * Make the given page the current one, following the scroll direction.
+     *
+     * @return true if the current page changed
+     */
+    private boolean track(int page) {
+        if (page == mCurrentPage) {
+            return false;
+        }
+        if (mCurrentPage != -1) {
+            mDirection = page > mCurrentPage ? 1 : -1;
+        }
+        mCurrentPage = page;
+        return true;
+    }
+
+    /**
+     * Copy the pages of the window around the current page from the source, held in memory, as stale.
+     */
+    private void snapshotWindow() {
+        if (mCurrentPage == -1) {
+            return;
+        }
+        for (int page = mCurrentPage - mPrefetchPages - 1; page <= mCurrentPage + mPrefetchPages + 1; page++) {
+            if (page < 0 || page >= mOffsets.length || !isWanted(page)) {
+                continue;
+            }
+            try {
+                mStalePages.put(page, new ArrayList<T>(mSource.loadPage(page)));
+            } catch (ArchiveRestoreException e) {
+                // not expected from memory, the page is presented as loading
+            }
+        }
+    }
+
+    /**
+     * @return true if the given page is in the window around the current one
+     */
+    private boolean isWanted(int page) {
+        int ahead = (page - mCurrentPage) * mDirection;
+        return ahead >= -1 && ahead <= mPrefetchPages;
+    }
+
+    private void request(final int page) {
+        if (mClosed || page < 0 || page >= mOffsets.length || mPages.containsKey(page)
+                || mLoading.contains(page) || mFailed.contains(page)) {
+            return;
+        }
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor();
+        }
+        mLoading.add(page);
+        final PageSource<T> source = mSource;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(source, page);
+            }
+        });
+    }
+
+    private void load(final PageSource<T> source, final int page) {
+        synchronized (this) {
+            if (source != mSource) {
+                // replaced before its turn
+                return;
+            }
+            if (mClosed || !isWanted(page)) {
+                // scrolled away before its turn
+                mLoading.remove(page);
+                return;
+            }
+        }
+        List<T> items = null;
+        try {
+            items = source.loadPage(page);
+        } catch (ArchiveRestoreException e) {
+            Log.e(TAG, "Unable to load page " + page);
+        }
+        final Listener listener;
+        synchronized (this) {
+            if (mClosed || source != mSource) {
+                return;
+            }
+            mLoading.remove(page);
+            if (items != null) {
+                mPages.put(page, items);
+                mLoadCount++;
+                evict();
+            } else {
+                mFailed.add(page);
+                mFailureCount++;
+            }
+            listener = mListener;
+        }
+        if (listener != null) {
+            final boolean loaded = items != null;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (PagedList.this) {
+                        if (mClosed) {
+                            return;
+                        }
+                    }
+                    if (loaded) {
+                        listener.onPageLoaded(page);
+                    } else {
+                        listener.onPageFailed(page);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop the pages farthest from the current one, stale ones first, until the window fits its size.
+     */
+    private void evict() {
+        while (!mStalePages.isEmpty() && mPages.size() + mStalePages.size() > mMaxPages) {
+            int farthest = -1;
+            for (int page : mStalePages.keySet()) {
+                if (farthest == -1 || Math.abs(page - mCurrentPage) > Math.abs(farthest - mCurrentPage)) {
+                    farthest = page;
+                }
+            }
+            mStalePages.remove(farthest);
+        }
+        while (mPages.size() > mMaxPages) {
+            int farthest = -1;
+            for (int page : mPages.keySet()) {
+                if (farthest == -1 || Math.abs(page - mCurrentPage) > Math.abs(farthest - mCurrentPage)) {
+                    farthest = page;
+                }
+            }
+            mPages.remove(farthest);
+            mEvictionCount++;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package to.carleva.soundcloud.remote;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small pool of reusable byte buffers, so that reading response bodies allocates no buffer once the
+ * pool is warm.
+ *
+ * Buffers are handed out by size: the smallest pooled buffer fitting the requested size is reused, a
+ * new one is allocated otherwise. At most a few buffers are kept, within a total size limit, larger
+ * buffers first, so that the largest body seen so far is served from the pool. The class is thread
+ * safe.
+ *
+ * @author Andrea Carlevato
+ */
+public class BufferPool {
+
+    // size of buffers allocated for bodies of unknown length
+    private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    private static final int DEFAULT_MAX_BUFFERS = 4;
+    private static final long DEFAULT_MAX_POOLED_BYTES = 8 * 1024 * 1024;
+
+    private final List<byte[]> mBuffers = new ArrayList<byte[]>();
+    private int mMaxBuffers = DEFAULT_MAX_BUFFERS;
+    private long mMaxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+    private long mPooledBytes;
+    private long mAcquireCount;
+    private long mAllocationCount;
+    private long mAllocatedBytes;
+
+    /**
+     * Sets the maximum number of buffers kept for reuse. Default is 4.
+     *
+     * @param buffers the number of buffers
+     */
+    synchronized public BufferPool setMaxBuffers(int buffers) {
+        mMaxBuffers = buffers;
+        trim();
+        return this;
+    }
+
+    /**
+     * Sets the maximum total size of the buffers kept for reuse. Default is 8MB.
+     *
+     * @param bytes the total size, in bytes
+     */
+    synchronized public BufferPool setMaxPooledBytes(long bytes) {
+        mMaxPooledBytes = bytes;
+        trim();
+        return this;
+    }
+
+    /**
+     * Get a buffer of at least the given size, to be given back with release().
+     *
+     * @param minSize the minimum size of the buffer, 0 if unknown
+     * @return the buffer
+     */
+    synchronized public byte[] acquire(int minSize) {
+        mAcquireCount++;
+        int best = -1;
+        for (int i = 0; i < mBuffers.size(); i++) {
+            int length = mBuffers.get(i).length;
+            if (length >= minSize && (best == -1 || length < mBuffers.get(best).length)) {
+                best = i;
+            }
+        }
+        if (best != -1) {
+            byte[] buffer = mBuffers.remove(best);
+            mPooledBytes -= buffer.length;
+            return buffer;
+        }
+        int size = Math.max(minSize, DEFAULT_BUFFER_SIZE);
+        mAllocationCount++;
+        mAllocatedBytes += size;
+        return new byte[size];
+    }
+
+    /**
+     * Get a buffer larger than the given one, holding its first bytes. The given buffer is released.
+     *
+     * @param buffer the full buffer
+     * @param used the number of bytes to keep
+     * @return the larger buffer
+     */
+    public byte[] grow(final byte[] buffer, int used) {
+        byte[] larger = acquire(buffer.length * 2);
+        System.arraycopy(buffer, 0, larger, 0, used);
+        release(buffer);
+        return larger;
+    }
+
+    /**
+     * Give back a buffer obtained by acquire(), which must not be used anymore.
+     *
+     * @param buffer the buffer
+     */
+    synchronized public void release(final byte[] buffer) {
+        mBuffers.add(buffer);
+        mPooledBytes += buffer.length;
+        trim();
+    }
+
+    /**
+     * Drop all the pooled buffers.
+     *
+     * @return the number of bytes dropped
+     */
+    synchronized public long clear() {
+        long dropped = mPooledBytes;
+        mBuffers.clear();
+        mPooledBytes = 0;
+        return dropped;
+    }
+
+    /**
+     * @return the number of buffers handed out
+     */
+    synchronized public long getAcquireCount() {
+        return mAcquireCount;
+    }
+
+    /**
+     * @return the number of buffers allocated, because none of the pooled ones fitted
+     */
+    synchronized public long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    /**
+     * @return the number of bytes of the buffers allocated
+     */
+    synchronized public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * @return the number of bytes of the pooled buffers
+     */
+    synchronized public long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    @Override
+    synchronized public String toString() {
+        return "acquired=" + mAcquireCount + " allocated=" + mAllocationCount + "/" + mAllocatedBytes
+                + "B pooled=" + mBuffers.size() + "/" + mPooledBytes + "B";
+    }
+
+    /**
+     * Drop the smallest buffers, until the pool fits its limits.
+     */
+    private void trim() {
+        while (!mBuffers.isEmpty() && (mBuffers.size() > mMaxBuffers || mPooledBytes > mMaxPooledBytes)) {
+            int smallest = 0;
+            for (int i = 1; i < mBuffers.size(); i++) {
+                if (mBuffers.get(i).length < mBuffers.get(smallest).length) {
+                    smallest = i;
+                }
+            }
+            mPooledBytes -= mBuffers.remove(smallest).length;
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package to.carleva.soundcloud.remote;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import to.carleva.soundcloud.archive.ArchiveSaveException;
 
 /**
@@ -11,7 +16,21 @@ public class Configuration {
 	
 	boolean mCacheDataEnabled = true;
 	boolean mStopOnNoConnection = true;
-	String mApiHostingServer = "http://api.soundcloud.com";
+	List<String> mApiHostingServers = Collections.singletonList("http://api.soundcloud.com");
+	long mUpdatePeriodMillis = 60 * 1000;
+	File mCacheDirectory = null;
+	boolean mAsyncFetchEnabled = false;
+	boolean mIncrementalSyncEnabled = false;
+	String mFavoritesChangesResource = null;
+	int mBackgroundUpdateRatio = 4;
+	boolean mAllOrNothingUpdates = false;
+	boolean mArchiveCompressionEnabled = false;
+	long mCacheSizeBudgetBytes = 0;
+	boolean mRawCacheEnabled = false;
+	boolean mCounterHistoryEnabled = false;
+	boolean mHedgingEnabled = false;
+	double mHedgingBudgetPercent = 5;
+	long mCycleDeadlineMillis = 60 * 1000;
 	
     /**
      * @returns true if this configuration will allow caching of data on disk. Default is true.
@@ -50,10 +69,10 @@ public class Configuration {
 	}
 	
     /**
-     * @returns the hostname of the target server for this configuration
+     * @returns the hostname of the target server for this configuration, the first one if several are set
      */
 	public String getApiHostingServer() {
-		return mApiHostingServer;
+		return mApiHostingServers.get(0);
 	}
 	
 	/**
@@ -62,7 +81,293 @@ public class Configuration {
      * @param apiHostingServer the url of the hostname
      */
 	public Configuration setApiHostingServer(String apiHostingServer) {
-		mApiHostingServer = apiHostingServer;
+		mApiHostingServers = Collections.singletonList(apiHostingServer);
+		return this;
+	}
+	
+    /**
+     * @returns the hostnames of the target servers for this configuration
+     */
+	public List<String> getApiHostingServers() {
+		return mApiHostingServers;
+	}
+	
+	/**
+     * Sets the hostnames of equivalent servers of the service provider, e.g. regional proxies. Calls are 
+     * routed to the server with the best latency and error rate, and retried on the next ones when it 
+     * fails; servers which failed are probed in the background until they answer again.
+     * 
+     * @param apiHostingServers the urls of the hostnames, in order of preference until their latencies 
+     * are known
+     */
+	public Configuration setApiHostingServers(List<String> apiHostingServers) {
+		if (apiHostingServers.isEmpty()) {
+			throw new IllegalArgumentException("at least one server is required");
+		}
+		mApiHostingServers = Collections.unmodifiableList(new ArrayList<String>(apiHostingServers));
+		return this;
+	}
+	
+    /**
+     * @returns the time between the end of an update cycle and the beginning of the next one,
+     * in milliseconds. Default is 60 seconds.
+     */
+	public long getUpdatePeriodMillis() {
+		return mUpdatePeriodMillis;
+	}
+	
+    /**
+     * Sets the time between the end of an update cycle and the beginning of the next one. 
+     * This is also the back-off period after an error. Default is 60 seconds.
+     * 
+     * @param periodMillis the update period, in milliseconds
+     */
+	public Configuration setUpdatePeriodMillis(long periodMillis) {
+		mUpdatePeriodMillis = periodMillis;
+		return this;
+	}
+	
+    /**
+     * @returns the directory where cached data is saved, null if the app files directory is used. 
+     * Default is null.
+     */
+	public File getCacheDirectory() {
+		return mCacheDirectory;
+	}
+	
+    /**
+     * Sets the directory where cached data is saved. Default is null, meaning the app files directory.
+     * 
+     * @param cacheDirectory an existing directory, or null to use the app files directory
+     */
+	public Configuration setCacheDirectory(File cacheDirectory) {
+		mCacheDirectory = cacheDirectory;
+		return this;
+	}
+	
+    /**
+     * @returns true if update cycles run on the non-blocking fetch engine. Default is false.
+     */
+	public boolean getAsyncFetchEnabled() {
+		return mAsyncFetchEnabled;
+	}
+	
+    /**
+     * Sets if update cycles run on the non-blocking fetch engine, where no thread waits on network
+     * I/O. This applies to http servers only, https servers keep the blocking path. Default is false.
+     * 
+     * @param enabled true if the non-blocking fetch engine will be used
+     */
+	public Configuration setAsyncFetchEnabled(boolean enabled) {
+		mAsyncFetchEnabled = enabled;
+		return this;
+	}
+	
+    /**
+     * @returns true if favorites are synchronized incrementally, from the favorites activity feed. 
+     * Default is false.
+     */
+	public boolean getIncrementalSyncEnabled() {
+		return mIncrementalSyncEnabled;
+	}
+	
+    /**
+     * Sets if favorites are synchronized incrementally: once a full list has been retrieved, only the 
+     * changes since the last cycle are read from the activity feed, and applied to the cached list. 
+     * A full resync is performed when the feed cursor expires. Default is false.
+     * 
+     * @param enabled true if favorites will be synchronized incrementally
+     */
+	public Configuration setIncrementalSyncEnabled(boolean enabled) {
+		mIncrementalSyncEnabled = enabled;
+		return this;
+	}
+	
+    /**
+     * @returns the resource the favorites activity feed is read from, null for the built-in one. 
+     * Default is null.
+     */
+	public String getFavoritesChangesResource() {
+		return mFavoritesChangesResource;
+	}
+	
+    /**
+     * Sets the resource the favorites activity feed is read from, on the hosting servers, when favorites 
+     * are synchronized incrementally. The built-in resource, "/users/{id}/favorites/changes.json", and 
+     * the format of its pages, see FavoritesChanges, are assumed by this client, they are not part of 
+     * the documented SoundCloud API: set the resource the feed is actually served on. Default is null, 
+     * for the built-in one.
+     * 
+     * @param resource the path and query of the feed, null for the built-in one
+     */
+	public Configuration setFavoritesChangesResource(final String resource) {
+		mFavoritesChangesResource = resource;
+		return this;
+	}
+	
+    /**
+     * @returns the number of update cycles background streams are refreshed once every. Default is 4.
+     */
+	public int getBackgroundUpdateRatio() {
+		return mBackgroundUpdateRatio;
+	}
+	
+    /**
+     * Sets how often streams hinted as background are refreshed: once every the given number of update 
+     * cycles. Foreground streams are refreshed at every cycle. Default is 4.
+     * 
+     * @param cycles the number of cycles, 1 to refresh background streams at every cycle
+     */
+	public Configuration setBackgroundUpdateRatio(int cycles) {
+		mBackgroundUpdateRatio = cycles;
+		return this;
+	}
+	
+    /**
+     * @returns true if observers are notified only once all update streams completed. Default is false.
+     */
+	public boolean getAllOrNothingUpdates() {
+		return mAllOrNothingUpdates;
+	}
+	
+    /**
+     * Sets if update streams are published, cached and notified all together, once all of them 
+     * completed, so that observers never see data of different cycles. When disabled, each stream is 
+     * notified as soon as it completes, and restored from cache independently. Default is false.
+     * 
+     * @param enabled true if updates will be all-or-nothing
+     */
+	public Configuration setAllOrNothingUpdates(boolean enabled) {
+		mAllOrNothingUpdates = enabled;
 		return this;
 	}	
+    /**
+     * @returns true if data cached on disk is compressed. Default is false.
+     */
+	public boolean getArchiveCompressionEnabled() {
+		return mArchiveCompressionEnabled;
+	}
+	
+    /**
+     * Sets if data cached on disk is compressed, trading CPU time on archive and restore for disk 
+     * space. Default is false.
+     * 
+     * @param enabled true if cached data will be compressed
+     */
+	public Configuration setArchiveCompressionEnabled(boolean enabled) {
+		mArchiveCompressionEnabled = enabled;
+		return this;
+	}
+	
+    /**
+     * @returns the maximum total size of the data cached on disk, in bytes, 0 if unlimited. Default is 0.
+     */
+	public long getCacheSizeBudgetBytes() {
+		return mCacheSizeBudgetBytes;
+	}
+	
+    /**
+     * Sets the maximum total size of the data cached on disk, in bytes. When exceeded, the least recently 
+     * saved or restored data is evicted. Default is 0, unlimited.
+     * 
+     * @param bytes the cache size budget, 0 for no limit
+     */
+	public Configuration setCacheSizeBudgetBytes(long bytes) {
+		mCacheSizeBudgetBytes = bytes;
+		return this;
+	}
+	
+    /**
+     * @returns true if responses are cached on disk as received. Default is false.
+     */
+	public boolean getRawCacheEnabled() {
+		return mRawCacheEnabled;
+	}
+	
+    /**
+     * Sets if responses are cached on disk as received: the response body is written to the cache file 
+     * while it is downloaded, and decoded again on restore, instead of the decoded data being serialized 
+     * once more. This applies to the blocking fetch path, and to full favorites responses only: data 
+     * resulting from incremental changes is cached as decoded objects. Default is false.
+     * 
+     * @param enabled true if responses will be cached as received
+     */
+	public Configuration setRawCacheEnabled(boolean enabled) {
+		mRawCacheEnabled = enabled;
+		return this;
+	}
+	
+    /**
+     * @returns true if the history of the favorites counts is recorded on disk. Default is false.
+     */
+	public boolean getCounterHistoryEnabled() {
+		return mCounterHistoryEnabled;
+	}
+	
+    /**
+     * Sets if the playback and favoritings counts of the favorites are recorded on disk at each update, 
+     * see DataProvider.getCounterHistory(). This requires caching of data on disk. The history is bounded 
+     * by its retention, not by the cache size budget, see setCacheSizeBudgetBytes(). Default is false.
+     * 
+     * @param enabled true if the counts history will be recorded
+     */
+	public Configuration setCounterHistoryEnabled(boolean enabled) {
+		mCounterHistoryEnabled = enabled;
+		return this;
+	}
+	
+    /**
+     * @returns true if slow calls are hedged with a duplicate call. Default is false.
+     */
+	public boolean getHedgingEnabled() {
+		return mHedgingEnabled;
+	}
+	
+    /**
+     * Sets if a call which did not complete within the 95th percentile of the latencies of its stream 
+     * is duplicated, the first response being used and the other call cancelled, see RequestHedger. 
+     * Calls whose response is cached as received are not hedged. Default is false.
+     * 
+     * @param enabled true if slow calls will be hedged
+     */
+	public Configuration setHedgingEnabled(boolean enabled) {
+		mHedgingEnabled = enabled;
+		return this;
+	}
+	
+    /**
+     * @returns the maximum extra load of the hedges, as a percentage of the calls. Default is 5.
+     */
+	public double getHedgingBudgetPercent() {
+		return mHedgingBudgetPercent;
+	}
+	
+    /**
+     * Sets the maximum extra load of the hedges, as a percentage of the calls. Default is 5.
+     * 
+     * @param percent the percentage of the calls which may be hedged
+     */
+	public Configuration setHedgingBudgetPercent(double percent) {
+		mHedgingBudgetPercent = percent;
+		return this;
+	}
+	
+    /**
+     * @returns the maximum duration of an update cycle in milliseconds, 0 for none. Default is 60 seconds.
+     */
+	public long getCycleDeadlineMillis() {
+		return mCycleDeadlineMillis;
+	}
+	
+    /**
+     * Sets the maximum duration of an update cycle. HTTP calls, decoding and restoring from the disk 
+     * cache give up once it elapsed, the cycle is aborted, observers are notified with an UPDATE_TIMEOUT 
+     * error and served the data held in memory or in the disk cache. Default is 60 seconds.
+     * 
+     * @param deadlineMillis the maximum duration in milliseconds, 0 for none
+     */
+	public Configuration setCycleDeadlineMillis(long deadlineMillis) {
+		mCycleDeadlineMillis = deadlineMillis;
+		return this;
+	}
 }
\ No newline at end of file
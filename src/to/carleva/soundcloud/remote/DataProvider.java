@@ -1,19 +1,28 @@
 package to.carleva.soundcloud.remote;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.http.HttpException;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -22,12 +31,32 @@ import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
+import to.carleva.soundcloud.analytics.FavoritesAnalytics;
 import to.carleva.soundcloud.archive.Archiver;
 import to.carleva.soundcloud.archive.ArchiveException;
+import to.carleva.soundcloud.archive.ArchivePolicy;
 import to.carleva.soundcloud.archive.ArchiveRestoreException;
 import to.carleva.soundcloud.archive.ArchiveSaveException;
+import to.carleva.soundcloud.archive.CounterHistory;
+import to.carleva.soundcloud.archive.WriteBehindQueue;
+import to.carleva.soundcloud.export.FavoritesExporter;
+import to.carleva.soundcloud.memory.MemoryGovernor;
+import to.carleva.soundcloud.paging.ArchivePageSource;
+import to.carleva.soundcloud.paging.JsonPageSource;
+import to.carleva.soundcloud.paging.ListPageSource;
+import to.carleva.soundcloud.paging.PageSource;
+import to.carleva.soundcloud.remote.async.AsyncFetchEngine;
+import to.carleva.soundcloud.remote.async.AsyncHttpClient;
+import to.carleva.soundcloud.remote.async.Promise;
+import to.carleva.soundcloud.stats.CycleEventLog;
+import to.carleva.soundcloud.stats.Span;
+import to.carleva.soundcloud.stats.StatsRecorder;
+import to.carleva.soundcloud.stats.UpdateStats;
 import to.carleva.soundcloud.types.Favorite;
+import to.carleva.soundcloud.types.FavoritesChanges;
+import to.carleva.soundcloud.types.FavoritesDecoder;
 import to.carleva.soundcloud.types.User;
 
 
@@ -39,12 +68,19 @@ import to.carleva.soundcloud.types.User;
  * of update streams (currently user profile and user favorites). Suppled data is retrieved by means of the
  * SoundCloud public API.
  * 
- * Please note that, as per requirements, DataProvider takes care of completing updates for all streams
- * supported, before notifying its observers.
+ * Each update stream is fetched, cached and dispatched to its observers as soon as it completes, 
+ * independently of the other streams. When all-or-nothing updates are enabled in the Configuration, 
+ * DataProvider instead takes care of completing updates for all streams supported, before notifying 
+ * its observers, so that observers never see data of different cycles.
  * 
  * DataProvider implements a caching strategy, to allow fast-recovery of previously retrieve data. This is
  * used to supply observer with the most recent version of the data, when no updated content is already
- * available from the online back-end.
+ * available from the online back-end. Data is archived write-behind, by a background writer, so that disk 
+ * latency never delays observer notifications.
+ * 
+ * When several servers are set in the Configuration, e.g. regional proxies, each call is routed to the 
+ * server with the best latency and error rate, and retried on the next ones within the same cycle if it 
+ * fails; servers which failed are probed in the background, see getHostSelector().
  * 
  * DataProvider listens for connectivity status of the host device, and implements a logic which stops its
  * update loop when no connectivity is available, and immediately resume it when connectivity is restored.  
@@ -53,6 +89,33 @@ import to.carleva.soundcloud.types.User;
  * its update tasks. Current DataProvider behavior is, on error, to allow a back-off period and then continue 
  * with its regular update cycle.
  * 
+ * A single update loop runs at any time, whatever the sequence of start() and stop() calls: stop() wakes 
+ * the loop and cancels its HTTP calls in flight, a start() following shortly resumes the same loop. 
+ * An update cycle can also be requested right away, see refreshNow().
+ * 
+ * DataProvider times every phase of its update cycles (connect, download, parse, archiving and 
+ * dispatching to the main thread) and records response sizes and item counts, see getStats(). 
+ * The time to first content of each stream, from start() to its first dispatch, is recorded too. 
+ * The most recent phases can also be kept as single events, see getEventLog() and dumpEventLog().
+ * 
+ * When enabled in the Configuration, update cycles run on a non-blocking fetch engine: fetch, decode 
+ * and archive stages are chained on a small shared pool, and no thread waits on network I/O.
+ * 
+ * Clients can hint the priority of each update stream, see setPriorityHint(): foreground streams are 
+ * fetched, parsed and dispatched first, background streams are refreshed less often.
+ * 
+ * Each update cycle has a deadline, set in the Configuration, which its HTTP calls, decoding and restores 
+ * from the disk cache give up at: a cycle which did not complete in time is aborted, observers are 
+ * notified with an UPDATE_TIMEOUT error and served the data held in memory, or in the disk cache.
+ * 
+ * When enabled in the Configuration, favorites are synchronized incrementally: the activity feed is read 
+ * from a persisted cursor, and only the changes are applied to the current list, so that steady state 
+ * cycles cost is proportional to the number of changes, not to the library size. A full resync is 
+ * performed when no cursor is available, when the cursor expired, or when the changes span more than 
+ * one page. A server whose activity feed answers with an error, or with a page which cannot be parsed, 
+ * is synchronized in full from then on. The feed resource and its format are assumed, not documented 
+ * by SoundCloud, see FavoritesChanges: the resource can be set in the Configuration.
+ * 
  * Note that DataProvider will always notify its observer on the main thread. The class is entirely 
  * thread safe.
  * 
@@ -84,9 +147,14 @@ public class DataProvider {
     
     /**
      * The user favorites data updates observer interface.
+     * 
+     * Favorites are handed as pages, for a PagedList: once archived, their pages are read from the disk 
+     * cache, see PageSource.isInMemory(), and must be loaded off the main thread. The pages of a source 
+     * stay readable until the next update is notified, observers are expected to move to the new source 
+     * then.
      */
     public interface FavoritesUpdateObserver extends UpdateObserver {
-        void onFavoritesUpdate(final List<Favorite> favorites);
+        void onFavoritesUpdate(final PageSource<Favorite> favorites);
     }
     
     /**
@@ -96,7 +164,122 @@ public class DataProvider {
         NO_INTERNET_CONNECTION,
         UNABLE_TO_CONNECT,
         DATA_PARSING_ERROR,
-        INTERNAL_ERROR
+        INTERNAL_ERROR,
+        UPDATE_TIMEOUT
+    }
+    
+    /**
+     * Enumeration for the update streams supplied by DataProvider.
+     */
+    public enum Stream  {
+        USER,
+        FAVORITES
+    }
+    
+    /**
+     * Enumeration for the priority hints of the update streams, see setPriorityHint().
+     */
+    public enum Priority    {
+        FOREGROUND,
+        BACKGROUND
+    }
+    
+    /**
+     * The update cycles statistics listener interface, allowing statistics to be exported.
+     * 
+     * Note that, unlike observers, listeners are invoked on the update loop thread.
+     */
+    public interface StatsListener  {
+        void onCycleCompleted(final UpdateStats stats);
+    }
+    
+    /**
+     * The freshness of the data of an update stream: where the data last notified comes from, and 
+     * when it was fetched from the network, allowing the UI to mark old data.
+     */
+    public static class Freshness  {
+        
+        /**
+         * Enumeration for the tiers data is served from.
+         */
+        public enum Source  {
+            // fetched from the remote server by the last cycle
+            NETWORK,
+            // kept in memory from a previous cycle, or restore
+            MEMORY,
+            // restored from the disk cache
+            DISK
+        }
+        
+        private final Source mSource;
+        private final long mFetchTimeMillis;
+        
+        Freshness(final Source source, long fetchTimeMillis) {
+            mSource = source;
+            mFetchTimeMillis = fetchTimeMillis;
+        }
+        
+        /**
+         * @return the tier the data was served from
+         */
+        public Source getSource() {
+            return mSource;
+        }
+        
+        /**
+         * @return the time the data was fetched from the network, in milliseconds since the epoch; for 
+         * data restored from the disk cache, the time it was archived
+         */
+        public long getFetchTimeMillis() {
+            return mFetchTimeMillis;
+        }
+        
+        /**
+         * @return the time elapsed since the data was fetched from the network, in milliseconds
+         */
+        public long getAgeMillis() {
+            return Math.max(0, System.currentTimeMillis() - mFetchTimeMillis);
+        }
+        
+        @Override
+        public String toString() {
+            return mSource + " age=" + getAgeMillis() + "ms";
+        }
+    }
+    
+    /**
+     * The result of a favorites synchronization: the new favorites list, the activity feed cursor
+     * the next synchronization starts from, and the changes applied, if synchronized incrementally.
+     */
+    private static class FavoritesSync {
+        
+        private final List<Favorite> mFavorites;
+        private final String mCursor;
+        private final FavoritesChanges mChanges;
+        
+        FavoritesSync(final List<Favorite> favorites, final String cursor) {
+            this(favorites, cursor, null);
+        }
+        
+        FavoritesSync(final List<Favorite> favorites, final String cursor, final FavoritesChanges changes) {
+            mFavorites = favorites;
+            mCursor = cursor;
+            mChanges = changes;
+        }
+    }
+    
+    /**
+     * A response cached as received, waiting for the data decoded from it to be archived.
+     */
+    private static class PendingRaw {
+        
+        private final Object mData;
+        private final Archiver.RawWriter mWriter;
+        
+        PendingRaw(final Object data, final Archiver.RawWriter writer) {
+            mData = data;
+            mWriter = writer;
+        }
     }
     
     public static final DataProvider INSTANCE = new DataProvider();
@@ -105,18 +288,115 @@ public class DataProvider {
         = "/users/reaand.json?client_id=b6d489be193bd1fcb3a22d76d6e5ce0f";
     private static final String SERVICE_FAVORITES_RESOURCE 
         = "/users/reaand/favorites.json?client_id=b6d489be193bd1fcb3a22d76d6e5ce0f";
-    private static final int UPDATE_PERIOD_SECS = 60;
+    // assumed, not a documented SoundCloud resource, see Configuration.setFavoritesChangesResource()
+    private static final String SERVICE_FAVORITES_CHANGES_RESOURCE 
+        = "/users/reaand/favorites/changes.json?client_id=b6d489be193bd1fcb3a22d76d6e5ce0f";
+    // the status the activity feed answers with, to an expired cursor
+    private static final int HTTP_GONE = 410;
+    private static final String FAVORITES_CURSOR_TAG = "favorites_cursor";
+    private static final String FAVORITES_ANALYTICS_TAG = "favorites_analytics";
+    // subdirectory of the cache directory holding the counts history segments
+    private static final String HISTORY_DIRECTORY = "history";
+    private static final String HISTORY_WRITE_KEY = "HISTORY";
+    // responses cached as received, see Configuration.setRawCacheEnabled()
+    private static final String USER_RAW_TAG = "user.json";
+    private static final String FAVORITES_RAW_TAG = "favorites.json";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // favorites are archived in shards of this many items, restored in parallel
+    private static final int FAVORITES_SHARD_SIZE = 500;
 	private static final String TAG = "DataProvider";
+    // maximum duration of a single HTTP exchange, and of a whole cycle, on the async fetch engine
+    private static final long ASYNC_FETCH_TIMEOUT_MILLIS = 35 * 1000;
+    private static final long ASYNC_CYCLE_TIMEOUT_MILLIS = 2 * ASYNC_FETCH_TIMEOUT_MILLIS;
+    // the deadline outside of update cycles
+    private static final Deadline NO_DEADLINE = new Deadline(0);
+    // maximum time release() waits for pending writes to be archived
+    private static final long WRITE_FLUSH_TIMEOUT_MILLIS = 5 * 1000;
+    // rough size of a decoded favorite, strings excluded, used to estimate the memory freed
+    private static final int FAVORITE_BASE_SIZE_BYTES = 96;
+    // rough size of an entry of the favorites decoder reuse index
+    private static final int DECODER_ENTRY_SIZE_BYTES = 64;
     
     private final Set<UserUpdateObserver> userObservers = new HashSet<UserUpdateObserver>();
     private final Set<FavoritesUpdateObserver> favoritesObservers = new HashSet<FavoritesUpdateObserver>();
+    private final Set<StatsListener> statsListeners = new HashSet<StatsListener>();
+    private final StatsRecorder mStats = new StatsRecorder();
+    private final WriteBehindQueue mWriteQueue = new WriteBehindQueue("DataProvider-writer", 
+            new WriteBehindQueue.Listener() {
+        @Override
+        public void onWritten(final String key, long lagNanos) {
+            if (!HISTORY_WRITE_KEY.equals(key)) {
+                mStats.recordSpan(Stream.valueOf(key), Span.SAVE_LAG, lagNanos);
+            }
+        }
+        
+        @Override
+        public void onFailed(final String key, final ArchiveSaveException e) {
+            if (HISTORY_WRITE_KEY.equals(key)) {
+                // counts are recorded again by the next update, the cached data is unaffected
+                Log.e(TAG, "Unable to record the favorites counts history");
+                return;
+            }
+            Log.e(TAG, "INTERNAL_ERROR error being raised");
+            notifyError(Error.INTERNAL_ERROR);
+        }
+    });
     private final Object mNetworkMonitorOject = new Object();
     private boolean mIsRunning;
     private boolean mNetworkIsAvailable = true;
     private User mUser;
+    // set by setFavorites(), which pins the view of the archive held, if any
     private List<Favorite> mFavorites;
+    private String mFavoritesCursor;
+    // views of the archive handed to observers, pinned until the next update is dispatched (main thread only)
+    private final List<List<Favorite>> mObservedFavorites = new ArrayList<List<Favorite>>();
+    // freshness of the data in memory, and of the data last dispatched to observers (main thread only)
+    private final Map<Stream, Freshness> mFreshness = new EnumMap<Stream, Freshness>(Stream.class);
+    private final Map<Stream, Freshness> mDispatchedFreshness = new EnumMap<Stream, Freshness>(Stream.class);
+    // responses cached as received, by stream, committed by saveState() with the data decoded from them
+    private final Map<Stream, PendingRaw> mPendingRaw = new EnumMap<Stream, PendingRaw>(Stream.class);
+    // true if the favorites were released under memory pressure, and not rebuilt yet
+    private boolean mFavoritesReleased;
+    // true if the analytics account for the favorites in memory, or for a list these were derived from
+    private boolean mAnalyticsSynced;
+    private final Map<Stream, Priority> mPriorities = new EnumMap<Stream, Priority>(Stream.class);
+    // number of cycles each background stream was skipped for
+    private final Map<Stream, Integer> mSkippedCycles = new EnumMap<Stream, Integer>(Stream.class);
+    private final Object mCycleMonitor = new Object();
+    private boolean mCycleRequested;
+    private boolean mCycleInFlight;
+    // the single update loop thread, null when no loop runs
+    private Thread mLoopThread;
+    // incremented by stop(), allowing the loop to tell cancelled cycles from failed ones
+    private long mStopCount;
+    // blocking HTTP calls in flight, cancelled by stop()
+    private final Set<HttpUtils.Trace> mCallsInFlight = 
+            Collections.newSetFromMap(new ConcurrentHashMap<HttpUtils.Trace, Boolean>());
+    // deadline of the cycle in flight, which its HTTP calls, decoding and restores give up at
+    private volatile Deadline mCycleDeadline = NO_DEADLINE;
+    // start time, and streams whose first content was not dispatched yet since start
+    private long mStartNanos;
+    private final Set<Stream> mFirstContentPending = EnumSet.noneOf(Stream.class);
     private Context mContext;
     private Configuration mConfiguration;
+    private AsyncFetchEngine mFetchEngine;
+    // kept across init() calls, so that archive access times and counters are preserved
+    private final ArchivePolicy mArchivePolicy = new ArchivePolicy();
+    private final MemoryGovernor mMemoryGovernor = new MemoryGovernor();
+    // response bodies are read into reusable buffers
+    private final BufferPool mBufferPool = new BufferPool();
+    // reuses the favorites of the previous cycle whose JSON did not change
+    private final FavoritesDecoder mFavoritesDecoder = new FavoritesDecoder();
+    // aggregates over the favorites, updated with each published list
+    private final FavoritesAnalytics mAnalytics = new FavoritesAnalytics();
+    // history of the favorites counts, in the current cache directory
+    private CounterHistory mHistory;
+    // duplicates slow calls, when enabled
+    private final RequestHedger mHedger = new RequestHedger();
+    // routes calls across the configured servers, by latency and error rate
+    private final HostSelector mHosts = new HostSelector().setProbeResource(SERVICE_USER_RESOURCE);
+    // servers whose activity feed failed, favorites are synchronized in full from them
+    private final Set<String> mFullSyncServers = Collections.synchronizedSet(new HashSet<String>());
     
     /**
      * Initialize the DataProvider. This must be invoked before start.
@@ -125,8 +405,22 @@ public class DataProvider {
      * @param configuration a Configuration instance that wraps settings for DataProvider
      */
     synchronized public void init(final Context context, Configuration configuration)  {
+    	if (mConfiguration != null && (!mConfiguration.getApiHostingServers().equals(configuration.getApiHostingServers())
+    	        || !same(mConfiguration.getCacheDirectory(), configuration.getCacheDirectory()))) {
+    	    // data in memory belongs to the previous server, or disk cache
+    	    clearMemory();
+    	}
+    	if (mContext != null) {
+    	    mContext.unregisterComponentCallbacks(mMemoryGovernor);
+    	}
     	mContext = context;
     	mConfiguration = configuration;
+    	// trim-memory signals are received by the governor, which releases the data held in memory
+    	context.registerComponentCallbacks(mMemoryGovernor);
+    	mArchivePolicy.setCompressionEnabled(configuration.getArchiveCompressionEnabled())
+    	    .setSizeBudgetBytes(configuration.getCacheSizeBudgetBytes());
+    	mHedger.setBudgetPercent(configuration.getHedgingBudgetPercent());
+    	mHosts.setHosts(configuration.getApiHostingServers());
     	if (mConfiguration.getStopOnNoConnection()) {
     		context.registerReceiver(mConnReceiver, 
                 new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
@@ -136,21 +430,46 @@ public class DataProvider {
     /**
      * Release DataProvider resources. This allows cleanup on termination or on other app life-cycle points.
      * 
+     * Data still waiting to be archived is flushed to the disk cache first.
      */
-    synchronized public void release() {
+    public void release() {
     	stop();
-    	mContext.unregisterReceiver(mConnReceiver);
-    	mContext = null;
-        mConnReceiver = null;
+    	// the lock is not held while flushing, the writer may need it to notify errors
+    	flushWrites();
+    	synchronized (this) {
+    	    if (mConfiguration.getStopOnNoConnection()) {
+    	        mContext.unregisterReceiver(mConnReceiver);
+    	    }
+    	    if (mFetchEngine != null) {
+    	        mFetchEngine.shutdown();
+    	        mFetchEngine = null;
+    	    }
+    	    mContext.unregisterComponentCallbacks(mMemoryGovernor);
+    	    mContext = null;
+    	    for (PendingRaw pending : mPendingRaw.values()) {
+    	        pending.mWriter.abort();
+    	    }
+    	    mPendingRaw.clear();
+    	    if (mHistory != null) {
+    	        mHistory.close();
+    	    }
+    	    mHedger.shutdown();
+    	    mHosts.shutdown();
+    	}
     }
     
     /**
      * Start the update async loop, which will result in observers being regularly notified with 
-     * updated data (or errors).
+     * updated data (or errors). If the loop of a previous start() is still winding down, it is resumed 
+     * instead of starting a second one.
      */
     synchronized public void start()    {
         mIsRunning = true;
-        startUpdates();
+        mStartNanos = System.nanoTime();
+        mFirstContentPending.addAll(EnumSet.allOf(Stream.class));
+        if (mLoopThread == null) {
+            startUpdates();
+        }
     }
     
     /**
@@ -163,10 +482,56 @@ public class DataProvider {
     }
     
     /**
-     * Stop the update async loop.
+     * Stop the update async loop. The loop is woken from any wait, and its HTTP calls in flight are 
+     * cancelled, so that it terminates promptly. Cancelled cycles are not notified as errors.
      */
     synchronized public void stop() {
         mIsRunning = false;
+        mStopCount++;
+        if (mLoopThread != null) {
+            mLoopThread.interrupt();
+        }
+        cancelCallsInFlight();
+    }
+    
+    /**
+     * Cancel the HTTP calls in flight, blocking and asynchronous ones.
+     */
+    synchronized private void cancelCallsInFlight() {
+        for (HttpUtils.Trace trace : mCallsInFlight) {
+            trace.cancel();
+        }
+        if (mFetchEngine != null) {
+            mFetchEngine.cancelAll();
+        }
+    }
+    
+    /**
+     * @throws DeadlineExceededException if the given deadline was reached
+     */
+    private static void checkDeadline(final Deadline deadline) throws DeadlineExceededException {
+        if (deadline.isExpired()) {
+            throw new DeadlineExceededException();
+        }
+    }
+    
+    /**
+     * Request an update cycle right away, e.g. on a pull-to-refresh gesture, instead of waiting for the 
+     * update period (or for an error back-off period) to elapse.
+     * 
+     * If a cycle is already in flight, the request is merged with it: observers are notified when it 
+     * completes, and no further cycle is run. Nothing happens if DataProvider is not running.
+     */
+    public void refreshNow()    {
+        if (!isRunning()) {
+            return;
+        }
+        synchronized (mCycleMonitor) {
+            if (!mCycleInFlight) {
+                mCycleRequested = true;
+                mCycleMonitor.notifyAll();
+            }
+        }
     }
     
     /**
@@ -179,6 +544,7 @@ public class DataProvider {
     synchronized public void subscribeToUserUpdates(final UserUpdateObserver observer) {
         if (mUser != null)  {
             // if available, most recent user data are notified right away
+            mDispatchedFreshness.put(Stream.USER, mFreshness.get(Stream.USER));
             observer.onUserUpdate(mUser);
         }
         userObservers.add(observer);
@@ -193,8 +559,12 @@ public class DataProvider {
      */
     synchronized public void subscribeToFavoritesUpdates(final FavoritesUpdateObserver observer) {
         if (mFavorites != null) {
-            // if available, most recent favorites data are notified right away
-            observer.onFavoritesUpdate(mFavorites);
+            // if available, most recent favorites data are notified right away, the other observers may 
+            // still read the pages dispatched last
+            mDispatchedFreshness.put(Stream.FAVORITES, mFreshness.get(Stream.FAVORITES));
+            retainArchived(mFavorites);
+            mObservedFavorites.add(mFavorites);
+            observer.onFavoritesUpdate(getFavoritesPages(mFavorites));
         }
         favoritesObservers.add(observer);
     }
@@ -217,64 +587,361 @@ public class DataProvider {
         favoritesObservers.remove(observer);
     }
     
+    /**
+     * Subscribe the given statistics listener, which will be invoked at the end of each update cycle.
+     * 
+     * Note that listeners are invoked on the update loop thread.
+     * 
+     * @param listener an update cycles statistics listener
+     */
+    synchronized public void subscribeToStats(final StatsListener listener) {
+        statsListeners.add(listener);
+    }
+    
+    /**
+     * Unsubscribe the given statistics listener.
+     * 
+     * @param listener an update cycles statistics listener
+     */
+    synchronized public void unsubscribeToStats(final StatsListener listener) {
+        statsListeners.remove(listener);
+    }
+    
+    /**
+     * Getter for the update cycles statistics.
+     * 
+     * @return a snapshot of the statistics collected since the app started.
+     */
+    public UpdateStats getStats()   {
+        return mStats.snapshot();
+    }
+    
+    /**
+     * Getter for the freshness of the data last notified to observers of the given stream, so that 
+     * old data can be marked as such. This is meant to be invoked on the main thread, e.g. by observers.
+     * 
+     * @param stream the update stream
+     * @return the freshness of the data last notified, null if none was notified
+     */
+    public Freshness getFreshness(final Stream stream)  {
+        return mDispatchedFreshness.get(stream);
+    }
+    
+    /**
+     * Getter for the disk cache policy, set from the Configuration, and its compression and eviction 
+     * counters. The time to restore cached data is recorded in the statistics, see Span.RESTORE_STATE.
+     * 
+     * @return the disk cache policy
+     */
+    public ArchivePolicy getArchivePolicy()    {
+        return mArchivePolicy;
+    }
+    
+    /**
+     * Getter for the memory governor, releasing the data held in memory on trim-memory signals or low 
+     * heap, and counting the memory freed. Further caches (e.g. of the UI) may register to it.
+     * 
+     * @return the memory governor
+     */
+    public MemoryGovernor getMemoryGovernor()  {
+        return mMemoryGovernor;
+    }
+    
+    /**
+     * Getter for the pool of the buffers response bodies are read into, and its allocation counters.
+     * 
+     * @return the buffer pool
+     */
+    public BufferPool getBufferPool()  {
+        return mBufferPool;
+    }
+    
+    /**
+     * Getter for the request hedger, duplicating slow calls when enabled by the Configuration, and its 
+     * counters of issued, won and denied hedges.
+     * 
+     * @return the request hedger
+     */
+    public RequestHedger getRequestHedger()  {
+        return mHedger;
+    }
+    
+    /**
+     * Getter for the selector routing calls across the servers set in the Configuration, and its 
+     * latency, error rate and failover counters.
+     * 
+     * @return the host selector
+     */
+    public HostSelector getHostSelector()  {
+        return mHosts;
+    }
+    
+    /**
+     * Getter for the favorites decoder, and its counters of parsed and reused favorites.
+     * 
+     * @return the favorites decoder
+     */
+    public FavoritesDecoder getFavoritesDecoder()  {
+        return mFavoritesDecoder;
+    }
+    
+    /**
+     * Getter for the favorites analytics: totals, histograms and top lists, kept up to date with each 
+     * update of the favorites.
+     * 
+     * @return the favorites analytics
+     */
+    public FavoritesAnalytics getFavoritesAnalytics()  {
+        return mAnalytics;
+    }
+    
+    /**
+     * Export the cached favorites to the given output stream, streaming them from the disk cache page 
+     * by page, so that the favorites list is never held in memory by the export. The data queued for 
+     * archiving is archived first. This blocks on disk I/O, and must not be run on the main thread.
+     * 
+     * A favorites response cached as received is read as a whole, but only decoded page by page.
+     * 
+     * @param out the output stream, flushed but not closed
+     * @param format the export format
+     * @param listener the listener notified about the export progress, null for none
+     * @return the number of favorites exported, 0 if none are cached
+     * @throws IOException if writing failed, or the calling thread was interrupted
+     * @throws ArchiveRestoreException if the cached favorites could not be read
+     */
+    public int exportFavorites(final OutputStream out, final FavoritesExporter.Format format, 
+            final FavoritesExporter.ProgressListener listener) throws IOException, ArchiveRestoreException {
+        flushWrites();
+        File directory = getCacheDirectory();
+        PageSource<Favorite> source = null;
+        Archiver.Shards<Favorite> shards = Archiver.openSharded("favorites", directory, mArchivePolicy);
+        if (shards != null) {
+            source = new ArchivePageSource<Favorite>(shards);
+        } else {
+            byte[] raw = Archiver.restoreRaw(FAVORITES_RAW_TAG, directory, mArchivePolicy);
+            if (raw != null) {
+                try {
+                    source = new JsonPageSource(raw, raw.length, FAVORITES_SHARD_SIZE);
+                } catch (JSONException e) {
+                    Log.e(TAG, "Invalid cached favorites response: " + e.toString());
+                    throw new ArchiveRestoreException();
+                }
+            }
+        }
+        if (source == null) {
+            return 0;
+        }
+        return new FavoritesExporter(format).setProgressListener(listener).export(source, out);
+    }
+    
+    /**
+     * Getter for the history of the favorites playback and favoritings counts, in the disk cache 
+     * directory, recorded at each update if enabled, see Configuration.setCounterHistoryEnabled(). 
+     * Queries read the disk, and should not be run on the main thread.
+     * 
+     * @return the counts history
+     */
+    synchronized public CounterHistory getCounterHistory()  {
+        File directory = new File(getCacheDirectory(), HISTORY_DIRECTORY);
+        if (mHistory == null || !mHistory.getDirectory().equals(directory)) {
+            if (mHistory != null) {
+                mHistory.close();
+            }
+            mHistory = new CounterHistory(directory);
+        }
+        return mHistory;
+    }
+    
+    /**
+     * Getter for the archiving lag: the time the oldest data still waiting to be archived has been 
+     * waiting for. The lag of each completed write is recorded in the statistics too, see Span.SAVE_LAG.
+     * 
+     * @return the archiving lag, in nanoseconds, 0 if all data was archived
+     */
+    public long getWriteLagNanos()  {
+        return mWriteQueue.getLagNanos();
+    }
+    
+    /**
+     * Getter for the log of the most recent update cycle events, including failed phases. The log is 
+     * disabled by default, enable it to record events.
+     * 
+     * @return the event log
+     */
+    public CycleEventLog getEventLog()  {
+        return mStats.getEventLog();
+    }
+    
+    /**
+     * Write the most recent update cycle events to the given file, for post-mortem analysis.
+     * 
+     * @param file the destination file, overwritten if existing
+     * @throws IOException if the file could not be written
+     */
+    public void dumpEventLog(final File file) throws IOException {
+        mStats.getEventLog().dump(file);
+    }
+    
+    /**
+     * Hint the priority of an update stream, typically following the visibility of the UI presenting it.
+     * 
+     * Foreground streams are fetched, parsed and dispatched before background ones, which are refreshed
+     * once every Configuration.getBackgroundUpdateRatio() cycles only. A stream coming back to the 
+     * foreground after having skipped cycles is refreshed right away. All streams are foreground by default.
+     * 
+     * @param stream the update stream
+     * @param priority the priority of the stream
+     */
+    public void setPriorityHint(final Stream stream, final Priority priority)  {
+        boolean refreshNow;
+        synchronized (this) {
+            mPriorities.put(stream, priority);
+            Integer skipped = mSkippedCycles.get(stream);
+            refreshNow = priority == Priority.FOREGROUND && skipped != null && skipped > 0;
+        }
+        if (refreshNow) {
+            synchronized (mCycleMonitor) {
+                mCycleRequested = true;
+                mCycleMonitor.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * @param stream the update stream
+     * @return the priority hinted for the given stream
+     */
+    synchronized public Priority getPriorityHint(final Stream stream)  {
+        Priority priority = mPriorities.get(stream);
+        return priority != null ? priority : Priority.FOREGROUND;
+    }
+    
+    /**
+     * Clear the update cycles statistics collected so far. The event log is not affected.
+     */
+    public void resetStats()    {
+        mStats.reset();
+    }
+    
     /**
      * Asynchronously triggers the begging of the update loop.
      */
     private void startUpdates() {
         
-        new Thread(new Runnable() {
+        mLoopThread = new Thread(new Runnable() {
+            
+            // start time of the cycle in flight, 0 when none was started
+            private long mCycleStart;
             
             @Override
             public void run()  {
                 
                 // this is an outer looper, to catch errors, forward them, are re-schedule the inner loop (with delay)
                 boolean startsAfterError = false;
-                while (isRunning()) {
+                while (continueLoop()) {
+                    long stops = getStopCount();
                     try {
                         // run the data update loop
                         runUnchecked(startsAfterError);
+                    } catch (DeadlineExceededException e) {
+                        // the cycle did not complete in time, observers are served what is cached
+                        startsAfterError = onCycleFailure(stops, e, Error.UPDATE_TIMEOUT);
+                        if (startsAfterError) {
+                            serveCached();
+                        }
                     } catch (HttpException e) {
                         // An error retrieving the resource from remote server
-                    	Log.e(TAG, "UNABLE_TO_CONNECT error being raised");
-                        notifyError(Error.UNABLE_TO_CONNECT);
-                        startsAfterError = true;
+                        startsAfterError = onCycleFailure(stops, e, Error.UNABLE_TO_CONNECT);
                     } catch (ArchiveException e) {
                         // An error archiving/de-archiving data
-                    	Log.e(TAG, "INTERNAL_ERROR error being raised");
-                        notifyError(Error.INTERNAL_ERROR);
-                        startsAfterError = true;
+                        startsAfterError = onCycleFailure(stops, e, Error.INTERNAL_ERROR);
                     } catch (JSONException e) {
                         // An error parsing responses to actual objects
-                    	Log.e(TAG, "DATA_PARSING_ERROR error being raised");
-                        notifyError(Error.DATA_PARSING_ERROR);
-                        startsAfterError = true;
+                        startsAfterError = onCycleFailure(stops, e, Error.DATA_PARSING_ERROR);
                     }
                     catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        notifyError(Error.INTERNAL_ERROR);
-                        startsAfterError = true;
+                        // the loop thread is interrupted by stop(), any other interrupt is unexpected
+                        startsAfterError = onCycleFailure(stops, e, Error.INTERNAL_ERROR);
                     }
                     // on error, the inner update loop is re-scheduled with a delay
                 }
             }
             
+            /**
+             * Account the failure of a cycle, unless it was cancelled by stop().
+             * 
+             * @return true if the next cycle must be delayed by a back-off period, false if the failure 
+             * was a cancellation: the loop then either terminates, or restarts right away if DataProvider 
+             * was started again in the meantime
+             */
+            private boolean onCycleFailure(long stops, final Exception e, final Error error) {
+                long cycleStart = mCycleStart;
+                mCycleStart = 0;
+                if (getStopCount() != stops) {
+                    // clear any pending interrupt, meant for the cancelled cycle only
+                    Thread.interrupted();
+                    return false;
+                }
+                if (cycleStart != 0) {
+                    // failures before a cycle started, e.g. restoring the disk cache, have no duration
+                    mStats.recordCycleFailure(System.nanoTime() - cycleStart, e.getClass());
+                }
+                Log.e(TAG, error + " error being raised");
+                notifyError(error);
+                return true;
+            }
+            
+            /**
+             * Serve observers the data held in memory, restoring from the disk cache what memory lacks, 
+             * in place of the data of a cycle which did not complete in time.
+             */
+            private void serveCached() {
+                Set<Stream> served = serveFromMemory();
+                Set<Stream> missing = EnumSet.allOf(Stream.class);
+                missing.removeAll(served);
+                if (!missing.isEmpty() && mConfiguration.getCacheDataEnabled()) {
+                    try {
+                        served.addAll(restoreState(missing));
+                    } catch (ArchiveRestoreException e) {
+                        Log.e(TAG, "Unable to serve cached data: " + e.toString());
+                    }
+                }
+                if (!served.isEmpty()) {
+                    notifyUpdate(getStreamsByPriority(served));
+                }
+            }
+            
             private void runUnchecked(boolean afterError) 
                     throws InterruptedException, HttpException, ArchiveException, JSONException {
                 
                 // if previous cycle terminated for an error, we wait the usual period before re-trying
                 if (afterError) {
-                    Thread.sleep(UPDATE_PERIOD_SECS * 1000);
+                    waitForNextCycle();
                 }
                 
-                // try to restore the users and favorites from cache
-                if (mConfiguration.getCacheDataEnabled() && restoreState() && !afterError) {
-                    // cached data has been restored, notify observers right away with this
-                    // network updates will follow (if possible)
-                    notifyUpdate();
+                // serve the user and favorites from memory, where a previous cycle or restore left 
+                // them, and only go to the disk cache for what memory lacks
+                Set<Stream> held = serveFromMemory();
+                if (!held.isEmpty() && !afterError) {
+                    // data in memory are notified right away, network updates will follow (if possible)
+                    // after an error, observers already hold them
+                    notifyUpdate(getStreamsByPriority(held));
+                }
+                Set<Stream> missing = EnumSet.allOf(Stream.class);
+                missing.removeAll(held);
+                if (!missing.isEmpty() && mConfiguration.getCacheDataEnabled()) {
+                    Set<Stream> restored = restoreState(missing);
+                    if (!restored.isEmpty()) {
+                        // cached data has been restored, notify observers right away with this
+                        // network updates will follow (if possible)
+                        notifyUpdate(getStreamsByPriority(restored));
+                    }
                 }
                 
                 while (isRunning()) {
                     
+                    mCycleStart = System.nanoTime();
+                    
                     // check availability of connectivity
                     synchronized(mNetworkMonitorOject) {
                         if (!mNetworkIsAvailable)   {
@@ -286,113 +953,1157 @@ public class DataProvider {
                         }
                     }
                     
-                    // setup a 2-thread executor, user profile and favorites jobs will be submitted on it
-                    ExecutorService executor = Executors.newFixedThreadPool(2);
-                    Future<User> resultUser = executor.submit(new Callable<User>() {            
-                        @Override
-                        public User call() throws HttpException, JSONException {
-                            
-                            // get user data
-                            String jsonResponse = HttpUtils.readFromUrl(mConfiguration.getApiHostingServer() 
-                            		+ SERVICE_USER_RESOURCE);
-                            
-                            // parse the json
-                            User newUser = User.buildFromJson(jsonResponse);
-
-                            return newUser;
-                        }   
-                    });
-                    Future<List<Favorite>> resultFavs = executor.submit(new Callable<List<Favorite>>() {            
-                        @Override
-                        public List<Favorite> call() throws HttpException, JSONException {
-
-                            // get favorites data
-                            String jsonResponse = HttpUtils.readFromUrl(mConfiguration.getApiHostingServer() 
-                                    		+ SERVICE_FAVORITES_RESOURCE);
-                            // parse the json
-                            JSONArray favoritesJson = new JSONArray(jsonResponse);
-                            List<Favorite> newFavorites = new ArrayList<Favorite>();
-                            for (int i=0;i<favoritesJson.length();i++){                        
-                                JSONObject e = favoritesJson.getJSONObject(i);
-                                newFavorites.add(Favorite.buildFromJson(e.toString()));
-                            }
-
-                            return newFavorites;
-                        }   
-                    });
+                    // the deadline runs from here, waiting for connectivity is not part of the cycle
+                    mCycleDeadline = new Deadline(mConfiguration.getCycleDeadlineMillis());
+                    
+                    // release memory if the heap is short, and rebuild what was released before
+                    mMemoryGovernor.checkHeap();
+                    restoreReleased();
                     
+                    // from now on, refresh requests are merged with this cycle
+                    setCycleInFlight(true);
                     try {
-                        mUser = resultUser.get();
-                        mFavorites = resultFavs.get();
-                    } catch (ExecutionException e) {
-                        // re-throw the cause as original exception, to allow error forwarding 
-                        try {
-                        	Log.e(TAG, "Error getting Futures value: " + e.toString());
-                            throw e.getCause();
-                        } catch (HttpException e2) {
-                            throw e2;
-                        } catch (JSONException e2) {
-                            throw e2;
-                        } catch (Throwable t) {
-                            // no other exceptions are thrown by Collables, we can silent this
+                        // fetch, decode and archive the streams due in this cycle, foreground ones first
+                        List<Stream> streams = getStreamsByPriority(getDueStreams());
+                        AsyncFetchEngine engine = getFetchEngine();
+                        if (engine != null) {
+                            runAsyncCycle(engine, streams);
+                        } else {
+                            runBlockingCycle(streams);
                         }
+                        onStreamsRefreshed(streams);
+                        
+                        // notify observers, unless each stream was already notified on completion
+                        if (mConfiguration.getAllOrNothingUpdates()) {
+                        	Log.e(TAG, "Notifying");
+                            notifyUpdate(streams);
+                        }
+                        
+                        // cycle is over, export its statistics
+                        mStats.recordCycle(System.nanoTime() - mCycleStart);
+                        mCycleStart = 0;
+                        notifyStats();
+                    } finally {
+                        setCycleInFlight(false);
+                        mCycleDeadline = NO_DEADLINE;
                     }
-                    
-                    // all update task are done, if enabled, save data on cache
-                    if (mConfiguration.getCacheDataEnabled()) 	{
-                    	saveState();
-                    }
-                    
-                    // notify observers
-                	Log.e(TAG, "Notifying");
-
-                    notifyUpdate();
 
                     // pause until it's time for next cycle
-                    Thread.sleep(UPDATE_PERIOD_SECS * 1000);
+                    waitForNextCycle();
                 }
             }
-        }           
-        ).start();
-    }
-    
-    /**
-     * Notify observers with relevant updates. 
-     * 
-     * Note that all observers notifications are posted on the main thread.
-     */
-    synchronized private void notifyUpdate() {
-    	
-    	new Handler(Looper.getMainLooper()).post(new Runnable() {		
-            @Override
-            public void run() {
-                // same object can subscribe as both user and favs, we want to send one single notification
-                Set<UpdateObserver> dispatched = new HashSet<UpdateObserver>();
-                for (UserUpdateObserver observer : userObservers ) {
-                    observer.onUpdated();
-                    observer.onUserUpdate(mUser);
-                    dispatched.add(observer);
-                }
-                for (FavoritesUpdateObserver observer : favoritesObservers ) {
-                    if (!dispatched.contains(observer)) {
-                        observer.onUpdated();
-                        dispatched.add(observer);
+            
+            /**
+             * Rebuild the favorites from the disk cache if they were released under memory pressure, 
+             * so that the next synchronization is incremental. If they cannot be restored, a full 
+             * resync follows.
+             */
+            private void restoreReleased() {
+                synchronized (DataProvider.this) {
+                    if (!mFavoritesReleased) {
+                        return;
+                    }
+                    mFavoritesReleased = false;
+                }
+                if (!mConfiguration.getCacheDataEnabled()) {
+                    return;
+                }
+                try {
+                    Set<Stream> restored = restoreState(EnumSet.of(Stream.FAVORITES));
+                    if (!restored.isEmpty()) {
+                        notifyUpdate(getStreamsByPriority(restored));
                     }
-                    observer.onFavoritesUpdate(mFavorites);
+                } catch (ArchiveRestoreException e) {
+                    Log.e(TAG, "Released favorites not restored, full resync: " + e.toString());
                 }
             }
-        });
-    }
-    
-    /**
-     * Notify observers about an occurred error.
-     * 
-     * Note that all observers notifications are posted on the main thread.
-     * 
-     * @param error the error that occurred
-     */
-    synchronized private void notifyError(final Error error) {
-    	
+            
+            /**
+             * Run the fetch, decode and archive stages of a cycle, each stream on a dedicated thread.
+             * 
+             * @param streams the streams to refresh, by priority
+             */
+            private void runBlockingCycle(final List<Stream> streams) 
+                    throws InterruptedException, HttpException, ArchiveException, JSONException {
+                
+                // setup a 2-thread executor, user profile and favorites jobs will be submitted on it
+                ExecutorService executor = Executors.newFixedThreadPool(2);
+                final Deadline deadline = mCycleDeadline;
+                Callable<User> userJob = new Callable<User>() {            
+                    @Override
+                    public User call() throws HttpException, JSONException, ArchiveException {
+                        
+                        setThreadPriority(Stream.USER);
+                        // get user data, caching the response as received if enabled
+                        Archiver.RawWriter raw = openRawCache(USER_RAW_TAG);
+                        try {
+                            String jsonResponse = fetch(Stream.USER, SERVICE_USER_RESOURCE, raw);
+                            
+                            // parse the json
+                            User newUser = decodeUser(jsonResponse);
+                            checkDeadline(deadline);
+                            setPendingRaw(Stream.USER, newUser, raw);
+                            raw = null;
+                            if (!mConfiguration.getAllOrNothingUpdates()) {
+                                completeStream(Stream.USER, newUser, null);
+                            }
+                            return newUser;
+                        } finally {
+                            if (raw != null) {
+                                // the response failed, it is not cached
+                                raw.abort();
+                            }
+                        }
+                    }   
+                };
+                Callable<FavoritesSync> favoritesJob = new Callable<FavoritesSync>() {            
+                    @Override
+                    public FavoritesSync call() throws HttpException, JSONException, ArchiveException {
+
+                        setThreadPriority(Stream.FAVORITES);
+                        // get favorites data, incrementally if possible
+                        FavoritesSync newFavorites = syncFavorites();
+                        // a late job of a cycle which timed out publishes nothing
+                        checkDeadline(deadline);
+                        if (!mConfiguration.getAllOrNothingUpdates()) {
+                            completeStream(Stream.FAVORITES, null, newFavorites);
+                        }
+                        return newFavorites;
+                    }   
+                };
+                
+                // jobs are submitted by priority, streams skipped in this cycle are not submitted
+                Future<User> resultUser = null;
+                Future<FavoritesSync> resultFavs = null;
+                for (Stream stream : streams) {
+                    if (stream == Stream.USER) {
+                        resultUser = executor.submit(userJob);
+                    } else {
+                        resultFavs = executor.submit(favoritesJob);
+                    }
+                }
+                
+                try {
+                    // in all-or-nothing mode, data is published only once all streams succeeded, so 
+                    // that observers never see a user and favorites coming from different cycles
+                    User newUser = await(resultUser, deadline);
+                    FavoritesSync newFavorites = await(resultFavs, deadline);
+                    if (mConfiguration.getAllOrNothingUpdates()) {
+                        publish(newUser, newFavorites);
+                    }
+                } catch (ExecutionException e) {
+                    // a job which gave up at the deadline fails with the error of the step it was at
+                    checkDeadline(deadline);
+                    // re-throw the cause as original exception, to allow error forwarding 
+                    try {
+                    	Log.e(TAG, "Error getting Futures value: " + e.toString());
+                        throw e.getCause();
+                    } catch (HttpException e2) {
+                        throw e2;
+                    } catch (JSONException e2) {
+                        throw e2;
+                    } catch (ArchiveException e2) {
+                        throw e2;
+                    } catch (Throwable t) {
+                        // e.g. a call rejected by a hedger shut down meanwhile, the cycle must not pass
+                        Log.e(TAG, "Unexpected update cycle error: " + t.toString());
+                        throw new HttpException(t.toString());
+                    }
+                } finally {
+                    if (deadline.isExpired()) {
+                        // the jobs are aborted: their calls are cancelled, and their threads interrupted
+                        Log.e(TAG, "Update cycle deadline exceeded");
+                        cancelCallsInFlight();
+                        executor.shutdownNow();
+                    } else {
+                        // let the pool threads terminate, a new executor is created at each cycle
+                        executor.shutdown();
+                    }
+                }
+                
+                // all update task are done, if enabled, save data on cache
+                if (mConfiguration.getCacheDataEnabled() && mConfiguration.getAllOrNothingUpdates()) 	{
+                	saveState(streams);
+                }
+            }
+            
+            /**
+             * Wait for the result of the given job, up to the given deadline.
+             * 
+             * @return the result, null if no job was submitted
+             * @throws DeadlineExceededException if the deadline was reached first
+             */
+            private <T> T await(final Future<T> result, final Deadline deadline) 
+                    throws InterruptedException, ExecutionException, DeadlineExceededException {
+                if (result == null) {
+                    return null;
+                }
+                try {
+                    return result.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    throw new DeadlineExceededException();
+                }
+            }
+            
+            /**
+             * Run the fetch, decode and archive stages of a cycle on the async fetch engine. 
+             * 
+             * Stages are chained on the engine pool, the loop thread only waits for the cycle to complete. 
+             * As on the blocking path, each stream is archived and published as soon as it completes, or 
+             * once all streams succeeded in all-or-nothing mode.
+             * 
+             * @param engine the fetch engine
+             * @param streams the streams to refresh, by priority
+             */
+            private void runAsyncCycle(final AsyncFetchEngine engine, final List<Stream> streams) 
+                    throws InterruptedException, HttpException, ArchiveException, JSONException {
+                
+                // fetches are started by priority, streams skipped in this cycle are not fetched
+                final Deadline deadline = mCycleDeadline;
+                Promise<User> user = Promise.of(null);
+                Promise<FavoritesSync> favorites = Promise.of(null);
+                for (Stream stream : streams) {
+                    if (stream == Stream.USER) {
+                        user = fetchAsync(engine, Stream.USER, SERVICE_USER_RESOURCE)
+                            .then(new Promise.Transform<String, User>() {
+                                @Override
+                                public User apply(final String body) throws JSONException {
+                                    return decodeUser(body);
+                                }
+                            }, engine.getDecodeStage());
+                    } else {
+                        favorites = syncFavoritesAsync(engine);
+                    }
+                }
+                if (!mConfiguration.getAllOrNothingUpdates()) {
+                    user = user.then(new Promise.Transform<User, User>() {
+                        @Override
+                        public User apply(final User newUser) throws ArchiveException, HttpException {
+                            // a late stage of a cycle which timed out publishes nothing
+                            checkDeadline(deadline);
+                            if (newUser != null) {
+                                completeStream(Stream.USER, newUser, null);
+                            }
+                            return newUser;
+                        }
+                    }, engine.getPersistStage());
+                    favorites = favorites.then(new Promise.Transform<FavoritesSync, FavoritesSync>() {
+                        @Override
+                        public FavoritesSync apply(final FavoritesSync newFavorites) 
+                                throws ArchiveException, HttpException {
+                            checkDeadline(deadline);
+                            if (newFavorites != null) {
+                                completeStream(Stream.FAVORITES, null, newFavorites);
+                            }
+                            return newFavorites;
+                        }
+                    }, engine.getPersistStage());
+                }
+                Promise<Void> cycle = Promise.all(user, favorites)
+                    .then(new Promise.Transform<List<Object>, Void>() {
+                        @Override
+                        public Void apply(final List<Object> values) throws ArchiveException, HttpException {
+                            checkDeadline(deadline);
+                            if (mConfiguration.getAllOrNothingUpdates()) {
+                                publish((User) values.get(0), (FavoritesSync) values.get(1));
+                                if (mConfiguration.getCacheDataEnabled()) {
+                                    saveState(streams);
+                                }
+                            }
+                            return null;
+                        }
+                    }, engine.getPersistStage());
+                
+                try {
+                    cycle.await(Math.min(ASYNC_CYCLE_TIMEOUT_MILLIS, deadline.getRemainingMillis()), 
+                            TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (deadline.isExpired()) {
+                        Log.e(TAG, "Update cycle deadline exceeded");
+                        cancelCallsInFlight();
+                        throw new DeadlineExceededException();
+                    }
+                    Log.e(TAG, "Async update cycle timed out");
+                    throw new HttpException("Update cycle timed out");
+                } catch (ExecutionException e) {
+                    checkDeadline(deadline);
+                    // re-throw the cause as original exception, to allow error forwarding 
+                    try {
+                        throw e.getCause();
+                    } catch (HttpException e2) {
+                        throw e2;
+                    } catch (JSONException e2) {
+                        throw e2;
+                    } catch (ArchiveException e2) {
+                        throw e2;
+                    } catch (Throwable t) {
+                        Log.e(TAG, "Unexpected async update cycle error: " + t.toString());
+                        throw new HttpException(t.toString());
+                    }
+                }
+            }
+        }           
+        );
+        mLoopThread.start();
+    }
+    
+    /**
+     * Invoked by the loop thread before each iteration of its outer loop. The check and the release of 
+     * the loop thread are atomic, so that a concurrent start() either resumes this loop or starts a new 
+     * one, never none or two.
+     * 
+     * @return true if the loop must go on, false if it must terminate
+     */
+    synchronized private boolean continueLoop() {
+        if (mIsRunning) {
+            return true;
+        }
+        if (mLoopThread == Thread.currentThread()) {
+            mLoopThread = null;
+        }
+        return false;
+    }
+    
+    synchronized private long getStopCount() {
+        return mStopCount;
+    }
+    
+    /**
+     * Mark the beginning or the end of an update cycle. Requests received before the beginning of a 
+     * cycle are served by it.
+     */
+    private void setCycleInFlight(boolean inFlight) {
+        synchronized (mCycleMonitor) {
+            mCycleInFlight = inFlight;
+            if (inFlight) {
+                mCycleRequested = false;
+            }
+        }
+    }
+    
+    /**
+     * Notify observers with relevant updates. 
+     * 
+     * Note that all observers notifications are posted on the main thread.
+     * 
+     * @param streams the streams to notify, by priority
+     */
+    synchronized private void notifyUpdate(final List<Stream> streams) {
+    	
+    	final long postTime = System.nanoTime();
+    	// data is captured now, the loop may replace it before the notification runs
+    	final User user = mUser;
+    	final List<Favorite> favorites = mFavorites;
+    	final Map<Stream, Freshness> freshness = new EnumMap<Stream, Freshness>(mFreshness);
+    	if (favorites != null && streams.contains(Stream.FAVORITES)) {
+    	    // kept readable until the next update is dispatched
+    	    retainArchived(favorites);
+    	}
+    	new Handler(Looper.getMainLooper()).post(new Runnable() {		
+            @Override
+            public void run() {
+                // same object can subscribe as both user and favs, we want to send one single notification
+                Set<UpdateObserver> dispatched = new HashSet<UpdateObserver>();
+                for (Stream stream : streams) {
+                    // observers may query the freshness of the data they are notified with
+                    mDispatchedFreshness.put(stream, freshness.get(stream));
+                    if (stream == Stream.USER) {
+                        for (UserUpdateObserver observer : userObservers ) {
+                            if (!dispatched.contains(observer)) {
+                                observer.onUpdated();
+                                dispatched.add(observer);
+                            }
+                            observer.onUserUpdate(user);
+                        }
+                    } else {
+                        PageSource<Favorite> pages = favorites != null ? getFavoritesPages(favorites) : null;
+                        for (FavoritesUpdateObserver observer : favoritesObservers ) {
+                            if (!dispatched.contains(observer)) {
+                                observer.onUpdated();
+                                dispatched.add(observer);
+                            }
+                            observer.onFavoritesUpdate(pages);
+                        }
+                        if (favorites != null) {
+                            observeFavorites(favorites);
+                        }
+                    }
+                    mStats.recordSpan(stream, Span.DISPATCH, System.nanoTime() - postTime);
+                    recordFirstContent(stream);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Publish the data of a completed cycle, all streams at once.
+     * 
+     * @param user the new user, null if the user stream was skipped
+     * @param favorites the new favorites, null if the favorites stream was skipped
+     */
+    synchronized private void publish(final User user, final FavoritesSync favorites) {
+        long now = System.currentTimeMillis();
+        if (user != null) {
+            mUser = user;
+            mFreshness.put(Stream.USER, new Freshness(Freshness.Source.NETWORK, now));
+        }
+        if (favorites != null) {
+            // changes are applied as they are, the analytics ignore the ones they already account for
+            if (favorites.mChanges != null && mAnalyticsSynced) {
+                mAnalytics.apply(favorites.mChanges);
+            } else {
+                mAnalytics.sync(favorites.mFavorites);
+            }
+            mAnalyticsSynced = true;
+            setFavorites(favorites.mFavorites);
+            mFavoritesCursor = favorites.mCursor;
+            mFavoritesReleased = false;
+            mFreshness.put(Stream.FAVORITES, new Freshness(Freshness.Source.NETWORK, now));
+        }
+    }
+    
+    /**
+     * Get the streams whose data is held in memory, marking it as served from memory. In all-or-nothing
+     * mode, data is served from memory only if all the streams are held.
+     * 
+     * @return the streams held in memory
+     */
+    synchronized private Set<Stream> serveFromMemory() {
+        Set<Stream> held = EnumSet.noneOf(Stream.class);
+        if (mUser != null) {
+            held.add(Stream.USER);
+        }
+        if (mFavorites != null) {
+            held.add(Stream.FAVORITES);
+        }
+        if (mConfiguration.getAllOrNothingUpdates() && held.size() < Stream.values().length) {
+            held.clear();
+        }
+        for (Stream stream : held) {
+            mFreshness.put(stream, new Freshness(Freshness.Source.MEMORY, 
+                    mFreshness.get(stream).getFetchTimeMillis()));
+        }
+        return held;
+    }
+    
+    /**
+     * Drop the data held in memory, so that the next cycle restores it from the disk cache.
+     */
+    synchronized private void clearMemory() {
+        mUser = null;
+        setFavorites(null);
+        mFavoritesCursor = null;
+        mFavoritesReleased = false;
+        mAnalytics.clear();
+        mAnalyticsSynced = false;
+        mFreshness.clear();
+    }
+    
+    /**
+     * Release the favorites held in memory, which are rebuilt lazily from the disk cache by the next 
+     * cycle. The memory is actually reclaimed once observers drop the list too.
+     * 
+     * @return an estimate of the bytes freed, 0 if no favorites were held
+     */
+    synchronized private long releaseFavorites() {
+        if (mFavorites == null || mFavorites instanceof Archiver.ShardedList) {
+            // a view of the archive holds a single shard
+            return 0;
+        }
+        long freed = 0;
+        for (Favorite favorite : mFavorites) {
+            freed += FAVORITE_BASE_SIZE_BYTES + 2 * (length(favorite.getType()) + length(favorite.getTitle()) 
+                    + length(favorite.getDescription()) + length(favorite.getGenre()) 
+                    + length(favorite.getAuthorUserName()));
+        }
+        // the cursor applies to the released list, it is restored with its archive
+        setFavorites(null);
+        mFavoritesCursor = null;
+        mFavoritesReleased = true;
+        mFreshness.remove(Stream.FAVORITES);
+        return freed;
+    }
+    
+    /**
+     * Publish, dispatch and archive the data of a single stream, as soon as it was retrieved.
+     * 
+     * @param stream the completed stream
+     * @param user the new user, if the user stream completed
+     * @param favorites the new favorites, if the favorites stream completed
+     */
+    private void completeStream(final Stream stream, final User user, final FavoritesSync favorites) {
+        List<Stream> streams = Collections.singletonList(stream);
+        publish(user, favorites);
+        notifyUpdate(streams);
+        if (mConfiguration.getCacheDataEnabled()) {
+            saveState(streams);
+        }
+    }
+    
+    /**
+     * Record the time to first content of the given stream, if its data was dispatched for the first 
+     * time since start.
+     */
+    private void recordFirstContent(final Stream stream) {
+        long startNanos;
+        synchronized (this) {
+            if (!mFirstContentPending.remove(stream)) {
+                return;
+            }
+            startNanos = mStartNanos;
+        }
+        mStats.recordSpan(stream, Span.FIRST_CONTENT, System.nanoTime() - startNanos);
+    }
+    
+    /**
+     * @return the streams to refresh in the next cycle: foreground ones, streams with no data yet, and
+     * background ones which skipped enough cycles
+     */
+    synchronized private Set<Stream> getDueStreams() {
+        Set<Stream> due = EnumSet.noneOf(Stream.class);
+        for (Stream stream : Stream.values()) {
+            Integer skipped = mSkippedCycles.get(stream);
+            boolean hasData = stream == Stream.USER ? mUser != null : mFavorites != null;
+            if (getPriorityHint(stream) == Priority.FOREGROUND || !hasData 
+                    || (skipped != null && skipped + 1 >= mConfiguration.getBackgroundUpdateRatio())) {
+                due.add(stream);
+            }
+        }
+        return due;
+    }
+    
+    /**
+     * @return the given streams, foreground ones first
+     */
+    synchronized private List<Stream> getStreamsByPriority(final Set<Stream> streams) {
+        List<Stream> ordered = new ArrayList<Stream>(streams.size());
+        for (Priority priority : Priority.values()) {
+            for (Stream stream : streams) {
+                if (getPriorityHint(stream) == priority) {
+                    ordered.add(stream);
+                }
+            }
+        }
+        return ordered;
+    }
+    
+    /**
+     * Account a completed cycle in the skipped cycles count of each stream.
+     * 
+     * @param refreshed the streams refreshed by the cycle
+     */
+    synchronized private void onStreamsRefreshed(final List<Stream> refreshed) {
+        for (Stream stream : Stream.values()) {
+            Integer skipped = mSkippedCycles.get(stream);
+            mSkippedCycles.put(stream, refreshed.contains(stream) ? 0 : (skipped != null ? skipped + 1 : 1));
+        }
+    }
+    
+    /**
+     * Run background stream jobs at background thread priority, so that the foreground stream gets 
+     * the CPU first when both are parsing.
+     */
+    private void setThreadPriority(final Stream stream) {
+        Process.setThreadPriority(getPriorityHint(stream) == Priority.FOREGROUND ? 
+                Process.THREAD_PRIORITY_DEFAULT : Process.THREAD_PRIORITY_BACKGROUND);
+    }
+    
+    /**
+     * Wait for the update period, or less if a cycle is requested in the meantime. The wait is 
+     * interrupted by stop().
+     */
+    private void waitForNextCycle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + mConfiguration.getUpdatePeriodMillis();
+        synchronized (mCycleMonitor) {
+            long left = deadline - System.currentTimeMillis();
+            while (!mCycleRequested && left > 0) {
+                mCycleMonitor.wait(left);
+                left = deadline - System.currentTimeMillis();
+            }
+            mCycleRequested = false;
+        }
+    }
+    
+    /**
+     * Notify statistics listeners with the current statistics snapshot.
+     * 
+     * Note that listeners are invoked on the calling thread.
+     */
+    private void notifyStats() {
+        Set<StatsListener> listeners;
+        synchronized (this) {
+            if (statsListeners.isEmpty())   {
+                return;
+            }
+            listeners = new HashSet<StatsListener>(statsListeners);
+        }
+        UpdateStats stats = mStats.snapshot();
+        for (StatsListener listener : listeners)    {
+            listener.onCycleCompleted(stats);
+        }
+    }
+    
+    /**
+     * Retrieve the body of the given resource from the configured server, recording timings and
+     * size of the HTTP call for the given stream.
+     * 
+     * @param stream the update stream the call is made for
+     * @param resource the path of the resource on the server, or an absolute URL
+     * @return the body of the response
+     * @throws HttpException if the call failed for any reason
+     */
+    private String fetch(final Stream stream, final String resource) throws HttpException {
+        return fetch(stream, resource, null);
+    }
+    
+    /**
+     * Fetch the given resource, copying the response body to the given stream while it is received.
+     * 
+     * @param stream the update stream the resource belongs to
+     * @param resource the resource to fetch
+     * @param tee the stream the response body is copied to, null if none
+     * @return the response body
+     * @throws HttpException if the call failed for any reason
+     */
+    private String fetch(final Stream stream, final String resource, final OutputStream tee) 
+            throws HttpException {
+        HttpUtils.Body body = fetchBody(stream, resource, tee);
+        try {
+            return body.toString();
+        } finally {
+            body.release();
+        }
+    }
+    
+    /**
+     * Fetch the given resource into a pooled buffer, copying the response body to the given stream 
+     * while it is received. The call is routed to the best server, and retried on the next ones if it 
+     * fails, see HostSelector.
+     * 
+     * @param stream the update stream the resource belongs to
+     * @param resource the resource to fetch
+     * @param tee the stream the response body is copied to, null if none
+     * @return the response body, which must be released once decoded
+     * @throws HttpException if the call failed for any reason, with the error of the last server tried
+     */
+    private HttpUtils.Body fetchBody(final Stream stream, final String resource, final OutputStream tee) 
+            throws HttpException {
+        List<String> urls = route(resource);
+        for (int i = 0; ; i++) {
+            final String url = urls.get(i);
+            HttpUtils.Trace trace = new HttpUtils.Trace();
+            try {
+                if (tee != null || !mConfiguration.getHedgingEnabled()) {
+                    // a response copied while received cannot be raced, its copy would be written twice
+                    return fetchBody(stream, url, tee, trace);
+                }
+                return mHedger.execute(getHedgingKey(resource), new RequestHedger.Attempt<HttpUtils.Body>() {
+                    @Override
+                    public HttpUtils.Body run(final HttpUtils.Trace trace) throws HttpException {
+                        return fetchBody(stream, url, null, trace);
+                    }
+                    
+                    @Override
+                    public void discard(final HttpUtils.Body body) {
+                        body.release();
+                    }
+                });
+            } catch (HttpException e) {
+                // a response partly copied cannot be fetched again, the copy would be corrupt
+                if (i + 1 == urls.size() || !isHostFailure(e) || (tee != null && trace.getDownloadNanos() > 0)) {
+                    throw e;
+                }
+                Log.e(TAG, stream + " call failed on " + url + ", failing over to " + urls.get(i + 1));
+                mHosts.recordFailover();
+            }
+        }
+    }
+    
+    /**
+     * @return the kind of call the given resource is hedged as: its path, so that resources of one 
+     * stream with different latencies, e.g. a changes feed and a full fetch, are timed apart
+     */
+    private static String getHedgingKey(final String resource) {
+        int query = resource.indexOf('?');
+        return query < 0 ? resource : resource.substring(0, query);
+    }
+    
+    /**
+     * Fetch the given URL into a pooled buffer with the given trace, which is cancelled if 
+     * DataProvider is stopped.
+     */
+    private HttpUtils.Body fetchBody(final Stream stream, final String url, final OutputStream tee, 
+            final HttpUtils.Trace trace) throws HttpException {
+        trace.setDeadline(mCycleDeadline);
+        mCallsInFlight.add(trace);
+        if (!isRunning()) {
+            // stopped before the call could be registered for cancellation
+            trace.cancel();
+        }
+        try {
+            HttpUtils.Body body = HttpUtils.readBody(url, trace, tee, mBufferPool);
+            mHosts.recordSuccess(url, trace);
+            mStats.recordSpan(stream, Span.CONNECT, trace.getConnectNanos(), trace.getResponseCode(), 0);
+            mStats.recordSpan(stream, Span.DOWNLOAD, trace.getDownloadNanos(), trace.getResponseCode(), 
+                    trace.getBytes());
+            mStats.recordResponseBytes(stream, trace.getBytes());
+            return body;
+        } catch (HttpException e) {
+            if (trace.isCancelled() && isRunning()) {
+                // a hedge which lost the race, not a failure
+                throw e;
+            }
+            if (isHostFailure(e)) {
+                mHosts.recordFailure(url);
+            }
+            Span failedSpan = trace.getDownloadNanos() > 0 ? Span.DOWNLOAD : Span.CONNECT;
+            mStats.recordFailure(stream, failedSpan, 
+                    failedSpan == Span.DOWNLOAD ? trace.getDownloadNanos() : trace.getConnectNanos(), 
+                    trace.getResponseCode(), trace.getError());
+            throw e;
+        } finally {
+            mCallsInFlight.remove(trace);
+        }
+    }
+    
+    /**
+     * Start an asynchronous retrieval of the given resource from the configured servers, recording 
+     * timings and size of the HTTP exchange for the given stream. As on the blocking path, the call is 
+     * routed to the best server, and retried on the next ones if it fails.
+     * 
+     * @param engine the fetch engine
+     * @param stream the update stream the call is made for
+     * @param resource the path of the resource on the server, or an absolute URL
+     * @return a Promise of the body of the response, failed with an HttpException on any error
+     */
+    private Promise<String> fetchAsync(final AsyncFetchEngine engine, final Stream stream, 
+            final String resource) {
+        return fetchAsync(engine, stream, route(resource), 0);
+    }
+    
+    /**
+     * Start an asynchronous retrieval of the URL of the given index, failing over to the next ones.
+     */
+    private Promise<String> fetchAsync(final AsyncFetchEngine engine, final Stream stream, 
+            final List<String> urls, final int index) {
+        Promise<String> body = fetchAsyncFrom(engine, stream, urls.get(index));
+        if (index + 1 == urls.size()) {
+            return body;
+        }
+        return body.otherwise(new Promise.Transform<Throwable, Promise<String>>() {
+            @Override
+            public Promise<String> apply(final Throwable error) {
+                if (!isHostFailure(error)) {
+                    return Promise.failed(error);
+                }
+                Log.e(TAG, stream + " call failed on " + urls.get(index) + ", failing over to " 
+                        + urls.get(index + 1));
+                mHosts.recordFailover();
+                return fetchAsync(engine, stream, urls, index + 1);
+            }
+        });
+    }
+    
+    /**
+     * Start an asynchronous retrieval of the given URL, on a single server.
+     */
+    private Promise<String> fetchAsyncFrom(final AsyncFetchEngine engine, final Stream stream, 
+            final String url) {
+        final long start = System.nanoTime();
+        final Promise<String> body = new Promise<String>();
+        engine.fetch(url).addCallback(
+                new Promise.Callback<AsyncHttpClient.Response>() {
+            @Override
+            public void onSuccess(final AsyncHttpClient.Response response) {
+                int status = response.getStatus();
+                int bytes = response.getBody().length;
+                mStats.recordSpan(stream, Span.CONNECT, response.getConnectNanos(), status, 0);
+                if (status >= 500) {
+                    mHosts.recordFailure(url);
+                } else {
+                    mHosts.recordSuccess(url, response.getConnectNanos());
+                }
+                if (status >= 400) {
+                    mStats.recordFailure(stream, Span.DOWNLOAD, response.getDownloadNanos(), status, 
+                            HttpException.class);
+                    body.fail(new HttpStatusException(status));
+                    return;
+                }
+                mStats.recordSpan(stream, Span.DOWNLOAD, response.getDownloadNanos(), status, bytes);
+                mStats.recordResponseBytes(stream, bytes);
+                body.complete(response.getBodyAsString());
+            }
+            
+            @Override
+            public void onFailure(final Throwable error) {
+                mStats.recordFailure(stream, Span.CONNECT, System.nanoTime() - start, -1, error.getClass());
+                if (isRunning() && !mCycleDeadline.isExpired()) {
+                    // calls cancelled by stop() or at the deadline say nothing of the server
+                    mHosts.recordFailure(url);
+                }
+                body.fail(new HttpException(error.toString()));
+            }
+        });
+        return body;
+    }
+    
+    /**
+     * @return the resource of the favorites activity feed, as set in the Configuration
+     */
+    private String getFavoritesChangesResource() {
+        String resource = mConfiguration.getFavoritesChangesResource();
+        return resource != null ? resource : SERVICE_FAVORITES_CHANGES_RESOURCE;
+    }
+    
+    /**
+     * @param resource an activity feed resource, or a cursor
+     * @return true if incremental sync is enabled, and the activity feed of the server the given resource 
+     * is expected from did not fail
+     */
+    private boolean isIncrementalSyncEnabled(final String resource) {
+        return mConfiguration.getIncrementalSyncEnabled() && !mFullSyncServers.contains(getFeedServer(resource));
+    }
+    
+    /**
+     * Account an error of the activity feed, a full resync follows: an expired cursor is replaced by the 
+     * resync, any other error disables incremental sync for the server the given resource is expected from.
+     * 
+     * @param resource the activity feed resource, or the cursor, which failed
+     * @param error the status error, or the parsing error
+     */
+    private void onIncrementalSyncFailure(final String resource, final Exception error) {
+        if (error instanceof HttpStatusException && ((HttpStatusException) error).getStatus() == HTTP_GONE) {
+            Log.e(TAG, "Favorites cursor expired, full resync");
+            return;
+        }
+        String server = getFeedServer(resource);
+        Log.e(TAG, "Activity feed of " + server + " failed, incremental sync disabled: " + error.toString());
+        mFullSyncServers.add(server);
+    }
+    
+    /**
+     * @return the server the given resource is expected from: the one of an absolute URL, the best one of 
+     * the route otherwise
+     */
+    private String getFeedServer(final String resource) {
+        if (!resource.startsWith("http://") && !resource.startsWith("https://")) {
+            return mHosts.getRoute().get(0);
+        }
+        String host = mHosts.getHost(resource);
+        if (host != null) {
+            return host;
+        }
+        int end = resource.indexOf('/', resource.indexOf("//") + 2);
+        return end < 0 ? resource : resource.substring(0, end);
+    }
+    
+    /**
+     * @return the URLs of the given resource on the configured servers, best first, see HostSelector. An 
+     * absolute URL, as activity feed cursors are, is routed too if it is on one of the servers, and 
+     * returned as it is otherwise
+     */
+    private List<String> route(final String resource) {
+        String path = resource;
+        if (resource.startsWith("http://") || resource.startsWith("https://")) {
+            String host = mHosts.getHost(resource);
+            if (host == null) {
+                return Collections.singletonList(resource);
+            }
+            path = resource.substring(host.length());
+        }
+        List<String> hosts = mHosts.getRoute();
+        List<String> urls = new ArrayList<String>(hosts.size());
+        for (String host : hosts) {
+            urls.add(host + path);
+        }
+        return urls;
+    }
+    
+    /**
+     * @return true if the given error of a call is a failure of its server, which the call fails over 
+     * from: not a status below 500 (the server answered), nor a cancellation or the cycle deadline
+     */
+    private boolean isHostFailure(final Throwable error) {
+        if (error instanceof DeadlineExceededException || !isRunning() || mCycleDeadline.isExpired()) {
+            return false;
+        }
+        return !(error instanceof HttpStatusException) || ((HttpStatusException) error).getStatus() >= 500;
+    }
+    
+    /**
+     * Synchronize the favorites list: incrementally from the activity feed cursor, if enabled and a
+     * cursor is available, with a full resync otherwise or if the cursor expired.
+     * 
+     * @return the new favorites list and cursor
+     * @throws HttpException if a call failed for any reason
+     * @throws JSONException if a response could not be parsed
+     */
+    private FavoritesSync syncFavorites() throws HttpException, JSONException {
+        String cursor;
+        List<Favorite> favorites;
+        synchronized (this) {
+            cursor = mFavoritesCursor;
+            favorites = mFavorites;
+        }
+        if (cursor != null && favorites != null && isIncrementalSyncEnabled(cursor)) {
+            try {
+                FavoritesChanges changes = decodeFavoritesChanges(fetch(Stream.FAVORITES, cursor));
+                if (changes.getNextHref() != null) {
+                    // the cursor of the first page would skip the following ones
+                    Log.i(TAG, "Favorites changes span several pages, full resync");
+                } else {
+                    // changes apply to the list, decoded if held by the archive only
+                    List<Favorite> current = changes.isEmpty() ? favorites : decodeArchived(favorites);
+                    if (current != null) {
+                        return new FavoritesSync(changes.applyTo(current), changes.getFutureHref(), changes);
+                    }
+                }
+            } catch (HttpStatusException e) {
+                onIncrementalSyncFailure(cursor, e);
+            } catch (JSONException e) {
+                onIncrementalSyncFailure(cursor, e);
+            }
+        }
+        
+        // the cursor is read before the full list, so that changes in between are replayed, not lost
+        String newCursor = null;
+        String feed = getFavoritesChangesResource();
+        if (isIncrementalSyncEnabled(feed)) {
+            try {
+                newCursor = decodeFavoritesChanges(fetch(Stream.FAVORITES, feed)).getFutureHref();
+            } catch (HttpStatusException e) {
+                onIncrementalSyncFailure(feed, e);
+            } catch (JSONException e) {
+                onIncrementalSyncFailure(feed, e);
+            }
+        }
+        Archiver.RawWriter raw = openRawCache(FAVORITES_RAW_TAG);
+        try {
+            // the list is decoded from the response bytes, only changed favorites are turned into strings
+            List<Favorite> newFavorites;
+            HttpUtils.Body body = fetchBody(Stream.FAVORITES, SERVICE_FAVORITES_RESOURCE, raw);
+            try {
+                newFavorites = decodeFavorites(body.getBuffer(), body.getLength());
+            } finally {
+                body.release();
+            }
+            setPendingRaw(Stream.FAVORITES, newFavorites, raw);
+            raw = null;
+            return new FavoritesSync(newFavorites, newCursor);
+        } finally {
+            if (raw != null) {
+                // the response failed, it is not cached
+                raw.abort();
+            }
+        }
+    }
+    
+    /**
+     * Asynchronous version of syncFavorites(), chained on the given fetch engine.
+     * 
+     * @param engine the fetch engine
+     * @return a Promise of the new favorites list and cursor
+     */
+    private Promise<FavoritesSync> syncFavoritesAsync(final AsyncFetchEngine engine) {
+        String cursor;
+        final List<Favorite> favorites;
+        synchronized (this) {
+            cursor = mFavoritesCursor;
+            favorites = mFavorites;
+        }
+        if (cursor == null || favorites == null || !isIncrementalSyncEnabled(cursor)) {
+            return resyncFavoritesAsync(engine);
+        }
+        
+        final String resource = cursor;
+        // null when a full resync is needed
+        return fetchAsync(engine, Stream.FAVORITES, resource)
+            .then(new Promise.Transform<String, FavoritesSync>() {
+                @Override
+                public FavoritesSync apply(final String body) throws JSONException {
+                    FavoritesChanges changes = decodeFavoritesChanges(body);
+                    if (changes.getNextHref() != null) {
+                        // the cursor of the first page would skip the following ones
+                        Log.i(TAG, "Favorites changes span several pages, full resync");
+                        return null;
+                    }
+                    List<Favorite> current = changes.isEmpty() ? favorites : decodeArchived(favorites);
+                    return current == null ? null 
+                            : new FavoritesSync(changes.applyTo(current), changes.getFutureHref(), changes);
+                }
+            }, engine.getDecodeStage())
+            .otherwise(new Promise.Transform<Throwable, Promise<FavoritesSync>>() {
+                @Override
+                public Promise<FavoritesSync> apply(final Throwable error) {
+                    if (!(error instanceof HttpStatusException) && !(error instanceof JSONException)) {
+                        return Promise.failed(error);
+                    }
+                    onIncrementalSyncFailure(resource, (Exception) error);
+                    return Promise.of(null);
+                }
+            })
+            .compose(new Promise.Transform<FavoritesSync, Promise<FavoritesSync>>() {
+                @Override
+                public Promise<FavoritesSync> apply(final FavoritesSync sync) {
+                    return sync != null ? Promise.of(sync) : resyncFavoritesAsync(engine);
+                }
+            });
+    }
+    
+    /**
+     * Retrieve the full favorites list, and the activity feed cursor if incremental sync is enabled.
+     * 
+     * @param engine the fetch engine
+     * @return a Promise of the new favorites list and cursor
+     */
+    private Promise<FavoritesSync> resyncFavoritesAsync(final AsyncFetchEngine engine) {
+        Promise<String> cursor = Promise.of(null);
+        final String feed = getFavoritesChangesResource();
+        if (isIncrementalSyncEnabled(feed)) {
+            cursor = fetchAsync(engine, Stream.FAVORITES, feed)
+                .then(new Promise.Transform<String, String>() {
+                    @Override
+                    public String apply(final String body) throws JSONException {
+                        return decodeFavoritesChanges(body).getFutureHref();
+                    }
+                }, engine.getDecodeStage())
+                .otherwise(new Promise.Transform<Throwable, Promise<String>>() {
+                    @Override
+                    public Promise<String> apply(final Throwable error) {
+                        if (!(error instanceof HttpStatusException) && !(error instanceof JSONException)) {
+                            return Promise.failed(error);
+                        }
+                        // the list is fetched all the same, without a cursor
+                        onIncrementalSyncFailure(feed, (Exception) error);
+                        return Promise.of(null);
+                    }
+                });
+        }
+        
+        // as on the blocking path, the full list is requested once the cursor was read
+        return cursor.compose(new Promise.Transform<String, Promise<FavoritesSync>>() {
+            @Override
+            public Promise<FavoritesSync> apply(final String newCursor) {
+                return fetchAsync(engine, Stream.FAVORITES, SERVICE_FAVORITES_RESOURCE)
+                    .then(new Promise.Transform<String, FavoritesSync>() {
+                        @Override
+                        public FavoritesSync apply(final String body) throws JSONException {
+                            return new FavoritesSync(decodeFavorites(body), newCursor);
+                        }
+                    }, engine.getDecodeStage());
+            }
+        });
+    }
+    
+    /**
+     * Parse the user profile, recording parsing time for the user stream.
+     * 
+     * @param json the body of the user profile response
+     * @return the parsed user
+     * @throws JSONException if the body is not a valid user profile
+     */
+    private User decodeUser(final String json) throws JSONException {
+        long parseStart = System.nanoTime();
+        User user;
+        try {
+            user = User.buildFromJson(json);
+        } catch (JSONException e) {
+            mStats.recordFailure(Stream.USER, Span.PARSE, System.nanoTime() - parseStart, -1, e.getClass());
+            throw e;
+        }
+        mStats.recordSpan(Stream.USER, Span.PARSE, System.nanoTime() - parseStart);
+        mStats.recordItemCount(Stream.USER, 1);
+        return user;
+    }
+    
+    /**
+     * Parse the favorites list, recording parsing time and item count for the favorites stream.
+     * 
+     * @param json the body of the favorites response
+     * @return the parsed favorites
+     * @throws JSONException if the body is not a valid favorites list
+     */
+    private List<Favorite> decodeFavorites(final String json) throws JSONException {
+        byte[] bytes = json.getBytes(UTF_8);
+        return decodeFavorites(bytes, bytes.length);
+    }
+    
+    private List<Favorite> decodeFavorites(final byte[] json, int length) throws JSONException {
+        long parseStart = System.nanoTime();
+        List<Favorite> favorites;
+        try {
+            // only the favorites whose JSON changed since the previous cycle are parsed
+            favorites = mFavoritesDecoder.decode(json, length, mCycleDeadline);
+        } catch (JSONException e) {
+            if (!mCycleDeadline.isExpired()) {
+                // a decode given up at the deadline is accounted as a cycle timeout instead
+                mStats.recordFailure(Stream.FAVORITES, Span.PARSE, System.nanoTime() - parseStart, 
+                        -1, e.getClass());
+            }
+            throw e;
+        }
+        mStats.recordSpan(Stream.FAVORITES, Span.PARSE, System.nanoTime() - parseStart);
+        mStats.recordItemCount(Stream.FAVORITES, favorites.size());
+        return favorites;
+    }
+    
+    /**
+     * Parse a page of the favorites activity feed, recording parsing time and the number of changes
+     * for the favorites stream.
+     * 
+     * @param json the body of the activity feed response
+     * @return the parsed changes
+     * @throws JSONException if the body is not a valid activity feed page
+     */
+    private FavoritesChanges decodeFavoritesChanges(final String json) throws JSONException {
+        long parseStart = System.nanoTime();
+        FavoritesChanges changes;
+        try {
+            changes = FavoritesChanges.buildFromJson(json);
+        } catch (JSONException e) {
+            mStats.recordFailure(Stream.FAVORITES, Span.PARSE, System.nanoTime() - parseStart, 
+                    -1, e.getClass());
+            throw e;
+        }
+        mStats.recordSpan(Stream.FAVORITES, Span.PARSE, System.nanoTime() - parseStart);
+        mStats.recordItemCount(Stream.FAVORITES, changes.getChanged().size() + changes.getRemovedIds().size());
+        return changes;
+    }
+    
+    /**
+     * @return the async fetch engine, created on first use, or null if cycles must run on the 
+     * blocking path
+     */
+    synchronized private AsyncFetchEngine getFetchEngine() {
+        if (!mConfiguration.getAsyncFetchEnabled()) {
+            return null;
+        }
+        for (String server : mConfiguration.getApiHostingServers()) {
+            if (!server.startsWith("http://")) {
+                return null;
+            }
+        }
+        if (mFetchEngine == null) {
+            try {
+                // two streams, each fetching, decoding and archiving: a pool of 2 threads is enough
+                mFetchEngine = new AsyncFetchEngine(2, 4, 2, ASYNC_FETCH_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to start the async fetch engine, falling back to blocking fetches", e);
+                return null;
+            }
+        }
+        return mFetchEngine;
+    }
+    
+    /**
+     * Notify observers about an occurred error.
+     * 
+     * Note that all observers notifications are posted on the main thread.
+     * 
+     * @param error the error that occurred
+     */
+    synchronized private void notifyError(final Error error) {
+    	
     	new Handler(Looper.getMainLooper()).post(new Runnable() {		
             @Override
             public void run() {
@@ -413,30 +2124,440 @@ public class DataProvider {
     }
     
     /**
-     * Archive current user data, if available.
+     * Queue current user data for archiving, if available. Data is archived by the write-behind writer, 
+     * the latest snapshot of each stream only if several are queued before it gets to them.
+     * 
+     * @param streams the streams to archive, the ones refreshed by the last cycle
      */
-    private void saveState() throws ArchiveSaveException {      
-        if (mUser != null && mFavorites != null)  {           
-            Archiver.saveObject(mUser, "user", mContext.getFilesDir());
-            Archiver.saveObjectList(mFavorites, "favorites", mContext.getFilesDir());
+    synchronized private void saveState(final List<Stream> streams) {      
+        final File directory = getCacheDirectory();
+        final User user = mUser;
+        if (user != null && streams.contains(Stream.USER))  {           
+            final Archiver.RawWriter raw = takePendingRaw(Stream.USER, user);
+            mWriteQueue.submit(Stream.USER.name(), new WriteBehindQueue.DiscardableWrite() {
+                @Override
+                public void write() throws ArchiveSaveException {
+                    long start = System.nanoTime();
+                    // the response cached as received replaces the serialized user, or vice versa
+                    if (raw != null) {
+                        raw.commit();
+                        Archiver.delete("user", directory);
+                    } else {
+                        Archiver.saveObject(user, "user", directory, mArchivePolicy);
+                        Archiver.delete(USER_RAW_TAG, directory);
+                    }
+                    mStats.recordSpan(Stream.USER, Span.SAVE_STATE, System.nanoTime() - start);
+                }
+                
+                @Override
+                public void discard() {
+                    if (raw != null) {
+                        raw.abort();
+                    }
+                }
+            });
+        }
+        final List<Favorite> favorites = mFavorites;
+        final String cursor = mFavoritesCursor;
+        if (favorites != null && streams.contains(Stream.FAVORITES))  {           
+            final Archiver.RawWriter raw = takePendingRaw(Stream.FAVORITES, favorites);
+            // list and cursor are a single write, so that they are archived in this order
+            mWriteQueue.submit(Stream.FAVORITES.name(), new WriteBehindQueue.DiscardableWrite() {
+                @Override
+                public void write() throws ArchiveSaveException {
+                    long start = System.nanoTime();
+                    // the analytics are saved first, so that they are never older than the archived 
+                    // list and cursor: changes replayed after a restore leave them as they are
+                    mAnalytics.save(FAVORITES_ANALYTICS_TAG, directory, mArchivePolicy);
+                    // lists resulting from incremental changes have no response to cache, and a view of 
+                    // the archive is archived already
+                    if (raw != null) {
+                        raw.commit();
+                        Archiver.delete("favorites", directory);
+                    } else if (!(favorites instanceof Archiver.ShardedList)) {
+                        Archiver.saveObjectListSharded(favorites, "favorites", directory, mArchivePolicy, 
+                                FAVORITES_SHARD_SIZE);
+                        Archiver.delete(FAVORITES_RAW_TAG, directory);
+                        holdArchived(favorites, directory);
+                    }
+                    // the cursor is saved after the list it applies to: if interrupted in between, the 
+                    // previous cursor is restored, and changes are replayed, which is harmless
+                    if (cursor != null) {
+                        Archiver.saveObject(cursor, FAVORITES_CURSOR_TAG, directory, mArchivePolicy);
+                    } else {
+                        Archiver.delete(FAVORITES_CURSOR_TAG, directory);
+                    }
+                    mStats.recordSpan(Stream.FAVORITES, Span.SAVE_STATE, System.nanoTime() - start);
+                }
+                
+                @Override
+                public void discard() {
+                    if (raw != null) {
+                        raw.abort();
+                    }
+                }
+            });
+            if (mConfiguration.getCounterHistoryEnabled()) {
+                // a separate write, so that a failure to record counts never fails the list archive
+                final CounterHistory history = getCounterHistory();
+                final long now = System.currentTimeMillis();
+                retainArchived(favorites);
+                mWriteQueue.submit(HISTORY_WRITE_KEY, new WriteBehindQueue.DiscardableWrite() {
+                    @Override
+                    public void write() throws ArchiveSaveException {
+                        try {
+                            history.record(favorites, now);
+                        } finally {
+                            releaseArchived(favorites);
+                        }
+                    }
+                    
+                    @Override
+                    public void discard() {
+                        releaseArchived(favorites);
+                    }
+                });
+            }
         }
     }
     
     /**
-     * Un-archive saved user data, if possible
+     * @return a raw archive for the response of the given tag, null if responses are not cached as 
+     * received, or if the archive could not be created
+     */
+    private Archiver.RawWriter openRawCache(final String tag) {
+        if (!mConfiguration.getCacheDataEnabled() || !mConfiguration.getRawCacheEnabled()) {
+            return null;
+        }
+        try {
+            return Archiver.openRaw(tag, getCacheDirectory(), mArchivePolicy);
+        } catch (ArchiveSaveException e) {
+            // the response is cached as decoded data instead
+            Log.e(TAG, "Unable to cache " + tag + " as received");
+            return null;
+        }
+    }
+    
+    /**
+     * Keep the raw archive of a response, until the data decoded from it is archived.
+     * 
+     * @param stream the stream of the response
+     * @param data the data decoded from the response
+     * @param raw the raw archive of the response, null if none
+     */
+    synchronized private void setPendingRaw(final Stream stream, final Object data, 
+            final Archiver.RawWriter raw) {
+        PendingRaw previous = raw != null 
+                ? mPendingRaw.put(stream, new PendingRaw(data, raw)) : mPendingRaw.remove(stream);
+        if (previous != null) {
+            previous.mWriter.abort();
+        }
+    }
+    
+    /**
+     * @return the raw archive of the response the given data was decoded from, null if none; the raw 
+     * archive of any other response is aborted
+     */
+    synchronized private Archiver.RawWriter takePendingRaw(final Stream stream, final Object data) {
+        PendingRaw pending = mPendingRaw.remove(stream);
+        if (pending == null) {
+            return null;
+        }
+        if (pending.mData != data) {
+            // data of a failed cycle, or replaced by incremental changes
+            pending.mWriter.abort();
+            return null;
+        }
+        return pending.mWriter;
+    }
+    
+    /**
+     * Wait for the data queued for archiving to be archived, up to WRITE_FLUSH_TIMEOUT_MILLIS.
+     */
+    private void flushWrites() {
+        try {
+            if (!mWriteQueue.flush(WRITE_FLUSH_TIMEOUT_MILLIS)) {
+                Log.e(TAG, mWriteQueue.getPendingCount() + " writes still pending after flush timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Un-archive saved user data, if possible, for the given streams only. Data in memory is replaced
+     * only by the data actually restored.
+     * 
+     * @param streams the streams to restore, those not held in memory
+     * @return the streams whose data was restored, all of the given ones or none in all-or-nothing mode.
+     */
+    private Set<Stream> restoreState(final Set<Stream> streams) throws ArchiveRestoreException {
+        // data queued by a previous run must be archived before being read back
+        flushWrites();
+        User user = null;
+        List<Favorite> favorites = null;
+        String cursor = null;
+        if (streams.contains(Stream.USER)) {
+            long start = System.nanoTime();
+            user = restoreUser();
+            mStats.recordSpan(Stream.USER, Span.RESTORE_STATE, System.nanoTime() - start);
+        }
+        if (streams.contains(Stream.FAVORITES)) {
+            long start = System.nanoTime();
+            // a cursor applies to the list it was saved with: if the list is restored from its previous 
+            // generation, the cursor is dropped, and a full resync follows
+            boolean listIsCurrent = !mConfiguration.getIncrementalSyncEnabled() 
+                    || Archiver.isValid("favorites", getCacheDirectory())
+                    || Archiver.isValid(FAVORITES_RAW_TAG, getCacheDirectory());
+            favorites = restoreFavorites();
+            if (mConfiguration.getIncrementalSyncEnabled() && listIsCurrent) {
+                cursor = Archiver.restoreObject(FAVORITES_CURSOR_TAG, getCacheDirectory(), mArchivePolicy);
+            }
+            mStats.recordSpan(Stream.FAVORITES, Span.RESTORE_STATE, System.nanoTime() - start);
+        }
+        Set<Stream> restored = EnumSet.noneOf(Stream.class);
+        if (user != null) {
+            restored.add(Stream.USER);
+        }
+        if (favorites != null) {
+            restored.add(Stream.FAVORITES);
+        }
+        if (mConfiguration.getAllOrNothingUpdates() && restored.size() < streams.size()) {
+            restored.clear();
+        }
+        synchronized (this) {
+            // only restored streams are set, data in memory is never replaced by missing archives
+            if (restored.contains(Stream.USER)) {
+                mUser = user;
+                mFreshness.put(Stream.USER, new Freshness(Freshness.Source.DISK, 
+                        Math.max(Archiver.getLastSavedMillis("user", getCacheDirectory()), 
+                                Archiver.getLastSavedMillis(USER_RAW_TAG, getCacheDirectory()))));
+            }
+            if (restored.contains(Stream.FAVORITES)) {
+                setFavorites(favorites);
+                mFavoritesCursor = cursor;
+                mFavoritesReleased = false;
+                mFreshness.put(Stream.FAVORITES, new Freshness(Freshness.Source.DISK, 
+                        Math.max(Archiver.getLastSavedMillis("favorites", getCacheDirectory()), 
+                                Archiver.getLastSavedMillis(FAVORITES_RAW_TAG, getCacheDirectory()))));
+            }
+        }
+        if (restored.contains(Stream.FAVORITES)) {
+            restoreAnalytics(favorites);
+        }
+        return restored;
+    }
+    
+    /**
+     * Un-archive the saved favorites analytics, unless the analytics in memory are in sync already 
+     * (e.g. the favorites were released under memory pressure). If none were saved, they are built from
+     * the given favorites, which decodes them shard by shard if they are a view of the archive.
+     * 
+     * @param favorites the restored favorites
+     */
+    private void restoreAnalytics(final List<Favorite> favorites) {
+        synchronized (this) {
+            if (mAnalyticsSynced) {
+                return;
+            }
+            mAnalyticsSynced = true;
+        }
+        try {
+            if (mAnalytics.restore(FAVORITES_ANALYTICS_TAG, getCacheDirectory(), mArchivePolicy)) {
+                return;
+            }
+        } catch (ArchiveRestoreException e) {
+            Log.e(TAG, "Unable to restore the favorites analytics, rebuilding them");
+        }
+        mAnalytics.sync(favorites);
+    }
+    
+    /**
+     * Un-archive the saved user, decoding the response cached as received if any.
+     * 
+     * @return the user, null if none was saved
+     */
+    private User restoreUser() throws ArchiveRestoreException {
+        byte[] raw = Archiver.restoreRaw(USER_RAW_TAG, getCacheDirectory(), mArchivePolicy);
+        if (raw != null) {
+            try {
+                return User.buildFromJson(new String(raw, UTF_8));
+            } catch (JSONException e) {
+                Log.e(TAG, "Invalid cached user response: " + e.toString());
+                Archiver.delete(USER_RAW_TAG, getCacheDirectory());
+            }
+        }
+        return Archiver.restoreObject("user", getCacheDirectory(), mArchivePolicy);
+    }
+    
+    /**
+     * Un-archive the saved favorites, decoding the response cached as received if any: the decoder then 
+     * reuses the restored favorites for the unchanged elements of the next response. Favorites archived 
+     * in shards are not decoded, a view of the archive is returned, checked against the shard headers.
+     * 
+     * @return the favorites, null if none were saved
+     */
+    private List<Favorite> restoreFavorites() throws ArchiveRestoreException {
+        byte[] raw = Archiver.restoreRaw(FAVORITES_RAW_TAG, getCacheDirectory(), mArchivePolicy);
+        if (raw != null) {
+            try {
+                return mFavoritesDecoder.decode(raw, raw.length, mCycleDeadline);
+            } catch (JSONException e) {
+                if (mCycleDeadline.isExpired()) {
+                    // the cached response is valid, it is decoded again by the next restore
+                    throw new ArchiveRestoreException();
+                }
+                Log.e(TAG, "Invalid cached favorites response: " + e.toString());
+                Archiver.delete(FAVORITES_RAW_TAG, getCacheDirectory());
+            }
+        }
+        Archiver.Shards<Favorite> shards = Archiver.openSharded("favorites", getCacheDirectory(), 
+                mArchivePolicy);
+        if (shards != null) {
+            return shards.asList();
+        }
+        // saved as a whole, or no valid generation of shards: restored, or discarded, as a whole
+        return Archiver.restoreObjectListSharded("favorites", getCacheDirectory(), mArchivePolicy, 
+                mCycleDeadline);
+    }
+    
+    /**
+     * @return a view of the sharded archive in the given directory, if it holds the given favorites, the 
+     * given favorites otherwise
+     */
+    private List<Favorite> viewArchived(final List<Favorite> favorites, final File directory) {
+        Archiver.Shards<Favorite> shards = Archiver.openSharded("favorites", directory, mArchivePolicy);
+        return shards != null && shards.size() == favorites.size() ? shards.asList() : favorites;
+    }
+    
+    /**
+     * Replace the given favorites, just archived in shards, with a view of the archive, if they are still 
+     * the ones held: the list is dropped from memory, and observers are handed the pages of the archive, 
+     * so that they drop the list too. The data is the same, so observers are not notified as updated.
      * 
-     * @return true if unarchiving completed successfully, false otherwise.
+     * The decoder reuse index holds every favorite of the list too, it is released as well: the memory 
+     * held then no longer grows with the library, at the cost of parsing the next response in full.
+     */
+    private void holdArchived(final List<Favorite> favorites, final File directory) {
+        final List<Favorite> archived = viewArchived(favorites, directory);
+        synchronized (this) {
+            if (archived == favorites || mFavorites != favorites) {
+                // not archived in shards, or replaced meanwhile and archived next
+                return;
+            }
+            mFavoritesDecoder.release();
+            setFavorites(archived);
+            retainArchived(archived);
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    PageSource<Favorite> pages = getFavoritesPages(archived);
+                    for (FavoritesUpdateObserver observer : favoritesObservers) {
+                        observer.onFavoritesUpdate(pages);
+                    }
+                    observeFavorites(archived);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Hold the given favorites, pinning the shards of a view of the archive until replaced, so that they 
+     * are not deleted by newer saves while still read.
      */
-    private boolean restoreState() throws ArchiveRestoreException {
-        mUser = Archiver.restoreObject("user", mContext.getFilesDir());
-        mFavorites = Archiver.restoreObjectList("favorites", mContext.getFilesDir());
-        return mUser != null && mFavorites != null;
+    synchronized private void setFavorites(final List<Favorite> favorites) {
+        if (favorites == mFavorites) {
+            return;
+        }
+        retainArchived(favorites);
+        releaseArchived(mFavorites);
+        mFavorites = favorites;
+    }
+    
+    /**
+     * Account the given favorites, pinned by the caller, as dispatched to all the observers: the views 
+     * they were handed before are released. This must be invoked on the main thread.
+     */
+    private void observeFavorites(final List<Favorite> favorites) {
+        for (List<Favorite> observed : mObservedFavorites) {
+            releaseArchived(observed);
+        }
+        mObservedFavorites.clear();
+        mObservedFavorites.add(favorites);
+    }
+    
+    /**
+     * @return the pages of the given favorites, as handed to observers: decoded from the archive if the 
+     * favorites are a view of it, sliced from the list otherwise, e.g. until it is archived, or when 
+     * responses are cached as received. No I/O is performed.
+     */
+    private static PageSource<Favorite> getFavoritesPages(final List<Favorite> favorites) {
+        if (favorites instanceof Archiver.ShardedList) {
+            return new ArchivePageSource<Favorite>(((Archiver.ShardedList<Favorite>) favorites).getShards());
+        }
+        return new ListPageSource<Favorite>(favorites, FAVORITES_SHARD_SIZE);
+    }
+    
+    /**
+     * Pin the shards of the given favorites, if they are a view of the archive, see Archiver.Shards.retain().
+     */
+    private static void retainArchived(final List<Favorite> favorites) {
+        if (favorites instanceof Archiver.ShardedList) {
+            ((Archiver.ShardedList<Favorite>) favorites).getShards().retain();
+        }
+    }
+    
+    /**
+     * Release a pin taken by retainArchived().
+     */
+    private static void releaseArchived(final List<Favorite> favorites) {
+        if (favorites instanceof Archiver.ShardedList) {
+            ((Archiver.ShardedList<Favorite>) favorites).getShards().release();
+        }
+    }
+    
+    /**
+     * @return the given favorites in memory, decoded from the archive if they are a view of it, null if 
+     * the archive could not be read
+     */
+    private static List<Favorite> decodeArchived(final List<Favorite> favorites) {
+        if (!(favorites instanceof Archiver.ShardedList)) {
+            return favorites;
+        }
+        try {
+            return new ArrayList<Favorite>(favorites);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Archived favorites not readable, full resync: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * @return the length of the given string, 0 if null
+     */
+    private static int length(final String value) {
+        return value == null ? 0 : value.length();
+    }
+    
+    /**
+     * @return true if the given objects are both null, or equal
+     */
+    private static boolean same(final Object a, final Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+    
+    /**
+     * @return the directory where cached data is saved
+     */
+    private File getCacheDirectory()    {
+        File directory = mConfiguration.getCacheDirectory();
+        return directory != null ? directory : mContext.getFilesDir();
     }
     
     /**
      * A broadcast received to listed to changes to connectivity status.
      */
-    private BroadcastReceiver mConnReceiver = new BroadcastReceiver() {
+    private final BroadcastReceiver mConnReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             boolean noConnectivity = intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
@@ -450,8 +2571,27 @@ public class DataProvider {
     };
     
     /**
-     * A Singleton, ctor is private.
+     * The app shares INSTANCE. Other instances, e.g. driven by the load harnesses, must be configured
+     * with a cache directory of their own.
      */
-    private DataProvider() {
+    public DataProvider() {
+        mMemoryGovernor.register(MemoryGovernor.Tier.DECODED_FAVORITES, new MemoryGovernor.Releasable() {
+            @Override
+            public long release() {
+                return releaseFavorites();
+            }
+        });
+        mMemoryGovernor.register(MemoryGovernor.Tier.SECONDARY_INDEXES, new MemoryGovernor.Releasable() {
+            @Override
+            public long release() {
+                return (long) mFavoritesDecoder.release() * DECODER_ENTRY_SIZE_BYTES;
+            }
+        });
+        mMemoryGovernor.register(MemoryGovernor.Tier.IO_BUFFERS, new MemoryGovernor.Releasable() {
+            @Override
+            public long release() {
+                return mBufferPool.clear();
+            }
+        });
     }
 }
@@ -0,0 +1,56 @@
+package to.carleva.soundcloud.remote;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time an operation must be completed by, e.g. an update cycle: it is passed down to the
+ * calls the operation is made of, so that each of them gives up once it is reached. Time is measured
+ * with System.nanoTime(), so that wall clock changes have no effect.
+ *
+ * @author Andrea Carlevato
+ */
+public class Deadline {
+
+    private static final long NONE = Long.MAX_VALUE;
+
+    private final long mExpiryNanos;
+
+    /**
+     * @param timeoutMillis the time left from now, in milliseconds, 0 or less for no deadline
+     */
+    public Deadline(long timeoutMillis) {
+        mExpiryNanos = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : NONE;
+    }
+
+    /**
+     * @return true if the deadline was reached
+     */
+    public boolean isExpired() {
+        return mExpiryNanos != NONE && System.nanoTime() - mExpiryNanos >= 0;
+    }
+
+    /**
+     * @return the time left before the deadline, in milliseconds, 0 if it was reached, Long.MAX_VALUE
+     * if there is no deadline
+     */
+    public long getRemainingMillis() {
+        if (mExpiryNanos == NONE) {
+            return Long.MAX_VALUE;
+        }
+        // rounded up, so that a wait of the remaining time never ends before the deadline
+        return Math.max(0, (mExpiryNanos - System.nanoTime() + 999999) / 1000000);
+    }
+
+    /**
+     * @param timeoutMillis a timeout, in milliseconds
+     * @return the given timeout, shortened to the time left before the deadline, at least 1
+     */
+    public int bound(int timeoutMillis) {
+        return (int) Math.max(1, Math.min(timeoutMillis, getRemainingMillis()));
+    }
+
+    @Override
+    public String toString() {
+        return mExpiryNanos == NONE ? "none" : getRemainingMillis() + "ms";
+    }
+}
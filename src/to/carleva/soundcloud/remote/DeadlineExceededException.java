@@ -0,0 +1,18 @@
+package to.carleva.soundcloud.remote;
+
+import org.apache.http.HttpException;
+
+/**
+ * Exception thrown when an update cycle, or one of its HTTP calls, did not complete before the
+ * deadline of the cycle
+ * 
+ * @author Andrea Carlevato
+ */
+public class DeadlineExceededException extends HttpException {
+
+    private static final long serialVersionUID = 4417023978610385529L;
+    
+    public DeadlineExceededException() {
+        super("Deadline exceeded");
+    }
+}
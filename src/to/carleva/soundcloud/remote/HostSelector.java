@@ -0,0 +1,302 @@
+package to.carleva.soundcloud.remote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+
+import android.util.Log;
+
+/**
+ * Routes the calls to a service reachable through several hosts, e.g. regional API proxies. The latency
+ * and the error rate of each host are tracked as exponentially weighted moving averages, and calls are
+ * routed to the host expected to answer first, failing over to the next ones.
+ *
+ * A host which fails is taken out of the route for a back-off period, doubled at each consecutive
+ * failure. Once the period elapsed, the host is probed in the background with a call of the probe
+ * resource, and put back in the route as soon as it answers. Hosts out of the route are still tried,
+ * last, so that calls go on when all hosts failed.
+ *
+ * The class is thread safe.
+ *
+ * @author Andrea Carlevato
+ */
+public class HostSelector {
+
+    /**
+     * The health of a single host.
+     */
+    private static class Host {
+
+        private final String mUrl;
+        // moving averages, the latency is -1 until measured
+        private double mLatencyNanos = -1;
+        private double mErrorRate;
+        private int mConsecutiveFailures;
+        private long mDownUntilNanos;
+        private boolean mProbeScheduled;
+        private long mCallCount;
+        private long mFailureCount;
+
+        Host(final String url) {
+            mUrl = url;
+        }
+
+        boolean isDown() {
+            return mConsecutiveFailures > 0;
+        }
+
+        /**
+         * @return the expected latency, penalized by the error rate
+         */
+        double getScore() {
+            return Math.max(0, mLatencyNanos) * (1 + ERROR_PENALTY * mErrorRate);
+        }
+
+        @Override
+        public String toString() {
+            return mUrl + " latency=" + (mLatencyNanos < 0 ? "?" : (long) (mLatencyNanos / 1000000) + "ms")
+                    + " errors=" + Math.round(mErrorRate * 100) + "% calls=" + mCallCount + " failures="
+                    + mFailureCount + (isDown() ? " down" : "");
+        }
+    }
+
+    private static final String TAG = "HostSelector";
+    // weight of the latest call in the moving averages
+    private static final double EWMA_WEIGHT = 0.2;
+    // a host failing half of its calls ranks as if it were twice as slow
+    private static final double ERROR_PENALTY = 2;
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    private final Map<String, Host> mHosts = new LinkedHashMap<String, Host>();
+    private String mProbeResource = "/";
+    private ScheduledExecutorService mProber;
+    private long mFailoverCount;
+    private long mProbeCount;
+
+    /**
+     * Sets the hosts to route calls to, in order of preference when their latencies are unknown. The
+     * health of the hosts already known is kept.
+     *
+     * @param urls the base URLs of the hosts, e.g. "http://api.soundcloud.com"
+     */
+    synchronized public HostSelector setHosts(final List<String> urls) {
+        Map<String, Host> hosts = new LinkedHashMap<String, Host>();
+        for (String url : urls) {
+            Host host = mHosts.get(url);
+            hosts.put(url, host != null ? host : new Host(url));
+        }
+        mHosts.clear();
+        mHosts.putAll(hosts);
+        return this;
+    }
+
+    /**
+     * Sets the resource requested to probe a host which failed, relative to the host URL. Any answer,
+     * an error status below 500 included, puts the host back in the route. Default is "/".
+     *
+     * @param resource the resource
+     */
+    synchronized public HostSelector setProbeResource(final String resource) {
+        mProbeResource = resource;
+        return this;
+    }
+
+    /**
+     * @return the base URLs of the hosts, the ones expected to answer first first, and the ones which
+     * failed last
+     */
+    synchronized public List<String> getRoute() {
+        List<Host> hosts = new ArrayList<Host>(mHosts.values());
+        // stable: hosts of equal score, e.g. not measured yet, keep the configured order
+        Collections.sort(hosts, new Comparator<Host>() {
+            @Override
+            public int compare(final Host lhs, final Host rhs) {
+                if (lhs.isDown() != rhs.isDown()) {
+                    return lhs.isDown() ? 1 : -1;
+                }
+                if (lhs.isDown()) {
+                    // nanoTime() values are compared through their difference, which may overflow
+                    long diff = lhs.mDownUntilNanos - rhs.mDownUntilNanos;
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+                return Double.compare(lhs.getScore(), rhs.getScore());
+            }
+        });
+        List<String> route = new ArrayList<String>(hosts.size());
+        for (Host host : hosts) {
+            route.add(host.mUrl);
+        }
+        return route;
+    }
+
+    /**
+     * @param url an absolute URL
+     * @return the base URL of the host the given URL belongs to, null if it is none of the hosts
+     */
+    synchronized public String getHost(final String url) {
+        for (String host : mHosts.keySet()) {
+            // the URL must be on the host, not on a host whose name starts alike
+            if (url.startsWith(host) && (url.length() == host.length() 
+                    || "/?".indexOf(url.charAt(host.length())) >= 0)) {
+                return host;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Account a call answered by its host, measured by the given trace.
+     *
+     * @param url the URL of the call, ignored if on none of the hosts
+     * @param trace the trace of the call, its time to the response headers is the latency
+     */
+    public void recordSuccess(final String url, final HttpUtils.Trace trace) {
+        recordSuccess(url, trace.getConnectNanos());
+    }
+
+    /**
+     * Account a call answered by its host.
+     *
+     * @param url the URL of the call, ignored if on none of the hosts
+     * @param latencyNanos the time to the response headers, in nanoseconds
+     */
+    synchronized public void recordSuccess(final String url, long latencyNanos) {
+        Host host = find(url);
+        if (host == null) {
+            return;
+        }
+        host.mCallCount++;
+        host.mLatencyNanos = host.mLatencyNanos < 0 ? latencyNanos
+                : host.mLatencyNanos + EWMA_WEIGHT * (latencyNanos - host.mLatencyNanos);
+        host.mErrorRate -= EWMA_WEIGHT * host.mErrorRate;
+        host.mConsecutiveFailures = 0;
+    }
+
+    /**
+     * Account a call its host did not answer, or answered with a server error: the host is taken out of
+     * the route, and probed once its back-off period elapsed.
+     *
+     * @param url the URL of the call, ignored if on none of the hosts
+     */
+    synchronized public void recordFailure(final String url) {
+        Host host = find(url);
+        if (host == null) {
+            return;
+        }
+        host.mCallCount++;
+        host.mFailureCount++;
+        host.mErrorRate += EWMA_WEIGHT * (1 - host.mErrorRate);
+        long backoffMillis = Math.min(MAX_BACKOFF_MILLIS,
+                MIN_BACKOFF_MILLIS << Math.min(host.mConsecutiveFailures, 16));
+        host.mConsecutiveFailures++;
+        host.mDownUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+        if (mHosts.size() > 1 && !host.mProbeScheduled) {
+            // with a single host, calls go on regardless, there is nothing to route around
+            host.mProbeScheduled = true;
+            getProber().schedule(newProbe(host.mUrl), backoffMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Account a call retried on the next host of the route.
+     */
+    synchronized public void recordFailover() {
+        mFailoverCount++;
+    }
+
+    /**
+     * @return the number of calls retried on the next host of the route
+     */
+    synchronized public long getFailoverCount() {
+        return mFailoverCount;
+    }
+
+    /**
+     * @return the number of probes of hosts which failed
+     */
+    synchronized public long getProbeCount() {
+        return mProbeCount;
+    }
+
+    /**
+     * Stop probing the hosts which failed: they are put back in the route by the next call they answer.
+     * Probing resumes with the next failure.
+     */
+    synchronized public void shutdown() {
+        if (mProber != null) {
+            mProber.shutdownNow();
+            mProber = null;
+        }
+        for (Host host : mHosts.values()) {
+            host.mProbeScheduled = false;
+        }
+    }
+
+    @Override
+    synchronized public String toString() {
+        return mHosts.values() + " failovers=" + mFailoverCount + " probes=" + mProbeCount;
+    }
+
+    private Host find(final String url) {
+        String host = getHost(url);
+        return host != null ? mHosts.get(host) : null;
+    }
+
+    synchronized private ScheduledExecutorService getProber() {
+        if (mProber == null) {
+            mProber = Executors.newSingleThreadScheduledExecutor();
+        }
+        return mProber;
+    }
+
+    /**
+     * @return a probe of the given host, which is put back in the route if it answers, and probed again
+     * later otherwise
+     */
+    private Runnable newProbe(final String url) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                String resource;
+                synchronized (HostSelector.this) {
+                    Host host = mHosts.get(url);
+                    if (host == null || !host.mProbeScheduled) {
+                        // removed from the hosts, or probing was stopped
+                        return;
+                    }
+                    host.mProbeScheduled = false;
+                    if (!host.isDown()) {
+                        // a call got through in the meantime
+                        return;
+                    }
+                    mProbeCount++;
+                    resource = mProbeResource;
+                }
+                HttpUtils.Trace trace = new HttpUtils.Trace();
+                try {
+                    HttpUtils.readFromUrl(url + resource, trace);
+                } catch (HttpStatusException e) {
+                    if (e.getStatus() >= 500) {
+                        recordFailure(url);
+                        return;
+                    }
+                } catch (HttpException e) {
+                    recordFailure(url);
+                    return;
+                }
+                Log.i(TAG, "Host recovered: " + url);
+                // measured as the calls are, so that a probe does not skew the latency of the host
+                recordSuccess(url, trace);
+            }
+        };
+    }
+}
@@ -0,0 +1,30 @@
+package to.carleva.soundcloud.remote;
+
+import org.apache.http.HttpException;
+
+/**
+ * Exception thrown when the server answered an HTTP call with an error status
+ * 
+ * @author Andrea Carlevato
+ */
+public class HttpStatusException extends HttpException {
+
+    private static final long serialVersionUID = 9128411251122556150L;
+    
+    private final int mStatus;
+    
+    /**
+     * @param status the HTTP status code of the response
+     */
+    public HttpStatusException(int status) {
+        super("HTTP status " + status);
+        mStatus = status;
+    }
+    
+    /**
+     * @return the HTTP status code of the response
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+}
@@ -1,12 +1,12 @@
 package to.carleva.soundcloud.remote;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
 import org.apache.http.HttpException;
 
 import android.util.Log;
@@ -17,8 +17,152 @@ import android.util.Log;
  * @author Andrea Carlevato
  */
 public class HttpUtils  {
+    
+    /**
+     * Collects timings and sizes of a single HTTP GET call, and allows the call to be cancelled
+     * from another thread.
+     */
+    public static class Trace {
+        
+        private volatile HttpURLConnection mConnection;
+        private volatile boolean mCancelled;
+        private volatile Deadline mDeadline;
+        private long mConnectNanos;
+        private long mDownloadNanos;
+        private long mBytes;
+        private int mResponseCode = -1;
+        private Class<? extends Exception> mError;
+        
+        /**
+         * @return the time spent connecting and waiting for the response headers, in nanoseconds
+         */
+        public long getConnectNanos() {
+            return mConnectNanos;
+        }
+        
+        /**
+         * @return the time spent reading the response body, in nanoseconds
+         */
+        public long getDownloadNanos() {
+            return mDownloadNanos;
+        }
+        
+        /**
+         * @return the number of bytes of the response body
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+        
+        /**
+         * @return the HTTP status code of the response, -1 if no response was received
+         */
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+        
+        /**
+         * @return the class of the exception that failed the call, null if the call succeeded
+         */
+        public Class<? extends Exception> getError() {
+            return mError;
+        }
+        
+        /**
+         * Cancel the call: a call in progress is aborted right away, a call not started yet fails as
+         * soon as it starts. Either way, the call throws an HttpException.
+         */
+        public void cancel() {
+            mCancelled = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+        
+        /**
+         * @return true if the call was cancelled
+         */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+        
+        /**
+         * Sets the deadline of the call: connect and read timeouts are shortened to the time left, and 
+         * the call fails with a DeadlineExceededException once it is reached. Default is none.
+         * 
+         * @param deadline the deadline, null for none
+         */
+        public Trace setDeadline(final Deadline deadline) {
+            mDeadline = deadline;
+            return this;
+        }
+        
+        /**
+         * @return true if the deadline of the call was reached
+         */
+        public boolean isDeadlineExpired() {
+            Deadline deadline = mDeadline;
+            return deadline != null && deadline.isExpired();
+        }
+    }
+	
+    /**
+     * A response body, held in a buffer of a BufferPool: a view of its bytes, valid until released.
+     */
+    public static class Body {
+        
+        private final byte[] mBuffer;
+        private final int mLength;
+        private final BufferPool mPool;
+        private boolean mReleased;
+        
+        Body(final byte[] buffer, int length, final BufferPool pool) {
+            mBuffer = buffer;
+            mLength = length;
+            mPool = pool;
+        }
+        
+        /**
+         * @return the buffer holding the body, from its first byte; it may be larger than the body
+         */
+        public byte[] getBuffer() {
+            return mBuffer;
+        }
+        
+        /**
+         * @return the length of the body, in bytes
+         */
+        public int getLength() {
+            return mLength;
+        }
+        
+        /**
+         * Give the buffer back to its pool, the body must not be used anymore. Further calls have no 
+         * effect.
+         */
+        synchronized public void release() {
+            if (!mReleased) {
+                mReleased = true;
+                mPool.release(mBuffer);
+            }
+        }
+        
+        /**
+         * @return the body decoded as UTF-8
+         */
+        @Override
+        public String toString() {
+            return new String(mBuffer, 0, mLength, UTF_8);
+        }
+    }
 	
 	private static final String TAG = "HttpUtils";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	// a stalled server must not block the update loop forever; the read timeout bounds each read only,
+	// so a server dripping a few bytes at a time is bounded by the trace deadline, not by these
+	private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+	private static final int READ_TIMEOUT_MILLIS = 20 * 1000;
 	
     /**
      * Returns a string with the body of the HTTP GET response, for the given URL
@@ -27,30 +171,238 @@ public class HttpUtils  {
      * @return a string containing the body of the response
      * @throws HttpException if the operation failed for any reason
      */
-    public static String readFromUrl(final String url) throws HttpException {       
+    public static String readFromUrl(final String url) throws HttpException {
+        return readFromUrl(url, new Trace());
+    }
+
+    /**
+     * Returns a string with the body of the HTTP GET response, for the given URL, collecting
+     * timings and sizes of the call into the given trace
+     *
+     * @param url the URL of the resource to retrieve
+     * @param trace the Trace instance to fill, also when the call fails
+     * @return a string containing the body of the response
+     * @throws HttpException if the operation failed for any reason, an HttpStatusException if the 
+     * server answered with an error status
+     */
+    public static String readFromUrl(final String url, final Trace trace) throws HttpException {
+        return readFromUrl(url, trace, null);
+    }
+
+    /**
+     * Returns a string with the body of the HTTP GET response, for the given URL, collecting
+     * timings and sizes of the call into the given trace, and copying the body bytes, as they are 
+     * received, to the given stream
+     *
+     * @param url the URL of the resource to retrieve
+     * @param trace the Trace instance to fill, also when the call fails
+     * @param tee the stream the body bytes are copied to while being read, null if none; on failure, it 
+     * may have received part of the body
+     * @return a string containing the body of the response
+     * @throws HttpException if the operation failed for any reason, an HttpStatusException if the 
+     * server answered with an error status
+     */
+    public static String readFromUrl(final String url, final Trace trace, final OutputStream tee) 
+            throws HttpException {
+        Body body = readBody(url, trace, tee, new BufferPool());
+        try {
+            return body.toString();
+        } finally {
+            body.release();
+        }
+    }
 
+    /**
+     * Returns the body of the HTTP GET response, for the given URL, read into a buffer of the given 
+     * pool, collecting timings and sizes of the call into the given trace, and copying the body bytes, 
+     * as they are received, to the given stream. The body is read as it is, with no decoding.
+     *
+     * @param url the URL of the resource to retrieve
+     * @param trace the Trace instance to fill, also when the call fails
+     * @param tee the stream the body bytes are copied to while being read, null if none; on failure, it 
+     * may have received part of the body
+     * @param pool the pool the body buffer is taken from
+     * @return the body, which must be released once used
+     * @throws HttpException if the operation failed for any reason, an HttpStatusException if the 
+     * server answered with an error status, a DeadlineExceededException if the deadline of the trace 
+     * was reached
+     */
+    public static Body readBody(final String url, final Trace trace, final OutputStream tee, 
+            final BufferPool pool) throws HttpException {
+
+        long start = System.nanoTime();
+        HttpURLConnection urlConnection = null;
+        InputStream in = null;
+        boolean completed = false;
         try {
-        	HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
-        	
+        	urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        	Deadline deadline = trace.mDeadline;
+        	urlConnection.setConnectTimeout(deadline != null ? deadline.bound(CONNECT_TIMEOUT_MILLIS) 
+        	        : CONNECT_TIMEOUT_MILLIS);
+        	urlConnection.setReadTimeout(deadline != null ? deadline.bound(READ_TIMEOUT_MILLIS) 
+        	        : READ_TIMEOUT_MILLIS);
+
         	urlConnection.addRequestProperty("Cache-Control", "no-cache");
         	urlConnection.addRequestProperty("Cache-Control", "max-age=0");
-  
-    		InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-    		StringBuilder sb = new StringBuilder();
-            BufferedReader reader = 
-                   new BufferedReader(new InputStreamReader(in), 65728);
-            
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
-            }
-        	
-            return sb.toString();
+
+        	// published before checking the flag, so that a concurrent cancel() is never missed
+        	trace.mConnection = urlConnection;
+        	if (trace.mCancelled) {
+        	    throw new IOException("Call cancelled");
+        	}
+        	if (trace.isDeadlineExpired()) {
+        	    throw new IOException("Deadline exceeded");
+        	}
+
+        	// the status is read first, so that it is traced also for error responses
+        	trace.mResponseCode = urlConnection.getResponseCode();
+        	CountingInputStream counter = new CountingInputStream(urlConnection.getInputStream());
+        	trace.mConnectNanos = System.nanoTime() - start;
+        	start = System.nanoTime();
+
+            // the body is read straight into a pooled buffer, sized after the content length if known
+            in = tee != null ? new TeeInputStream(counter, tee) : counter;
+            int length = urlConnection.getContentLength();
+            byte[] buffer = pool.acquire(length >= 0 ? length + 1 : 0);
+            int count = 0;
+            try {
+                int read;
+                while ((read = in.read(buffer, count, buffer.length - count)) != -1) {
+                    if (trace.isDeadlineExpired()) {
+                        // a body trickling in must not outlast the deadline, whatever the read timeout
+                        throw new IOException("Deadline exceeded");
+                    }
+                    count += read;
+                    if (count == buffer.length) {
+                        buffer = pool.grow(buffer, count);
+                    }
+                }
+                in.close();
+            } catch (IOException e) {
+                pool.release(buffer);
+                throw e;
+            }
+
+            trace.mDownloadNanos = System.nanoTime() - start;
+            trace.mBytes = counter.getCount();
+
+            completed = true;
+            return new Body(buffer, count, pool);
         } catch (IOException e) {
         	Log.e(TAG, "Error performing readFromUrl: " + e.toString());
+        	// charge the time elapsed to the phase that failed
+        	if (trace.mConnectNanos == 0)   {
+        	    trace.mConnectNanos = System.nanoTime() - start;
+        	} else {
+        	    trace.mDownloadNanos = System.nanoTime() - start;
+        	}
+        	trace.mError = e.getClass();
+        	if (trace.isDeadlineExpired()) {
+        	    throw new DeadlineExceededException();
+        	}
+        	if (trace.mResponseCode >= 400) {
+        	    throw new HttpStatusException(trace.mResponseCode);
+        	}
             throw new HttpException();
+        } finally {
+            if (!completed) {
+                // a failed exchange, e.g. a body cut off at the deadline, must not keep its socket open
+                // while the server goes on sending: the connection is not reused
+                closeQuietly(in);
+                if (urlConnection != null) {
+                    urlConnection.disconnect();
+                }
+            }
         }
     }
-    
 
+    private static void closeQuietly(final InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * An input stream that copies the bytes read through it to an output stream.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream mTee;
+
+        TeeInputStream(InputStream in, OutputStream tee) {
+            super(in);
+            mTee = tee;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mTee.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mTee.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must reach the tee too
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+    }
+
+    /**
+     * An input stream that counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
 }
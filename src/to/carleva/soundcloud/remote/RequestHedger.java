@@ -0,0 +1,341 @@
+package to.carleva.soundcloud.remote;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+
+import android.util.Log;
+import to.carleva.soundcloud.stats.Histogram;
+
+/**
+ * Hedges slow calls: when a call has not completed within the 95th percentile of the latencies of
+ * the previous calls of its kind, a duplicate is issued, the first successful response is used and
+ * the other call is cancelled.
+ *
+ * Hedges are capped by a budget, as a percentage of the calls: each call earns a fraction of a hedge,
+ * and a hedge is only issued if a whole one was earned, so that hedging never adds more than the
+ * budget of extra load (a few hedges can be issued in a burst, after a calm period). Calls are not
+ * hedged until enough latencies of their kind were collected. A latency runs from the start of the
+ * call to its first successful response, so that hedged calls count with the delay they waited.
+ *
+ * Calls run on threads of the hedger, the calling thread waits for them. The class is thread safe.
+ *
+ * @author Andrea Carlevato
+ */
+public class RequestHedger {
+
+    /**
+     * A call to hedge, which may run twice concurrently.
+     */
+    public interface Attempt<T> {
+        /**
+         * Perform the call. This is invoked on a thread of the hedger.
+         *
+         * @param trace the trace of the call, cancelled if the other call wins
+         * @return the result of the call
+         * @throws HttpException if the call failed for any reason
+         */
+        T run(final HttpUtils.Trace trace) throws HttpException;
+
+        /**
+         * Dispose of the result of a call which lost the race.
+         *
+         * @param result the result
+         */
+        void discard(final T result);
+    }
+
+    private static final String TAG = "RequestHedger";
+    private static final double DEFAULT_BUDGET_PERCENT = 5;
+    // latencies collected for a kind of call before it is hedged
+    private static final int MIN_SAMPLES = 20;
+    private static final int LATENCY_WINDOW_SIZE = 128;
+    // hedges issued in a burst at most, when the budget was not used for a while
+    private static final double MAX_BURST = 3;
+
+    private final Map<String, Histogram> mLatencies = new HashMap<String, Histogram>();
+    private double mBudgetPercent = DEFAULT_BUDGET_PERCENT;
+    private double mTokens;
+    private ExecutorService mExecutor;
+    private long mCallCount;
+    private long mHedgeCount;
+    private long mHedgeWinCount;
+    private long mDeniedCount;
+
+    /**
+     * Sets the maximum extra load of the hedges, as a percentage of the calls. Default is 5.
+     *
+     * @param percent the percentage, 0 to disable hedging
+     */
+    synchronized public RequestHedger setBudgetPercent(double percent) {
+        mBudgetPercent = Math.max(0, percent);
+        return this;
+    }
+
+    /**
+     * Perform the given call, hedging it if it is slow and the budget allows.
+     *
+     * @param key the kind of the call, whose latencies set the hedging delay
+     * @param attempt the call
+     * @return the result of the first successful call
+     * @throws HttpException if all the calls failed, with the error of the first one, if the calling
+     * thread was interrupted, or if the hedger was shut down meanwhile
+     */
+    public <T> T execute(final String key, final Attempt<T> attempt) throws HttpException {
+        long delayNanos;
+        synchronized (this) {
+            mCallCount++;
+            mTokens = Math.min(MAX_BURST, mTokens + mBudgetPercent / 100);
+            delayNanos = getDelayNanos(key);
+        }
+        Call<T> call = new Call<T>(key, attempt);
+        if (!call.start(false)) {
+            throw new HttpException("Hedger shut down");
+        }
+        try {
+            if (delayNanos >= 0 && !call.await(delayNanos)) {
+                call.hedge();
+            }
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            call.abandon();
+            throw new HttpException();
+        }
+    }
+
+    /**
+     * @return the delay after which a call of the given kind is hedged, in nanoseconds, -1 if not
+     * enough latencies were collected yet
+     */
+    synchronized public long getDelayNanos(final String key) {
+        Histogram latencies = mLatencies.get(key);
+        if (latencies == null) {
+            return -1;
+        }
+        Histogram.Snapshot snapshot = latencies.snapshot();
+        return snapshot.getCount() < MIN_SAMPLES ? -1 : snapshot.getP95();
+    }
+
+    /**
+     * @return the number of calls performed
+     */
+    synchronized public long getCallCount() {
+        return mCallCount;
+    }
+
+    /**
+     * @return the number of hedges issued
+     */
+    synchronized public long getHedgeCount() {
+        return mHedgeCount;
+    }
+
+    /**
+     * @return the number of hedges which completed before the call they duplicated
+     */
+    synchronized public long getHedgeWinCount() {
+        return mHedgeWinCount;
+    }
+
+    /**
+     * @return the number of hedges not issued, because the budget was used up
+     */
+    synchronized public long getDeniedCount() {
+        return mDeniedCount;
+    }
+
+    /**
+     * Stop the threads of the hedger, cancelling the calls in progress. The hedger can still be used
+     * afterwards.
+     */
+    synchronized public void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    @Override
+    synchronized public String toString() {
+        return "calls=" + mCallCount + " hedges=" + mHedgeCount + " won=" + mHedgeWinCount + " denied="
+                + mDeniedCount;
+    }
+
+    synchronized private boolean acquireHedge() {
+        if (mTokens < 1) {
+            mDeniedCount++;
+            return false;
+        }
+        mTokens--;
+        mHedgeCount++;
+        return true;
+    }
+
+    synchronized private void onCompleted(final String key, long latencyNanos, boolean hedgeWon) {
+        Histogram latencies = mLatencies.get(key);
+        if (latencies == null) {
+            latencies = new Histogram(LATENCY_WINDOW_SIZE);
+            mLatencies.put(key, latencies);
+        }
+        latencies.record(latencyNanos);
+        if (hedgeWon) {
+            mHedgeWinCount++;
+        }
+    }
+
+    synchronized private ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newCachedThreadPool();
+        }
+        return mExecutor;
+    }
+
+    /**
+     * A hedged call: the original call, and its hedge if issued.
+     */
+    private class Call<T> {
+
+        private final String mKey;
+        private final Attempt<T> mAttempt;
+        private final List<HttpUtils.Trace> mTraces = new ArrayList<HttpUtils.Trace>();
+        private final long mStartNanos = System.nanoTime();
+        private int mPending;
+        private boolean mDone;
+        private T mResult;
+        private HttpException mError;
+
+        Call(final String key, final Attempt<T> attempt) {
+            mKey = key;
+            mAttempt = attempt;
+        }
+
+        /**
+         * Issue the hedge, unless the call completed meanwhile or the budget is used up. A hedge
+         * rejected by a shutdown leaves the call to complete alone.
+         */
+        synchronized void hedge() {
+            // the call may have completed since the wait timed out: no hedge, no token spent
+            if (mDone || mPending == 0) {
+                return;
+            }
+            if (acquireHedge()) {
+                start(true);
+            }
+        }
+
+        /**
+         * @return true if the call was started, false if the hedger was shut down meanwhile
+         */
+        synchronized boolean start(final boolean hedge) {
+            final HttpUtils.Trace trace = new HttpUtils.Trace();
+            Runnable run = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onResult(mAttempt.run(trace), trace, hedge);
+                    } catch (HttpException e) {
+                        onError(e);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Unexpected error in " + mKey + " call: " + e.toString());
+                        onError(new HttpException());
+                    }
+                }
+            };
+            try {
+                getExecutor().execute(run);
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+            mTraces.add(trace);
+            mPending++;
+            return true;
+        }
+
+        /**
+         * Wait for the call to complete, up to the given time.
+         *
+         * @return true if the call completed
+         */
+        synchronized boolean await(long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            long remaining = timeoutNanos;
+            while (!mDone && mPending > 0 && remaining > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+            return mDone || mPending == 0;
+        }
+
+        /**
+         * Wait for the first successful result, or for all the calls to fail.
+         */
+        synchronized T get() throws HttpException, InterruptedException {
+            while (!mDone && mPending > 0) {
+                wait();
+            }
+            if (mDone) {
+                return mResult;
+            }
+            throw mError;
+        }
+
+        /**
+         * Give up on the call: the calls in progress are cancelled, their results discarded.
+         */
+        void abandon() {
+            T result;
+            synchronized (this) {
+                result = mResult;
+                mResult = null;
+                mDone = true;
+                for (HttpUtils.Trace trace : mTraces) {
+                    trace.cancel();
+                }
+            }
+            if (result != null) {
+                mAttempt.discard(result);
+            }
+        }
+
+        private void onResult(final T result, final HttpUtils.Trace own, boolean hedge) {
+            // latencies are those of the logical call, a hedge included the delay before it was issued
+            long latencyNanos = System.nanoTime() - mStartNanos;
+            boolean won;
+            synchronized (this) {
+                mPending--;
+                won = !mDone;
+                if (won) {
+                    mDone = true;
+                    mResult = result;
+                    // the other call, if any, is cancelled
+                    for (HttpUtils.Trace trace : mTraces) {
+                        if (trace != own) {
+                            trace.cancel();
+                        }
+                    }
+                    notifyAll();
+                }
+            }
+            onCompleted(mKey, latencyNanos, won && hedge);
+            if (!won) {
+                mAttempt.discard(result);
+            }
+        }
+
+        synchronized private void onError(final HttpException e) {
+            mPending--;
+            if (mError == null) {
+                mError = e;
+            }
+            notifyAll();
+        }
+    }
+}
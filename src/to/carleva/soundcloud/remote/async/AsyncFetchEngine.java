@@ -0,0 +1,187 @@
+package to.carleva.soundcloud.remote.async;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An asynchronous fetch engine, serving fetch, decode and persist stages of any number of streams
+ * (and accounts) from one small thread pool.
+ *
+ * Fetches run on a non-blocking AsyncHttpClient, so no thread is parked on network I/O. Decode and
+ * persist stages run on the shared pool, each stage with its own concurrency limit; fetches are
+ * limited too, queued ones start as soon as one in flight completes. Stages are chained through
+ * Promises:
+ *
+ *     engine.fetch(url)
+ *         .then(decode, engine.getDecodeStage())
+ *         .then(persist, engine.getPersistStage());
+ *
+ * @author Andrea Carlevato
+ */
+public class AsyncFetchEngine {
+
+    private final ExecutorService mPool;
+    private final AsyncHttpClient mClient;
+    private final StageExecutor mDecodeStage;
+    private final StageExecutor mPersistStage;
+    private final int mMaxConcurrentFetches;
+    private final Queue<Promise.Stage> mQueuedFetches = new LinkedList<Promise.Stage>();
+    private int mFetchesInFlight;
+    private boolean mShutdown;
+    // incremented by cancelAll(), fetches of a previous generation are failed instead of started
+    private int mGeneration;
+
+    /**
+     * @param poolThreads the number of threads of the shared pool
+     * @param maxConcurrentFetches the maximum number of HTTP exchanges in flight
+     * @param maxConcurrentDecodes the maximum number of decode tasks running at the same time
+     * @param timeoutMillis the maximum duration of each HTTP exchange
+     * @throws IOException if the HTTP client could not be started
+     */
+    public AsyncFetchEngine(int poolThreads, int maxConcurrentFetches, int maxConcurrentDecodes,
+            long timeoutMillis) throws IOException {
+        mPool = Executors.newFixedThreadPool(poolThreads);
+        mClient = new AsyncHttpClient(timeoutMillis);
+        mDecodeStage = new StageExecutor("decode", mPool, maxConcurrentDecodes);
+        // persisting is serialized, archives are not meant to be written concurrently
+        mPersistStage = new StageExecutor("persist", mPool, 1);
+        mMaxConcurrentFetches = maxConcurrentFetches;
+    }
+
+    /**
+     * Fetch the given URL, as soon as the fetch concurrency limit allows.
+     *
+     * @param url an http URL
+     * @return a Promise of the response
+     */
+    public Promise<AsyncHttpClient.Response> fetch(final String url) {
+        final Promise<AsyncHttpClient.Response> result = new Promise<AsyncHttpClient.Response>();
+        final int generation = getGeneration();
+        Promise.Stage start = new Promise.Stage() {
+            @Override
+            public void run() {
+                if (generation != getGeneration()) {
+                    onFetchDone();
+                    result.fail(new IOException("Fetch cancelled"));
+                    return;
+                }
+                mClient.get(url).addCallback(new Promise.Callback<AsyncHttpClient.Response>() {
+                    @Override
+                    public void onSuccess(final AsyncHttpClient.Response response) {
+                        onFetchDone();
+                        result.complete(response);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable error) {
+                        onFetchDone();
+                        result.fail(error);
+                    }
+                });
+            }
+
+            @Override
+            public void fail(final Throwable error) {
+                result.fail(error);
+            }
+        };
+
+        synchronized (this) {
+            if (mShutdown) {
+                return Promise.failed(new IOException("Engine is shut down"));
+            }
+            if (mFetchesInFlight >= mMaxConcurrentFetches) {
+                mQueuedFetches.add(start);
+                return result;
+            }
+            mFetchesInFlight++;
+        }
+        start.run();
+        return result;
+    }
+
+    /**
+     * @return the executor decode stages must be chained on
+     */
+    public Executor getDecodeStage() {
+        return mDecodeStage;
+    }
+
+    /**
+     * @return the executor persist stages must be chained on
+     */
+    public Executor getPersistStage() {
+        return mPersistStage;
+    }
+
+    /**
+     * @return the shared pool, for short stages not needing a concurrency limit
+     */
+    public Executor getPool() {
+        return mPool;
+    }
+
+    /**
+     * Cancel all the fetches in flight or queued so far, failing them with an IOException. Stages
+     * chained on them fail as well, the engine remains usable for new fetches.
+     */
+    public void cancelAll() {
+        synchronized (this) {
+            mGeneration++;
+        }
+        mClient.cancelAll();
+    }
+
+    /**
+     * Stop the engine. Fetches in flight or queued are failed, and so are the stages queued on the
+     * pool; running stages are interrupted. Fetches started later fail right away.
+     */
+    public void shutdown() {
+        List<Promise.Stage> queued;
+        synchronized (this) {
+            mShutdown = true;
+            queued = new ArrayList<Promise.Stage>(mQueuedFetches);
+            mQueuedFetches.clear();
+        }
+        IOException error = new IOException("Engine is shut down");
+        for (Promise.Stage start : queued) {
+            start.fail(error);
+        }
+        // in flight exchanges are failed by the client, on its selector thread
+        mClient.shutdown();
+        for (Runnable task : mPool.shutdownNow()) {
+            Promise.failStage(task, error);
+        }
+    }
+
+    synchronized private int getGeneration() {
+        return mGeneration;
+    }
+
+    private void onFetchDone() {
+        Promise.Stage next;
+        synchronized (this) {
+            next = mQueuedFetches.poll();
+            if (next == null) {
+                mFetchesInFlight--;
+            }
+        }
+        if (next != null) {
+            // started from the pool, not to run client calls on the selector thread
+            try {
+                mPool.execute(next);
+            } catch (RejectedExecutionException e) {
+                // shut down meanwhile, this usually runs on the selector thread which must go on
+                next.fail(e);
+                onFetchDone();
+            }
+        }
+    }
+}
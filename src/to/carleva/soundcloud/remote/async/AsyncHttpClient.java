@@ -0,0 +1,542 @@
+package to.carleva.soundcloud.remote.async;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+
+/**
+ * A non-blocking HTTP/1.1 GET client, running all of its exchanges on a single selector thread.
+ *
+ * Exchanges are completed through Promises, so no thread is parked waiting on network I/O.
+ * Only plain "http" URLs are supported. Connections are not reused ("Connection: close"), bodies
+ * delimited by Content-Length, chunked encoding or connection close are supported.
+ *
+ * Note that host name resolution happens on the calling thread, and is cached per host.
+ *
+ * @author Andrea Carlevato
+ */
+public class AsyncHttpClient {
+
+    /**
+     * An HTTP response, with the timings of the exchange that produced it.
+     */
+    public static class Response {
+
+        private final int mStatus;
+        private final byte[] mBody;
+        private final long mConnectNanos;
+        private final long mDownloadNanos;
+
+        /**
+         * @return the HTTP status code
+         */
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * @return the response body, decoded from any transfer encoding
+         */
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        /**
+         * @return the body as an UTF-8 string
+         */
+        public String getBodyAsString() {
+            try {
+                return new String(mBody, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return the time from the beginning of the exchange to the first response byte, in nanoseconds
+         */
+        public long getConnectNanos() {
+            return mConnectNanos;
+        }
+
+        /**
+         * @return the time from the first to the last response byte, in nanoseconds
+         */
+        public long getDownloadNanos() {
+            return mDownloadNanos;
+        }
+
+        Response(int status, byte[] body, long connectNanos, long downloadNanos) {
+            mStatus = status;
+            mBody = body;
+            mConnectNanos = connectNanos;
+            mDownloadNanos = downloadNanos;
+        }
+    }
+
+    /**
+     * The state of a single request/response exchange, owned by the selector thread once registered.
+     */
+    private static class Exchange {
+
+        final Promise<Response> mPromise = new Promise<Response>();
+        final InetSocketAddress mAddress;
+        final ByteBuffer mRequest;
+        final ByteArrayOutputStream mReceived = new ByteArrayOutputStream(16 * 1024);
+        final long mStart = System.nanoTime();
+        long mDeadline;
+        long mFirstByte;
+        SocketChannel mChannel;
+        // known once the response head was received
+        int mBodyStart = -1;
+        long mContentLength = -1;
+
+        Exchange(final InetSocketAddress address, final ByteBuffer request) {
+            mAddress = address;
+            mRequest = request;
+        }
+    }
+
+    private static final String TAG = "AsyncHttpClient";
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long SELECT_TIMEOUT_MILLIS = 250;
+
+    private final long mTimeoutNanos;
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final ConcurrentLinkedQueue<Exchange> mPending = new ConcurrentLinkedQueue<Exchange>();
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Map<String, InetSocketAddress> mAddresses = new ConcurrentHashMap<String, InetSocketAddress>();
+    private volatile boolean mRunning = true;
+    // exchanges started before this time are cancelled, when a cancellation is pending
+    private volatile long mCancelledBefore;
+    private volatile boolean mCancelPending;
+
+    /**
+     * Creates a client and starts its selector thread.
+     *
+     * @param timeoutMillis the maximum duration of each exchange, connect included
+     * @throws IOException if the selector could not be opened
+     */
+    public AsyncHttpClient(long timeoutMillis) throws IOException {
+        mTimeoutNanos = timeoutMillis * 1000 * 1000;
+        mSelector = Selector.open();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Start an asynchronous GET of the given URL.
+     *
+     * @param url an http URL
+     * @return a Promise of the response, failed with an IOException on any error
+     */
+    public Promise<Response> get(final String url) {
+        Exchange exchange;
+        try {
+            URL parsed = new URL(url);
+            if (!"http".equals(parsed.getProtocol())) {
+                throw new MalformedURLException("Unsupported protocol: " + parsed.getProtocol());
+            }
+            String path = parsed.getFile().length() == 0 ? "/" : parsed.getFile();
+            String request = "GET " + path + " HTTP/1.1\r\n"
+                    + "Host: " + parsed.getHost() + (parsed.getPort() == -1 ? "" : ":" + parsed.getPort()) + "\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + "Accept-Encoding: identity\r\n"
+                    + "Connection: close\r\n\r\n";
+            exchange = new Exchange(resolve(parsed), ByteBuffer.wrap(request.getBytes("US-ASCII")));
+        } catch (IOException e) {
+            return failed(e);
+        }
+
+        if (!mRunning) {
+            return failed(new IOException("Client is shut down"));
+        }
+        mPending.add(exchange);
+        mSelector.wakeup();
+        return exchange.mPromise;
+    }
+
+    /**
+     * Fail all the exchanges started so far with an IOException, the client remains usable for new
+     * exchanges.
+     */
+    public void cancelAll() {
+        mCancelledBefore = System.nanoTime();
+        mCancelPending = true;
+        mSelector.wakeup();
+    }
+
+    /**
+     * Stop the selector thread, failing all the exchanges in progress.
+     */
+    public void shutdown() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    private InetSocketAddress resolve(final URL url) throws IOException {
+        int port = url.getPort() == -1 ? 80 : url.getPort();
+        String key = url.getHost() + ":" + port;
+        InetSocketAddress address = mAddresses.get(key);
+        if (address == null) {
+            address = new InetSocketAddress(url.getHost(), port);
+            if (address.isUnresolved()) {
+                throw new IOException("Unable to resolve " + url.getHost());
+            }
+            mAddresses.put(key, address);
+        }
+        return address;
+    }
+
+    private void selectLoop() {
+        while (mRunning) {
+            try {
+                registerPending();
+                if (mCancelPending) {
+                    mCancelPending = false;
+                    cancelExchanges(mCancelledBefore);
+                }
+                mSelector.select(SELECT_TIMEOUT_MILLIS);
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Exchange exchange = (Exchange) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            onConnectable(key, exchange);
+                        } else if (key.isWritable()) {
+                            onWritable(key, exchange);
+                        } else if (key.isReadable()) {
+                            onReadable(key, exchange);
+                        }
+                    } catch (IOException e) {
+                        finish(key, exchange, e);
+                    }
+                }
+
+                expireExchanges();
+            } catch (IOException e) {
+                Log.e(TAG, "Error in select loop: " + e.toString());
+            }
+        }
+
+        // shutting down: fail everything still in progress
+        for (SelectionKey key : mSelector.keys()) {
+            finish(key, (Exchange) key.attachment(), new IOException("Client is shut down"));
+        }
+        Exchange exchange;
+        while ((exchange = mPending.poll()) != null) {
+            settle(exchange, new IOException("Client is shut down"));
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private void registerPending() {
+        Exchange exchange;
+        while ((exchange = mPending.poll()) != null) {
+            try {
+                exchange.mDeadline = System.nanoTime() + mTimeoutNanos;
+                exchange.mChannel = SocketChannel.open();
+                exchange.mChannel.configureBlocking(false);
+                if (exchange.mChannel.connect(exchange.mAddress)) {
+                    exchange.mChannel.register(mSelector, SelectionKey.OP_WRITE, exchange);
+                } else {
+                    exchange.mChannel.register(mSelector, SelectionKey.OP_CONNECT, exchange);
+                }
+            } catch (IOException e) {
+                closeQuietly(exchange.mChannel);
+                settle(exchange, e);
+            }
+        }
+    }
+
+    private void onConnectable(final SelectionKey key, final Exchange exchange) throws IOException {
+        if (exchange.mChannel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void onWritable(final SelectionKey key, final Exchange exchange) throws IOException {
+        exchange.mChannel.write(exchange.mRequest);
+        if (!exchange.mRequest.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void onReadable(final SelectionKey key, final Exchange exchange) throws IOException {
+        mReadBuffer.clear();
+        int read = exchange.mChannel.read(mReadBuffer);
+        if (read > 0) {
+            if (exchange.mFirstByte == 0) {
+                exchange.mFirstByte = System.nanoTime();
+            }
+            exchange.mReceived.write(mReadBuffer.array(), 0, read);
+            if (exchange.mBodyStart < 0) {
+                byte[] raw = exchange.mReceived.toByteArray();
+                int headEnd = ResponseParser.indexOf(raw, 0, "\r\n\r\n");
+                if (headEnd >= 0) {
+                    exchange.mBodyStart = headEnd + 4;
+                    exchange.mContentLength = ResponseParser.contentLength(raw, headEnd);
+                }
+            }
+            // with a Content-Length, the exchange can complete before the server closes, otherwise
+            // the body is delimited by the connection close requested to the server
+            if (exchange.mContentLength >= 0 
+                    && exchange.mReceived.size() - exchange.mBodyStart >= exchange.mContentLength) {
+                finish(key, exchange, ResponseParser.parseIfComplete(exchange.mReceived.toByteArray(), false,
+                        exchange.mFirstByte - exchange.mStart, System.nanoTime() - exchange.mFirstByte));
+            }
+        } else if (read < 0) {
+            Response response = ResponseParser.parseIfComplete(exchange.mReceived.toByteArray(), true,
+                    exchange.mFirstByte - exchange.mStart, System.nanoTime() - exchange.mFirstByte);
+            if (response != null) {
+                finish(key, exchange, response);
+            } else {
+                throw new IOException("Unexpected end of stream");
+            }
+        }
+    }
+
+    private void expireExchanges() {
+        long now = System.nanoTime();
+        for (SelectionKey key : mSelector.keys()) {
+            Exchange exchange = (Exchange) key.attachment();
+            if (exchange != null && now - exchange.mDeadline > 0) {
+                finish(key, exchange, new SocketTimeoutException("Exchange timed out"));
+            }
+        }
+    }
+
+    private void cancelExchanges(long startedBefore) {
+        for (SelectionKey key : mSelector.keys()) {
+            Exchange exchange = (Exchange) key.attachment();
+            if (exchange != null && exchange.mStart - startedBefore <= 0) {
+                finish(key, exchange, new IOException("Exchange cancelled"));
+            }
+        }
+    }
+
+    private void finish(final SelectionKey key, final Exchange exchange, final Object outcome) {
+        key.cancel();
+        closeQuietly(exchange.mChannel);
+        settle(exchange, outcome);
+    }
+
+    /**
+     * Complete the promise of the given exchange with the given response or error. Callbacks run on the
+     * selector thread, which must survive them, e.g. rejected by an executor shut down meanwhile.
+     */
+    private static void settle(final Exchange exchange, final Object outcome) {
+        try {
+            if (outcome instanceof Response) {
+                exchange.mPromise.complete((Response) outcome);
+            } else {
+                exchange.mPromise.fail((Throwable) outcome);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error in exchange callback: " + e.toString());
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private static Promise<Response> failed(final IOException e) {
+        Promise<Response> promise = new Promise<Response>();
+        promise.fail(e);
+        return promise;
+    }
+
+    /**
+     * Parses raw HTTP/1.1 responses.
+     */
+    static class ResponseParser {
+
+        /**
+         * Parse the given raw response, if complete.
+         *
+         * @param raw the bytes received so far
+         * @param closed true if the server closed the connection
+         * @return the parsed response, null if more bytes are needed
+         * @throws IOException if the response is malformed, or truncated while the connection is closed
+         */
+        static Response parseIfComplete(final byte[] raw, boolean closed, long connectNanos, long downloadNanos)
+                throws IOException {
+            int headEnd = indexOf(raw, 0, "\r\n\r\n");
+            if (headEnd < 0) {
+                if (closed) {
+                    throw new IOException("Truncated response head");
+                }
+                return null;
+            }
+            String head = new String(raw, 0, headEnd, "ISO-8859-1");
+            String[] lines = head.split("\r\n");
+            String[] statusLine = lines[0].split(" ");
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line: " + lines[0]);
+            }
+            int status;
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line: " + lines[0]);
+            }
+
+            long contentLength = -1;
+            boolean chunked = false;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed Content-Length: " + value);
+                    }
+                } else if (name.equalsIgnoreCase("Transfer-Encoding") && value.toLowerCase().contains("chunked")) {
+                    chunked = true;
+                }
+            }
+
+            int bodyStart = headEnd + 4;
+            byte[] body;
+            if (chunked) {
+                body = dechunk(raw, bodyStart);
+                if (body == null) {
+                    if (closed) {
+                        throw new IOException("Truncated chunked body");
+                    }
+                    return null;
+                }
+            } else if (contentLength >= 0) {
+                if (raw.length - bodyStart < contentLength) {
+                    if (closed) {
+                        throw new IOException("Truncated body");
+                    }
+                    return null;
+                }
+                body = new byte[(int) contentLength];
+                System.arraycopy(raw, bodyStart, body, 0, body.length);
+            } else {
+                // delimited by connection close
+                if (!closed) {
+                    return null;
+                }
+                body = new byte[raw.length - bodyStart];
+                System.arraycopy(raw, bodyStart, body, 0, body.length);
+            }
+
+            return new Response(status, body, connectNanos, downloadNanos);
+        }
+
+        /**
+         * @return the Content-Length of the response whose head ends at the given offset, -1 if the body
+         * is chunked or delimited by the connection close
+         */
+        static long contentLength(final byte[] raw, int headEnd) throws IOException {
+            String head = new String(raw, 0, headEnd, "ISO-8859-1").toLowerCase();
+            if (head.contains("\r\ntransfer-encoding:") && head.contains("chunked")) {
+                return -1;
+            }
+            int header = head.indexOf("\r\ncontent-length:");
+            if (header < 0) {
+                return -1;
+            }
+            int valueStart = header + "\r\ncontent-length:".length();
+            int valueEnd = head.indexOf("\r\n", valueStart);
+            try {
+                return Long.parseLong(head.substring(valueStart, valueEnd < 0 ? head.length() : valueEnd).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed Content-Length");
+            }
+        }
+
+        /**
+         * @return the decoded chunked body starting at the given offset, null if incomplete
+         */
+        private static byte[] dechunk(final byte[] raw, int offset) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(raw.length - offset);
+            int position = offset;
+            while (true) {
+                int lineEnd = indexOf(raw, position, "\r\n");
+                if (lineEnd < 0) {
+                    return null;
+                }
+                String sizeLine = new String(raw, position, lineEnd - position, "ISO-8859-1");
+                int extension = sizeLine.indexOf(';');
+                int size;
+                try {
+                    size = Integer.parseInt((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed chunk size: " + sizeLine);
+                }
+                position = lineEnd + 2;
+                if (size == 0) {
+                    return body.toByteArray();
+                }
+                if (raw.length < position + size + 2) {
+                    return null;
+                }
+                body.write(raw, position, size);
+                position += size + 2;
+            }
+        }
+
+        static int indexOf(final byte[] data, int from, final String pattern) {
+            byte[] bytes;
+            try {
+                bytes = pattern.getBytes("ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            outer:
+            for (int i = from; i <= data.length - bytes.length; i++) {
+                for (int j = 0; j < bytes.length; j++) {
+                    if (data[i + j] != bytes[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+}
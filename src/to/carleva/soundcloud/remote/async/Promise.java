@@ -0,0 +1,330 @@
+package to.carleva.soundcloud.remote.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal completion-driven future, allowing asynchronous stages to be chained without any thread
+ * waiting on intermediate results.
+ *
+ * A Promise is completed exactly once, either with a value or with an error. Callbacks registered
+ * before completion run on the completing thread, callbacks registered after completion run right
+ * away on the registering thread. Chained transformations run on the executor they are given.
+ *
+ * @author Andrea Carlevato
+ */
+public class Promise<T> {
+
+    /**
+     * The completion callback interface.
+     */
+    public interface Callback<T> {
+        void onSuccess(final T value);
+        void onFailure(final Throwable error);
+    }
+
+    /**
+     * A transformation of the value of a Promise into the value of a chained Promise.
+     */
+    public interface Transform<I, O> {
+        O apply(final I input) throws Exception;
+    }
+
+    /**
+     * A task completing a promise. A stage its executor rejects or discards, e.g. on shutdown, is failed
+     * instead of run, so that its promise does not wait forever.
+     */
+    interface Stage extends Runnable {
+        void fail(final Throwable error);
+    }
+
+    private boolean mDone;
+    private T mValue;
+    private Throwable mError;
+    private List<Callback<T>> mCallbacks = new ArrayList<Callback<T>>();
+
+    /**
+     * @return a Promise already completed with the given value
+     */
+    public static <T> Promise<T> of(final T value) {
+        Promise<T> promise = new Promise<T>();
+        promise.complete(value);
+        return promise;
+    }
+
+    /**
+     * @return a Promise already failed with the given error
+     */
+    public static <T> Promise<T> failed(final Throwable error) {
+        Promise<T> promise = new Promise<T>();
+        promise.fail(error);
+        return promise;
+    }
+
+    /**
+     * Combine the given promises into one, completed when all of them succeeded, or failed as soon as
+     * one of them failed.
+     *
+     * @param promises the promises to combine
+     * @return a Promise of the values of the given promises, in the same order
+     */
+    public static Promise<List<Object>> all(final Promise<?>... promises) {
+        final Promise<List<Object>> all = new Promise<List<Object>>();
+        final Object[] values = new Object[promises.length];
+        final AtomicInteger pending = new AtomicInteger(promises.length);
+        if (promises.length == 0) {
+            all.complete(new ArrayList<Object>());
+        }
+        for (int i = 0; i < promises.length; i++) {
+            final int index = i;
+            addUntypedCallback(promises[i], new Callback<Object>() {
+                @Override
+                public void onSuccess(final Object value) {
+                    values[index] = value;
+                    if (pending.decrementAndGet() == 0) {
+                        List<Object> result = new ArrayList<Object>(values.length);
+                        for (Object v : values) {
+                            result.add(v);
+                        }
+                        all.complete(result);
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable error) {
+                    all.fail(error);
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * Complete this promise with the given value.
+     *
+     * @return true if this call completed the promise, false if it was already completed
+     */
+    public boolean complete(final T value) {
+        List<Callback<T>> callbacks;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mValue = value;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+        for (Callback<T> callback : callbacks) {
+            callback.onSuccess(value);
+        }
+        return true;
+    }
+
+    /**
+     * Complete this promise with the given error.
+     *
+     * @return true if this call completed the promise, false if it was already completed
+     */
+    public boolean fail(final Throwable error) {
+        List<Callback<T>> callbacks;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mError = error;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+        for (Callback<T> callback : callbacks) {
+            callback.onFailure(error);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the promise was completed, with a value or an error
+     */
+    synchronized public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Register a completion callback.
+     *
+     * @param callback the callback, invoked exactly once
+     */
+    public void addCallback(final Callback<T> callback) {
+        synchronized (this) {
+            if (!mDone) {
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        if (mError != null) {
+            callback.onFailure(mError);
+        } else {
+            callback.onSuccess(mValue);
+        }
+    }
+
+    /**
+     * Chain a transformation of the value of this promise, run on the given executor. Errors of this
+     * promise, and exceptions thrown by the transformation, fail the returned promise.
+     *
+     * @param transform the transformation
+     * @param executor the executor the transformation is run on
+     * @return a Promise of the transformed value
+     */
+    public <O> Promise<O> then(final Transform<? super T, O> transform, final Executor executor) {
+        final Promise<O> next = new Promise<O>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(final T value) {
+                try {
+                    executor.execute(new Stage() {
+                        @Override
+                        public void run() {
+                            try {
+                                next.complete(transform.apply(value));
+                            } catch (Throwable t) {
+                                next.fail(t);
+                            }
+                        }
+
+                        @Override
+                        public void fail(final Throwable error) {
+                            next.fail(error);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    next.fail(e);
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable error) {
+                next.fail(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Chain an asynchronous step, started with the value of this promise. The step is started on the
+     * completing thread, so it must only start work, not perform it.
+     *
+     * @param step the step, returning the promise of its result
+     * @return a Promise completed as the promise returned by the step
+     */
+    public <O> Promise<O> compose(final Transform<? super T, Promise<O>> step) {
+        final Promise<O> next = new Promise<O>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(final T value) {
+                try {
+                    step.apply(value).addCallback(forwardTo(next));
+                } catch (Throwable t) {
+                    next.fail(t);
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable error) {
+                next.fail(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Chain a fallback, started with the error of this promise if it fails. As for compose(), the
+     * fallback is started on the completing thread, and it may re-throw errors it does not handle.
+     *
+     * @param fallback the fallback, returning the promise of an alternative result
+     * @return a Promise completed as this promise, or as the promise returned by the fallback
+     */
+    public Promise<T> otherwise(final Transform<Throwable, Promise<T>> fallback) {
+        final Promise<T> next = new Promise<T>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(final T value) {
+                next.complete(value);
+            }
+
+            @Override
+            public void onFailure(final Throwable error) {
+                try {
+                    fallback.apply(error).addCallback(forwardTo(next));
+                } catch (Throwable t) {
+                    next.fail(t);
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Wait for the completion of this promise. This is meant for the edges of an asynchronous
+     * pipeline only, stages must be chained with then().
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return the value of the promise
+     * @throws ExecutionException wrapping the error of the promise
+     * @throws TimeoutException if the promise was not completed in time
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    synchronized public T await(long timeout, final TimeUnit unit)
+            throws ExecutionException, TimeoutException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mValue;
+    }
+
+    /**
+     * Fail the given task, discarded by its executor, if it is a Stage. Other tasks complete no promise.
+     */
+    static void failStage(final Runnable task, final Throwable error) {
+        if (task instanceof Stage) {
+            ((Stage) task).fail(error);
+        }
+    }
+
+    private static <T> Callback<T> forwardTo(final Promise<T> promise) {
+        return new Callback<T>() {
+            @Override
+            public void onSuccess(final T value) {
+                promise.complete(value);
+            }
+
+            @Override
+            public void onFailure(final Throwable error) {
+                promise.fail(error);
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addUntypedCallback(final Promise<?> promise, final Callback<Object> callback) {
+        ((Promise<Object>) promise).addCallback(callback);
+    }
+}
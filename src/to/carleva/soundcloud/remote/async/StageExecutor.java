@@ -0,0 +1,122 @@
+package to.carleva.soundcloud.remote.async;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An executor limiting how many of its tasks run at the same time on a shared, underlying executor.
+ *
+ * This allows the stages of an asynchronous pipeline to share one small thread pool while each
+ * stage keeps its own concurrency limit. Tasks over the limit are queued, no thread is blocked.
+ *
+ * Once the shared executor rejects or discards tasks, e.g. it was shut down, the queued promise stages
+ * are failed with the rejection, and execute() throws it.
+ *
+ * @author Andrea Carlevato
+ */
+public class StageExecutor implements Executor {
+
+    private final String mName;
+    private final Executor mExecutor;
+    private final int mMaxConcurrency;
+    private final Queue<Runnable> mQueue = new LinkedList<Runnable>();
+    private int mRunning;
+
+    /**
+     * @param name the stage name, for diagnostics
+     * @param executor the shared executor tasks are run on
+     * @param maxConcurrency the maximum number of tasks of this stage running at the same time
+     */
+    public StageExecutor(final String name, final Executor executor, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive");
+        }
+        mName = name;
+        mExecutor = executor;
+        mMaxConcurrency = maxConcurrency;
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        synchronized (this) {
+            if (mRunning >= mMaxConcurrency) {
+                mQueue.add(task);
+                return;
+            }
+            mRunning++;
+        }
+        try {
+            submit(task);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mRunning--;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for a free slot
+     */
+    synchronized public int getQueueLength() {
+        return mQueue.size();
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    private void submit(final Runnable task) {
+        mExecutor.execute(new Promise.Stage() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    Runnable next;
+                    synchronized (StageExecutor.this) {
+                        next = mQueue.poll();
+                        if (next == null) {
+                            mRunning--;
+                        }
+                    }
+                    if (next != null) {
+                        try {
+                            submit(next);
+                        } catch (RejectedExecutionException e) {
+                            Promise.failStage(next, e);
+                            releaseSlot(e);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void fail(final Throwable error) {
+                Promise.failStage(task, error);
+                releaseSlot(error);
+            }
+        });
+    }
+
+    /**
+     * Release the slot of a task the shared executor did not run, and fail the queued tasks: the shared
+     * executor runs no more tasks.
+     */
+    private void releaseSlot(final Throwable error) {
+        List<Runnable> queued;
+        synchronized (this) {
+            mRunning--;
+            queued = new ArrayList<Runnable>(mQueue);
+            mQueue.clear();
+        }
+        for (Runnable task : queued) {
+            Promise.failStage(task, error);
+        }
+    }
+}
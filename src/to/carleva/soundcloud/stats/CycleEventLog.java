@@ -0,0 +1,303 @@
+package to.carleva.soundcloud.stats;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import to.carleva.soundcloud.remote.DataProvider.Stream;
+
+/**
+ * A fixed-size, lock-free ring buffer of update cycle events, kept in memory for post-mortem analysis
+ * of slow or failed cycles.
+ *
+ * Recording never blocks nor allocates: writers claim a sequence number with a single atomic increment,
+ * and write the event fields to preallocated per slot arrays, guarded by a per slot stamp. The stamp is
+ * odd while the slot is written and even once the event is published, readers retry while it is odd
+ * and skip the event if it changed while they read it, so that they always see whole events. When
+ * the buffer is full, oldest events are overwritten.
+ *
+ * The log is disabled by default, and costs a volatile read per event until enabled.
+ *
+ * @author Andrea Carlevato
+ */
+public class CycleEventLog {
+
+    /**
+     * An immutable update cycle event, as read from the log.
+     */
+    public static class Event {
+
+        private final long mSequence;
+        private final long mTimestamp;
+        private final Stream mStream;
+        private final Span mSpan;
+        private final long mDurationNanos;
+        private final int mHttpStatus;
+        private final Class<?> mError;
+        private final long mBytes;
+
+        /**
+         * @return the sequence number of the event, increasing with recording order
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * @return the wall clock time the event was recorded at, in milliseconds since epoch
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * @return the stream the event refers to, null if it refers to the whole cycle
+         */
+        public Stream getStream() {
+            return mStream;
+        }
+
+        /**
+         * @return the phase the event refers to, null if it refers to the whole cycle
+         */
+        public Span getSpan() {
+            return mSpan;
+        }
+
+        /**
+         * @return the duration of the phase, in nanoseconds
+         */
+        public long getDurationNanos() {
+            return mDurationNanos;
+        }
+
+        /**
+         * @return the HTTP status code, -1 if not relevant or not available
+         */
+        public int getHttpStatus() {
+            return mHttpStatus;
+        }
+
+        /**
+         * @return the class of the exception that failed the phase, null if the phase succeeded
+         */
+        public Class<?> getError() {
+            return mError;
+        }
+
+        /**
+         * @return the number of bytes transferred during the phase, 0 if not relevant
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        @Override
+        public String toString() {
+            return mSequence + "\t" + mTimestamp + "\t" + (mStream == null ? "-" : mStream)
+                    + "\t" + (mSpan == null ? "CYCLE" : mSpan) + "\t" + (mDurationNanos / 1000)
+                    + "us\t" + mHttpStatus + "\t" + (mError == null ? "-" : mError.getName())
+                    + "\t" + mBytes;
+        }
+
+        private Event(long sequence, long timestamp, Stream stream, Span span, long durationNanos,
+                int httpStatus, Class<?> error, long bytes) {
+            mSequence = sequence;
+            mTimestamp = timestamp;
+            mStream = stream;
+            mSpan = span;
+            mDurationNanos = durationNanos;
+            mHttpStatus = httpStatus;
+            mError = error;
+            mBytes = bytes;
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private final int mMask;
+    private final AtomicLong mNextSequence = new AtomicLong();
+    // per slot, 2 * sequence + 1 while the event of the sequence is written, 2 * sequence + 2 once 
+    // published, 0 if none yet
+    private final AtomicLongArray mStamps;
+    private final AtomicLongArray mTimestamps;
+    private final AtomicReferenceArray<Stream> mStreams;
+    private final AtomicReferenceArray<Span> mSpans;
+    private final AtomicLongArray mDurations;
+    private final AtomicIntegerArray mStatuses;
+    private final AtomicReferenceArray<Class<?>> mErrors;
+    private final AtomicLongArray mBytes;
+    private volatile boolean mEnabled;
+
+    /**
+     * Creates an event log with the default capacity.
+     */
+    public CycleEventLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an event log keeping the given number of most recent events.
+     *
+     * @param capacity the number of events kept, rounded up to a power of two
+     */
+    public CycleEventLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mStamps = new AtomicLongArray(size);
+        mTimestamps = new AtomicLongArray(size);
+        mStreams = new AtomicReferenceArray<Stream>(size);
+        mSpans = new AtomicReferenceArray<Span>(size);
+        mDurations = new AtomicLongArray(size);
+        mStatuses = new AtomicIntegerArray(size);
+        mErrors = new AtomicReferenceArray<Class<?>>(size);
+        mBytes = new AtomicLongArray(size);
+    }
+
+    /**
+     * Enable or disable recording. Disabled logs drop events at the cost of a volatile read. Default
+     * is disabled.
+     *
+     * @param enabled true if events will be recorded
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return true if events are recorded
+     */
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return the number of slots of the ring buffer
+     */
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Record an event. This never blocks nor allocates.
+     *
+     * @param stream the stream the event refers to, null for the whole cycle
+     * @param span the phase the event refers to, null for the whole cycle
+     * @param durationNanos the phase duration, in nanoseconds
+     * @param httpStatus the HTTP status code, -1 if not relevant
+     * @param error the class of the exception that failed the phase, null on success
+     * @param bytes the number of bytes transferred, 0 if not relevant
+     */
+    public void record(final Stream stream, final Span span, long durationNanos, int httpStatus,
+            final Class<?> error, long bytes) {
+        if (!mEnabled) {
+            return;
+        }
+
+        long sequence = mNextSequence.getAndIncrement();
+        int slot = (int) (sequence & mMask);
+        long writing = 2 * sequence + 1;
+
+        // a slow writer must not replace the newer event of a writer which lapped it, and two writers
+        // must not interleave their fields: the event is dropped if the slot is being written, which
+        // only happens when the whole buffer wraps around during a single write
+        long stamp;
+        do {
+            stamp = mStamps.get(slot);
+            if ((stamp & 1) != 0 || stamp > writing) {
+                return;
+            }
+        } while (!mStamps.compareAndSet(slot, stamp, writing));
+
+        mTimestamps.set(slot, System.currentTimeMillis());
+        mStreams.set(slot, stream);
+        mSpans.set(slot, span);
+        mDurations.set(slot, durationNanos);
+        mStatuses.set(slot, httpStatus);
+        mErrors.set(slot, error);
+        mBytes.set(slot, bytes);
+        mStamps.set(slot, writing + 1);
+    }
+
+    /**
+     * Reads the events currently held by the log.
+     *
+     * @return the events, oldest first
+     */
+    public List<Event> getEvents() {
+        long end = mNextSequence.get();
+        long start = Math.max(0, end - mMask - 1);
+        List<Event> events = new ArrayList<Event>((int) (end - start));
+
+        for (long sequence = start; sequence < end; sequence++) {
+            Event event = read(sequence);
+            if (event != null) {
+                events.add(event);
+            }
+        }
+
+        return events;
+    }
+
+    /**
+     * @return the event of the given sequence number, null if it was never recorded or already 
+     * overwritten
+     */
+    private Event read(long sequence) {
+        int slot = (int) (sequence & mMask);
+        long published = 2 * sequence + 2;
+        while (true) {
+            long stamp = mStamps.get(slot);
+            if (stamp == published - 1) {
+                // being written
+                Thread.yield();
+                continue;
+            }
+            if (stamp != published) {
+                // not recorded yet, dropped, or already overwritten
+                return null;
+            }
+            Event event = new Event(sequence, mTimestamps.get(slot), mStreams.get(slot), 
+                    mSpans.get(slot), mDurations.get(slot), mStatuses.get(slot), mErrors.get(slot), 
+                    mBytes.get(slot));
+            if (mStamps.get(slot) == published) {
+                return event;
+            }
+            // overwritten while read, by a writer which lapped the reader
+            return null;
+        }
+    }
+
+    /**
+     * Write the events currently held by the log to the given file, one tab separated event per line.
+     *
+     * @param file the destination file, overwritten if existing
+     * @throws IOException if the file could not be written
+     */
+    public void dump(final File file) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writer.write("sequence\ttimestamp\tstream\tphase\tduration\tstatus\terror\tbytes");
+            writer.newLine();
+            for (Event event : getEvents()) {
+                writer.write(event.toString());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
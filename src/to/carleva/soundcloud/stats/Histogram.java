@@ -0,0 +1,178 @@
+package to.carleva.soundcloud.stats;
+
+import java.util.Arrays;
+
+/**
+ * A rolling histogram, which keeps the most recent samples in a fixed-size window and
+ * computes percentiles over them.
+ *
+ * Recording is constant time and allocation free, percentiles are only computed when a
+ * snapshot is taken. The class is thread safe.
+ *
+ * @author Andrea Carlevato
+ */
+public class Histogram {
+
+    /**
+     * An immutable view of the histogram at a given point in time.
+     */
+    public static class Snapshot {
+
+        private final long mCount;
+        private final long mMin;
+        private final long mMax;
+        private final long mMean;
+        private final long mP50;
+        private final long mP90;
+        private final long mP95;
+        private final long mP99;
+
+        /**
+         * @return the number of samples recorded since the histogram was created (not only the window)
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the smallest sample in the current window, 0 if empty
+         */
+        public long getMin() {
+            return mMin;
+        }
+
+        /**
+         * @return the largest sample in the current window, 0 if empty
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return the mean of the samples in the current window, 0 if empty
+         */
+        public long getMean() {
+            return mMean;
+        }
+
+        /**
+         * @return the median of the samples in the current window, 0 if empty
+         */
+        public long getP50() {
+            return mP50;
+        }
+
+        /**
+         * @return the 90th percentile of the samples in the current window, 0 if empty
+         */
+        public long getP90() {
+            return mP90;
+        }
+
+        /**
+         * @return the 95th percentile of the samples in the current window, 0 if empty
+         */
+        public long getP95() {
+            return mP95;
+        }
+
+        /**
+         * @return the 99th percentile of the samples in the current window, 0 if empty
+         */
+        public long getP99() {
+            return mP99;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + mCount + " min=" + mMin + " p50=" + mP50 + " p90=" + mP90 + " p95=" + mP95
+                    + " p99=" + mP99 + " max=" + mMax + " mean=" + mMean;
+        }
+
+        private Snapshot(long count, long min, long max, long mean, long p50, long p90, long p95, long p99) {
+            mCount = count;
+            mMin = min;
+            mMax = max;
+            mMean = mean;
+            mP50 = p50;
+            mP90 = p90;
+            mP95 = p95;
+            mP99 = p99;
+        }
+    }
+
+    public static final int DEFAULT_WINDOW_SIZE = 256;
+
+    private final long[] mSamples;
+    private long mCount;
+
+    /**
+     * Creates an histogram with the default window size.
+     */
+    public Histogram() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Creates an histogram keeping the given number of most recent samples.
+     *
+     * @param windowSize the number of samples percentiles are computed on
+     */
+    public Histogram(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        mSamples = new long[windowSize];
+    }
+
+    /**
+     * Record a new sample, evicting the oldest one if the window is full.
+     *
+     * @param value the sample value
+     */
+    synchronized public void record(long value) {
+        mSamples[(int) (mCount % mSamples.length)] = value;
+        mCount++;
+    }
+
+    /**
+     * Discard all samples.
+     */
+    synchronized public void reset() {
+        mCount = 0;
+    }
+
+    /**
+     * Computes the percentiles for the samples currently in the window.
+     *
+     * @return a Snapshot of this histogram
+     */
+    public Snapshot snapshot() {
+        long[] window;
+        long count;
+        synchronized (this) {
+            count = mCount;
+            window = Arrays.copyOf(mSamples, (int) Math.min(count, mSamples.length));
+        }
+
+        if (window.length == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0, 0, 0);
+        }
+
+        Arrays.sort(window);
+        long sum = 0;
+        for (long sample : window) {
+            sum += sample;
+        }
+        return new Snapshot(count, window[0], window[window.length - 1], sum / window.length,
+                percentile(window, 50), percentile(window, 90), percentile(window, 95), percentile(window, 99));
+    }
+
+    /**
+     * Nearest-rank percentile over a sorted array.
+     */
+    private static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
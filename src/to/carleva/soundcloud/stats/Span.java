@@ -0,0 +1,25 @@
+package to.carleva.soundcloud.stats;
+
+/**
+ * Enumeration for the phases of a DataProvider update cycle which are timed.
+ *
+ * @author Andrea Carlevato
+ */
+public enum Span {
+    /** opening the HTTP connection, up to the response headers */
+    CONNECT,
+    /** reading the HTTP response body */
+    DOWNLOAD,
+    /** decoding the response body into data types */
+    PARSE,
+    /** archiving data to the disk cache */
+    SAVE_STATE,
+    /** from queuing data for archiving, until it was archived by the write-behind writer (queue lag) */
+    SAVE_LAG,
+    /** un-archiving data from the disk cache */
+    RESTORE_STATE,
+    /** from posting observer notifications to the main thread, until all observers were notified */
+    DISPATCH,
+    /** from DataProvider start, until data was first dispatched to observers (time to first content) */
+    FIRST_CONTENT
+}
@@ -0,0 +1,168 @@
+package to.carleva.soundcloud.stats;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import to.carleva.soundcloud.remote.DataProvider.Stream;
+
+/**
+ * Collects timings and sizes of the DataProvider update cycles, into rolling histograms.
+ *
+ * Every recorded phase, successful or not, is also appended to a CycleEventLog, for post-mortem
+ * analysis of single cycles.
+ *
+ * Durations are recorded in nanoseconds and reported in microseconds. The class is thread safe.
+ *
+ * @author Andrea Carlevato
+ */
+public class StatsRecorder {
+
+    private final AtomicLong mCycleCount = new AtomicLong();
+    private final Histogram mCycle = new Histogram();
+    private final EnumMap<Stream, EnumMap<Span, Histogram>> mSpans =
+            new EnumMap<Stream, EnumMap<Span, Histogram>>(Stream.class);
+    private final EnumMap<Stream, Histogram> mResponseBytes = new EnumMap<Stream, Histogram>(Stream.class);
+    private final EnumMap<Stream, Histogram> mItemCounts = new EnumMap<Stream, Histogram>(Stream.class);
+    private final CycleEventLog mEvents = new CycleEventLog();
+
+    public StatsRecorder() {
+        // all histograms are created upfront, maps are never modified afterwards
+        for (Stream stream : Stream.values()) {
+            EnumMap<Span, Histogram> spans = new EnumMap<Span, Histogram>(Span.class);
+            for (Span span : Span.values()) {
+                spans.put(span, new Histogram());
+            }
+            mSpans.put(stream, spans);
+            mResponseBytes.put(stream, new Histogram());
+            mItemCounts.put(stream, new Histogram());
+        }
+    }
+
+    /**
+     * Record the duration of a phase of the update cycle.
+     *
+     * @param stream the update stream
+     * @param span the phase of the update cycle
+     * @param nanos the phase duration, in nanoseconds
+     */
+    public void recordSpan(final Stream stream, final Span span, long nanos) {
+        recordSpan(stream, span, nanos, -1, 0);
+    }
+    
+    /**
+     * Record the duration of a phase of the update cycle which involved an HTTP transfer.
+     *
+     * @param stream the update stream
+     * @param span the phase of the update cycle
+     * @param nanos the phase duration, in nanoseconds
+     * @param httpStatus the HTTP status code, -1 if not available
+     * @param bytes the number of bytes transferred during the phase
+     */
+    public void recordSpan(final Stream stream, final Span span, long nanos, int httpStatus, long bytes) {
+        mSpans.get(stream).get(span).record(nanos / 1000);
+        mEvents.record(stream, span, nanos, httpStatus, null, bytes);
+    }
+    
+    /**
+     * Record the failure of a phase of the update cycle. Failed phases are not part of the histograms.
+     *
+     * @param stream the update stream
+     * @param span the failed phase of the update cycle
+     * @param nanos the time spent before the failure, in nanoseconds
+     * @param httpStatus the HTTP status code, -1 if not relevant or not available
+     * @param error the class of the exception that failed the phase
+     */
+    public void recordFailure(final Stream stream, final Span span, long nanos, int httpStatus,
+            final Class<?> error) {
+        mEvents.record(stream, span, nanos, httpStatus, error, 0);
+    }
+
+    /**
+     * Record the size of a response body.
+     *
+     * @param stream the update stream
+     * @param bytes the number of bytes of the body
+     */
+    public void recordResponseBytes(final Stream stream, long bytes) {
+        mResponseBytes.get(stream).record(bytes);
+    }
+
+    /**
+     * Record the number of items decoded from a response.
+     *
+     * @param stream the update stream
+     * @param count the number of items
+     */
+    public void recordItemCount(final Stream stream, int count) {
+        mItemCounts.get(stream).record(count);
+    }
+
+    /**
+     * Record the completion of an update cycle.
+     *
+     * @param nanos the cycle duration, in nanoseconds
+     */
+    public void recordCycle(long nanos) {
+        mCycle.record(nanos / 1000);
+        mCycleCount.incrementAndGet();
+        mEvents.record(null, null, nanos, -1, null, 0);
+    }
+    
+    /**
+     * Record the failure of an update cycle.
+     *
+     * @param nanos the time spent before the failure, in nanoseconds
+     * @param error the class of the exception that failed the cycle
+     */
+    public void recordCycleFailure(long nanos, final Class<?> error) {
+        mEvents.record(null, null, nanos, -1, error, 0);
+    }
+    
+    /**
+     * Clear all histograms and the cycle count. The event log is not affected.
+     */
+    public void reset() {
+        mCycle.reset();
+        for (Stream stream : Stream.values()) {
+            for (Histogram histogram : mSpans.get(stream).values()) {
+                histogram.reset();
+            }
+            mResponseBytes.get(stream).reset();
+            mItemCounts.get(stream).reset();
+        }
+        mCycleCount.set(0);
+    }
+    
+    /**
+     * @return the log of the single phases recorded
+     */
+    public CycleEventLog getEventLog() {
+        return mEvents;
+    }
+
+    /**
+     * @return a snapshot of the statistics collected so far
+     */
+    public UpdateStats snapshot() {
+        EnumMap<Stream, Map<Span, Histogram.Snapshot>> spans =
+                new EnumMap<Stream, Map<Span, Histogram.Snapshot>>(Stream.class);
+        EnumMap<Stream, Histogram.Snapshot> responseBytes =
+                new EnumMap<Stream, Histogram.Snapshot>(Stream.class);
+        EnumMap<Stream, Histogram.Snapshot> itemCounts =
+                new EnumMap<Stream, Histogram.Snapshot>(Stream.class);
+
+        for (Stream stream : Stream.values()) {
+            EnumMap<Span, Histogram.Snapshot> streamSpans =
+                    new EnumMap<Span, Histogram.Snapshot>(Span.class);
+            for (Map.Entry<Span, Histogram> entry : mSpans.get(stream).entrySet()) {
+                streamSpans.put(entry.getKey(), entry.getValue().snapshot());
+            }
+            spans.put(stream, streamSpans);
+            responseBytes.put(stream, mResponseBytes.get(stream).snapshot());
+            itemCounts.put(stream, mItemCounts.get(stream).snapshot());
+        }
+
+        return new UpdateStats(mCycleCount.get(), mCycle.snapshot(), spans, responseBytes, itemCounts);
+    }
+}
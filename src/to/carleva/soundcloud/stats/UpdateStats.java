@@ -0,0 +1,92 @@
+package to.carleva.soundcloud.stats;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import to.carleva.soundcloud.remote.DataProvider.Stream;
+
+/**
+ * An immutable snapshot of the DataProvider update cycles instrumentation.
+ *
+ * Durations are expressed in microseconds, sizes in bytes.
+ *
+ * @author Andrea Carlevato
+ */
+public class UpdateStats {
+
+    private final long mCycleCount;
+    private final Histogram.Snapshot mCycle;
+    private final Map<Stream, Map<Span, Histogram.Snapshot>> mSpans;
+    private final Map<Stream, Histogram.Snapshot> mResponseBytes;
+    private final Map<Stream, Histogram.Snapshot> mItemCounts;
+
+    /**
+     * @return the number of update cycles completed so far
+     */
+    public long getCycleCount() {
+        return mCycleCount;
+    }
+
+    /**
+     * @return the histogram of the whole update cycle duration, in microseconds
+     */
+    public Histogram.Snapshot getCycle() {
+        return mCycle;
+    }
+
+    /**
+     * Getter for the duration histogram of a given phase of a given stream.
+     *
+     * @param stream the update stream
+     * @param span the phase of the update cycle
+     * @return the histogram of the phase duration, in microseconds
+     */
+    public Histogram.Snapshot getSpan(final Stream stream, final Span span) {
+        return mSpans.get(stream).get(span);
+    }
+
+    /**
+     * Getter for the response size histogram of a given stream.
+     *
+     * @param stream the update stream
+     * @return the histogram of the response sizes, in bytes
+     */
+    public Histogram.Snapshot getResponseBytes(final Stream stream) {
+        return mResponseBytes.get(stream);
+    }
+
+    /**
+     * Getter for the item count histogram of a given stream.
+     *
+     * @param stream the update stream
+     * @return the histogram of the number of items decoded per cycle
+     */
+    public Histogram.Snapshot getItemCount(final Stream stream) {
+        return mItemCounts.get(stream);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("cycles=").append(mCycleCount).append(" cycle[").append(mCycle).append("]");
+        for (Stream stream : Stream.values()) {
+            sb.append("\n").append(stream).append(": bytes[").append(mResponseBytes.get(stream))
+                .append("] items[").append(mItemCounts.get(stream)).append("]");
+            for (Span span : Span.values()) {
+                sb.append("\n  ").append(span).append(": ").append(mSpans.get(stream).get(span));
+            }
+        }
+        return sb.toString();
+    }
+
+    UpdateStats(long cycleCount, Histogram.Snapshot cycle,
+            EnumMap<Stream, Map<Span, Histogram.Snapshot>> spans,
+            EnumMap<Stream, Histogram.Snapshot> responseBytes,
+            EnumMap<Stream, Histogram.Snapshot> itemCounts) {
+        mCycleCount = cycleCount;
+        mCycle = cycle;
+        mSpans = spans;
+        mResponseBytes = responseBytes;
+        mItemCounts = itemCounts;
+    }
+}
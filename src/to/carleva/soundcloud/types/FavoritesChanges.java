@@ -0,0 +1,166 @@
+package to.carleva.soundcloud.types;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A class representing a page of the favorites activity feed: the likes added, updated or removed
+ * since a cursor, and the cursor to read the following changes from.
+ *
+ * The class implements the Builder pattern, and currently supports only the SoundCloud activities
+ * JSON string as build option, where each activity of the collection is either
+ *   - "favoriting": the origin favorite was liked or has changed, and is supplied in full
+ *   - "favoriting-removed": the like was removed, the origin supplies the favorite id only
+ * and the cursor is supplied as "future_href". A page not holding all the changes since the cursor links
+ * to the following one as "next_href".
+ *
+ * This format is assumed, modeled on the SoundCloud activities feed: the documented API has no feed of
+ * favorites changes, nor the "favoriting-removed" activity type. It is the contract a server must follow
+ * for incremental sync, see Configuration.setFavoritesChangesResource().
+ *
+ * @see <a href="https://developers.soundcloud.com/docs/api/reference">
+ *              https://developers.soundcloud.com/docs/api/reference</a>
+ *
+ * @author Andrea Carlevato
+ *
+ */
+public class FavoritesChanges {
+
+    public static final String TYPE_FAVORITING = "favoriting";
+    public static final String TYPE_FAVORITING_REMOVED = "favoriting-removed";
+
+    private final List<Favorite> mChanged;
+    private final Set<Integer> mRemovedIds;
+    private final String mFutureHref;
+    private final String mNextHref;
+
+    /**
+     * Creates and returns a new instance, by parsing the given JSON
+     *
+     * @param jsonObject JSON string representing the activities page
+     * @return a new FavoritesChanges instance, created from the supplied JSON
+     * @throws JSONException if the parsing operation failed, or the page has no future_href
+     */
+    public static FavoritesChanges buildFromJson(String jsonObject) throws JSONException {
+
+        JSONObject jObj = new JSONObject(jsonObject);
+        List<Favorite> changed = new ArrayList<Favorite>();
+        Set<Integer> removedIds = new HashSet<Integer>();
+        JSONArray collection = jObj.optJSONArray("collection");
+        for (int i = 0; collection != null && i < collection.length(); i++) {
+            JSONObject activity = collection.getJSONObject(i);
+            String type = activity.getString("type");
+            JSONObject origin = activity.getJSONObject("origin");
+            if (TYPE_FAVORITING.equals(type)) {
+                changed.add(Favorite.buildFromJson(origin.toString()));
+            } else if (TYPE_FAVORITING_REMOVED.equals(type)) {
+                removedIds.add(origin.getInt("id"));
+            }
+            // other activity types do not affect favorites
+        }
+
+        return new FavoritesChanges(changed, removedIds, jObj.getString("future_href"),
+                jObj.isNull("next_href") ? null : jObj.getString("next_href"));
+    }
+
+    /**
+     * Getter for the favorites liked or changed, most recent first
+     *
+     * @return the list of changed favorites, possibly empty
+     */
+    public List<Favorite> getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * Getter for the ids of the favorites whose like was removed
+     *
+     * @return the set of removed favorite ids, possibly empty
+     */
+    public Set<Integer> getRemovedIds() {
+        return mRemovedIds;
+    }
+
+    /**
+     * Getter for the cursor the following changes can be read from
+     *
+     * @return the URL of the next page of changes
+     */
+    public String getFutureHref() {
+        return mFutureHref;
+    }
+
+    /**
+     * Getter for the page holding the changes following the ones of this page
+     *
+     * @return the URL of the following page, null if this page holds all the changes
+     */
+    public String getNextHref() {
+        return mNextHref;
+    }
+
+    /**
+     * @return true if this page carries no change
+     */
+    public boolean isEmpty() {
+        return mChanged.isEmpty() && mRemovedIds.isEmpty();
+    }
+
+    /**
+     * Apply these changes to the given favorites list. Changed favorites replace the ones with the
+     * same id in place, new favorites are added on top (the API lists most recent likes first),
+     * removed ones are dropped. The given list is not modified.
+     *
+     * @param favorites the favorites list the changes apply to
+     * @return a new favorites list, or the given one if there are no changes
+     */
+    public List<Favorite> applyTo(final List<Favorite> favorites) {
+        if (isEmpty()) {
+            return favorites;
+        }
+
+        Map<Integer, Favorite> changedById = new HashMap<Integer, Favorite>();
+        for (Favorite favorite : mChanged) {
+            changedById.put(favorite.getId(), favorite);
+        }
+        Set<Integer> existingIds = new HashSet<Integer>();
+        for (Favorite favorite : favorites) {
+            existingIds.add(favorite.getId());
+        }
+
+        List<Favorite> result = new ArrayList<Favorite>(favorites.size() + mChanged.size());
+        for (Favorite favorite : mChanged) {
+            if (!existingIds.contains(favorite.getId()) && !mRemovedIds.contains(favorite.getId())) {
+                result.add(favorite);
+            }
+        }
+        for (Favorite favorite : favorites) {
+            if (mRemovedIds.contains(favorite.getId())) {
+                continue;
+            }
+            Favorite changed = changedById.get(favorite.getId());
+            result.add(changed != null ? changed : favorite);
+        }
+        return result;
+    }
+
+    /**
+     * Builder pattern, ctor is private.
+     */
+    private FavoritesChanges(final List<Favorite> changed, final Set<Integer> removedIds,
+            final String futureHref, final String nextHref) {
+        mChanged = Collections.unmodifiableList(changed);
+        mRemovedIds = Collections.unmodifiableSet(removedIds);
+        mFutureHref = futureHref;
+        mNextHref = nextHref;
+    }
+}
@@ -0,0 +1,222 @@
+package to.carleva.soundcloud.types;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+import to.carleva.soundcloud.remote.Deadline;
+
+/**
+ * Decodes favorites JSON arrays, reusing the Favorite instances of the previous decode for elements
+ * whose raw JSON did not change, so that the cost of a decode scales with the number of changed
+ * elements, and unchanged favorites keep their identity.
+ *
+ * The array is decoded from its UTF-8 bytes, and split into its elements without being parsed: each
+ * element is hashed (64 bit FNV-1a over its raw bytes) and only the elements whose hash is unknown
+ * are turned into strings, and parsed with Favorite.buildFromJson(). The instances of each decode
+ * are kept until the next one, so that the index never outgrows the list; it can be released at any
+ * time, see release().
+ *
+ * The class is thread safe.
+ *
+ * @author Andrea Carlevato
+ */
+public class FavoritesDecoder {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // elements decoded between two checks of the deadline
+    private static final int DEADLINE_CHECK_INTERVAL = 64;
+
+    private Map<Long, Favorite> mPrevious = new HashMap<Long, Favorite>();
+    private long mDecodedCount;
+    private long mReusedCount;
+
+    /**
+     * Decode the given JSON array of favorites.
+     *
+     * @param json the JSON array
+     * @return the list of favorites, in the array order
+     * @throws JSONException if the array, or any of its changed elements, is not valid
+     */
+    public List<Favorite> decode(final String json) throws JSONException {
+        byte[] bytes = json.getBytes(UTF_8);
+        return decode(bytes, bytes.length);
+    }
+
+    /**
+     * Decode the given JSON array of favorites, encoded in UTF-8.
+     *
+     * @param json the buffer holding the JSON array, from its first byte
+     * @param length the length of the JSON array, in bytes
+     * @return the list of favorites, in the array order
+     * @throws JSONException if the array, or any of its changed elements, is not valid
+     */
+    public List<Favorite> decode(final byte[] json, int length) throws JSONException {
+        return decode(json, length, null);
+    }
+
+    /**
+     * Decode the given JSON array of favorites, encoded in UTF-8, giving up once the given deadline is
+     * reached. An aborted decode leaves the instances of the previous decode available for reuse.
+     *
+     * @param json the buffer holding the JSON array, from its first byte
+     * @param length the length of the JSON array, in bytes
+     * @param deadline the deadline of the decode, null for none
+     * @return the list of favorites, in the array order
+     * @throws JSONException if the array, or any of its changed elements, is not valid, or the deadline
+     * was reached
+     */
+    synchronized public List<Favorite> decode(final byte[] json, int length, final Deadline deadline) 
+            throws JSONException {
+        int[] bounds = split(json, length);
+        Map<Long, Favorite> current = new HashMap<Long, Favorite>();
+        List<Favorite> favorites = new ArrayList<Favorite>(bounds.length / 2);
+        for (int i = 0; i < bounds.length; i += 2) {
+            if (deadline != null && (i / 2) % DEADLINE_CHECK_INTERVAL == 0 && deadline.isExpired()) {
+                throw new JSONException("Deadline exceeded after " + favorites.size() + " favorites");
+            }
+            long hash = hash(json, bounds[i], bounds[i + 1]);
+            Favorite favorite = current.get(hash);
+            if (favorite == null) {
+                favorite = mPrevious.get(hash);
+            }
+            if (favorite != null) {
+                mReusedCount++;
+            } else {
+                favorite = Favorite.buildFromJson(new String(json, bounds[i], bounds[i + 1] - bounds[i], UTF_8));
+                mDecodedCount++;
+            }
+            current.put(hash, favorite);
+            favorites.add(favorite);
+        }
+        mPrevious = current;
+        return favorites;
+    }
+    
+    /**
+     * Split the given JSON array of objects, encoded in UTF-8, into its elements, without parsing them.
+     *
+     * @param json the buffer holding the JSON array, from its first byte
+     * @param length the length of the JSON array, in bytes
+     * @return the start and end index of each element, in the array order
+     * @throws JSONException if the array is not valid
+     */
+    public static int[] split(final byte[] json, int length) throws JSONException {
+        int[] bounds = new int[16];
+        int count = 0;
+        int i = skipWhitespace(json, 0, length);
+        if (i >= length || json[i] != '[') {
+            throw new JSONException("A JSONArray text must start with '['");
+        }
+        i = skipWhitespace(json, i + 1, length);
+        if (i < length && json[i] == ']') {
+            return new int[0];
+        }
+        while (true) {
+            int end = skipElement(json, i, length);
+            if (count + 2 > bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[count++] = i;
+            bounds[count++] = end;
+
+            i = skipWhitespace(json, end, length);
+            if (i >= length) {
+                throw new JSONException("Unterminated array");
+            }
+            byte c = json[i];
+            if (c == ']') {
+                break;
+            }
+            if (c != ',') {
+                throw new JSONException("Expected ',' or ']' at " + i);
+            }
+            i = skipWhitespace(json, i + 1, length);
+        }
+        return Arrays.copyOf(bounds, count);
+    }
+
+    /**
+     * Drop the instances kept for reuse, the next decode parses all its elements.
+     *
+     * @return the number of instances dropped
+     */
+    synchronized public int release() {
+        int released = mPrevious.size();
+        mPrevious = new HashMap<Long, Favorite>();
+        return released;
+    }
+
+    /**
+     * @return the number of elements parsed so far
+     */
+    synchronized public long getDecodedCount() {
+        return mDecodedCount;
+    }
+
+    /**
+     * @return the number of elements whose previous instance was reused so far
+     */
+    synchronized public long getReusedCount() {
+        return mReusedCount;
+    }
+
+    /**
+     * @return the index of the first non whitespace byte from the given one
+     */
+    private static int skipWhitespace(final byte[] json, int from, int length) {
+        int i = from;
+        while (i < length && (json[i] == ' ' || json[i] == '\t' || json[i] == '\n' || json[i] == '\r')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index following the JSON object starting at the given index
+     * @throws JSONException if no complete object starts at the given index
+     */
+    private static int skipElement(final byte[] json, int start, int length) throws JSONException {
+        if (start >= length || json[start] != '{') {
+            throw new JSONException("A JSONObject text must begin with '{' at " + start);
+        }
+        int depth = 0;
+        boolean inString = false;
+        // multi-byte UTF-8 sequences never contain ASCII bytes, the structure is scanned byte by byte
+        for (int i = start; i < length; i++) {
+            byte c = json[i];
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        throw new JSONException("Unterminated object at " + start);
+    }
+
+    private static long hash(final byte[] json, int start, int end) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (json[i] & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
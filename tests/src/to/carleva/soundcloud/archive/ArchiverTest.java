@@ -0,0 +1,167 @@
+package to.carleva.soundcloud.archive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the archives restored by Archiver.
+ *
+ * @author Andrea Carlevato
+ */
+public class ArchiverTest extends TestCase {
+
+    private static final String TAG = "items";
+
+    private File mDirectory;
+    private ArchivePolicy mPolicy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("archiver", "test");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        mPolicy = new ArchivePolicy();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testArchiveOfBaselineFormatIsRestoredAsNone() throws Exception {
+        // as written before archives had a header: the serialized records, straight into the file
+        File file = new File(mDirectory, TAG + ".cache");
+        ObjectOutputStream os = new ObjectOutputStream(new FileOutputStream(file));
+        for (String item : items("a", 3)) {
+            os.writeObject(item);
+        }
+        os.close();
+
+        assertNull(Archiver.restoreObjectList(TAG, mDirectory, mPolicy));
+        assertFalse("discarded", file.exists());
+        assertNull(Archiver.restoreObjectListSharded(TAG, mDirectory, mPolicy));
+    }
+
+    public void testBaselineFormatDoesNotHideValidPreviousGeneration() throws Exception {
+        Archiver.saveObjectList(items("a", 3), TAG, mDirectory, mPolicy);
+        Archiver.saveObjectList(items("b", 3), TAG, mDirectory, mPolicy);
+        File file = new File(mDirectory, TAG + ".cache");
+        ObjectOutputStream os = new ObjectOutputStream(new FileOutputStream(file));
+        os.writeObject("c0");
+        os.close();
+
+        assertEquals(items("a", 3), Archiver.restoreObjectList(TAG, mDirectory, mPolicy));
+    }
+
+    public void testCorruptedArchiveFailsRestore() throws Exception {
+        Archiver.saveObjectList(items("a", 3), TAG, mDirectory, mPolicy);
+        File file = new File(mDirectory, TAG + ".cache");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(file.length() - 1);
+            int last = raf.read();
+            raf.seek(file.length() - 1);
+            raf.write(last ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        try {
+            Archiver.restoreObjectList(TAG, mDirectory, mPolicy);
+            fail("a checksum mismatch fails the restore");
+        } catch (ArchiveRestoreException e) {
+            // expected
+        }
+    }
+
+    public void testPinnedShardsOutliveNewerSavesAndDeletion() throws Exception {
+        Archiver.saveObjectListSharded(items("a", 25), TAG, mDirectory, mPolicy, 10);
+        Archiver.Shards<String> shards = Archiver.<String>openSharded(TAG, mDirectory, mPolicy).retain();
+
+        Archiver.saveObjectListSharded(items("b", 25), TAG, mDirectory, mPolicy, 10);
+        Archiver.saveObjectListSharded(items("c", 25), TAG, mDirectory, mPolicy, 10);
+        Archiver.delete(TAG, mDirectory);
+        assertEquals("a12", shards.readShard(1).get(2));
+
+        shards.release();
+        Archiver.delete(TAG, mDirectory);
+        try {
+            shards.readShard(1);
+            fail("shards of a released generation are deleted");
+        } catch (ArchiveRestoreException e) {
+            // expected
+        }
+    }
+
+    public void testOpenShardedFallsBackToPreviousGenerationOnMissingShard() throws Exception {
+        Archiver.saveObjectListSharded(items("a", 25), TAG, mDirectory, mPolicy, 10);
+        Archiver.saveObjectListSharded(items("b", 25), TAG, mDirectory, mPolicy, 10);
+        // the last shard of the newest generation, generations are increasing
+        File newest = null;
+        for (File file : mDirectory.listFiles()) {
+            String name = file.getName();
+            if (name.startsWith(TAG + ".shard") && name.endsWith("-2.cache") 
+                    && (newest == null || generation(name) > generation(newest.getName()))) {
+                newest = file;
+            }
+        }
+        assertTrue(newest.delete());
+
+        Archiver.Shards<String> shards = Archiver.openSharded(TAG, mDirectory, mPolicy);
+        assertEquals(25, shards.size());
+        assertEquals("a0", shards.readShard(0).get(0));
+    }
+
+    public void testUnchangedShardsAreNotWrittenAgain() throws Exception {
+        ArrayList<String> items = items("a", 25);
+        Archiver.saveObjectListSharded(items, TAG, mDirectory, mPolicy, 10);
+        items.set(12, "b12");
+        Archiver.saveObjectListSharded(items, TAG, mDirectory, mPolicy, 10);
+        assertEquals("3 shards, then the changed one", 4, shardFiles().size());
+
+        items.set(21, "c21");
+        Archiver.saveObjectListSharded(items, TAG, mDirectory, mPolicy, 10);
+        // the first shard is still referenced by the current index, though written 2 generations ago
+        assertEquals(items, Archiver.restoreObjectListSharded(TAG, mDirectory, mPolicy));
+        assertEquals(items, new ArrayList<String>(Archiver.<String>openSharded(TAG, mDirectory, mPolicy).asList()));
+        assertEquals("the replaced shards are gone once no index references them", 4, shardFiles().size());
+    }
+
+    private List<File> shardFiles() {
+        List<File> shards = new ArrayList<File>();
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().startsWith(TAG + ".shard")) {
+                shards.add(file);
+            }
+        }
+        return shards;
+    }
+
+    private static long generation(final String shardName) {
+        return Long.parseLong(shardName.substring((TAG + ".shard").length(), shardName.lastIndexOf('-')), 36);
+    }
+
+    private static ArrayList<String> items(final String prefix, int count) {
+        ArrayList<String> items = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(prefix + i);
+        }
+        return items;
+    }
+}
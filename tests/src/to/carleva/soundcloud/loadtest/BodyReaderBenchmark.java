@@ -0,0 +1,188 @@
+package to.carleva.soundcloud.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpException;
+
+import android.os.Debug;
+import android.util.Log;
+import to.carleva.soundcloud.remote.BufferPool;
+import to.carleva.soundcloud.remote.HttpUtils;
+
+/**
+ * A micro benchmark of the allocations of reading response bodies with HttpUtils, against a
+ * FakeApiServer, with a warm BufferPool shared by all calls, as DataProvider does, and with a new pool
+ * at each call, as if buffers were not pooled.
+ *
+ * For each mode, a few warm-up calls are performed, then the allocations of the measured calls are
+ * collected: the bytes of the body buffers allocated by the pool, and the bytes allocated by the
+ * calling thread, as reported by the VM allocation counters (which include the HTTP connection
+ * objects). Bodies are released without being decoded, so that only the I/O allocations are measured.
+ *
+ * Usage:
+ *
+ *     List<Report> reports = new BodyReaderBenchmark().setMeasuredCalls(100).run(100, 1000, 10000);
+ *
+ * @author Andrea Carlevato
+ */
+public class BodyReaderBenchmark {
+
+    /**
+     * The measurements of a single mode, for a library size.
+     */
+    public static class Report {
+
+        private final int mLibrarySize;
+        private final boolean mPooled;
+        private final int mCalls;
+        private final long mBodyBytes;
+        private final long mBufferBytes;
+        private final long mThreadAllocBytes;
+        private final long mElapsedNanos;
+
+        /**
+         * @return the number of favorites served
+         */
+        public int getLibrarySize() {
+            return mLibrarySize;
+        }
+
+        /**
+         * @return true if the calls shared a warm pool
+         */
+        public boolean isPooled() {
+            return mPooled;
+        }
+
+        /**
+         * @return the size of the favorites body, in bytes
+         */
+        public long getBodyBytes() {
+            return mBodyBytes;
+        }
+
+        /**
+         * @return the bytes of body buffers allocated per measured call
+         */
+        public long getBufferBytesPerCall() {
+            return mBufferBytes / mCalls;
+        }
+
+        /**
+         * @return the bytes allocated by the calling thread per measured call, -1 if the VM does not
+         * count allocations
+         */
+        public long getThreadAllocBytesPerCall() {
+            return mThreadAllocBytes < 0 ? -1 : mThreadAllocBytes / mCalls;
+        }
+
+        /**
+         * @return the mean duration of a measured call, in microseconds
+         */
+        public long getCallMicros() {
+            return mElapsedNanos / mCalls / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "library=" + mLibrarySize + " body=" + mBodyBytes + "B " + (mPooled ? "pooled" : "unpooled")
+                    + " calls=" + mCalls + " buffers/call=" + getBufferBytesPerCall() + "B thread alloc/call="
+                    + getThreadAllocBytesPerCall() + "B call=" + getCallMicros() + "us";
+        }
+
+        Report(int librarySize, boolean pooled, int calls, long bodyBytes, long bufferBytes,
+                long threadAllocBytes, long elapsedNanos) {
+            mLibrarySize = librarySize;
+            mPooled = pooled;
+            mCalls = calls;
+            mBodyBytes = bodyBytes;
+            mBufferBytes = bufferBytes;
+            mThreadAllocBytes = threadAllocBytes;
+            mElapsedNanos = elapsedNanos;
+        }
+    }
+
+    private static final String TAG = "BodyReaderBenchmark";
+    private static final String FAVORITES_RESOURCE = "/users/reaand/favorites.json";
+
+    private int mWarmUpCalls = 5;
+    private int mMeasuredCalls = 50;
+
+    /**
+     * Sets the number of calls performed before measuring, for each mode. Default is 5.
+     */
+    public BodyReaderBenchmark setWarmUpCalls(int calls) {
+        mWarmUpCalls = calls;
+        return this;
+    }
+
+    /**
+     * Sets the number of calls measured, for each mode. Default is 50.
+     */
+    public BodyReaderBenchmark setMeasuredCalls(int calls) {
+        mMeasuredCalls = calls;
+        return this;
+    }
+
+    /**
+     * Run the benchmark once for each given library size, pooled and unpooled.
+     *
+     * @param librarySizes the numbers of favorites to serve
+     * @return the reports, pooled first, for each library size in order
+     * @throws IOException if the fake server could not be started
+     * @throws HttpException if a call failed
+     */
+    public List<Report> run(int... librarySizes) throws IOException, HttpException {
+        List<Report> reports = new ArrayList<Report>();
+        for (int librarySize : librarySizes) {
+            FakeApiServer server = new FakeApiServer().setLibrarySize(librarySize);
+            server.start();
+            try {
+                String url = server.getBaseUrl() + FAVORITES_RESOURCE;
+                for (boolean pooled : new boolean[] { true, false }) {
+                    Report report = measure(url, librarySize, pooled, server.getFavoritesBodySize());
+                    Log.i(TAG, report.toString());
+                    reports.add(report);
+                }
+            } finally {
+                server.shutdown();
+            }
+        }
+        return reports;
+    }
+
+    private Report measure(final String url, int librarySize, boolean pooled, long bodyBytes)
+            throws HttpException {
+        BufferPool shared = new BufferPool();
+        for (int i = 0; i < mWarmUpCalls; i++) {
+            read(url, pooled ? shared : new BufferPool());
+        }
+
+        long bufferBytes = 0;
+        long sharedBefore = shared.getAllocatedBytes();
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        for (int i = 0; i < mMeasuredCalls; i++) {
+            BufferPool pool = pooled ? shared : new BufferPool();
+            read(url, pool);
+            if (!pooled) {
+                bufferBytes += pool.getAllocatedBytes();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long threadAlloc = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+        if (pooled) {
+            bufferBytes = shared.getAllocatedBytes() - sharedBefore;
+        }
+        return new Report(librarySize, pooled, mMeasuredCalls, bodyBytes, bufferBytes,
+                threadAlloc > 0 ? threadAlloc : -1, elapsed);
+    }
+
+    private static void read(final String url, final BufferPool pool) throws HttpException {
+        HttpUtils.readBody(url, new HttpUtils.Trace(), null, pool).release();
+    }
+}
@@ -0,0 +1,566 @@
+package to.carleva.soundcloud.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+/**
+ * An embeddable stand-in for the SoundCloud public API, serving the resources used by DataProvider
+ * from the loopback interface, so that the update loop can be exercised offline.
+ *
+ * The server supports GET on /users/{id}.json and /users/{id}/favorites.json (query strings are
+ * ignored) and returns synthetic, deterministic data. The library size, the size of each favorite,
+ * the response latency and the mutation rate are configurable. Favorites are listed most recent first.
+ *
+ * The favorites activity feed is served on /users/{id}/favorites/changes.json: without a cursor
+ * parameter, it returns no changes and the future_href of the current head; with a cursor, it returns
+ * the favorites changed, added and removed since then, most recent first. Cursors older than the
+ * retained change log answer 410 Gone.
+ *
+ * Data changes by generations: each call to advanceGeneration() mutates a fraction of the favorites
+ * equal to the mutation rate (counters are bumped), and adds or removes a like. Within a generation,
+ * the user favorites count always matches the favorites list, while it differs between consecutive
+ * generations, so that clients can detect torn state. The user track count is the generation number.
+ * 
+ * Faults can be injected at the HTTP layer by setting a FaultProfile, also while the server is running.
+ *
+ * Usage:
+ *
+ *     FakeApiServer server = new FakeApiServer().setLibrarySize(1000).setLatencyMillis(50);
+ *     server.start();
+ *     configuration.setApiHostingServer(server.getBaseUrl());
+ *     ...
+ *     server.shutdown();
+ *
+ * @author Andrea Carlevato
+ */
+public class FakeApiServer {
+
+    private static final String TAG = "FakeApiServer";
+    private static final Pattern USER_PATH = Pattern.compile("^/users/([^/]+)\\.json$");
+    private static final Pattern FAVORITES_PATH = Pattern.compile("^/users/([^/]+)/favorites\\.json$");
+    private static final Pattern CHANGES_PATH = Pattern.compile("^/users/([^/]+)/favorites/changes\\.json$");
+    private static final Pattern CURSOR_PARAM = Pattern.compile("(?:^|&)cursor=(\\d+)");
+    private static final String[] GENRES = { "Electronic", "Hip-hop", "Jazz", "Rock", "Ambient", "Techno",
+        "House", "Classical", "Pop", "Folk" };
+
+    private int mLibrarySize = 100;
+    private int mDescriptionLength = 200;
+    private long mLatencyMillis = 0;
+    private double mMutationRate = 0.01;
+    private int mChangeLogCapacity = 1000;
+    private volatile FaultProfile mFaultProfile;
+
+    private final Random mRandom = new Random(42);
+    private final Random mFaultRandom = new Random(7);
+    private final AtomicLong mUserRequests = new AtomicLong();
+    private final AtomicLong mFavoritesRequests = new AtomicLong();
+    private final AtomicLong mChangesRequests = new AtomicLong();
+    private final AtomicLong mFaultedRequests = new AtomicLong();
+    private final AtomicInteger mServerErrorBurstLeft = new AtomicInteger();
+    private ServerSocket mServerSocket;
+    private ExecutorService mWorkers;
+    private Thread mAcceptThread;
+
+    // current generation of the data, guarded by this
+    private long mGeneration;
+    private int mNextFavoriteId;
+    private int[] mFavoriteIds;
+    private int[] mPlaybackCounts;
+    private int[] mFavoritingsCounts;
+    private byte[] mUserBody;
+    private byte[] mFavoritesBody;
+    private String mDescription;
+    // the change log: ids of the favorites changed at each sequence number, and if they were removed
+    private final List<Integer> mChangedIds = new ArrayList<Integer>();
+    private final List<Boolean> mChangeIsRemoval = new ArrayList<Boolean>();
+    // sequence number of the change preceding the first retained one
+    private long mChangeLogBase;
+
+    /**
+     * Sets the number of favorites served. Default is 100.
+     *
+     * @param size the number of favorites in the library
+     */
+    public FakeApiServer setLibrarySize(int size) {
+        mLibrarySize = size;
+        return this;
+    }
+
+    /**
+     * Sets the length of the description of each favorite, which drives the payload size. Default is 200.
+     *
+     * @param length the number of characters of each description
+     */
+    public FakeApiServer setDescriptionLength(int length) {
+        mDescriptionLength = length;
+        return this;
+    }
+
+    /**
+     * Sets the time the server waits before answering each request. Default is 0.
+     *
+     * @param latencyMillis the response latency, in milliseconds
+     */
+    public FakeApiServer setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of favorites which change at each generation. Default is 0.01.
+     *
+     * @param rate a fraction between 0 and 1
+     */
+    public FakeApiServer setMutationRate(double rate) {
+        mMutationRate = rate;
+        return this;
+    }
+
+    /**
+     * Sets the number of changes retained for the activity feed. Default is 1000.
+     *
+     * @param capacity the number of changes after which cursors expire
+     */
+    public FakeApiServer setChangeLogCapacity(int capacity) {
+        mChangeLogCapacity = capacity;
+        return this;
+    }
+
+    /**
+     * Sets the faults injected into the responses, effective from the next request. Default is null.
+     *
+     * @param profile the fault profile, null to serve all responses normally
+     */
+    public FakeApiServer setFaultProfile(final FaultProfile profile) {
+        mServerErrorBurstLeft.set(0);
+        mFaultProfile = profile;
+        return this;
+    }
+
+    /**
+     * Start serving on an ephemeral port of the loopback interface.
+     *
+     * @throws IOException if the server socket could not be opened
+     */
+    synchronized public void start() throws IOException {
+        initData();
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mWorkers = Executors.newCachedThreadPool();
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, TAG);
+        mAcceptThread.start();
+    }
+
+    /**
+     * Stop serving. Connections being served are closed.
+     */
+    synchronized public void shutdown() {
+        try {
+            if (mServerSocket != null) {
+                mServerSocket.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing server socket: " + e.toString());
+        }
+        if (mWorkers != null) {
+            mWorkers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the URL to be set as API hosting server in the DataProvider Configuration
+     */
+    synchronized public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Mutate the served data, according to the mutation rate.
+     *
+     * @return the new generation number
+     */
+    synchronized public long advanceGeneration() {
+        int changes = (int) Math.ceil(mFavoriteIds.length * mMutationRate);
+        for (int i = 0; i < changes && mFavoriteIds.length > 0; i++) {
+            int index = mRandom.nextInt(mFavoriteIds.length);
+            mPlaybackCounts[index] += 1 + mRandom.nextInt(100);
+            mFavoritingsCounts[index] += mRandom.nextInt(3);
+            logChange(mFavoriteIds[index], false);
+        }
+        // a like is added or removed, so that the favorites count changes at every generation
+        if (mRandom.nextBoolean() || mFavoriteIds.length == 0) {
+            logChange(mNextFavoriteId, false);
+            resizeLibrary(mFavoriteIds.length + 1);
+        } else {
+            logChange(mFavoriteIds[0], true);
+            resizeLibrary(mFavoriteIds.length - 1);
+        }
+        mGeneration++;
+        renderBodies();
+        return mGeneration;
+    }
+
+    /**
+     * @return the current generation number
+     */
+    synchronized public long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return the number of favorites served in the current generation
+     */
+    synchronized public int getLibrarySize() {
+        return mFavoriteIds.length;
+    }
+
+    /**
+     * @return the number of user profile requests received
+     */
+    public long getUserRequestCount() {
+        return mUserRequests.get();
+    }
+
+    /**
+     * @return the number of favorites requests received
+     */
+    public long getFavoritesRequestCount() {
+        return mFavoritesRequests.get();
+    }
+
+    /**
+     * @return the number of activity feed requests received
+     */
+    public long getChangesRequestCount() {
+        return mChangesRequests.get();
+    }
+
+    /**
+     * @return the number of requests a fault was injected into
+     */
+    public long getFaultedRequestCount() {
+        return mFaultedRequests.get();
+    }
+
+    /**
+     * @return the size of the favorites response body of the current generation, in bytes
+     */
+    synchronized public int getFavoritesBodySize() {
+        return mFavoritesBody.length;
+    }
+
+    /**
+     * Write the response for the given request.
+     *
+     * @param path the request path, without query string
+     * @param query the query string, empty if none
+     * @param out the connection output stream
+     */
+    void respond(final String path, final String query, final OutputStream out)
+            throws IOException, InterruptedException {
+        byte[] body;
+        int status = 200;
+        String reason = "OK";
+        if (USER_PATH.matcher(path).matches()) {
+            mUserRequests.incrementAndGet();
+            synchronized (this) {
+                body = mUserBody;
+            }
+        } else if (FAVORITES_PATH.matcher(path).matches()) {
+            mFavoritesRequests.incrementAndGet();
+            synchronized (this) {
+                body = mFavoritesBody;
+            }
+        } else if (CHANGES_PATH.matcher(path).matches()) {
+            mChangesRequests.incrementAndGet();
+            Matcher cursor = CURSOR_PARAM.matcher(query);
+            body = renderChanges(path, cursor.find() ? Long.parseLong(cursor.group(1)) : -1);
+            if (body == null) {
+                status = 410;
+                reason = "Gone";
+                body = toBytes("{\"errors\":[{\"error_message\":\"410 - Gone\"}]}");
+            }
+        } else {
+            writeResponse(out, 404, "Not Found", toBytes("{\"errors\":[{\"error_message\":\"404 - Not Found\"}]}"));
+            return;
+        }
+
+        if (mLatencyMillis > 0) {
+            Thread.sleep(mLatencyMillis);
+        }
+
+        FaultProfile profile = mFaultProfile;
+        FaultProfile.Fault fault = FaultProfile.Fault.NONE;
+        if (profile != null) {
+            if (mServerErrorBurstLeft.get() > 0) {
+                // a burst is in progress
+                mServerErrorBurstLeft.decrementAndGet();
+                fault = FaultProfile.Fault.SERVER_ERROR;
+            } else {
+                fault = profile.draw(mFaultRandom);
+                if (fault == FaultProfile.Fault.SERVER_ERROR) {
+                    // a new burst starts with this request
+                    mServerErrorBurstLeft.set(profile.getServerErrorBurst() - 1);
+                }
+            }
+        }
+        if (fault != FaultProfile.Fault.NONE) {
+            mFaultedRequests.incrementAndGet();
+        }
+
+        switch (fault) {
+            case DROP:
+                // nothing is written, the connection is closed by the caller
+                break;
+            case TRUNCATE:
+                out.write(toBytes(responseHead(200, "OK", body.length)));
+                out.write(body, 0, body.length / 2);
+                out.flush();
+                break;
+            case SERVER_ERROR:
+                writeResponse(out, 503, "Service Unavailable",
+                        toBytes("{\"errors\":[{\"error_message\":\"503 - Service Unavailable\"}]}"));
+                break;
+            case SLOW_DRIP:
+                out.write(toBytes(responseHead(200, "OK", body.length)));
+                out.flush();
+                for (int offset = 0; offset < body.length; offset += profile.getDripChunkBytes()) {
+                    out.write(body, offset, Math.min(profile.getDripChunkBytes(), body.length - offset));
+                    out.flush();
+                    Thread.sleep(profile.getDripIntervalMillis());
+                }
+                break;
+            default:
+                writeResponse(out, status, reason, body);
+                break;
+        }
+    }
+
+    /**
+     * Write a complete HTTP response with the given status and body.
+     */
+    static void writeResponse(final OutputStream out, int status, final String reason, final byte[] body)
+            throws IOException {
+        out.write(toBytes(responseHead(status, reason, body.length)));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * @return the status line and headers of a response with the given status and body length
+     */
+    static String responseHead(int status, final String reason, int contentLength) {
+        return "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: application/json; charset=utf-8\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "Connection: close\r\n\r\n";
+    }
+
+    static byte[] toBytes(final String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (SocketException e) {
+                // server socket closed, terminate
+            } catch (IOException e) {
+                Log.e(TAG, "Error accepting connection: " + e.toString());
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String requestLine = reader.readLine();
+            // consume the headers, they are not used
+            String header;
+            while ((header = reader.readLine()) != null && header.length() > 0) {
+                // ignored
+            }
+            OutputStream out = socket.getOutputStream();
+            String[] parts = requestLine == null ? new String[0] : requestLine.split(" ");
+            if (parts.length < 2 || !parts[0].equals("GET")) {
+                writeResponse(out, 405, "Method Not Allowed", new byte[0]);
+            } else {
+                int queryStart = parts[1].indexOf('?');
+                respond(queryStart < 0 ? parts[1] : parts[1].substring(0, queryStart),
+                        queryStart < 0 ? "" : parts[1].substring(queryStart + 1), out);
+            }
+        } catch (IOException e) {
+            // client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    synchronized private void initData() {
+        mGeneration = 0;
+        mNextFavoriteId = 1000;
+        mFavoriteIds = new int[0];
+        mPlaybackCounts = new int[0];
+        mFavoritingsCounts = new int[0];
+        mChangedIds.clear();
+        mChangeIsRemoval.clear();
+        mChangeLogBase = 0;
+        StringBuilder description = new StringBuilder(mDescriptionLength);
+        while (description.length() < mDescriptionLength) {
+            description.append("lorem ipsum dolor sit amet ");
+        }
+        description.setLength(mDescriptionLength);
+        mDescription = description.toString();
+        resizeLibrary(mLibrarySize);
+        renderBodies();
+    }
+
+    /**
+     * Grow (appending new favorites) or shrink (dropping the oldest ones) the library to the given size.
+     */
+    private void resizeLibrary(int size) {
+        int[] ids = new int[size];
+        int[] playbackCounts = new int[size];
+        int[] favoritingsCounts = new int[size];
+        int kept = Math.min(size, mFavoriteIds.length);
+        int dropped = mFavoriteIds.length - kept;
+        System.arraycopy(mFavoriteIds, dropped, ids, 0, kept);
+        System.arraycopy(mPlaybackCounts, dropped, playbackCounts, 0, kept);
+        System.arraycopy(mFavoritingsCounts, dropped, favoritingsCounts, 0, kept);
+        for (int i = kept; i < size; i++) {
+            ids[i] = mNextFavoriteId++;
+            playbackCounts[i] = mRandom.nextInt(100000);
+            favoritingsCounts[i] = mRandom.nextInt(1000);
+        }
+        mFavoriteIds = ids;
+        mPlaybackCounts = playbackCounts;
+        mFavoritingsCounts = favoritingsCounts;
+    }
+
+    private void renderBodies() {
+        mUserBody = toBytes("{\"id\":4242,\"kind\":\"user\",\"username\":\"reaand\","
+                + "\"permalink_url\":\"http://soundcloud.com/reaand\",\"first_name\":\"Andrea\","
+                + "\"last_name\":\"Carlevato\",\"full_name\":\"Andrea Carlevato\",\"country\":\"Italy\","
+                + "\"city\":\"Torino\",\"website\":null,\"online\":true,\"plan\":\"Free\","
+                + "\"track_count\":" + mGeneration + ",\"playlist_count\":3,"
+                + "\"public_favorites_count\":" + mFavoriteIds.length + ","
+                + "\"followers_count\":120,\"followings_count\":80}");
+
+        StringBuilder sb = new StringBuilder(mFavoriteIds.length * (mDescriptionLength + 300) + 2);
+        sb.append('[');
+        // most recent likes first
+        for (int i = mFavoriteIds.length - 1; i >= 0; i--) {
+            if (i < mFavoriteIds.length - 1) {
+                sb.append(',');
+            }
+            appendFavorite(sb, i);
+        }
+        sb.append(']');
+        mFavoritesBody = toBytes(sb.toString());
+    }
+
+    private void appendFavorite(final StringBuilder sb, int index) {
+        int id = mFavoriteIds[index];
+        sb.append("{\"id\":").append(id)
+            .append(",\"kind\":\"track\",\"title\":\"Track ").append(id)
+            .append("\",\"description\":\"").append(mDescription)
+            .append("\",\"genre\":\"").append(GENRES[id % GENRES.length])
+            .append("\",\"release_year\":").append(1990 + id % 25)
+            .append(",\"playback_count\":").append(mPlaybackCounts[index])
+            .append(",\"favoritings_count\":").append(mFavoritingsCounts[index])
+            .append(",\"user\":{\"id\":").append(id % 97)
+            .append(",\"username\":\"artist").append(id % 97).append("\"}}");
+    }
+
+    /**
+     * Append a change to the log, dropping the oldest one if the log is full.
+     */
+    private void logChange(int favoriteId, boolean removed) {
+        mChangedIds.add(favoriteId);
+        mChangeIsRemoval.add(removed);
+        if (mChangedIds.size() > mChangeLogCapacity) {
+            mChangedIds.remove(0);
+            mChangeIsRemoval.remove(0);
+            mChangeLogBase++;
+        }
+    }
+
+    /**
+     * @param path the activity feed path, future_href is built on
+     * @param cursor the sequence number of the last change seen by the client, -1 for the current head
+     * @return the activity feed page for the given cursor, or null if the cursor expired
+     */
+    synchronized private byte[] renderChanges(final String path, long cursor) {
+        long head = mChangeLogBase + mChangedIds.size();
+        if (cursor >= 0 && cursor < mChangeLogBase) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder("{\"collection\":[");
+        if (cursor >= 0) {
+            // most recent first, each favorite once with its latest state
+            Set<Integer> seen = new HashSet<Integer>();
+            for (int i = mChangedIds.size() - 1; i >= 0 && mChangeLogBase + i + 1 > cursor; i--) {
+                int id = mChangedIds.get(i);
+                if (!seen.add(id)) {
+                    continue;
+                }
+                if (seen.size() > 1) {
+                    sb.append(',');
+                }
+                int index = Arrays.binarySearch(mFavoriteIds, id);
+                if (mChangeIsRemoval.get(i) || index < 0) {
+                    sb.append("{\"type\":\"favoriting-removed\",\"origin\":{\"id\":").append(id).append("}}");
+                } else {
+                    sb.append("{\"type\":\"favoriting\",\"origin\":");
+                    appendFavorite(sb, index);
+                    sb.append('}');
+                }
+            }
+        }
+        sb.append("],\"future_href\":\"").append(getBaseUrl()).append(path)
+            .append("?cursor=").append(head).append("\"}");
+        return toBytes(sb.toString());
+    }
+}
@@ -0,0 +1,162 @@
+package to.carleva.soundcloud.loadtest;
+
+import java.util.Random;
+
+/**
+ * A description of the faults a FakeApiServer injects into its responses.
+ *
+ * Each request is independently subject to each fault, with the configured probability:
+ *   - drop: the connection is closed without any response, as on packet loss or a reset
+ *   - truncate: headers announce the full body, but only half of it is sent
+ *   - server error: a 503 is returned, for this request and the following ones in the same burst
+ *   - slow drip: the body is sent in small chunks, with a pause between each
+ *
+ * @author Andrea Carlevato
+ */
+public class FaultProfile {
+
+    /**
+     * Enumeration for the faults which can be injected into a single response.
+     */
+    public enum Fault {
+        NONE,
+        DROP,
+        TRUNCATE,
+        SERVER_ERROR,
+        SLOW_DRIP
+    }
+
+    private final String mName;
+    private double mDropRate;
+    private double mTruncateRate;
+    private double mServerErrorRate;
+    private int mServerErrorBurst = 1;
+    private double mSlowDripRate;
+    private int mDripChunkBytes = 64;
+    private long mDripIntervalMillis = 500;
+
+    /**
+     * Creates a profile which injects no faults, until configured.
+     *
+     * @param name a name for the profile, used in reports
+     */
+    public FaultProfile(final String name) {
+        mName = name;
+    }
+
+    /**
+     * @return a profile dropping the given fraction of connections
+     */
+    public static FaultProfile packetLoss(double rate) {
+        return new FaultProfile("packet-loss-" + rate).setDropRate(rate);
+    }
+
+    /**
+     * @return a profile truncating the given fraction of bodies
+     */
+    public static FaultProfile truncatedBodies(double rate) {
+        return new FaultProfile("truncated-" + rate).setTruncateRate(rate);
+    }
+
+    /**
+     * @return a profile starting bursts of 503 responses with the given probability
+     */
+    public static FaultProfile serverErrorBursts(double rate, int burst) {
+        return new FaultProfile("5xx-" + rate + "x" + burst).setServerErrorRate(rate).setServerErrorBurst(burst);
+    }
+
+    /**
+     * @return a profile slowly dripping the given fraction of bodies
+     */
+    public static FaultProfile slowDrip(double rate, int chunkBytes, long intervalMillis) {
+        return new FaultProfile("slow-drip-" + rate + "-" + chunkBytes + "B/" + intervalMillis + "ms")
+            .setSlowDripRate(rate).setDripChunkBytes(chunkBytes).setDripIntervalMillis(intervalMillis);
+    }
+
+    public FaultProfile setDropRate(double rate) {
+        mDropRate = rate;
+        return this;
+    }
+
+    public FaultProfile setTruncateRate(double rate) {
+        mTruncateRate = rate;
+        return this;
+    }
+
+    public FaultProfile setServerErrorRate(double rate) {
+        mServerErrorRate = rate;
+        return this;
+    }
+
+    /**
+     * Sets the number of consecutive requests failed by each server error burst. Default is 1.
+     */
+    public FaultProfile setServerErrorBurst(int requests) {
+        mServerErrorBurst = requests;
+        return this;
+    }
+
+    public FaultProfile setSlowDripRate(double rate) {
+        mSlowDripRate = rate;
+        return this;
+    }
+
+    /**
+     * Sets the size of each slowly dripped chunk. Default is 64 bytes.
+     */
+    public FaultProfile setDripChunkBytes(int bytes) {
+        mDripChunkBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Sets the pause between slowly dripped chunks. Default is 500 milliseconds.
+     */
+    public FaultProfile setDripIntervalMillis(long intervalMillis) {
+        mDripIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getServerErrorBurst() {
+        return mServerErrorBurst;
+    }
+
+    public int getDripChunkBytes() {
+        return mDripChunkBytes;
+    }
+
+    public long getDripIntervalMillis() {
+        return mDripIntervalMillis;
+    }
+
+    /**
+     * Draw the fault for the next response. Faults are checked in declaration order, the first hit wins.
+     *
+     * @param random the source of randomness
+     * @return the fault to inject, NONE if the response must be served normally
+     */
+    Fault draw(final Random random) {
+        if (random.nextDouble() < mDropRate) {
+            return Fault.DROP;
+        }
+        if (random.nextDouble() < mTruncateRate) {
+            return Fault.TRUNCATE;
+        }
+        if (random.nextDouble() < mServerErrorRate) {
+            return Fault.SERVER_ERROR;
+        }
+        if (random.nextDouble() < mSlowDripRate) {
+            return Fault.SLOW_DRIP;
+        }
+        return Fault.NONE;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
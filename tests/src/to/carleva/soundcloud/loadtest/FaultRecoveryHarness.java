@@ -0,0 +1,378 @@
+package to.carleva.soundcloud.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.util.Log;
+import to.carleva.soundcloud.paging.PageSource;
+import to.carleva.soundcloud.remote.Configuration;
+import to.carleva.soundcloud.remote.DataProvider;
+import to.carleva.soundcloud.remote.DataProvider.Error;
+import to.carleva.soundcloud.remote.DataProvider.FavoritesUpdateObserver;
+import to.carleva.soundcloud.remote.DataProvider.StatsListener;
+import to.carleva.soundcloud.remote.DataProvider.UserUpdateObserver;
+import to.carleva.soundcloud.stats.UpdateStats;
+import to.carleva.soundcloud.types.Favorite;
+import to.carleva.soundcloud.types.User;
+
+/**
+ * A harness measuring how the DataProvider update loop copes with faults at the HTTP layer.
+ *
+ * Each run warms the loop up against a healthy FakeApiServer, then injects the faults of a
+ * FaultProfile for a fixed window, then removes them, and measures:
+ *   - the time to recovery: from the end of the faults to the first completed update cycle
+ *   - the requests wasted during the faults: requests which did not contribute to a completed cycle
+ *   - torn updates: notifications where the user favorites count does not match the favorites list,
+ *     i.e. user and favorites coming from different generations of the server data
+ *
+ * DataProvider runs with all-or-nothing updates, which torn updates are checked against. The read
+ * timeout does not bound a slow-drip response, as each chunk arrives in time: the cycle deadline does,
+ * so slow-drip runs measure how the loop copes with cycles cut at the deadline. As LoadHarness, this
+ * drives a DataProvider of its own and must not be invoked on the main thread.
+ *
+ * @author Andrea Carlevato
+ */
+public class FaultRecoveryHarness {
+
+    /**
+     * The measurements of a single run.
+     */
+    public static class Result {
+
+        private final String mProfileName;
+        private final long mFaultWindowMillis;
+        private final long mRequestsDuringFaults;
+        private final long mFaultedRequests;
+        private final long mCyclesDuringFaults;
+        private final long mTimeToRecoveryMillis;
+        private final int mErrorsNotified;
+        private final int mUpdatesNotified;
+        private final int mTornUpdates;
+
+        public String getProfileName() {
+            return mProfileName;
+        }
+
+        public long getFaultWindowMillis() {
+            return mFaultWindowMillis;
+        }
+
+        /**
+         * @return the number of requests received by the server while faults were injected
+         */
+        public long getRequestsDuringFaults() {
+            return mRequestsDuringFaults;
+        }
+
+        /**
+         * @return the number of requests a fault was actually injected into
+         */
+        public long getFaultedRequests() {
+            return mFaultedRequests;
+        }
+
+        /**
+         * @return the number of update cycles which completed while faults were injected
+         */
+        public long getCyclesDuringFaults() {
+            return mCyclesDuringFaults;
+        }
+
+        /**
+         * @return the requests received while faults were injected, which did not contribute to a completed cycle
+         */
+        public long getWastedRequests() {
+            return Math.max(0, mRequestsDuringFaults - mCyclesDuringFaults * DataProvider.Stream.values().length);
+        }
+
+        /**
+         * @return the time from the end of the faults to the first completed cycle, -1 if the loop did not recover
+         */
+        public long getTimeToRecoveryMillis() {
+            return mTimeToRecoveryMillis;
+        }
+
+        public int getErrorsNotified() {
+            return mErrorsNotified;
+        }
+
+        public int getUpdatesNotified() {
+            return mUpdatesNotified;
+        }
+
+        /**
+         * @return the number of notifications carrying user and favorites from different data generations
+         */
+        public int getTornUpdates() {
+            return mTornUpdates;
+        }
+
+        @Override
+        public String toString() {
+            return mProfileName + ": recovery=" + mTimeToRecoveryMillis + "ms requests=" + mRequestsDuringFaults
+                    + " faulted=" + mFaultedRequests + " wasted=" + getWastedRequests()
+                    + " cycles=" + mCyclesDuringFaults + " errors=" + mErrorsNotified
+                    + " updates=" + mUpdatesNotified + " torn=" + mTornUpdates;
+        }
+
+        Result(String profileName, long faultWindowMillis, long requestsDuringFaults, long faultedRequests,
+                long cyclesDuringFaults, long timeToRecoveryMillis, int errorsNotified, int updatesNotified,
+                int tornUpdates) {
+            mProfileName = profileName;
+            mFaultWindowMillis = faultWindowMillis;
+            mRequestsDuringFaults = requestsDuringFaults;
+            mFaultedRequests = faultedRequests;
+            mCyclesDuringFaults = cyclesDuringFaults;
+            mTimeToRecoveryMillis = timeToRecoveryMillis;
+            mErrorsNotified = errorsNotified;
+            mUpdatesNotified = updatesNotified;
+            mTornUpdates = tornUpdates;
+        }
+    }
+
+    /**
+     * An observer checking that each notification carries user and favorites of the same generation.
+     */
+    private static class TornStateObserver implements UserUpdateObserver, FavoritesUpdateObserver {
+
+        private final AtomicInteger mUpdates = new AtomicInteger();
+        private final AtomicInteger mTorn = new AtomicInteger();
+        private final AtomicInteger mErrors = new AtomicInteger();
+        private User mLastUser;
+
+        @Override
+        public void onUpdated() {
+        }
+
+        @Override
+        public void onError(final Error error) {
+            mErrors.incrementAndGet();
+        }
+
+        @Override
+        public void onStopped() {
+        }
+
+        @Override
+        public void onUserUpdate(final User user) {
+            mLastUser = user;
+        }
+
+        @Override
+        public void onFavoritesUpdate(final PageSource<Favorite> favorites) {
+            mUpdates.incrementAndGet();
+            if (mLastUser != null && mLastUser.getFavoritesCount() != favorites.getCount()) {
+                mTorn.incrementAndGet();
+            }
+        }
+    }
+
+    private static final String TAG = "FaultRecoveryHarness";
+    private static final String CACHE_DIRECTORY = "faulttest";
+    // time allowed to a stopped update loop to wind down, before the next run starts: stop() wakes
+    // the loop and cancels its calls in flight, so no update period has to elapse
+    private static final long SETTLE_MILLIS = 1000;
+
+    private final Context mContext;
+    private final DataProvider mProvider;
+    private int mLibrarySize = 200;
+    private int mWarmupCycles = 3;
+    private long mUpdatePeriodMillis = 1000;
+    private long mFaultWindowMillis = 30 * 1000;
+    private long mRecoveryTimeoutMillis = 3 * 60 * 1000;
+    private long mCycleDeadlineMillis = 10 * 1000;
+
+    /**
+     * @param context the context DataProvider is initialized with
+     */
+    public FaultRecoveryHarness(final Context context) {
+        this(context, new DataProvider());
+    }
+
+    /**
+     * @param context the context DataProvider is initialized with
+     * @param provider the DataProvider to drive, initialized, started and released by each run
+     */
+    public FaultRecoveryHarness(final Context context, final DataProvider provider) {
+        mContext = context;
+        mProvider = provider;
+    }
+
+    /**
+     * Sets the number of favorites served. Default is 200.
+     */
+    public FaultRecoveryHarness setLibrarySize(int size) {
+        mLibrarySize = size;
+        return this;
+    }
+
+    /**
+     * Sets the number of healthy cycles before faults are injected. Default is 3.
+     */
+    public FaultRecoveryHarness setWarmupCycles(int cycles) {
+        mWarmupCycles = cycles;
+        return this;
+    }
+
+    /**
+     * Sets the DataProvider update period, which is also its back-off after errors. Default is 1 second.
+     */
+    public FaultRecoveryHarness setUpdatePeriodMillis(long periodMillis) {
+        mUpdatePeriodMillis = periodMillis;
+        return this;
+    }
+
+    /**
+     * Sets how long faults are injected for. Default is 30 seconds.
+     */
+    public FaultRecoveryHarness setFaultWindowMillis(long windowMillis) {
+        mFaultWindowMillis = windowMillis;
+        return this;
+    }
+
+    /**
+     * Sets how long to wait for a completed cycle once faults are removed. Default is 3 minutes.
+     */
+    public FaultRecoveryHarness setRecoveryTimeoutMillis(long timeoutMillis) {
+        mRecoveryTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Sets the DataProvider cycle deadline, which bounds the cycles slowed down by slow-drip responses.
+     * Default is 10 seconds.
+     */
+    public FaultRecoveryHarness setCycleDeadlineMillis(long deadlineMillis) {
+        mCycleDeadlineMillis = deadlineMillis;
+        return this;
+    }
+
+    /**
+     * Run the harness with the standard fault profiles: packet loss, truncated bodies, 5xx bursts
+     * and slow-drip responses.
+     *
+     * @return a result for each profile
+     * @throws IOException if the fake server could not be started
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public List<Result> runStandardSuite() throws IOException, InterruptedException {
+        return run(FaultProfile.packetLoss(0.3),
+                FaultProfile.truncatedBodies(0.3),
+                FaultProfile.serverErrorBursts(0.2, 5),
+                FaultProfile.slowDrip(0.5, 64, 500));
+    }
+
+    /**
+     * Run the harness once for each given fault profile.
+     *
+     * @param profiles the faults injected in each run
+     * @return a result for each run, in the same order
+     * @throws IOException if the fake server could not be started
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public List<Result> run(final FaultProfile... profiles) throws IOException, InterruptedException {
+        List<Result> results = new ArrayList<Result>();
+        for (FaultProfile profile : profiles) {
+            Result result = runOnce(profile);
+            Log.i(TAG, result.toString());
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Run the harness once with the given fault profile.
+     *
+     * @param profile the faults to inject
+     * @return the result of the run
+     * @throws IOException if the fake server could not be started
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public Result runOnce(final FaultProfile profile) throws IOException, InterruptedException {
+        final FakeApiServer server = new FakeApiServer().setLibrarySize(mLibrarySize).setMutationRate(0.05);
+        server.start();
+
+        final DataProvider provider = mProvider;
+        provider.init(mContext, new Configuration()
+            .setApiHostingServer(server.getBaseUrl())
+            .setStopOnNoConnection(false)
+            .setAllOrNothingUpdates(true)
+            .setUpdatePeriodMillis(mUpdatePeriodMillis)
+            .setCycleDeadlineMillis(mCycleDeadlineMillis)
+            .setCacheDirectory(LoadHarness.cleanCacheDirectory(mContext, CACHE_DIRECTORY)));
+
+        final AtomicLong completedCycles = new AtomicLong();
+        final CountDownLatch warmedUp = new CountDownLatch(mWarmupCycles);
+        final AtomicReference<CountDownLatch> recovered = new AtomicReference<CountDownLatch>();
+        final AtomicLong recoveredAt = new AtomicLong();
+        StatsListener listener = new StatsListener() {
+            @Override
+            public void onCycleCompleted(final UpdateStats stats) {
+                server.advanceGeneration();
+                completedCycles.incrementAndGet();
+                warmedUp.countDown();
+                CountDownLatch recovery = recovered.get();
+                if (recovery != null && recovery.getCount() > 0) {
+                    recoveredAt.set(System.nanoTime());
+                    recovery.countDown();
+                }
+            }
+        };
+        TornStateObserver observer = new TornStateObserver();
+        provider.subscribeToStats(listener);
+        provider.subscribeToUserUpdates(observer);
+        provider.subscribeToFavoritesUpdates(observer);
+
+        long requestsDuringFaults;
+        long faultedRequests;
+        long cyclesDuringFaults;
+        long timeToRecovery = -1;
+        try {
+            provider.start();
+            warmedUp.await(mRecoveryTimeoutMillis, TimeUnit.MILLISECONDS);
+
+            // inject faults for the given window
+            long requestsBefore = requestCount(server);
+            long faultedBefore = server.getFaultedRequestCount();
+            long cyclesBefore = completedCycles.get();
+            server.setFaultProfile(profile);
+            Thread.sleep(mFaultWindowMillis);
+
+            // and measure how long it takes to get back to a completed cycle
+            CountDownLatch recovery = new CountDownLatch(1);
+            recovered.set(recovery);
+            server.setFaultProfile(null);
+            long faultsOffAt = System.nanoTime();
+            requestsDuringFaults = requestCount(server) - requestsBefore;
+            faultedRequests = server.getFaultedRequestCount() - faultedBefore;
+            cyclesDuringFaults = completedCycles.get() - cyclesBefore;
+            if (recovery.await(mRecoveryTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeToRecovery = TimeUnit.NANOSECONDS.toMillis(recoveredAt.get() - faultsOffAt);
+            }
+        } finally {
+            provider.stop();
+            provider.unsubscribeToStats(listener);
+            provider.unsubscribeToUserUpdates(observer);
+            provider.unsubscribeToFavoritesUpdates(observer);
+        }
+
+        Thread.sleep(SETTLE_MILLIS);
+        provider.release();
+        server.shutdown();
+
+        return new Result(profile.getName(), mFaultWindowMillis, requestsDuringFaults, faultedRequests,
+                cyclesDuringFaults, timeToRecovery, observer.mErrors.get(), observer.mUpdates.get(),
+                observer.mTorn.get());
+    }
+
+    private static long requestCount(final FakeApiServer server) {
+        return server.getUserRequestCount() + server.getFavoritesRequestCount() + server.getChangesRequestCount();
+    }
+}
@@ -0,0 +1,466 @@
+package to.carleva.soundcloud.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.util.Log;
+import to.carleva.soundcloud.archive.ArchiveException;
+import to.carleva.soundcloud.archive.ArchivePolicy;
+import to.carleva.soundcloud.archive.Archiver;
+import to.carleva.soundcloud.remote.Configuration;
+import to.carleva.soundcloud.remote.DataProvider;
+import to.carleva.soundcloud.remote.DataProvider.StatsListener;
+import to.carleva.soundcloud.remote.DataProvider.Stream;
+import to.carleva.soundcloud.stats.Histogram;
+import to.carleva.soundcloud.stats.Span;
+import to.carleva.soundcloud.stats.UpdateStats;
+
+/**
+ * An end-to-end load harness, which drives the real DataProvider update loop against a FakeApiServer
+ * and reports cycle latency, throughput and memory for different library sizes.
+ *
+ * The harness drives a DataProvider of its own, with a dedicated cache directory, so the app's
+ * DataProvider.INSTANCE is left alone. It blocks until all runs are done, hence it must not be
+ * invoked on the main thread, which DataProvider dispatches its notifications to.
+ *
+ * Usage:
+ *
+ *     List<Report> reports = new LoadHarness(context).setCyclesPerRun(50).run(100, 1000, 10000);
+ *
+ * @author Andrea Carlevato
+ */
+public class LoadHarness {
+
+    /**
+     * The measurements of a single run.
+     */
+    public static class Report {
+
+        private final int mLibrarySize;
+        private final long mCycles;
+        private final long mElapsedMillis;
+        private final long mFavoritesBodyBytes;
+        private final long mHeapUsedBytes;
+        private final UpdateStats mStats;
+        private final double mCompressionRatio;
+        private final long mFavoritesRestoreNanos;
+        private final long mFavoritesSingleStreamRestoreNanos;
+
+        /**
+         * @return the number of favorites served at the beginning of the run
+         */
+        public int getLibrarySize() {
+            return mLibrarySize;
+        }
+
+        /**
+         * @return the number of update cycles completed
+         */
+        public long getCycles() {
+            return mCycles;
+        }
+
+        /**
+         * @return the wall clock duration of the run, in milliseconds
+         */
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        /**
+         * @return the number of completed cycles per second
+         */
+        public double getCyclesPerSecond() {
+            return mElapsedMillis == 0 ? 0 : mCycles * 1000.0 / mElapsedMillis;
+        }
+
+        /**
+         * @return the size of the favorites response at the end of the run, in bytes
+         */
+        public long getFavoritesBodyBytes() {
+            return mFavoritesBodyBytes;
+        }
+
+        /**
+         * @return the heap in use at the end of the run, after a garbage collection, in bytes
+         */
+        public long getHeapUsedBytes() {
+            return mHeapUsedBytes;
+        }
+
+        /**
+         * @return the DataProvider statistics collected during the run
+         */
+        public UpdateStats getStats() {
+            return mStats;
+        }
+
+        /**
+         * @return the ratio of raw to stored bytes of the data archived during the run, 1 if none
+         */
+        public double getCompressionRatio() {
+            return mCompressionRatio;
+        }
+
+        /**
+         * @return the time to restore the favorites archived at the end of the run, in shards decoded in 
+         * parallel, in microseconds, -1 if caching was disabled or the restore failed
+         */
+        public long getFavoritesRestoreMicros() {
+            return mFavoritesRestoreNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(mFavoritesRestoreNanos);
+        }
+
+        /**
+         * @return the time to restore the same favorites from a single-stream archive, in microseconds,
+         * -1 if caching was disabled or the restore failed
+         */
+        public long getFavoritesSingleStreamRestoreMicros() {
+            return mFavoritesSingleStreamRestoreNanos < 0 ? -1 
+                    : TimeUnit.NANOSECONDS.toMicros(mFavoritesSingleStreamRestoreNanos);
+        }
+
+        /**
+         * @return the single-stream restore time divided by the sharded one, 0 if not available
+         */
+        public double getRestoreSpeedup() {
+            return mFavoritesRestoreNanos <= 0 || mFavoritesSingleStreamRestoreNanos < 0 ? 0 
+                    : (double) mFavoritesSingleStreamRestoreNanos / mFavoritesRestoreNanos;
+        }
+
+        /**
+         * @return the update cycle latency histogram, in microseconds
+         */
+        public Histogram.Snapshot getCycleLatency() {
+            return mStats.getCycle();
+        }
+
+        /**
+         * @param stream the update stream
+         * @return the time from start to the first dispatch of the given stream, in microseconds. The
+         * user stream is the content of AccountFragment.
+         */
+        public Histogram.Snapshot getTimeToFirstContent(final Stream stream) {
+            return mStats.getSpan(stream, Span.FIRST_CONTENT);
+        }
+
+        @Override
+        public String toString() {
+            return "library=" + mLibrarySize + " body=" + mFavoritesBodyBytes + "B cycles=" + mCycles
+                    + " elapsed=" + mElapsedMillis + "ms throughput=" + String.format("%.2f", getCyclesPerSecond())
+                    + "/s heap=" + (mHeapUsedBytes / 1024) + "KB\n"
+                    + "  cycle[" + mStats.getCycle() + "]\n"
+                    + "  favorites parse[" + mStats.getSpan(Stream.FAVORITES, Span.PARSE) + "]\n"
+                    + "  favorites save[" + mStats.getSpan(Stream.FAVORITES, Span.SAVE_STATE) + "]\n"
+                    + "  archive ratio=" + String.format("%.2f", mCompressionRatio)
+                    + " favorites restore=" + getFavoritesRestoreMicros() + "us single stream="
+                    + getFavoritesSingleStreamRestoreMicros() + "us speedup=" + String.format("%.2f", getRestoreSpeedup())
+                    + " cores=" + Runtime.getRuntime().availableProcessors() + "\n"
+                    + "  user first content[" + getTimeToFirstContent(Stream.USER) + "]\n"
+                    + "  favorites first content[" + getTimeToFirstContent(Stream.FAVORITES) + "]";
+        }
+
+        Report(int librarySize, long cycles, long elapsedMillis, long favoritesBodyBytes,
+                long heapUsedBytes, UpdateStats stats, double compressionRatio, long favoritesRestoreNanos,
+                long favoritesSingleStreamRestoreNanos) {
+            mLibrarySize = librarySize;
+            mCycles = cycles;
+            mElapsedMillis = elapsedMillis;
+            mFavoritesBodyBytes = favoritesBodyBytes;
+            mHeapUsedBytes = heapUsedBytes;
+            mStats = stats;
+            mCompressionRatio = compressionRatio;
+            mFavoritesRestoreNanos = favoritesRestoreNanos;
+            mFavoritesSingleStreamRestoreNanos = favoritesSingleStreamRestoreNanos;
+        }
+    }
+
+    private static final String TAG = "LoadHarness";
+    private static final String CACHE_DIRECTORY = "loadtest";
+    // the tag of the single-stream favorites archive, the restore of the sharded one is compared to
+    private static final String SINGLE_STREAM_TAG = "favorites_single_stream";
+    // time allowed to a stopped update loop to wind down, before the next run starts: stop() wakes
+    // the loop and cancels its calls in flight, so no update period has to elapse
+    private static final long SETTLE_MILLIS = 1000;
+
+    private final Context mContext;
+    private final DataProvider mProvider;
+    private int mCyclesPerRun = 20;
+    private long mRunTimeoutMillis = 5 * 60 * 1000;
+    private long mUpdatePeriodMillis = 0;
+    private long mLatencyMillis = 0;
+    private int mDescriptionLength = 200;
+    private double mMutationRate = 0.01;
+    private boolean mCacheDataEnabled = true;
+    private boolean mAsyncFetchEnabled = false;
+    private boolean mIncrementalSyncEnabled = false;
+    private boolean mAllOrNothingUpdates = false;
+    private boolean mArchiveCompressionEnabled = false;
+    private boolean mRawCacheEnabled = false;
+
+    /**
+     * @param context the context DataProvider is initialized with
+     */
+    public LoadHarness(final Context context) {
+        this(context, new DataProvider());
+    }
+
+    /**
+     * @param context the context DataProvider is initialized with
+     * @param provider the DataProvider to drive, initialized, started and released by each run
+     */
+    public LoadHarness(final Context context, final DataProvider provider) {
+        mContext = context;
+        mProvider = provider;
+    }
+
+    /**
+     * Sets the number of update cycles measured by each run. Default is 20.
+     */
+    public LoadHarness setCyclesPerRun(int cycles) {
+        mCyclesPerRun = cycles;
+        return this;
+    }
+
+    /**
+     * Sets the maximum duration of each run, after which the run is reported as is. Default is 5 minutes.
+     */
+    public LoadHarness setRunTimeoutMillis(long timeoutMillis) {
+        mRunTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Sets the DataProvider update period during the runs. Default is 0, cycles run back to back.
+     */
+    public LoadHarness setUpdatePeriodMillis(long periodMillis) {
+        mUpdatePeriodMillis = periodMillis;
+        return this;
+    }
+
+    /**
+     * Sets the latency of the fake server responses. Default is 0.
+     */
+    public LoadHarness setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Sets the length of each favorite description, which drives the payload size. Default is 200.
+     */
+    public LoadHarness setDescriptionLength(int length) {
+        mDescriptionLength = length;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of favorites changed by the fake server at each cycle. Default is 0.01.
+     */
+    public LoadHarness setMutationRate(double rate) {
+        mMutationRate = rate;
+        return this;
+    }
+
+    /**
+     * Sets if DataProvider caches data on disk during the runs. Default is true.
+     */
+    public LoadHarness setCacheDataEnabled(boolean enabled) {
+        mCacheDataEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Sets if DataProvider runs its cycles on the non-blocking fetch engine. Default is false.
+     */
+    public LoadHarness setAsyncFetchEnabled(boolean enabled) {
+        mAsyncFetchEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Sets if DataProvider synchronizes favorites incrementally from the activity feed. Default is false.
+     */
+    public LoadHarness setIncrementalSyncEnabled(boolean enabled) {
+        mIncrementalSyncEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Sets if DataProvider notifies all streams together, once all of them completed. Default is false.
+     */
+    public LoadHarness setAllOrNothingUpdates(boolean enabled) {
+        mAllOrNothingUpdates = enabled;
+        return this;
+    }
+
+    /**
+     * Sets if DataProvider compresses the data it caches on disk. Default is false.
+     */
+    public LoadHarness setArchiveCompressionEnabled(boolean enabled) {
+        mArchiveCompressionEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Sets if DataProvider caches responses on disk as received. Default is false.
+     */
+    public LoadHarness setRawCacheEnabled(boolean enabled) {
+        mRawCacheEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Run the harness once for each given library size.
+     *
+     * @param librarySizes the number of favorites served in each run
+     * @return a report for each run, in the same order
+     * @throws IOException if the fake server could not be started
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public List<Report> run(int... librarySizes) throws IOException, InterruptedException {
+        List<Report> reports = new ArrayList<Report>();
+        for (int librarySize : librarySizes) {
+            Report report = runOnce(new FakeApiServer().setLibrarySize(librarySize));
+            Log.i(TAG, report.toString());
+            reports.add(report);
+        }
+        return reports;
+    }
+
+    /**
+     * Run the harness once against the given, not yet started, server. The server is configured
+     * with the harness latency, description length and mutation rate, then started and shut down.
+     *
+     * @param server the server to run against
+     * @return the report of the run
+     * @throws IOException if the fake server could not be started
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public Report runOnce(final FakeApiServer server) throws IOException, InterruptedException {
+        server.setLatencyMillis(mLatencyMillis)
+            .setDescriptionLength(mDescriptionLength)
+            .setMutationRate(mMutationRate)
+            .start();
+        int librarySize = server.getLibrarySize();
+
+        final DataProvider provider = mProvider;
+        Configuration configuration = newConfiguration(server);
+        provider.init(mContext, configuration);
+        provider.resetStats();
+        ArchivePolicy policy = provider.getArchivePolicy();
+        long rawBytesBefore = policy.getRawBytes();
+        long storedBytesBefore = policy.getStoredBytes();
+
+        final CountDownLatch cyclesDone = new CountDownLatch(mCyclesPerRun);
+        StatsListener listener = new StatsListener() {
+            @Override
+            public void onCycleCompleted(final UpdateStats stats) {
+                // data changes between cycles, never during one
+                server.advanceGeneration();
+                cyclesDone.countDown();
+            }
+        };
+        provider.subscribeToStats(listener);
+
+        long start = System.currentTimeMillis();
+        try {
+            provider.start();
+            cyclesDone.await(mRunTimeoutMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            provider.stop();
+            provider.unsubscribeToStats(listener);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        UpdateStats stats = provider.getStats();
+        long heapUsed = usedHeap();
+
+        Thread.sleep(SETTLE_MILLIS);
+        provider.release();
+        server.shutdown();
+
+        long storedBytes = policy.getStoredBytes() - storedBytesBefore;
+        double compressionRatio = storedBytes == 0 ? 1 
+                : (double) (policy.getRawBytes() - rawBytesBefore) / storedBytes;
+        long[] restoreNanos = { -1, -1 };
+        if (mCacheDataEnabled) {
+            restoreNanos = timeFavoritesRestore(configuration.getCacheDirectory(), policy);
+        }
+        return new Report(librarySize, stats.getCycleCount(), elapsed, server.getFavoritesBodySize(),
+                heapUsed, stats, compressionRatio, restoreNanos[0], restoreNanos[1]);
+    }
+
+    /**
+     * Time the restore of the favorites archived by DataProvider in the given directory, from its 
+     * shards, then from a single-stream archive of the same favorites, written for the comparison.
+     *
+     * @return the sharded and the single-stream restore times, in nanoseconds, -1 if a restore failed
+     */
+    private static long[] timeFavoritesRestore(final File directory, final ArchivePolicy policy) {
+        long[] nanos = { -1, -1 };
+        try {
+            // the tag DataProvider archives favorites with; a first, untimed, restore warms up the decoder
+            List<Serializable> favorites = Archiver.restoreObjectListSharded("favorites", directory, policy);
+            if (favorites == null) {
+                return nanos;
+            }
+            long start = System.nanoTime();
+            Archiver.restoreObjectListSharded("favorites", directory, policy);
+            nanos[0] = System.nanoTime() - start;
+            
+            Archiver.saveObjectList(favorites, SINGLE_STREAM_TAG, directory, policy);
+            start = System.nanoTime();
+            Archiver.restoreObjectList(SINGLE_STREAM_TAG, directory, policy);
+            nanos[1] = System.nanoTime() - start;
+            Archiver.delete(SINGLE_STREAM_TAG, directory);
+        } catch (ArchiveException e) {
+            Log.e(TAG, "Unable to time favorites restore: " + e.toString());
+        }
+        return nanos;
+    }
+
+    /**
+     * @return a DataProvider configuration targeting the given server, with the harness settings
+     */
+    Configuration newConfiguration(final FakeApiServer server) {
+        return new Configuration()
+            .setApiHostingServer(server.getBaseUrl())
+            .setStopOnNoConnection(false)
+            .setCacheDataEnabled(mCacheDataEnabled)
+            .setAsyncFetchEnabled(mAsyncFetchEnabled)
+            .setIncrementalSyncEnabled(mIncrementalSyncEnabled)
+            .setAllOrNothingUpdates(mAllOrNothingUpdates)
+            .setArchiveCompressionEnabled(mArchiveCompressionEnabled)
+            .setRawCacheEnabled(mRawCacheEnabled)
+            .setUpdatePeriodMillis(mUpdatePeriodMillis)
+            .setCacheDirectory(cleanCacheDirectory(mContext, CACHE_DIRECTORY));
+    }
+
+    /**
+     * @return the given harness cache directory, emptied, so that each run starts cold
+     */
+    static File cleanCacheDirectory(final Context context, final String name) {
+        File directory = new File(context.getCacheDir(), name);
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Unable to create cache directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        return directory;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,143 @@
+package to.carleva.soundcloud.paging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the pages served by a PagedList while its source is replaced.
+ *
+ * @author Andrea Carlevato
+ */
+public class PagedListTest extends TestCase {
+
+    /**
+     * A source not held in memory, whose pages are loaded once opened, see open().
+     */
+    private static class GatedPageSource implements PageSource<String> {
+
+        private final String mPrefix;
+        private final int mCount;
+        private final int mPageSize;
+        private final CountDownLatch mOpen = new CountDownLatch(1);
+
+        GatedPageSource(final String prefix, int count, int pageSize) {
+            mPrefix = prefix;
+            mCount = count;
+            mPageSize = pageSize;
+        }
+
+        void open() {
+            mOpen.countDown();
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int getPageCount() {
+            return (mCount + mPageSize - 1) / mPageSize;
+        }
+
+        @Override
+        public int getPageOffset(int page) {
+            return page * mPageSize;
+        }
+
+        @Override
+        public boolean isInMemory() {
+            return false;
+        }
+
+        @Override
+        public List<String> loadPage(int page) {
+            try {
+                mOpen.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return items(mPrefix, page * mPageSize, Math.min(mCount, (page + 1) * mPageSize));
+        }
+    }
+
+    private static final int COUNT = 100;
+    private static final int PAGE_SIZE = 10;
+    private static final long LOAD_TIMEOUT_MILLIS = 5000;
+
+    private PagedList<String> mList;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mList != null) {
+            mList.close();
+        }
+        super.tearDown();
+    }
+
+    public void testInMemorySourceIsServedRightAway() {
+        mList = new PagedList<String>(new ListPageSource<String>(items("a", 0, COUNT), PAGE_SIZE));
+        assertEquals("a42", mList.get(42));
+        assertEquals(0, mList.getLoadCount());
+    }
+
+    public void testWindowOfInMemorySourceIsStaleUntilArchivedPagesLoad() throws InterruptedException {
+        mList = new PagedList<String>(new ListPageSource<String>(items("a", 0, COUNT), PAGE_SIZE));
+        // scroll down to the fourth page
+        for (int position = 0; position <= 35; position += PAGE_SIZE / 2) {
+            assertEquals("a" + position, mList.get(position));
+        }
+
+        GatedPageSource archived = new GatedPageSource("b", COUNT, PAGE_SIZE);
+        mList.setSource(archived);
+        // the page accessed, the ones ahead in the scroll direction and the one behind do not flash
+        assertEquals("a35", mList.get(35));
+        assertEquals("a29", mList.get(29));
+        assertEquals("a45", mList.get(45));
+        assertEquals("a59", mList.get(59));
+        assertTrue("window only", mList.getResidentCount() <= 5 * PAGE_SIZE);
+
+        archived.open();
+        assertEquals("b35", awaitFresh(35, "b"));
+    }
+
+    public void testStalePagesOfArchivedSourceAreKept() throws InterruptedException {
+        GatedPageSource first = new GatedPageSource("a", COUNT, PAGE_SIZE);
+        first.open();
+        mList = new PagedList<String>(first);
+        assertEquals("a12", awaitFresh(12, "a"));
+
+        GatedPageSource second = new GatedPageSource("b", COUNT + 5, PAGE_SIZE);
+        mList.setSource(second);
+        assertEquals(COUNT + 5, mList.getCount());
+        assertEquals("a12", mList.get(12));
+
+        second.open();
+        assertEquals("b12", awaitFresh(12, "b"));
+    }
+
+    /**
+     * Wait for the item at the given position to be served from the given source.
+     */
+    private String awaitFresh(int position, final String prefix) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOAD_TIMEOUT_MILLIS);
+        String item = mList.get(position);
+        while ((item == null || !item.startsWith(prefix)) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            item = mList.get(position);
+        }
+        return item;
+    }
+
+    private static List<String> items(final String prefix, int from, int to) {
+        List<String> items = new ArrayList<String>(to - from);
+        for (int i = from; i < to; i++) {
+            items.add(prefix + i);
+        }
+        return items;
+    }
+}